@@ -0,0 +1,438 @@
+package com.davenotdavid.musicplayerlite;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Loads album-art thumbnails into the song list's rows without decoding on the main thread.
+ *
+ * Thumbnails are looked up in two levels: a memory LRU that's bounded by the bytes of the bitmaps
+ * it holds, and a disk cache of thumbnails that were already downsampled to the row size (so that
+ * later sessions never decode the full-size art again). Anything else is decoded from the
+ * MediaStore on a small pool of background threads. Binding a recycled row to another album
+ * cancels the row's earlier request, so that fast scrolling doesn't queue up work for rows that
+ * are long gone. Only memory hits are applied on the main thread.
+ *
+ * Albums the MediaStore has no art for are remembered as well, on disk by a marker that's named
+ * after the last time any of the album's files was modified, so that it no longer applies once
+ * one of them is (e.g. once art was embedded into it). Art that merely failed to load isn't
+ * remembered at all, and is tried again the next time it's displayed.
+ */
+public class AlbumArtLoader {
+
+    // Log tag constant.
+    private static final String LOG_TAG = AlbumArtLoader.class.getSimpleName();
+
+    // Base URI of the MediaStore's album art.
+    private static final Uri ALBUM_ART_URI = Uri.parse("content://media/external/audio/albumart");
+
+    // Number of decoding threads - more would only compete with the UI for the CPU.
+    private static final int THREAD_COUNT = 2;
+
+    // Share of the app's heap the memory cache may take up.
+    private static final int MEMORY_CACHE_DIVISOR = 8;
+
+    // Bounds of the disk cache, which is trimmed down to three quarters once it's full.
+    private static final String DISK_CACHE_DIRECTORY = "album_art";
+    private static final long DISK_CACHE_BYTES = 16 * 1024 * 1024;
+
+    // JPEG quality of the thumbnails on disk.
+    private static final int DISK_CACHE_QUALITY = 85;
+
+    // Single instance, which outlives the Activity so that the caches survive rotations.
+    private static AlbumArtLoader sInstance;
+
+    // Fields used for loading the art.
+    private final ContentResolver mResolver;
+    private final int mSize;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor;
+
+    // Memory cache of thumbnails by album ID, and the albums known to have no art at all (rather
+    // than ones whose art failed to load).
+    private final LruCache<Long, Bitmap> mMemoryCache;
+    private final Set<Long> mMissing = Collections.synchronizedSet(new HashSet<Long>());
+
+    // Disk cache directory, and its total size (or -1 until it's first measured).
+    private final File mDiskCacheDirectory;
+    private long mDiskCacheBytes = -1;
+    private final Object mDiskCacheLock = new Object();
+
+    /**
+     * Returns the single {@link AlbumArtLoader} object, creating it on first use.
+     *
+     * @param context is any context - only the application context is kept.
+     */
+    public static AlbumArtLoader getInstance(Context context) {
+        if (sInstance == null) sInstance = new AlbumArtLoader(context.getApplicationContext());
+
+        return sInstance;
+    }
+
+    /**
+     * Creates a {@link AlbumArtLoader} object.
+     *
+     * @param context is the application context.
+     */
+    private AlbumArtLoader(Context context) {
+        mResolver = context.getContentResolver();
+        mSize = context.getResources().getDimensionPixelSize(R.dimen.album_art_size);
+        mDiskCacheDirectory = new File(context.getCacheDir(), DISK_CACHE_DIRECTORY);
+
+        // Sizes the memory cache by the bitmaps' bytes rather than their count.
+        int memoryClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE))
+                .getMemoryClass();
+        int maxBytes = memoryClass * 1024 * 1024 / MEMORY_CACHE_DIVISOR;
+        mMemoryCache = new LruCache<Long, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Long albumId, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+
+        mExecutor = BackgroundExecutors.newExecutor(LOG_TAG, THREAD_COUNT);
+    }
+
+    /**
+     * Displays the art of the passed-in album in the passed-in view. A cached thumbnail is shown
+     * right away, and anything else is loaded in the background while the view is left empty.
+     * Must be called on the main thread.
+     *
+     * @param view is the row's image view, which may be recycled from another row.
+     * @param albumId is the ID of the album, or -1 if unknown.
+     */
+    public void bind(ImageView view, long albumId) {
+        Request previous = (Request) view.getTag(R.id.album_art_request);
+        if (previous != null) {
+
+            // Keeps the request should the view be rebound to the same album.
+            if (previous.mAlbumId == albumId) return;
+            previous.cancel();
+            view.setTag(R.id.album_art_request, null);
+        }
+
+        Bitmap bitmap = albumId < 0 ? null : mMemoryCache.get(albumId);
+        view.setImageBitmap(bitmap);
+        if (bitmap != null || albumId < 0 || mMissing.contains(albumId)) return;
+
+        Request request = new Request(view, albumId);
+        view.setTag(R.id.album_art_request, request);
+        request.mFuture = mExecutor.submit(request);
+    }
+
+    /**
+     * Releases memory as the system asks for it, e.g. from an Activity's onTrimMemory().
+     *
+     * @param level is the trim level.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mMemoryCache.evictAll();
+            mMissing.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mMemoryCache.trimToSize(mMemoryCache.maxSize() / 2);
+        }
+    }
+
+    /**
+     * Returns the thumbnail of the passed-in album from the disk cache, or decodes it from the
+     * MediaStore (and caches it on disk). Runs on a worker thread.
+     *
+     * @return the thumbnail, or null should the album have no art.
+     * @throws IOException should the art fail to load, in which case nothing is cached.
+     */
+    private Bitmap load(long albumId) throws IOException {
+        File file = new File(mDiskCacheDirectory, albumId + ".jpg");
+
+        // Only the bookkeeping is done under the lock, so that workers decode in parallel. Files
+        // are renamed into place once they're written whole, so a decode never reads a partial
+        // one, and one that's trimmed in the meantime just reads as a miss.
+        boolean cached;
+        synchronized (mDiskCacheLock) {
+            cached = file.exists();
+            if (cached) {
+
+                // An empty thumbnail is an unkeyed marker of an older version, which may be stale.
+                if (file.length() == 0) {
+                    file.delete();
+                    cached = false;
+                } else {
+                    file.setLastModified(System.currentTimeMillis()); // Marks it as recently used
+                }
+            }
+        }
+        if (cached) {
+            Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), thumbnailOptions(1));
+            if (bitmap != null) return bitmap;
+        }
+
+        // An empty marker file notes an album without art as of its files' last modification.
+        File marker = new File(mDiskCacheDirectory,
+                albumId + "_" + lastModified(albumId) + ".none");
+        synchronized (mDiskCacheLock) {
+            if (marker.exists()) {
+                marker.setLastModified(System.currentTimeMillis());
+                return null;
+            }
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        Bitmap bitmap = decode(ContentUris.withAppendedId(ALBUM_ART_URI, albumId));
+        PlaybackMetrics.recordSince(PlaybackMetrics.Timer.ALBUM_ART_DECODE, startTime);
+        writeToDisk(bitmap != null ? file : marker, bitmap);
+
+        return bitmap;
+    }
+
+    /**
+     * Returns the last time any file of the passed-in album was modified, in seconds, or -1
+     * should the MediaStore not know.
+     */
+    private long lastModified(long albumId) {
+        Cursor cursor = mResolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                new String[]{"MAX(" + MediaStore.Audio.Media.DATE_MODIFIED + ")"},
+                MediaStore.Audio.Media.ALBUM_ID + " = ?",
+                new String[]{String.valueOf(albumId)}, null);
+        if (cursor == null) return -1;
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Decodes the image at the passed-in URI downsampled to the thumbnail size - the bounds are
+     * read first so that the full-size image is never held in memory.
+     *
+     * @return the thumbnail, or null should there be no image at the URI.
+     * @throws IOException should the image fail to be read or decoded.
+     */
+    private Bitmap decode(Uri uri) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        try {
+            decodeStream(uri, bounds);
+        } catch (FileNotFoundException e) {
+            return null; // The album has no art
+        }
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Undecodable image at " + uri);
+        }
+
+        // Picks the largest power-of-two sample size that keeps both sides at least as big as
+        // the thumbnail, and then scales the rest of the way.
+        int sampleSize = 1;
+        while (bounds.outWidth / (sampleSize * 2) >= mSize
+                && bounds.outHeight / (sampleSize * 2) >= mSize) {
+            sampleSize *= 2;
+        }
+        Bitmap sampled = decodeStream(uri, thumbnailOptions(sampleSize));
+        if (sampled == null) throw new IOException("Undecodable image at " + uri);
+        if (sampled.getWidth() == mSize && sampled.getHeight() == mSize) return sampled;
+
+        Bitmap thumbnail = Bitmap.createScaledBitmap(sampled, mSize, mSize, true);
+        if (thumbnail != sampled) sampled.recycle();
+        return thumbnail;
+    }
+
+    /**
+     * Decodes a stream opened from the passed-in URI with the passed-in options.
+     */
+    private Bitmap decodeStream(Uri uri, BitmapFactory.Options options) throws IOException {
+        InputStream in = mResolver.openInputStream(uri);
+        if (in == null) throw new FileNotFoundException(uri.toString());
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the options thumbnails are decoded with - 16 bits per pixel is plenty at this size,
+     * and halves the memory cache's footprint.
+     */
+    private static BitmapFactory.Options thumbnailOptions(int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+
+        return options;
+    }
+
+    /**
+     * Writes a thumbnail (or an empty marker file for an album without art) to the disk cache,
+     * trimming the least recently used files once the cache is full. The thumbnail is compressed
+     * into a file of the worker's own outside the lock, and then renamed into place.
+     */
+    private void writeToDisk(File file, Bitmap bitmap) {
+        if (!mDiskCacheDirectory.isDirectory() && !mDiskCacheDirectory.mkdirs()) return;
+
+        File tempFile = new File(mDiskCacheDirectory,
+                file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tempFile);
+            if (bitmap != null) {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, DISK_CACHE_QUALITY, out);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error caching " + file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing " + file, e);
+                }
+            }
+        }
+
+        synchronized (mDiskCacheLock) {
+            if (mDiskCacheBytes < 0) mDiskCacheBytes = directorySize();
+
+            // The file may have been trimmed while it was written, in which case it's not cached.
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                return;
+            }
+
+            mDiskCacheBytes += file.length();
+            if (mDiskCacheBytes > DISK_CACHE_BYTES) trimDisk(DISK_CACHE_BYTES * 3 / 4);
+        }
+    }
+
+    /**
+     * Deletes the least recently used files of the disk cache until it's below the passed-in
+     * size. Must hold the disk cache lock.
+     */
+    private void trimDisk(long targetBytes) {
+        File[] files = mDiskCacheDirectory.listFiles();
+        if (files == null) return;
+
+        final long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return lastModified[a] < lastModified[b] ? -1
+                        : (lastModified[a] == lastModified[b] ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; i < order.length && mDiskCacheBytes > targetBytes; i++) {
+            File file = files[order[i]];
+            long length = file.length();
+            if (file.delete()) mDiskCacheBytes -= length;
+        }
+    }
+
+    /**
+     * Returns the total size of the files in the disk cache. Must hold the disk cache lock.
+     */
+    private long directorySize() {
+        File[] files = mDiskCacheDirectory.listFiles();
+        if (files == null) return 0;
+
+        long bytes = 0;
+        for (File file : files) bytes += file.length();
+        return bytes;
+    }
+
+    /**
+     * Request to load one album's art into one view, which runs on a worker thread and then
+     * hands the thumbnail back to the main thread.
+     */
+    private class Request implements Runnable {
+
+        // Fields used for describing the request - the view is only touched on the main thread.
+        private final ImageView mView;
+        private final long mAlbumId;
+        private Future<?> mFuture;
+        private volatile boolean mCancelled;
+
+        /**
+         * Creates a {@link Request} object.
+         *
+         * @param view is the view to display the art in.
+         * @param albumId is the ID of the album.
+         */
+        Request(ImageView view, long albumId) {
+            mView = view;
+            mAlbumId = albumId;
+        }
+
+        /**
+         * Cancels the request, skipping it should it still be queued. Must be called on the main
+         * thread.
+         */
+        void cancel() {
+            mCancelled = true;
+            if (mFuture != null) mFuture.cancel(false);
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) return;
+
+            // Another request for the same album may have loaded it in the meantime.
+            Bitmap bitmap = mMemoryCache.get(mAlbumId);
+            if (bitmap == null && !mMissing.contains(mAlbumId)) {
+                try {
+                    bitmap = load(mAlbumId);
+                    if (bitmap != null) {
+                        mMemoryCache.put(mAlbumId, bitmap);
+                    } else {
+                        mMissing.add(mAlbumId);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    Log.e(LOG_TAG, "Error loading the art of album " + mAlbumId, e);
+                }
+            }
+
+            final Bitmap result = bitmap;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCancelled || mView.getTag(R.id.album_art_request) != Request.this) {
+                        return;
+                    }
+                    mView.setTag(R.id.album_art_request, null);
+                    mView.setImageBitmap(result);
+                }
+            });
+        }
+    }
+}
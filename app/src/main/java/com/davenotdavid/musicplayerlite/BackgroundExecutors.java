@@ -0,0 +1,206 @@
+package com.davenotdavid.musicplayerlite;
+
+import android.os.Process;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the app's background work (album art, metadata, loudness, duplicates, read-ahead and the
+ * session journal) on a single pool of background-priority threads, so that the number of
+ * background threads stays capped however many of those run at once.
+ *
+ * Each component gets an executor of its own from newExecutor(), which runs at most the
+ * passed-in number of its tasks at once. Its tasks are handed to the pool one at a time as its
+ * earlier ones finish, so a component with a long backlog only ever has a few tasks queued in
+ * the pool, and the other components' tasks take turns with its own.
+ *
+ * Threads are named after the component whose task they're running, and exit once they've been
+ * idle for a while.
+ */
+public final class BackgroundExecutors {
+
+    // Log tag constant.
+    private static final String LOG_TAG = BackgroundExecutors.class.getSimpleName();
+
+    // Number of tasks that hold a thread for a whole pass - the metadata and duplicate passes,
+    // which wait on their own workers, and the loudness pass, which works through its queue.
+    private static final int PASS_THREADS = 3;
+
+    // Most threads the pool runs at once - the passes, and one per core (two at least) for the
+    // short tasks, so that the passes can never hold every thread their workers need.
+    public static final int MAX_THREADS = PASS_THREADS
+            + Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    // Seconds an idle thread is kept around for, waiting for the next task.
+    private static final int IDLE_SECONDS = 30;
+
+    // Threads shared by every component, created on the first task.
+    private static ThreadPoolExecutor sPool;
+
+    private BackgroundExecutors() {}
+
+    /**
+     * Returns an executor that runs at most the passed-in number of tasks at once on the shared
+     * threads, in the order they're submitted.
+     *
+     * @param name is the name of the component, which its threads are named after.
+     * @param threads is the number of tasks run at once, e.g. 1 for running them one by one.
+     */
+    public static ExecutorService newExecutor(String name, int threads) {
+        return new LimitedExecutor(name, threads);
+    }
+
+    /**
+     * Returns the threads shared by every component, which exit once they've been idle for a
+     * while.
+     */
+    private static synchronized ThreadPoolExecutor pool() {
+        if (sPool == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                    IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    runnable.run();
+                                }
+                            }, LOG_TAG);
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            sPool = pool;
+        }
+
+        return sPool;
+    }
+
+    /**
+     * Executor of a single component, which queues its tasks up itself and hands at most a fixed
+     * number of them to the shared threads at once.
+     */
+    private static class LimitedExecutor extends AbstractExecutorService {
+
+        // Name of the component, and the number of its tasks run at once.
+        private final String mName;
+        private final int mThreads;
+
+        // Tasks that haven't been handed to the shared threads yet, and the number that have but
+        // haven't finished. Guarded by this.
+        private final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+        private int mRunning;
+        private boolean mShutdown;
+
+        /**
+         * Creates a {@link LimitedExecutor} object.
+         *
+         * @param name is the name of the component.
+         * @param threads is the number of tasks run at once.
+         */
+        LimitedExecutor(String name, int threads) {
+            mName = name;
+            mThreads = Math.max(1, threads);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            synchronized (this) {
+                if (mShutdown) throw new RejectedExecutionException(mName + " is shut down");
+                if (mRunning >= mThreads) {
+                    mQueue.add(command);
+                    return;
+                }
+                mRunning++;
+            }
+
+            pool().execute(wrap(command));
+        }
+
+        /**
+         * Returns a task that runs the passed-in one on a thread named after the component, and
+         * then hands the component's next task (if any) to the shared threads.
+         */
+        private Runnable wrap(final Runnable command) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    Thread thread = Thread.currentThread();
+                    thread.setName(mName);
+                    try {
+                        command.run();
+                    } finally {
+                        thread.setName(LOG_TAG);
+                        onTaskFinished();
+                    }
+                }
+            };
+        }
+
+        /**
+         * Hands the next task to the shared threads, behind whatever the other components have
+         * queued there in the meantime.
+         */
+        private void onTaskFinished() {
+            Runnable next;
+            synchronized (this) {
+                next = mQueue.poll();
+                if (next == null) {
+                    mRunning--;
+                    notifyAll();
+                    return;
+                }
+            }
+
+            pool().execute(wrap(next));
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            mShutdown = true;
+        }
+
+        @Override
+        public synchronized List<Runnable> shutdownNow() {
+            mShutdown = true;
+            List<Runnable> pending = new ArrayList<>(mQueue);
+            mQueue.clear();
+
+            return pending;
+        }
+
+        @Override
+        public synchronized boolean isShutdown() {
+            return mShutdown;
+        }
+
+        @Override
+        public synchronized boolean isTerminated() {
+            return mShutdown && mRunning == 0;
+        }
+
+        @Override
+        public synchronized boolean awaitTermination(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isTerminated()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,628 @@
+package com.davenotdavid.musicplayerlite;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link PlaybackEngine} that decodes the song itself with a MediaExtractor and a MediaCodec, and
+ * plays the PCM through an AudioTrack - so that buffering is visible (and tunable) rather than
+ * hidden inside the MediaPlayer.
+ *
+ * A decoder thread writes the codec's output into a {@link PcmRingBuffer} that's allocated once
+ * per engine, and an output thread reads it into the AudioTrack in fixed chunks, so the steady
+ * state allocates nothing: codec buffers are copied straight into the ring, and the ring straight
+ * into the output's chunk. When either thread moves on (prebuffered, drained, played out) is
+ * decided by a {@link PcmScheduler}, which also keeps the position. The song counts as prepared
+ * once the ring is half full, and a chained next engine is started on the output thread the
+ * moment this one plays out, before the main thread even hears of it.
+ *
+ * Every song gets a new generation - resetting bumps it, which both threads check between their
+ * steps, and events of an earlier generation are dropped rather than delivered.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class CodecPlaybackEngine implements PlaybackEngine {
+
+    // Log tag constant.
+    private static final String LOG_TAG = CodecPlaybackEngine.class.getSimpleName();
+
+    // Size of the ring, i.e. about 1.5 seconds of 44.1 kHz stereo audio.
+    private static final int BUFFER_BYTES = 256 * 1024;
+
+    // Bytes handed to the AudioTrack at a time.
+    private static final int OUTPUT_CHUNK_BYTES = 8 * 1024;
+
+    // Time the decoder's buffers are waited for, and the time either thread waits for the other
+    // before checking whether it should stop.
+    private static final long DEQUEUE_TIMEOUT_MICROS = 10000;
+    private static final long WAIT_MILLIS = 20;
+
+    // Time a reset waits for the threads to stop.
+    private static final long JOIN_TIMEOUT_MILLIS = 500;
+
+    // Events that are delivered to the listener on the main thread.
+    private static final int EVENT_PREPARED = 0;
+    private static final int EVENT_COMPLETION = 1;
+    private static final int EVENT_ERROR = 2;
+    private static final int EVENT_SEEK_COMPLETE = 3;
+
+    // Fields used for delivering the events.
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private Listener mListener;
+
+    // Ring between the threads, the scheduler of both, and the chunks the output thread writes
+    // (along with silence that pads the end of the song).
+    private final PcmRingBuffer mBuffer = new PcmRingBuffer(BUFFER_BYTES);
+    private final PcmScheduler mScheduler = new PcmScheduler(mBuffer);
+    private final byte[] mChunk = new byte[OUTPUT_CHUNK_BYTES];
+    private final byte[] mSilence = new byte[OUTPUT_CHUNK_BYTES];
+
+    // Decoder's buffer info, only used on the decoder thread.
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+    // Lock the output thread waits on while paused.
+    private final Object mStateLock = new Object();
+
+    // Song to play.
+    private Context mContext;
+    private Uri mUri;
+
+    // Threads of the current song, and its generation.
+    private Thread mDecoderThread, mOutputThread;
+    private volatile int mGeneration;
+
+    // Output, which the decoder thread creates once the format is known.
+    private volatile AudioTrack mTrack;
+    private volatile boolean mPrepared, mPlaying;
+
+    // Position the decoder should seek to (or -1 if none), and the volume.
+    private final AtomicLong mSeekTarget = new AtomicLong(-1);
+    private volatile float mVolume = 1f;
+
+    // Engine that's started once this one plays out, should there be one.
+    private volatile CodecPlaybackEngine mNext;
+
+    // Underruns already counted towards the metrics, only used on the output thread (and reset
+    // along with the ring once it's joined).
+    private long mReportedUnderruns;
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void setDataSource(Context context, Uri uri) throws IOException {
+        if (mDecoderThread != null) throw new IllegalStateException("Not idle");
+
+        mContext = context.getApplicationContext();
+        mUri = uri;
+    }
+
+    @Override
+    public void prepareAsync() {
+        if (mUri == null || mDecoderThread != null) throw new IllegalStateException("No source");
+
+        final int generation = mGeneration;
+        mDecoderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+                runDecoder(generation);
+            }
+        }, LOG_TAG + "-decoder");
+        mOutputThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                runOutput(generation);
+            }
+        }, LOG_TAG + "-output");
+        mDecoderThread.start();
+        mOutputThread.start();
+    }
+
+    @Override
+    public void start() {
+        AudioTrack track = mTrack;
+        if (!mPrepared || track == null) throw new IllegalStateException("Not prepared");
+
+        track.play();
+        mPlaying = true;
+        wakeOutput();
+    }
+
+    @Override
+    public void pause() {
+        mPlaying = false;
+
+        // Also returns a write that's blocked on the output's full buffer.
+        AudioTrack track = mTrack;
+        if (track != null) track.pause();
+    }
+
+    @Override
+    public void stop() {
+        pause();
+    }
+
+    @Override
+    public void seekTo(int position) {
+        mSeekTarget.set(Math.max(0, position));
+        mBuffer.signal();
+    }
+
+    @Override
+    public void reset() {
+        mGeneration++;
+        mPlaying = false;
+        mPrepared = false;
+        mNext = null;
+        AudioTrack track = mTrack;
+        if (track != null) track.pause();
+        mBuffer.signal();
+        wakeOutput();
+
+        join(mDecoderThread);
+        join(mOutputThread);
+        mDecoderThread = null;
+        mOutputThread = null;
+
+        if (track != null) track.release();
+        mTrack = null;
+        mSeekTarget.set(-1);
+
+        // Clearing the ring restarts its underrun count, so the count reported so far restarts
+        // along with it.
+        mScheduler.reset();
+        mReportedUnderruns = 0;
+        mUri = null;
+    }
+
+    @Override
+    public void release() {
+        reset();
+        mListener = null;
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mPlaying;
+    }
+
+    @Override
+    public int getDuration() {
+        return (int) Math.max(0, mScheduler.getDurationMillis());
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return (int) mScheduler.getPositionMillis(getHeadFrames());
+    }
+
+    @Override
+    @SuppressWarnings("deprecation") // setVolume() is only there from API 21 on.
+    public void setVolume(float volume) {
+        mVolume = volume;
+        AudioTrack track = mTrack;
+        if (track != null) track.setStereoVolume(volume, volume);
+    }
+
+    @Override
+    public void setNextEngine(PlaybackEngine next) {
+        mNext = (CodecPlaybackEngine) next;
+    }
+
+    @Override
+    public float getBufferFillLevel() {
+        return mBuffer.getFillLevel();
+    }
+
+    @Override
+    public long getUnderrunCount() {
+        return mBuffer.getUnderrunCount();
+    }
+
+    /**
+     * Opens the song and decodes it into the ring until the end, seeking whenever asked to, and
+     * then waits to be reset (or to seek again). Runs on the decoder thread.
+     *
+     * @param generation is the song's generation.
+     */
+    private void runDecoder(int generation) {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(mContext, mUri, null);
+
+            // Picks the first audio track.
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount() && format == null; i++) {
+                MediaFormat trackFormat = extractor.getTrackFormat(i);
+                String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = trackFormat;
+                }
+            }
+            if (format == null) {
+                postEvent(generation, EVENT_ERROR, MediaPlayer.MEDIA_ERROR_UNSUPPORTED);
+                return;
+            }
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            long durationMillis = format.containsKey(MediaFormat.KEY_DURATION)
+                    ? format.getLong(MediaFormat.KEY_DURATION) / 1000 : -1;
+            configure(format, durationMillis);
+
+            decode(extractor, codec, generation);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error opening " + mUri, e);
+            postEvent(generation, EVENT_ERROR, MediaPlayer.MEDIA_ERROR_IO);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Error decoding " + mUri, e);
+            postEvent(generation, EVENT_ERROR, MediaPlayer.MEDIA_ERROR_MALFORMED);
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "Decoder interrupted.", e);
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException e) {
+                    Log.e(LOG_TAG, "Error stopping decoder.", e);
+                }
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+
+    /**
+     * Feeds the extractor's samples through the decoder into the ring.
+     *
+     * @param generation is the song's generation.
+     */
+    @SuppressWarnings("deprecation") // The buffer arrays are all there is before API 21.
+    private void decode(MediaExtractor extractor, MediaCodec codec, int generation)
+            throws InterruptedException {
+        ByteBuffer[] inputBuffers = codec.getInputBuffers();
+        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+        MediaCodec.BufferInfo info = mInfo;
+        boolean inputDone = false, outputDone = false, outputStarted = false;
+        long skipUntilMicros = -1;
+
+        while (generation == mGeneration) {
+
+            // Seeks to the sync sample before the target, and then drops the PCM up to the target.
+            long seekTarget = mSeekTarget.getAndSet(-1);
+            if (seekTarget >= 0) {
+                extractor.seekTo(seekTarget * 1000, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                codec.flush();
+                mScheduler.seekTo(seekTarget);
+                wakeOutput();
+                skipUntilMicros = seekTarget * 1000;
+                inputDone = false;
+                outputDone = false;
+            }
+
+            if (outputDone) {
+                synchronized (mStateLock) {
+                    mStateLock.wait(WAIT_MILLIS);
+                }
+                continue;
+            }
+
+            if (!inputDone) {
+                int index = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_MICROS);
+                if (index >= 0) {
+                    int size = extractor.readSampleData(inputBuffers[index], 0);
+                    if (size < 0) {
+                        codec.queueInputBuffer(index, 0, 0, 0,
+                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        codec.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+                        extractor.advance();
+                    }
+                }
+            }
+
+            int index = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_MICROS);
+            if (index >= 0) {
+                ByteBuffer buffer = outputBuffers[index];
+                buffer.position(info.offset);
+                buffer.limit(info.offset + info.size);
+                if (skipUntilMicros >= 0) {
+                    if (!skip(buffer, info.presentationTimeUs, skipUntilMicros)) {
+                        skipUntilMicros = -1;
+                    }
+                }
+                outputStarted = true;
+
+                // Copies the buffer into the ring as room frees up, unless the song is reset or
+                // seeked in the meantime.
+                while (buffer.hasRemaining() && generation == mGeneration
+                        && mSeekTarget.get() < 0) {
+                    mBuffer.awaitFree(mScheduler.writeThreshold(buffer.remaining()),
+                            WAIT_MILLIS);
+                    mBuffer.write(buffer);
+                    checkPrepared(generation);
+                }
+                codec.releaseOutputBuffer(index, false);
+
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    mBuffer.markEndOfStream();
+                    outputDone = true;
+                    checkPrepared(generation);
+                }
+            } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = codec.getOutputBuffers();
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED && !outputStarted) {
+
+                // The decoder's actual output format wins over what the container declared.
+                configure(codec.getOutputFormat(), mScheduler.getDurationMillis());
+            }
+        }
+    }
+
+    /**
+     * Configures the scheduler for 16-bit PCM of the passed-in format.
+     *
+     * @throws IllegalStateException should the format have more channels than the output takes.
+     */
+    private void configure(MediaFormat format, long durationMillis) {
+        int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        if (channels < 1 || channels > 2) {
+            throw new IllegalStateException("Unsupported channel count: " + channels);
+        }
+
+        mScheduler.configure(format.getInteger(MediaFormat.KEY_SAMPLE_RATE), 2 * channels,
+                durationMillis);
+    }
+
+    /**
+     * Drops the frames of the passed-in buffer that come before the seek target.
+     *
+     * @param buffer is the decoder's output, positioned at its first byte.
+     * @param presentationMicros is the time of the buffer's first frame.
+     * @param targetMicros is the seek target.
+     * @return whether or not the whole buffer came before the target.
+     */
+    private boolean skip(ByteBuffer buffer, long presentationMicros, long targetMicros) {
+        if (presentationMicros >= targetMicros) return false;
+
+        int frameBytes = mScheduler.getFrameBytes();
+        long frames = (targetMicros - presentationMicros) * mScheduler.getSampleRate() / 1000000;
+        long bytes = Math.min(buffer.remaining(), frames * frameBytes);
+        buffer.position(buffer.position() + (int) (bytes - bytes % frameBytes));
+        return !buffer.hasRemaining();
+    }
+
+    /**
+     * Creates the output and notifies the listener once enough is buffered. Runs on the decoder
+     * thread.
+     *
+     * @param generation is the song's generation.
+     * @throws IllegalStateException should the output not take the format.
+     */
+    @SuppressWarnings("deprecation") // setVolume() is only there from API 21 on.
+    private void checkPrepared(int generation) {
+        if (mPrepared || !mScheduler.isPrebuffered() || generation != mGeneration) return;
+
+        int channelMask = mScheduler.getFrameBytes() == 2 ? AudioFormat.CHANNEL_OUT_MONO
+                : AudioFormat.CHANNEL_OUT_STEREO;
+        int sampleRate = mScheduler.getSampleRate();
+        int minBytes = AudioTrack.getMinBufferSize(sampleRate, channelMask,
+                AudioFormat.ENCODING_PCM_16BIT);
+        if (minBytes <= 0) throw new IllegalStateException("Unsupported sample rate: "
+                + sampleRate);
+
+        AudioTrack track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelMask,
+                AudioFormat.ENCODING_PCM_16BIT, Math.max(2 * minBytes, 2 * OUTPUT_CHUNK_BYTES),
+                AudioTrack.MODE_STREAM);
+        if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+            track.release();
+            throw new IllegalStateException("Output not initialized");
+        }
+        track.setStereoVolume(mVolume, mVolume);
+
+        mTrack = track;
+        mPrepared = true;
+        postEvent(generation, EVENT_PREPARED, 0);
+    }
+
+    /**
+     * Hands the ring's PCM to the output while playing, flushing the output along with the ring
+     * after seeks, until the song has played out. Runs on the output thread.
+     *
+     * @param generation is the song's generation.
+     */
+    private void runOutput(int generation) {
+        int flushCount = mBuffer.getFlushCount();
+        boolean padded = false;
+
+        // Part of the chunk that's yet to be written, should the output have been paused midway.
+        int offset = 0, length = 0;
+        try {
+            while (generation == mGeneration) {
+                AudioTrack track = mTrack;
+
+                // Drops what the output still holds from before a seek.
+                if (track != null && mScheduler.isFlushPending(flushCount)) {
+                    flushCount = mBuffer.getFlushCount();
+                    track.pause();
+                    track.flush();
+                    mScheduler.onOutputFlushed();
+                    offset = 0;
+                    length = 0;
+                    padded = false;
+                    if (mPlaying) track.play();
+                    postEvent(generation, EVENT_SEEK_COMPLETE, 0);
+                    continue;
+                }
+
+                if (track == null || !mPlaying) {
+                    synchronized (mStateLock) {
+                        if (!mPlaying && generation == mGeneration) mStateLock.wait(WAIT_MILLIS);
+                    }
+                    continue;
+                }
+
+                if (offset == length) {
+                    offset = 0;
+                    length = mBuffer.read(mChunk, 0, mScheduler.nextChunk(mChunk.length));
+                    reportUnderruns();
+                }
+
+                // Blocks while the output's buffer is full, and returns early should it be paused.
+                if (offset < length) {
+                    int count = track.write(mChunk, offset, length - offset);
+                    if (count < 0) throw new IllegalStateException("Write failed: " + count);
+                    offset += count;
+                    mScheduler.onOutputWritten(count);
+                    continue;
+                }
+
+                if (mBuffer.isDrained()) {
+                    if (mScheduler.isComplete(getHeadFrames())) {
+                        onPlayedOut(generation, track);
+                        return;
+                    }
+
+                    // Pads the end with silence once, so that the output starts playing even
+                    // should the whole song fit in its buffer. The padding isn't counted, so the
+                    // song completes before it's heard.
+                    if (!padded) {
+                        track.write(mSilence, 0, mSilence.length);
+                        padded = true;
+                    }
+                }
+                mBuffer.awaitAvailable(WAIT_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "Output interrupted.", e);
+        } catch (IllegalStateException e) {
+            Log.e(LOG_TAG, "Error writing output.", e);
+            postEvent(generation, EVENT_ERROR, MediaPlayer.MEDIA_ERROR_UNKNOWN);
+        }
+    }
+
+    /**
+     * Starts the chained next engine right away, and then lets the listener know this one
+     * completed. Runs on the output thread.
+     */
+    private void onPlayedOut(int generation, AudioTrack track) {
+        CodecPlaybackEngine next = mNext;
+        if (next != null && next.mPrepared) {
+            try {
+                next.start();
+            } catch (IllegalStateException e) {
+                Log.e(LOG_TAG, "Error starting next song.", e);
+            }
+        }
+
+        // Pauses rather than flushes, so that the head (and with it the position) stays at the
+        // end, which is how the listener tells a completed song from one that failed.
+        mPlaying = false;
+        track.pause();
+        postEvent(generation, EVENT_COMPLETION, 0);
+    }
+
+    /**
+     * Counts the ring's new underruns towards the playback metrics.
+     */
+    private void reportUnderruns() {
+        long underruns = mBuffer.getUnderrunCount();
+        while (mReportedUnderruns < underruns) {
+            PlaybackMetrics.increment(PlaybackMetrics.Counter.UNDERRUNS);
+            mReportedUnderruns++;
+        }
+    }
+
+    /**
+     * Returns the output's playback head in frames since it was last flushed, or 0 without one.
+     */
+    private long getHeadFrames() {
+        AudioTrack track = mTrack;
+        if (track == null) return 0;
+
+        // The head is an unsigned 32-bit count.
+        return track.getPlaybackHeadPosition() & 0xffffffffL;
+    }
+
+    /**
+     * Wakes the output thread, e.g. once playback should start or the ring was flushed.
+     */
+    private void wakeOutput() {
+        synchronized (mStateLock) {
+            mStateLock.notifyAll();
+        }
+    }
+
+    /**
+     * Delivers an event to the listener on the main thread, unless the song has been reset by
+     * then.
+     *
+     * @param generation is the generation of the song the event is of.
+     * @param event is the event.
+     * @param extra is the error code for errors.
+     */
+    private void postEvent(final int generation, final int event, final int extra) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration || mListener == null) return;
+
+                switch (event) {
+                    case EVENT_PREPARED:
+                        mListener.onPrepared(CodecPlaybackEngine.this);
+                        break;
+                    case EVENT_COMPLETION:
+                        mListener.onCompletion(CodecPlaybackEngine.this);
+                        break;
+                    case EVENT_ERROR:
+                        if (!mListener.onError(CodecPlaybackEngine.this,
+                                MediaPlayer.MEDIA_ERROR_UNKNOWN, extra)) {
+                            mListener.onCompletion(CodecPlaybackEngine.this);
+                        }
+                        break;
+                    case EVENT_SEEK_COMPLETE:
+                        mListener.onSeekComplete(CodecPlaybackEngine.this);
+                        break;
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for the passed-in thread to stop, should there be one.
+     */
+    private static void join(Thread thread) {
+        if (thread == null) return;
+
+        try {
+            thread.join(JOIN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) Log.w(LOG_TAG, "Thread didn't stop: " + thread.getName());
+    }
+}
@@ -0,0 +1,516 @@
+package com.davenotdavid.musicplayerlite;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds songs whose files hold the same audio, e.g. copies of an album that were imported twice
+ * or tagged differently, so that the user can delete the extra copies.
+ *
+ * Each file is fingerprinted by an {@link AudioFingerprinter}, on one thread fewer than there
+ * are cores, which take the next file off a shared counter so that a few large files don't hold
+ * up a single thread. Fingerprints are written to the {@link MetadataCache} in batches as they
+ * come in, keyed by the file's path along with its size and modification time, so that only new
+ * or changed files are read again, even after a pass that didn't finish.
+ *
+ * Since a fingerprint only covers parts of a file, the songs whose fingerprints match are
+ * compared byte by byte before they're reported, so that only true copies are offered for
+ * deletion.
+ *
+ * Reading waits at the {@link PauseGate} while the {@link MusicService} prepares a song, since it
+ * competes with playback for I/O.
+ */
+public class DuplicateFinder {
+
+    // Log tag constant.
+    private static final String LOG_TAG = DuplicateFinder.class.getSimpleName();
+
+    // Most files fingerprinted at once. Each worker holds a shared thread for the whole pass, so
+    // the pass only ever takes a couple of them, however many cores there are.
+    private static final int MAX_WORKERS = 2;
+
+    // Fingerprints per cache transaction.
+    private static final int BATCH_SIZE = 64;
+
+    // Longest time a partial batch waits for more fingerprints before it's written anyway.
+    private static final long BATCH_TIMEOUT_MILLIS = 1000;
+
+    // Columns of the MediaStore query.
+    private static final String[] PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.DATA
+    };
+
+    /**
+     * Listener that's notified on the main thread once a pass has finished.
+     */
+    public interface OnDuplicatesFoundListener {
+
+        /**
+         * Invoked with the outcome of a pass.
+         *
+         * @param result is the duplicates found, along with the pass's throughput.
+         */
+        void onDuplicatesFound(Result result);
+    }
+
+    /**
+     * Outcome of a pass - the groups of duplicates, and how quickly the files were read.
+     */
+    public static class Result {
+
+        // IDs of each group of duplicates, in the order the MediaStore listed them.
+        private final List<long[]> mGroups;
+
+        // Fields used for reporting the throughput.
+        private final int mFileCount;
+        private final int mCachedCount;
+        private final int mFailedCount;
+        private final long mBytesHashed;
+        private final long mHashMillis;
+        private final long mTotalMillis;
+
+        /**
+         * Creates a {@link Result} object.
+         *
+         * @param groups is the IDs of each group of duplicates.
+         * @param fileCount is the number of files in the library.
+         * @param cachedCount is the number of files whose cached fingerprints were still valid.
+         * @param failedCount is the number of files that couldn't be read.
+         * @param bytesHashed is the number of bytes hashed.
+         * @param hashMillis is the time the files took to fingerprint.
+         * @param totalMillis is the time the whole pass took.
+         */
+        Result(List<long[]> groups, int fileCount, int cachedCount, int failedCount,
+               long bytesHashed, long hashMillis, long totalMillis) {
+            mGroups = groups;
+            mFileCount = fileCount;
+            mCachedCount = cachedCount;
+            mFailedCount = failedCount;
+            mBytesHashed = bytesHashed;
+            mHashMillis = hashMillis;
+            mTotalMillis = totalMillis;
+        }
+
+        /**
+         * Getter method for the IDs of each group of duplicates, with the first song of each
+         * group being the one to keep.
+         */
+        public List<long[]> getGroups() {
+            return mGroups;
+        }
+
+        /**
+         * Returns the number of songs that are extra copies, i.e. every song of each group but
+         * the first.
+         */
+        public int getDuplicateCount() {
+            int count = 0;
+            for (long[] group : mGroups) count += group.length - 1;
+
+            return count;
+        }
+
+        /**
+         * Getter method for the number of files in the library.
+         */
+        public int getFileCount() {
+            return mFileCount;
+        }
+
+        /**
+         * Getter method for the number of files whose cached fingerprints were still valid.
+         */
+        public int getCachedCount() {
+            return mCachedCount;
+        }
+
+        /**
+         * Returns the number of megabytes hashed per second while fingerprinting.
+         */
+        public double getMegabytesPerSecond() {
+            return mHashMillis > 0 ? mBytesHashed / (1024.0 * 1024.0) * 1000 / mHashMillis : 0;
+        }
+
+        /**
+         * Returns the number of files fingerprinted per second while fingerprinting.
+         */
+        public double getFilesPerSecond() {
+            int hashed = mFileCount - mCachedCount;
+            return mHashMillis > 0 ? hashed * 1000.0 / mHashMillis : 0;
+        }
+
+        /**
+         * Getter method for the time the whole pass took.
+         */
+        public long getTotalMillis() {
+            return mTotalMillis;
+        }
+
+        /**
+         * Converts a {@link Result} object to a string.
+         */
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "groups=" + mGroups.size() +
+                    ", mFileCount=" + mFileCount +
+                    ", mCachedCount=" + mCachedCount +
+                    ", mFailedCount=" + mFailedCount +
+                    ", mBytesHashed=" + mBytesHashed +
+                    ", mHashMillis=" + mHashMillis +
+                    ", mTotalMillis=" + mTotalMillis +
+                    String.format(", %.1f MB/s, %.1f files/s", getMegabytesPerSecond(),
+                            getFilesPerSecond()) +
+                    '}';
+        }
+    }
+
+    // Single instance, which outlives the Activity so that a pass survives rotations.
+    private static DuplicateFinder sInstance;
+
+    // Fields used for reading and caching the fingerprints.
+    private final ContentResolver mResolver;
+    private final MetadataCache mCache;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Thread that runs the passes, and the pool that fingerprints the files.
+    private final ExecutorService mCoordinator;
+    private final ExecutorService mExecutor;
+    private final int mThreads;
+
+    // Gate that the MusicService closes while it prepares a song.
+    private final PauseGate mGate = new PauseGate();
+
+    // Known fingerprints by path, which are read from the cache on first use. Only accessed on
+    // the coordinator thread.
+    private final Map<String, TrackFingerprint> mFingerprints = new HashMap<>();
+    private boolean mCacheRead;
+
+    // Boolean flag that's used to make sure only one pass runs at a time. Only accessed on the
+    // main thread.
+    private boolean mRunning;
+
+    // Listener field, only accessed on the main thread.
+    private OnDuplicatesFoundListener mListener;
+
+    /**
+     * Returns the single {@link DuplicateFinder} object, creating it on first use.
+     *
+     * @param context is any context - only the application context is kept.
+     */
+    public static DuplicateFinder getInstance(Context context) {
+        if (sInstance == null) sInstance = new DuplicateFinder(context.getApplicationContext());
+
+        return sInstance;
+    }
+
+    /**
+     * Creates a {@link DuplicateFinder} object.
+     *
+     * @param context is the application context.
+     */
+    private DuplicateFinder(Context context) {
+        mResolver = context.getContentResolver();
+        mCache = MetadataCache.getInstance(context);
+
+        // Fingerprinting holds its threads for the whole pass, so a core's worth of the shared
+        // threads is left to the other components' short tasks, and most of the rest as well.
+        mThreads = Math.max(1, Math.min(MAX_WORKERS,
+                Runtime.getRuntime().availableProcessors() - 1));
+        mCoordinator = BackgroundExecutors.newExecutor(LOG_TAG, 1);
+        mExecutor = BackgroundExecutors.newExecutor(LOG_TAG, mThreads);
+    }
+
+    /**
+     * Setter method for the listener. Must be called on the main thread.
+     *
+     * @param listener is the listener, or null to stop listening.
+     */
+    public void setListener(OnDuplicatesFoundListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Returns whether or not a pass is running. Must be called on the main thread.
+     */
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Holds back or lets through the reading, e.g. while a song is being prepared.
+     *
+     * @param paused is true for holding it back, or false for letting it through.
+     */
+    public void setPaused(boolean paused) {
+        mGate.setPaused(paused);
+    }
+
+    /**
+     * Starts a pass over the library, unless one is already running, in which case its result is
+     * delivered as well. Must be called on the main thread.
+     */
+    public void start() {
+        if (mRunning) return;
+
+        mRunning = true;
+        mCoordinator.execute(new Runnable() {
+            @Override
+            public void run() {
+                Result result = null;
+                try {
+                    result = runPass();
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Error finding duplicates.", e);
+                } catch (InterruptedException e) {
+                    Log.e(LOG_TAG, "Duplicate search interrupted.", e);
+                }
+
+                final Result finalResult = result;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mRunning = false;
+                        if (finalResult != null && mListener != null) {
+                            mListener.onDuplicatesFound(finalResult);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Runs a single pass on the coordinator thread.
+     *
+     * @return the duplicates found.
+     */
+    private Result runPass() throws InterruptedException {
+        long startTime = SystemClock.elapsedRealtime();
+        if (!mCacheRead) {
+            mFingerprints.putAll(mCache.readFingerprints());
+            mCacheRead = true;
+        }
+
+        // Lists every song along with its fingerprint should the cached one still be valid.
+        long[] ids;
+        String[] paths;
+        Cursor cursor = mResolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, PROJECTION,
+                null, null, null);
+        if (cursor == null) return null;
+        try {
+            int idColumn = cursor.getColumnIndex(MediaStore.Audio.Media._ID);
+            int dataColumn = cursor.getColumnIndex(MediaStore.Audio.Media.DATA);
+            ids = new long[cursor.getCount()];
+            paths = new String[ids.length];
+            for (int i = 0; i < ids.length && cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(idColumn);
+                paths[i] = cursor.getString(dataColumn);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        final TrackFingerprint[] prints = new TrackFingerprint[ids.length];
+        final List<Integer> pending = new ArrayList<>();
+        Map<String, TrackFingerprint> stale = new HashMap<>(mFingerprints);
+        for (int i = 0; i < ids.length; i++) {
+            if (paths[i] == null) continue;
+
+            File file = new File(paths[i]);
+            TrackFingerprint fingerprint = stale.remove(paths[i]);
+            if (fingerprint != null && fingerprint.matches(file.length(), file.lastModified())) {
+                prints[i] = fingerprint;
+            } else {
+                pending.add(i);
+            }
+        }
+        int cachedCount = ids.length - pending.size();
+
+        // Whatever's left belongs to files that no longer exist.
+        mFingerprints.keySet().removeAll(stale.keySet());
+        mCache.deleteFingerprints(new ArrayList<>(stale.keySet()));
+
+        Log.d(LOG_TAG, "Duplicate search: " + ids.length + " songs, " + pending.size()
+                + " to fingerprint on " + mThreads + " threads");
+
+        // Fingerprints the files, each thread taking the next one off the shared counter and
+        // handing the fingerprint over for caching.
+        final String[] pendingPaths = paths;
+        final AtomicInteger next = new AtomicInteger();
+        final BlockingQueue<TrackFingerprint> results = new LinkedBlockingQueue<>();
+        List<Callable<long[]>> workers = new ArrayList<>(mThreads);
+        for (int i = 0; i < mThreads; i++) {
+            workers.add(new Callable<long[]>() {
+                @Override
+                public long[] call() throws InterruptedException {
+                    AudioFingerprinter fingerprinter = new AudioFingerprinter();
+                    long failed = 0;
+                    int index;
+                    while ((index = next.getAndIncrement()) < pending.size()) {
+                        mGate.await();
+
+                        int song = pending.get(index);
+                        long fileStart = SystemClock.elapsedRealtime();
+                        try {
+                            prints[song] = fingerprinter.fingerprint(new File(pendingPaths[song]));
+                            results.add(prints[song]);
+                            PlaybackMetrics.recordSince(PlaybackMetrics.Timer.FINGERPRINT,
+                                    fileStart);
+                        } catch (IOException | RuntimeException e) {
+                            Log.e(LOG_TAG, "Error fingerprinting " + pendingPaths[song], e);
+                            failed++;
+                        }
+                    }
+
+                    return new long[]{fingerprinter.getBytesHashed(), failed};
+                }
+            });
+        }
+
+        long hashStart = SystemClock.elapsedRealtime();
+        List<Future<long[]>> futures = new ArrayList<>(workers.size());
+        for (Callable<long[]> worker : workers) futures.add(mExecutor.submit(worker));
+
+        // Caches the new fingerprints as they come in, a batch per transaction, writing partial
+        // batches should they be slow to come.
+        List<TrackFingerprint> batch = new ArrayList<>(BATCH_SIZE);
+        while (!isDone(futures) || !results.isEmpty()) {
+            TrackFingerprint fingerprint = results.poll(BATCH_TIMEOUT_MILLIS,
+                    TimeUnit.MILLISECONDS);
+            if (fingerprint != null) batch.add(fingerprint);
+            if (batch.size() >= BATCH_SIZE || (fingerprint == null && !batch.isEmpty())) {
+                writeBatch(batch);
+            }
+        }
+        if (!batch.isEmpty()) writeBatch(batch);
+
+        long bytesHashed = 0;
+        int failedCount = 0;
+        for (Future<long[]> future : futures) {
+            try {
+                long[] totals = future.get();
+                bytesHashed += totals[0];
+                failedCount += totals[1];
+            } catch (ExecutionException e) {
+                Log.e(LOG_TAG, "Error fingerprinting files.", e.getCause());
+            }
+        }
+        long hashMillis = SystemClock.elapsedRealtime() - hashStart;
+
+        // Confirms each group of matching fingerprints byte by byte.
+        Map<Long, String> pathsById = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) pathsById.put(ids[i], paths[i]);
+        List<long[]> groups = new ArrayList<>();
+        AudioFingerprinter comparer = new AudioFingerprinter();
+        for (long[] candidates : AudioFingerprinter.findDuplicates(ids, prints)) {
+            groups.addAll(confirmGroup(candidates, pathsById, comparer));
+        }
+
+        Result result = new Result(groups, ids.length, cachedCount, failedCount, bytesHashed,
+                hashMillis, SystemClock.elapsedRealtime() - startTime);
+        Log.d(LOG_TAG, "Duplicate search finished: " + result);
+        return result;
+    }
+
+    /**
+     * Returns whether or not every one of the passed-in tasks is done.
+     */
+    private static boolean isDone(List<Future<long[]>> futures) {
+        for (Future<long[]> future : futures) {
+            if (!future.isDone()) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes a batch of fingerprints to the cache in one transaction. Waits at the gate first,
+     * since it's I/O too.
+     *
+     * @param batch is the fingerprints, which is cleared afterwards.
+     */
+    private void writeBatch(List<TrackFingerprint> batch) throws InterruptedException {
+        mGate.await();
+        mCache.writeFingerprints(batch);
+
+        for (TrackFingerprint fingerprint : batch) {
+            mFingerprints.put(fingerprint.getPath(), fingerprint);
+        }
+        batch.clear();
+    }
+
+    /**
+     * Splits a group of songs whose fingerprints match into the groups whose files hold the
+     * same payload byte for byte, keeping the order the songs were passed in. Songs whose files
+     * can't be compared are left out.
+     *
+     * @param candidates is the IDs of the songs.
+     * @param pathsById is the path of each song's file by its ID.
+     * @param comparer is the fingerprinter that compares the files.
+     * @return the IDs of each group of two or more true duplicates.
+     */
+    private List<long[]> confirmGroup(long[] candidates, Map<Long, String> pathsById,
+                                      AudioFingerprinter comparer) throws InterruptedException {
+        List<List<Long>> confirmed = new ArrayList<>();
+        for (long id : candidates) {
+            File file = new File(pathsById.get(id));
+            List<Long> match = null;
+            try {
+                for (List<Long> group : confirmed) {
+                    mGate.await();
+                    if (comparer.samePayload(new File(pathsById.get(group.get(0))), file)) {
+                        match = group;
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error comparing " + file, e);
+                continue;
+            }
+
+            if (match == null) {
+                match = new ArrayList<>();
+                confirmed.add(match);
+            }
+            match.add(id);
+        }
+
+        List<long[]> groups = new ArrayList<>();
+        for (List<Long> group : confirmed) {
+            if (group.size() < 2) continue;
+
+            long[] ids = new long[group.size()];
+            for (int i = 0; i < ids.length; i++) ids[i] = group.get(i);
+            groups.add(ids);
+        }
+        if (groups.size() != 1 || groups.get(0).length != candidates.length) {
+            Log.d(LOG_TAG, "Fingerprints of " + candidates.length + " songs matched, but "
+                    + "their files split into " + groups.size() + " groups");
+        }
+
+        return groups;
+    }
+}
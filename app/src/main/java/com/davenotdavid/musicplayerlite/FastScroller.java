@@ -0,0 +1,215 @@
+package com.davenotdavid.musicplayerlite;
+
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.support.v4.content.ContextCompat;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.MotionEvent;
+import android.widget.SectionIndexer;
+
+/**
+ * Fast-scroll thumb for a RecyclerView, which has none of its own, that works the way ListView's
+ * does: it shows up along the right edge while the list scrolls, and can be dragged to jump
+ * through the list. Should the adapter be a {@link SectionIndexer} with sections, dragging jumps
+ * from section to section and displays the label of the section the thumb is on, so a jump is a
+ * single lookup rather than a walk of the list.
+ *
+ * Like ListView's, the thumb is only shown for lists that are several screens long.
+ */
+public class FastScroller extends RecyclerView.ItemDecoration
+        implements RecyclerView.OnItemTouchListener {
+
+    // Time the thumb stays up for after the list stops scrolling.
+    private static final long HIDE_DELAY_MILLIS = 1500;
+
+    // Number of screens a list has to span for the thumb to be shown.
+    private static final int MIN_PAGES = 4;
+
+    // RecyclerView the thumb is drawn over.
+    private final RecyclerView mRecyclerView;
+
+    // Sizes of the thumb, of the edge it can be grabbed along, and of the section label.
+    private final int mThumbWidth;
+    private final int mThumbHeight;
+    private final int mTouchWidth;
+    private final int mLabelSize;
+
+    // Paints of the thumb, the label's background, and the label's text.
+    private final Paint mThumbPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mLabelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    // Rectangle that's reused for drawing.
+    private final RectF mRect = new RectF();
+
+    // Boolean flags that are used to indicate whether the thumb is shown, and whether it's
+    // being dragged.
+    private boolean mVisible;
+    private boolean mDragging;
+
+    // Position of the thumb along the track (0 to 1) while it's dragged, and the label of the
+    // section it's on, if any.
+    private float mDragFraction;
+    private String mLabel;
+
+    // Hides the thumb once the list has been idle for a while.
+    private final Runnable mHideRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mVisible = false;
+            mRecyclerView.invalidate();
+        }
+    };
+
+    /**
+     * Creates a {@link FastScroller} object, and adds it to the passed-in RecyclerView.
+     *
+     * @param recyclerView is the RecyclerView to scroll.
+     */
+    public FastScroller(RecyclerView recyclerView) {
+        mRecyclerView = recyclerView;
+
+        Resources resources = recyclerView.getResources();
+        mThumbWidth = resources.getDimensionPixelSize(R.dimen.fast_scroll_thumb_width);
+        mThumbHeight = resources.getDimensionPixelSize(R.dimen.fast_scroll_thumb_height);
+        mTouchWidth = resources.getDimensionPixelSize(R.dimen.fast_scroll_touch_width);
+        mLabelSize = resources.getDimensionPixelSize(R.dimen.fast_scroll_label_size);
+
+        mThumbPaint.setColor(ContextCompat.getColor(recyclerView.getContext(),
+                R.color.colorAccent));
+        mLabelPaint.setColor(ContextCompat.getColor(recyclerView.getContext(),
+                R.color.colorPrimary));
+        mTextPaint.setColor(ContextCompat.getColor(recyclerView.getContext(),
+                R.color.colorWhite));
+        mTextPaint.setTextSize(resources.getDimension(R.dimen.fast_scroll_label_text_size));
+        mTextPaint.setTextAlign(Paint.Align.CENTER);
+
+        recyclerView.addItemDecoration(this);
+        recyclerView.addOnItemTouchListener(this);
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (dy != 0) show();
+            }
+        });
+    }
+
+    /**
+     * Shows the thumb, and hides it again once the list has been idle for a while.
+     */
+    private void show() {
+        mVisible = true;
+        mRecyclerView.removeCallbacks(mHideRunnable);
+        if (!mDragging) mRecyclerView.postDelayed(mHideRunnable, HIDE_DELAY_MILLIS);
+        mRecyclerView.invalidate();
+    }
+
+    /**
+     * Returns whether the list is long enough for the thumb.
+     */
+    private boolean isScrollable() {
+        int extent = mRecyclerView.computeVerticalScrollExtent();
+
+        return extent > 0 && mRecyclerView.computeVerticalScrollRange() >= extent * MIN_PAGES;
+    }
+
+    @Override
+    public void onDrawOver(Canvas canvas, RecyclerView parent, RecyclerView.State state) {
+        if (!mVisible || !isScrollable()) return;
+
+        // Follows the finger while the thumb is dragged, and the list otherwise.
+        float fraction = mDragFraction;
+        if (!mDragging) {
+            int scrollable = parent.computeVerticalScrollRange()
+                    - parent.computeVerticalScrollExtent();
+            fraction = Math.min(1, parent.computeVerticalScrollOffset() / (float) scrollable);
+        }
+
+        int width = parent.getWidth();
+        float thumbTop = fraction * (parent.getHeight() - mThumbHeight);
+        mRect.set(width - mThumbWidth, thumbTop, width, thumbTop + mThumbHeight);
+        canvas.drawRoundRect(mRect, mThumbWidth / 2f, mThumbWidth / 2f, mThumbPaint);
+
+        if (!mDragging || mLabel == null) return;
+
+        // Draws the section label beside the thumb, kept within the list.
+        float labelTop = Math.max(0, Math.min(parent.getHeight() - mLabelSize,
+                thumbTop + (mThumbHeight - mLabelSize) / 2f));
+        float labelRight = width - mThumbWidth * 2;
+        mRect.set(labelRight - mLabelSize, labelTop, labelRight, labelTop + mLabelSize);
+        canvas.drawRoundRect(mRect, mThumbWidth, mThumbWidth, mLabelPaint);
+        canvas.drawText(mLabel, mRect.centerX(),
+                mRect.centerY() - (mTextPaint.descent() + mTextPaint.ascent()) / 2, mTextPaint);
+    }
+
+    @Override
+    public boolean onInterceptTouchEvent(RecyclerView recyclerView, MotionEvent event) {
+        if (event.getActionMasked() == MotionEvent.ACTION_DOWN && mVisible && isScrollable()
+                && event.getX() >= recyclerView.getWidth() - mTouchWidth) {
+            mDragging = true;
+            recyclerView.stopScroll();
+            show();
+            scrollTo(event.getY());
+        }
+
+        return mDragging;
+    }
+
+    @Override
+    public void onTouchEvent(RecyclerView recyclerView, MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_MOVE:
+                scrollTo(event.getY());
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                mDragging = false;
+                mLabel = null;
+                show();
+                break;
+        }
+    }
+
+    @Override
+    public void onRequestDisallowInterceptTouchEvent(boolean disallowIntercept) {}
+
+    /**
+     * Moves the thumb to the passed-in height, and scrolls the list to the matching section, or
+     * the matching position should there be no sections.
+     *
+     * @param y is the height of the touch within the list.
+     */
+    private void scrollTo(float y) {
+        int height = mRecyclerView.getHeight() - mThumbHeight;
+        mDragFraction = height > 0
+                ? Math.max(0, Math.min(1, (y - mThumbHeight / 2f) / height)) : 0;
+        mRecyclerView.invalidate();
+
+        RecyclerView.Adapter<?> adapter = mRecyclerView.getAdapter();
+        int count = adapter != null ? adapter.getItemCount() : 0;
+        if (count == 0) return;
+
+        int position = Math.min((int) (mDragFraction * count), count - 1);
+        mLabel = null;
+        if (adapter instanceof SectionIndexer) {
+            SectionIndexer indexer = (SectionIndexer) adapter;
+            Object[] sections = indexer.getSections();
+            if (sections != null && sections.length > 0) {
+                int section = Math.min((int) (mDragFraction * sections.length),
+                        sections.length - 1);
+                position = indexer.getPositionForSection(section);
+                mLabel = String.valueOf(sections[section]);
+            }
+        }
+
+        RecyclerView.LayoutManager layoutManager = mRecyclerView.getLayoutManager();
+        if (layoutManager instanceof LinearLayoutManager) {
+            ((LinearLayoutManager) layoutManager).scrollToPositionWithOffset(position, 0);
+        } else {
+            mRecyclerView.scrollToPosition(position);
+        }
+    }
+}
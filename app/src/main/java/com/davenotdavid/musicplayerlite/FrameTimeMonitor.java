@@ -0,0 +1,146 @@
+package com.davenotdavid.musicplayerlite;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.Log;
+import android.view.Choreographer;
+
+/**
+ * Measures the time between frames for a short window after each UI change (e.g. the song that's
+ * playing changing), and logs the running totals after each window so that the cost of updating
+ * the song list can be compared between builds or update strategies.
+ *
+ * Frames are only observed while a window is open, so nothing runs while the UI is idle. Requires
+ * {@link Choreographer}, so this is a no-op below Jelly Bean (startWindow() is the only way in).
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class FrameTimeMonitor {
+
+    // Log tag constant.
+    private static final String LOG_TAG = FrameTimeMonitor.class.getSimpleName();
+
+    // Length of the window that's measured after each change.
+    private static final long WINDOW_NANOS = 1000000000L;
+
+    // Frame interval at 60 Hz, and the interval above which a frame counts as janky (i.e. at least
+    // one frame was dropped).
+    private static final long FRAME_NANOS = 16666667L;
+    private static final long JANK_NANOS = FRAME_NANOS * 3 / 2;
+
+    // Number of one-millisecond histogram buckets - longer frames all land in the last one.
+    private static final int BUCKET_COUNT = 101;
+
+    // Label that's logged along with the totals (e.g. the update strategy in use).
+    private final String mLabel;
+
+    // Frame callback, which is only created on devices that have a Choreographer.
+    private Choreographer.FrameCallback mFrameCallback;
+
+    // Fields used for tracking the open window.
+    private boolean mRunning;
+    private long mWindowEnd;
+    private long mLastFrameTime;
+
+    // Running totals over every window so far.
+    private final int[] mBuckets = new int[BUCKET_COUNT];
+    private int mFrameCount;
+    private int mJankCount;
+    private long mTotalNanos;
+    private long mMaxNanos;
+
+    /**
+     * Creates a {@link FrameTimeMonitor} object.
+     *
+     * @param label is logged along with the totals.
+     */
+    public FrameTimeMonitor(String label) {
+        mLabel = label;
+    }
+
+    /**
+     * Opens a measuring window, or extends the open one.
+     */
+    public void startWindow() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) return;
+
+        mWindowEnd = System.nanoTime() + WINDOW_NANOS;
+        if (mRunning) return;
+
+        if (mFrameCallback == null) {
+            mFrameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    onFrame(frameTimeNanos);
+                }
+            };
+        }
+        mRunning = true;
+        mLastFrameTime = 0;
+        Choreographer.getInstance().postFrameCallback(mFrameCallback);
+    }
+
+    /**
+     * Closes the open window without logging it, e.g. once the Activity is no longer visible.
+     */
+    public void stop() {
+        if (!mRunning) return;
+
+        mRunning = false;
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+    }
+
+    /**
+     * Records the interval since the previous frame, and either waits for the next frame or
+     * closes the window.
+     */
+    private void onFrame(long frameTimeNanos) {
+        if (mLastFrameTime > 0) record(frameTimeNanos - mLastFrameTime);
+        mLastFrameTime = frameTimeNanos;
+
+        if (frameTimeNanos < mWindowEnd) {
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        } else {
+            mRunning = false;
+            logTotals();
+        }
+    }
+
+    /**
+     * Adds a frame interval to the running totals.
+     */
+    private void record(long intervalNanos) {
+        mBuckets[(int) Math.min(BUCKET_COUNT - 1, intervalNanos / 1000000L)]++;
+        mFrameCount++;
+        mTotalNanos += intervalNanos;
+        if (intervalNanos > mMaxNanos) mMaxNanos = intervalNanos;
+        if (intervalNanos > JANK_NANOS) mJankCount++;
+    }
+
+    /**
+     * Returns the frame interval in milliseconds that the passed-in fraction of frames is at or
+     * below, as read from the histogram.
+     */
+    private int percentile(double fraction) {
+        int target = (int) Math.ceil(mFrameCount * fraction);
+        int count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mBuckets[i];
+            if (count >= target) return i;
+        }
+
+        return BUCKET_COUNT - 1;
+    }
+
+    /**
+     * Logs the running totals.
+     */
+    private void logTotals() {
+        if (mFrameCount == 0) return;
+
+        Log.d(LOG_TAG, mLabel + ": " + mFrameCount + " frames, average "
+                + mTotalNanos / mFrameCount / 1000 + " us, p50 " + percentile(0.5) + " ms, p90 "
+                + percentile(0.9) + " ms, p99 " + percentile(0.99) + " ms, max "
+                + mMaxNanos / 1000000L + " ms, janky " + mJankCount + " ("
+                + mJankCount * 100 / mFrameCount + "%)");
+    }
+}
@@ -0,0 +1,468 @@
+package com.davenotdavid.musicplayerlite;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the last known state of the MediaStore audio table so that every pass after the first
+ * one only has to read the rows that were added, changed, or removed in the meantime. The state is
+ * also persisted as a {@link LibrarySnapshot}, so that the first pass of a cold start can render
+ * the snapshot right away and then only check it against the MediaStore.
+ */
+public class LibrarySync {
+
+    // Log tag constant.
+    private static final String LOG_TAG = LibrarySync.class.getSimpleName();
+
+    // Retrieves the URI for external music files.
+    private static final Uri MUSIC_URI = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+
+    // Orders songs by ID, which the last known row set is kept sorted by.
+    private static final Comparator<Song> ID_ORDER = new Comparator<Song>() {
+        public int compare(Song a, Song b) {
+            return a.getID() < b.getID() ? -1 : (a.getID() == b.getID() ? 0 : 1);
+        }
+    };
+
+    // Only the columns that a Song needs, plus the modification time for the high-water mark.
+    private static final String[] PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.DATA,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.DATE_MODIFIED
+    };
+
+    // Number of rows read per page during a full scan.
+    static final int PAGE_SIZE = 500;
+
+    // Orders the pages of a full scan by title, which is served by the MediaProvider's title index
+    // so that each page costs the same no matter how big the table is.
+    private static final String PAGE_ORDER = MediaStore.Audio.Media.TITLE + ", "
+            + MediaStore.Audio.Media._ID;
+
+    // Keyset selection that picks up right after the last row of the previous page. Note that the
+    // media scanner falls back to the file name, so titles are never null.
+    private static final String PAGE_SELECTION = MediaStore.Audio.Media.TITLE + " > ? OR ("
+            + MediaStore.Audio.Media.TITLE + " = ? AND " + MediaStore.Audio.Media._ID + " > ?)";
+
+    // Matches rows modified at or after the high-water mark (DATE_MODIFIED only has a resolution
+    // of seconds, hence the inclusive bound), as well as rows inserted with an older timestamp.
+    private static final String DELTA_SELECTION = MediaStore.Audio.Media.DATE_MODIFIED
+            + " >= ? OR " + MediaStore.Audio.Media._ID + " > ?";
+
+    // The following allows access to the content model.
+    private final ContentResolver mResolver;
+
+    // File the library snapshot is kept in, or null to not use a snapshot.
+    private final File mSnapshotFile;
+
+    // High-water marks of the previous pass - a negative value means no pass has run yet.
+    private long mMaxDateModified = -1;
+    private long mMaxId = -1;
+
+    // Last known row set, kept compact and sorted by song ID for binary searching. It's never
+    // modified once built - each pass that changes it builds a new one - so that it can be handed
+    // to every pass as is, rather than as a copy.
+    private SongTable mRows = new SongTable();
+
+    // Sorted orders of the last known row set, each computed once and then patched along with the
+    // rows (e.g. so that switching back to a previous sort order costs nothing).
+    private final Map<SongSorter.SortOrder, int[]> mOrders =
+            new EnumMap<>(SongSorter.SortOrder.class);
+
+    // Fast-scroll sections of each of those orders, built from the same sorted rows.
+    private final Map<SongSorter.SortOrder, SectionIndex> mSectionIndexes =
+            new EnumMap<>(SongSorter.SortOrder.class);
+
+    // Artist, album and folder groups of each of those orders, built from the same sorted rows.
+    private final Map<SongSorter.SortOrder, GroupIndex> mGroupIndexes =
+            new EnumMap<>(SongSorter.SortOrder.class);
+
+    // Search index over the last known row set, which is built on the first pass and then patched
+    // with each pass after that.
+    private SongSearchIndex mSearchIndex = new SongSearchIndex();
+
+    /**
+     * Interface used for handing each page of a full scan over as soon as it's read.
+     */
+    public interface OnPageLoadedListener {
+
+        /**
+         * Invoked with the next page of songs, in title order.
+         *
+         * @param page is the list of songs read for this page.
+         */
+        void onPageLoaded(List<Song> page);
+    }
+
+    /**
+     * Creates a {@link LibrarySync} object.
+     *
+     * @param resolver is the content resolver used for querying the MediaStore.
+     * @param snapshotFile is the file the library snapshot is kept in, or null to not use one.
+     */
+    public LibrarySync(ContentResolver resolver, File snapshotFile) {
+        mResolver = resolver;
+        mSnapshotFile = snapshotFile;
+    }
+
+    /**
+     * Runs a full scan on the first pass, and a delta scan on every pass after that. The first
+     * pass is turned into a delta scan as well should there be a valid snapshot to start from.
+     * Either way, the library is sorted before it's returned, so that no sorting is left for the
+     * main thread.
+     *
+     * @param listener is notified of each page of a full scan, or null if not needed.
+     * @param sortOrder is the order the library should be sorted in.
+     */
+    public synchronized LibraryDelta sync(OnPageLoadedListener listener,
+                                          SongSorter.SortOrder sortOrder) {
+        SongTable previousRows = mRows;
+        LibraryDelta delta;
+        if (mMaxDateModified < 0 && !restoreSnapshot(listener)) {
+            delta = fullSync(listener);
+        } else {
+            delta = deltaSync();
+        }
+
+        // The library copy is always in ID order, so a cached order stays valid for as long as
+        // the rows don't change, and is patched along with them otherwise.
+        if (!delta.isEmpty()) patchOrders(previousRows, delta);
+        int[] order = mOrders.get(sortOrder);
+        if (order == null) {
+            long startTime = SystemClock.elapsedRealtime();
+            order = SongSorter.sort(delta.getLibrary(), sortOrder);
+            mOrders.put(sortOrder, order);
+            PlaybackMetrics.recordSince(PlaybackMetrics.Timer.SORT, startTime);
+            Log.d(LOG_TAG, "Sorted " + order.length + " songs by " + sortOrder + " in "
+                    + (SystemClock.elapsedRealtime() - startTime) + " ms");
+
+            // Builds the fast-scroll sections in one more pass over the sorted rows, so that the
+            // main thread never has to look at every row for them.
+            mSectionIndexes.put(sortOrder, SectionIndex.build(delta.getLibrary(), order,
+                    sortOrder));
+
+            // Builds every browse grouping in another single pass, for the same reason.
+            long groupStartTime = SystemClock.elapsedRealtime();
+            GroupIndex groupIndex = GroupIndex.build(delta.getLibrary(), order);
+            mGroupIndexes.put(sortOrder, groupIndex);
+            Log.d(LOG_TAG, "Grouped " + order.length + " songs in "
+                    + (SystemClock.elapsedRealtime() - groupStartTime) + " ms, retaining ~"
+                    + groupIndex.estimateHeapBytes() / 1024 + " KB (~"
+                    + groupIndex.estimateListHeapBytes() / 1024 + " KB as per-group lists)");
+        }
+        delta.setOrder(sortOrder, order);
+        delta.setSectionIndex(mSectionIndexes.get(sortOrder));
+        delta.setGroupIndex(mGroupIndexes.get(sortOrder));
+
+        long indexStartTime = SystemClock.elapsedRealtime();
+        if (mSearchIndex.apply(delta)) {
+            Log.d(LOG_TAG, "Indexed " + delta.getLibrary().size() + " songs and "
+                    + mSearchIndex.getTokenCount() + " tokens in "
+                    + (SystemClock.elapsedRealtime() - indexStartTime) + " ms (~"
+                    + mSearchIndex.estimateHeapBytes() / 1024 + " KB)");
+        }
+        delta.setSearchIndex(mSearchIndex);
+
+        // Keeps the snapshot up to date with whatever changed.
+        if (!delta.isEmpty()) writeSnapshot(delta.getLibrary(), order);
+
+        return delta;
+    }
+
+    /**
+     * Patches every cached order, along with its sections and groups, with the rows that changed
+     * during the passed-in pass, which only compares the incoming rows rather than re-sorting
+     * the whole library. The orders that can't be patched (e.g. after a full scan) are dropped,
+     * to be sorted from scratch should they be needed.
+     *
+     * @param previousRows is the row set as of the previous pass.
+     * @param delta is the pass.
+     */
+    private void patchOrders(SongTable previousRows, LibraryDelta delta) {
+        Iterator<Map.Entry<SongSorter.SortOrder, int[]>> iterator = mOrders.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<SongSorter.SortOrder, int[]> entry = iterator.next();
+            SongSorter.SortOrder sortOrder = entry.getKey();
+            long startTime = SystemClock.elapsedRealtime();
+
+            // Patches copies, since the previous pass may still be handing its own over.
+            SectionIndex sectionIndex = new SectionIndex(mSectionIndexes.get(sortOrder));
+            GroupIndex groupIndex = new GroupIndex(mGroupIndexes.get(sortOrder));
+            int[] order = delta.patchOrder(previousRows, sortOrder, entry.getValue(),
+                    sectionIndex, groupIndex);
+            if (order == null) {
+                iterator.remove();
+                mSectionIndexes.remove(sortOrder);
+                mGroupIndexes.remove(sortOrder);
+                continue;
+            }
+
+            entry.setValue(order);
+            mSectionIndexes.put(sortOrder, sectionIndex);
+            mGroupIndexes.put(sortOrder, groupIndex);
+            Log.d(LOG_TAG, "Patched the " + sortOrder + " order of " + order.length + " songs in "
+                    + (SystemClock.elapsedRealtime() - startTime) + " ms");
+        }
+    }
+
+    /**
+     * Forgets the previous pass so that the next one runs a full scan.
+     */
+    public synchronized void reset() {
+        mMaxDateModified = -1;
+        mMaxId = -1;
+        mRows = new SongTable();
+        mOrders.clear();
+        mSectionIndexes.clear();
+        mGroupIndexes.clear();
+        mSearchIndex = new SongSearchIndex();
+    }
+
+    /**
+     * Reads every row of the table in fixed-size pages and records the high-water marks. Each page
+     * is a separate keyset query limited to PAGE_SIZE rows, so the first rows come back just as
+     * fast for a huge library, and no cursor ever holds more than one page.
+     *
+     * @param listener is notified of each page as soon as it's read, or null if not needed.
+     */
+    private LibraryDelta fullSync(OnPageLoadedListener listener) {
+        Log.d(LOG_TAG, "fullSync()");
+
+        Uri pageUri = MUSIC_URI.buildUpon()
+                .appendQueryParameter("limit", String.valueOf(PAGE_SIZE))
+                .build();
+
+        // Pages are read in title order straight into the row set, which is then sorted by ID in
+        // place - the only other copy of a row is the page it's handed over in.
+        SongTable rows = new SongTable();
+        Song lastSong = null;
+        while (true) {
+
+            // Queries the first page, or the page right after the last row read.
+            Cursor musicCursor;
+            if (lastSong == null) {
+                musicCursor = mResolver.query(pageUri, PROJECTION, null, null, PAGE_ORDER);
+            } else {
+                String lastTitle = lastSong.getTitle();
+                musicCursor = mResolver.query(pageUri, PROJECTION, PAGE_SELECTION,
+                        new String[]{lastTitle, lastTitle, String.valueOf(lastSong.getID())},
+                        PAGE_ORDER);
+            }
+            if (musicCursor == null) break;
+
+            List<Song> page = new ArrayList<>(PAGE_SIZE);
+            try {
+                readRows(musicCursor, page);
+            } finally {
+                musicCursor.close();
+            }
+            if (page.isEmpty()) break;
+
+            rows.addAll(page);
+            if (listener != null) listener.onPageLoaded(page);
+
+            // A short page means the end of the table was reached.
+            if (page.size() < PAGE_SIZE) break;
+            lastSong = page.get(page.size() - 1);
+        }
+
+        setRows(rows);
+
+        return LibraryDelta.full(mRows);
+    }
+
+    /**
+     * Reads only the rows at or above the high-water marks, plus the ID column of the whole table
+     * in order to find the rows that were removed.
+     */
+    private LibraryDelta deltaSync() {
+        Log.d(LOG_TAG, "deltaSync()");
+
+        // Queries the candidate rows that were added or modified since the previous pass.
+        List<Song> candidates = new ArrayList<>();
+        Cursor changedCursor = mResolver.query(MUSIC_URI, PROJECTION, DELTA_SELECTION,
+                new String[]{String.valueOf(mMaxDateModified), String.valueOf(mMaxId)}, null);
+        if (changedCursor == null) return emptyDelta();
+        try {
+            readRows(changedCursor, candidates);
+        } finally {
+            changedCursor.close();
+        }
+
+        // Queries the ID column alone, which is sorted ascending to be diffed against the previous
+        // pass.
+        Cursor idCursor = mResolver.query(MUSIC_URI, new String[]{MediaStore.Audio.Media._ID},
+                null, null, MediaStore.Audio.Media._ID + " ASC");
+        if (idCursor == null) return emptyDelta();
+        long[] currentIds;
+        try {
+            currentIds = new long[idCursor.getCount()];
+            int i = 0;
+            while (idCursor.moveToNext() && i < currentIds.length) {
+                currentIds[i++] = idCursor.getLong(0);
+            }
+        } finally {
+            idCursor.close();
+        }
+        long[] removedIds = LibraryDelta.removedIds(mRows.copyIds(), currentIds);
+
+        // Sorts the candidates into added and changed rows, dropping the ones that match the
+        // previous pass exactly (i.e. re-read because of the inclusive DATE_MODIFIED bound).
+        // Should a row have been removed and re-read in between the two queries, it's counted as
+        // added again.
+        Collections.sort(candidates, ID_ORDER);
+        List<Song> added = new ArrayList<>();
+        List<Song> changed = new ArrayList<>();
+        List<Song> upserts = new ArrayList<>();
+        for (Song song : candidates) {
+            int index = mRows.binarySearchId(song.getID());
+            if (index < 0 || Arrays.binarySearch(removedIds, song.getID()) >= 0) {
+                added.add(song);
+            } else if (!mRows.get(index).equals(song)) {
+                changed.add(song);
+            } else {
+                continue;
+            }
+            upserts.add(song);
+        }
+
+        // Builds the new row set in a single merge pass, leaving the previous one to the passes
+        // that were handed it.
+        if (removedIds.length > 0 || !upserts.isEmpty()) {
+            mRows = mRows.merge(removedIds, upserts);
+        }
+
+        LibraryDelta delta = new LibraryDelta(mRows, added, changed, removedIds, false);
+        Log.d(LOG_TAG, "deltaSync(): " + delta);
+        return delta;
+    }
+
+    /**
+     * Reads the snapshot file as the baseline for the first pass and hands its songs over as a
+     * single page, so that they can be rendered while the MediaStore is being checked.
+     *
+     * @param listener is notified of the snapshot's songs, or null if not needed.
+     * @return whether or not there was a valid snapshot to restore.
+     */
+    private boolean restoreSnapshot(OnPageLoadedListener listener) {
+        if (mSnapshotFile == null || !mSnapshotFile.exists()) return false;
+
+        long startTime = SystemClock.elapsedRealtime();
+        LibrarySnapshot snapshot;
+        try {
+            snapshot = LibrarySnapshot.read(mSnapshotFile);
+        } catch (IOException e) {
+
+            // Discards the snapshot should it be corrupt or of another version, which falls back
+            // to a full scan.
+            Log.e(LOG_TAG, "Discarding library snapshot.", e);
+            mSnapshotFile.delete();
+            return false;
+        }
+
+        SongTable songs = snapshot.getSongs();
+        Log.d(LOG_TAG, "Snapshot of " + songs.size() + " songs read in "
+                + (SystemClock.elapsedRealtime() - startTime) + " ms");
+
+        // Sorts a copy, since the snapshot's songs are handed over to the listener as they are.
+        setRows(new SongTable(songs));
+        mMaxDateModified = snapshot.getMaxDateModified();
+        mMaxId = snapshot.getMaxId();
+
+        if (listener != null) listener.onPageLoaded(songs);
+
+        return true;
+    }
+
+    /**
+     * Replaces the last known row set with the passed-in rows, sorting them by ID in place.
+     *
+     * @param rows is every song in the library, which the row set takes over.
+     */
+    private void setRows(SongTable rows) {
+        rows.sortById();
+        mRows = rows;
+
+        Log.d(LOG_TAG, "Row set of " + mRows.size() + " songs retains ~"
+                + mRows.estimateHeapBytes() / 1024 + " KB");
+    }
+
+    /**
+     * Writes the library to the snapshot file in sorted order.
+     *
+     * @param library is the library as of this pass.
+     * @param order is the library's rows in sorted order.
+     */
+    private void writeSnapshot(SongTable library, int[] order) {
+        if (mSnapshotFile == null) return;
+
+        SongTable songs = new SongTable(order.length);
+        songs.addRows(library, order);
+        try {
+            LibrarySnapshot.write(mSnapshotFile, songs, mMaxDateModified, mMaxId);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error writing library snapshot.", e);
+        }
+    }
+
+    /**
+     * Returns a delta without any changes for when the MediaStore couldn't be queried.
+     */
+    private LibraryDelta emptyDelta() {
+        return new LibraryDelta(mRows, new ArrayList<Song>(),
+                new ArrayList<Song>(), new long[0], false);
+    }
+
+    /**
+     * Adds each cursor row to the passed-in list as a song, and advances the high-water marks.
+     *
+     * @param musicCursor is the cursor queried with the class projection.
+     * @param songList is the list to add songs to.
+     */
+    private void readRows(Cursor musicCursor, List<Song> songList) {
+
+        // References each database column.
+        int idColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media._ID);
+        int titleColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.TITLE);
+        int artistColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.ARTIST);
+        int pathColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.DATA);
+        int albumIdColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
+        int dateModifiedColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.DATE_MODIFIED);
+
+        // Iterates and adds each database row into the song list.
+        while (musicCursor.moveToNext()) {
+            long songId = musicCursor.getLong(idColumn);
+            String songTitle = musicCursor.getString(titleColumn);
+            String songArtist = musicCursor.getString(artistColumn);
+            String songPath = musicCursor.getString(pathColumn);
+            long albumId = musicCursor.isNull(albumIdColumn) ? -1
+                    : musicCursor.getLong(albumIdColumn);
+            songList.add(new Song(songId, songTitle, songArtist, songPath, albumId));
+
+            long dateModified = musicCursor.getLong(dateModifiedColumn);
+            if (dateModified > mMaxDateModified) mMaxDateModified = dateModified;
+            if (songId > mMaxId) mMaxId = songId;
+        }
+
+        // Marks the pass as done even when the table is empty.
+        if (mMaxDateModified < 0) mMaxDateModified = 0;
+    }
+}
@@ -0,0 +1,408 @@
+package com.davenotdavid.musicplayerlite;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Analyzes the loudness of every song in the background, so that the {@link MusicService} can
+ * play each song at a volume that evens out the jumps between songs (much like ReplayGain).
+ *
+ * Songs are decoded once each with a MediaCodec, and the PCM is fed to a
+ * {@link LoudnessAnalyzer}. Results are written to the {@link MetadataCache}, keyed by the song's
+ * ID and DATE_MODIFIED, so that only new or changed files are decoded again. A song that's played
+ * before it's been analyzed jumps the queue, so that it's normalized the next time around.
+ *
+ * Decoding waits at the {@link PauseGate} while the {@link MusicService} prepares a song, since
+ * it competes with playback for I/O as well as for the CPU.
+ */
+public class LoudnessScanner {
+
+    // Log tag constant.
+    private static final String LOG_TAG = LoudnessScanner.class.getSimpleName();
+
+    // Columns of the MediaStore query.
+    private static final String[] PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.DATA,
+            MediaStore.Audio.Media.DATE_MODIFIED
+    };
+
+    // Loudness songs are brought down to. Since a player's volume can only attenuate, this is
+    // louder than ReplayGain's -18 LUFS so that fewer songs are too quiet to reach it.
+    private static final double TARGET_LOUDNESS = -14.0;
+
+    // Samples converted to floats at a time.
+    private static final int CHUNK_SAMPLES = 8192;
+
+    // Time the decoder's buffers are waited for.
+    private static final long DEQUEUE_TIMEOUT_MICROS = 10000;
+
+    // Single instance, which outlives the Activity so that a pass survives rotations.
+    private static LoudnessScanner sInstance;
+
+    // Fields used for reading and caching the analyses.
+    private final ContentResolver mResolver;
+    private final MetadataCache mCache;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor;
+
+    // Gate that the MusicService closes while it prepares a song.
+    private final PauseGate mGate = new PauseGate();
+
+    // Known analyses by song ID, which are read from the cache on first use.
+    private final Map<Long, TrackLoudness> mLoudness = new ConcurrentHashMap<>();
+    private volatile boolean mCacheRead;
+
+    // Songs waiting to be analyzed, in the order they'll be analyzed in, and the ones that were
+    // played before their turn, which go first (the one played last first). Both are guarded by
+    // mPending.
+    private final LinkedHashMap<Long, PendingSong> mPending = new LinkedHashMap<>();
+    private final ArrayDeque<PendingSong> mPlayed = new ArrayDeque<>();
+
+    // Analyzer and conversion buffers, only used on the scanning thread.
+    private final LoudnessAnalyzer mAnalyzer = new LoudnessAnalyzer();
+    private final short[] mShorts = new short[CHUNK_SAMPLES];
+    private final float[] mFloats = new float[CHUNK_SAMPLES];
+
+    // Fields used for making sure only one pass runs at a time, with another one following should
+    // the library change in the meantime. Only accessed on the main thread.
+    private boolean mRunning, mRestart;
+
+    /**
+     * Returns the single {@link LoudnessScanner} object, creating it on first use.
+     *
+     * @param context is any context - only the application context is kept.
+     */
+    public static LoudnessScanner getInstance(Context context) {
+        if (sInstance == null) sInstance = new LoudnessScanner(context.getApplicationContext());
+
+        return sInstance;
+    }
+
+    /**
+     * Creates a {@link LoudnessScanner} object.
+     *
+     * @param context is the application context.
+     */
+    private LoudnessScanner(Context context) {
+        mResolver = context.getContentResolver();
+        mCache = MetadataCache.getInstance(context);
+
+        // A single thread, since decoding is as heavy on the CPU as it is on I/O.
+        mExecutor = BackgroundExecutors.newExecutor(LOG_TAG, 1);
+    }
+
+    /**
+     * Returns the volume the passed-in song should be played at, and moves the song to the front
+     * of the queue should it not have been analyzed yet.
+     *
+     * @param songId is the ID of the song.
+     * @return the volume within (0, 1], which is 1 for songs that haven't been analyzed.
+     */
+    public float getVolume(long songId) {
+        TrackLoudness loudness = mLoudness.get(songId);
+        if (loudness != null) return loudness.getVolume(TARGET_LOUDNESS);
+
+        // Moves the song ahead of everything else without touching the rest of the queue.
+        synchronized (mPending) {
+            PendingSong song = mPending.remove(songId);
+            if (song != null) mPlayed.addFirst(song);
+        }
+
+        return 1f;
+    }
+
+    /**
+     * Holds back or lets through the decoding, e.g. while a song is being prepared.
+     *
+     * @param paused is true for holding it back, or false for letting it through.
+     */
+    public void setPaused(boolean paused) {
+        mGate.setPaused(paused);
+    }
+
+    /**
+     * Starts a pass over the library, or schedules another one should a pass already be running.
+     * Must be called on the main thread, e.g. whenever the library has been (re)loaded.
+     */
+    public void start() {
+
+        // Decoding to PCM needs the MediaCodec API.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) return;
+
+        if (mRunning) {
+            mRestart = true;
+            return;
+        }
+
+        mRunning = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean interrupted = false;
+                try {
+                    runPass();
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Error scanning loudness.", e);
+                } catch (InterruptedException e) {
+                    Log.e(LOG_TAG, "Loudness scan interrupted.", e);
+                    interrupted = true;
+                    Thread.currentThread().interrupt();
+                } finally {
+
+                    // Lets the next call start a pass however this one ended, but only runs the
+                    // pass that was asked for in the meantime should this one not be interrupted.
+                    final boolean restart = !interrupted;
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mRunning = false;
+                            if (mRestart) {
+                                mRestart = false;
+                                if (restart) start();
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a single pass on the scanning thread.
+     */
+    private void runPass() throws InterruptedException {
+        if (!mCacheRead) {
+            mLoudness.putAll(mCache.readLoudness());
+            mCacheRead = true;
+        }
+
+        // Queues up the songs that are new or changed since their analysis.
+        Map<Long, TrackLoudness> stale = new LinkedHashMap<>(mLoudness);
+        Cursor cursor = mResolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, PROJECTION,
+                null, null, null);
+        if (cursor == null) return;
+        try {
+            int idColumn = cursor.getColumnIndex(MediaStore.Audio.Media._ID);
+            int dataColumn = cursor.getColumnIndex(MediaStore.Audio.Media.DATA);
+            int dateModifiedColumn = cursor.getColumnIndex(MediaStore.Audio.Media.DATE_MODIFIED);
+            synchronized (mPending) {
+                mPending.clear();
+                mPlayed.clear();
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(idColumn);
+                    long dateModified = cursor.getLong(dateModifiedColumn);
+                    TrackLoudness loudness = stale.remove(id);
+                    if (loudness != null && loudness.getDateModified() == dateModified) continue;
+
+                    // Changed songs keep playing at their old volume until they're re-analyzed.
+                    String path = cursor.getString(dataColumn);
+                    if (path != null) mPending.put(id, new PendingSong(id, dateModified, path));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Whatever's left belongs to songs that no longer exist.
+        for (Long id : stale.keySet()) mLoudness.remove(id);
+        mCache.deleteLoudness(new ArrayList<>(stale.keySet()));
+
+        Log.d(LOG_TAG, "Loudness scan: " + mLoudness.size() + " songs analyzed, "
+                + mPending.size() + " to analyze");
+
+        while (true) {
+            PendingSong song;
+            synchronized (mPending) {
+                song = mPlayed.pollFirst();
+                if (song == null) {
+                    Iterator<PendingSong> iterator = mPending.values().iterator();
+                    if (!iterator.hasNext()) break;
+                    song = iterator.next();
+                    iterator.remove();
+                }
+            }
+
+            TrackLoudness loudness = analyze(song);
+            mLoudness.put(song.id, loudness);
+            mCache.writeLoudness(loudness);
+            Log.d(LOG_TAG, "Analyzed " + loudness);
+        }
+    }
+
+    /**
+     * Decodes the passed-in song and analyzes its loudness. Songs that can't be decoded are
+     * treated as unmeasured, and are cached as such so that they aren't decoded again until they
+     * change.
+     *
+     * @param song is the song.
+     * @return the song's analysis.
+     * @throws InterruptedException should the thread be interrupted while waiting at the gate.
+     */
+    private TrackLoudness analyze(PendingSong song) throws InterruptedException {
+        mGate.await();
+        long startTime = SystemClock.elapsedRealtime();
+
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(song.path);
+
+            // Picks the first audio track.
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount() && format == null; i++) {
+                MediaFormat trackFormat = extractor.getTrackFormat(i);
+                String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = trackFormat;
+                }
+            }
+            if (format == null) return unmeasured(song);
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            mAnalyzer.reset(format.getInteger(MediaFormat.KEY_SAMPLE_RATE), channels);
+
+            decode(extractor, codec, channels);
+        } catch (IOException | RuntimeException e) {
+            Log.e(LOG_TAG, "Error analyzing " + song.path, e);
+            return unmeasured(song);
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException e) {
+                    Log.e(LOG_TAG, "Error stopping decoder.", e);
+                }
+                codec.release();
+            }
+            extractor.release();
+        }
+
+        PlaybackMetrics.recordSince(PlaybackMetrics.Timer.LOUDNESS_ANALYSIS, startTime);
+        return new TrackLoudness(song.id, song.dateModified, mAnalyzer.getIntegratedLoudness(),
+                mAnalyzer.getPeak());
+    }
+
+    /**
+     * Feeds the extractor's samples through the decoder into the analyzer until the end of the
+     * track.
+     *
+     * @param channels is the track's number of channels.
+     */
+    @SuppressWarnings("deprecation") // The buffer arrays are all there is before API 21.
+    private void decode(MediaExtractor extractor, MediaCodec codec, int channels)
+            throws InterruptedException {
+        ByteBuffer[] inputBuffers = codec.getInputBuffers();
+        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean inputDone = false;
+        boolean outputStarted = false;
+
+        while (true) {
+            mGate.await();
+
+            if (!inputDone) {
+                int index = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_MICROS);
+                if (index >= 0) {
+                    int size = extractor.readSampleData(inputBuffers[index], 0);
+                    if (size < 0) {
+                        codec.queueInputBuffer(index, 0, 0, 0,
+                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        codec.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+                        extractor.advance();
+                    }
+                }
+            }
+
+            int index = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_MICROS);
+            if (index >= 0) {
+                ByteBuffer buffer = outputBuffers[index];
+                buffer.position(info.offset);
+                buffer.limit(info.offset + info.size);
+                analyzeBuffer(buffer.order(ByteOrder.nativeOrder()).asShortBuffer(), channels);
+                outputStarted = true;
+                codec.releaseOutputBuffer(index, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) return;
+            } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = codec.getOutputBuffers();
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED && !outputStarted) {
+
+                // The decoder's actual output format wins over what the container declared.
+                MediaFormat format = codec.getOutputFormat();
+                channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                mAnalyzer.reset(format.getInteger(MediaFormat.KEY_SAMPLE_RATE), channels);
+            }
+        }
+    }
+
+    /**
+     * Converts a buffer of 16-bit PCM to floats chunk by chunk, and feeds it to the analyzer.
+     *
+     * @param samples is the decoder's output.
+     * @param channels is the number of channels the samples are interleaved by.
+     */
+    private void analyzeBuffer(ShortBuffer samples, int channels) {
+        int chunk = CHUNK_SAMPLES - CHUNK_SAMPLES % channels;
+        while (samples.remaining() >= channels) {
+            int count = Math.min(chunk, samples.remaining() - samples.remaining() % channels);
+            samples.get(mShorts, 0, count);
+            for (int i = 0; i < count; i++) mFloats[i] = mShorts[i] / 32768f;
+            mAnalyzer.process(mFloats, 0, count / channels);
+        }
+    }
+
+    /**
+     * Returns an analysis of the passed-in song that marks it as unmeasured.
+     */
+    private static TrackLoudness unmeasured(PendingSong song) {
+        return new TrackLoudness(song.id, song.dateModified, LoudnessAnalyzer.UNMEASURED, 0);
+    }
+
+    // Song that's waiting to be analyzed.
+    private static class PendingSong {
+        final long id;
+        final long dateModified;
+        final String path;
+
+        /**
+         * Creates a {@link PendingSong} object.
+         *
+         * @param id is the ID of the song.
+         * @param dateModified is the song's DATE_MODIFIED.
+         * @param path is the path of the song's file.
+         */
+        PendingSong(long id, long dateModified, String path) {
+            this.id = id;
+            this.dateModified = dateModified;
+            this.path = path;
+        }
+    }
+}
@@ -3,26 +3,26 @@ package com.davenotdavid.musicplayerlite;
 import android.Manifest;
 import android.app.LoaderManager;
 import android.app.LoaderManager.LoaderCallbacks;
-import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.DialogInterface;
 import android.content.Loader;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.Build;
-import android.provider.MediaStore;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.view.ActionMode;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
 import android.os.Bundle;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.util.Log;
-import android.view.ContextMenu;
 import android.view.Menu;
-import android.widget.AdapterView;
-import android.widget.ListView;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -34,10 +34,15 @@ import android.content.ServiceConnection;
 import android.view.MenuItem;
 import android.widget.MediaController.MediaPlayerControl;
 
+import java.io.File;
+import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import com.davenotdavid.musicplayerlite.MusicService.MusicBinder;
 
@@ -46,7 +51,9 @@ import com.davenotdavid.musicplayerlite.MusicService.MusicBinder;
  * provides playback functionality.
  */
 public class MainActivity extends AppCompatActivity implements MediaPlayerControl,
-        LoaderCallbacks<List<Song>> {
+        LoaderCallbacks<LibraryDelta>, LibrarySync.OnPageLoadedListener,
+        MusicService.OnNowPlayingChangedListener, SongDeleteTask.OnSongsDeletedListener,
+        MetadataEnricher.OnMetadataEnrichedListener, DuplicateFinder.OnDuplicatesFoundListener {
 
     // Log tag constant.
     private static final String LOG_TAG = MainActivity.class.getSimpleName();
@@ -54,15 +61,69 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
     // Constant used as a parameter to assist with the permission requesting process.
     private final int PERMISSION_CODE = 1;
 
-    // Song list field.
-    private List<Song> mSongList;
+    // Launch extra used for measuring cold starts without the library snapshot, e.g. via
+    // "adb shell am start -n <package>/.SplashScreenActivity --ez skip_snapshot true".
+    public static final String EXTRA_SKIP_SNAPSHOT = "skip_snapshot";
 
-    // ListView field of the songs.
-    private ListView mSongListView;
+    // Launch extra used for measuring frame times with every visible row rebound on each playback
+    // change (as opposed to only the affected rows), e.g. via
+    // "adb shell am start -n <package>/.SplashScreenActivity --ez full_rebinds true".
+    public static final String EXTRA_FULL_REBINDS = "full_rebinds";
+
+    // Launch extra used for measuring prepare times without reading the upcoming song's file
+    // ahead, e.g. via
+    // "adb shell am start -n <package>/.SplashScreenActivity --ez no_read_ahead true".
+    public static final String EXTRA_NO_READ_AHEAD = "no_read_ahead";
+
+    // Launch extra used for playing songs through the decoder-driven engine rather than a
+    // MediaPlayer, e.g. via
+    // "adb shell am start -n <package>/.SplashScreenActivity --ez codec_engine true".
+    public static final String EXTRA_CODEC_ENGINE = "codec_engine";
+
+    // Most queued songs listed in the up-next dialog.
+    private static final int QUEUE_DIALOG_LIMIT = 100;
+
+    // Most groups of duplicates listed in the duplicates dialog.
+    private static final int DUPLICATES_DIALOG_LIMIT = 50;
+
+    // Name of the file the playback metrics are written to.
+    private static final String METRICS_FILE_NAME = "metrics.txt";
+
+    // Loader ID constant - the same loader is kept for the whole session so that it can remember
+    // the library state between delta syncs.
+    private static final int SONG_LOADER_ID = 1;
+
+    // Song list field, which is shared by the adapter and the Service class so that library
+    // changes can be patched into it in place.
+    private SongTable mSongList;
+
+    // RecyclerView field of the songs, along with its layout manager.
+    private RecyclerView mSongListView;
+    private LinearLayoutManager mSongListLayout;
 
     // Adapter for the list of songs.
     public static SongAdapter mSongAdapter;
 
+    // Search index handed over by the loader, along with the current query and its results,
+    // which replace the song list in the RecyclerView while there's a query.
+    private SongSearchIndex mSearchIndex;
+    private String mSearchQuery = "";
+    private List<Song> mSearchResults;
+    private SongAdapter mSearchAdapter;
+
+    // Fast-scroll sections of the song list, which are patched along with it.
+    private SectionIndex mSectionIndex;
+
+    // Artist, album and folder groups of the song list, which are patched along with it as well,
+    // and the group being browsed (if any), which replaces the song list in the RecyclerView the
+    // same way search results do.
+    private GroupIndex mGroupIndex;
+    private GroupIndex.Grouping mBrowseGrouping;
+    private Object mBrowseKey;
+
+    // Frame-time monitor that measures each change of the song that's playing.
+    private FrameTimeMonitor mFrameTimeMonitor;
+
     // Fields used for binding the interaction between the Activity and the Service class - the
     // music will be played in the Service class, but be controlled from the Activity.
     private MusicService mMusicService;
@@ -76,29 +137,41 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
     // is paused since the MediaPlayer object may behave strangely.
     public static boolean mPlaybackPaused = false;
 
-    // Loader ID field that gets incremented whenever a user deletes a song.
-    private int songLoaderID = 1;
-
     // Widget field used for displaying a progress bar while running the loader.
     private ProgressBar mProgressBar;
 
     // TextView that is displayed when the list is empty.
     private TextView mEmptyStateTextView;
 
+    // Action mode of the songs selected by long-clicking, or null while there's no selection.
+    private ActionMode mSelectionMode;
+
     // Boolean flag that's used to indicate whether the loader is done or not for the sake of
     // setting up the song list, accordingly.
     private boolean mLoadFinished;
 
+    // Time the loader was started at, used for logging how long the first rows took to appear.
+    private long mLoadStartTime;
+
     // Static int field used for tracking the song's position for UI-updating purposes.
     public static int songPosition = -1;
 
-    // Int field used for tracking the song's position only for menu-option purposes.
-    private int mSongPositionOptions;
-
     // Static boolean flags used for implementing shuffle and auto-repeat functionality,
     // respectively.
     public static boolean mShuffle, mAutoRepeat;
 
+    // Static boolean flag used for preparing the next song ahead of time for gapless playback,
+    // which is off until the user turns it on since it keeps a second player around.
+    public static boolean mGapless;
+
+    // Static boolean flag used for reading the upcoming song's file ahead of time.
+    public static boolean mReadAhead = true;
+
+    // Static field for the order the song list is presented in, along with the order the list is
+    // currently sorted in (null until the first load finishes).
+    public static SongSorter.SortOrder mSortOrder = SongSorter.SortOrder.TITLE;
+    private SongSorter.SortOrder mListSortOrder;
+
     // Phone state interface initialization in order to react accordingly when the user gets a
     // phone call.
     private PhoneStateListener mPhoneStateListener = new PhoneStateListener() {
@@ -120,6 +193,18 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        // Marks the first frame on the startup timeline as it's about to be drawn.
+        final View decorView = getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                StartupOrchestrator.mark(StartupOrchestrator.Milestone.FIRST_FRAME);
+                return true;
+            }
+        });
+
         // Requests permission for devices with versions Marshmallow (M)/API 23 or above.
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             if (checkSelfPermission(Manifest.permission.READ_EXTERNAL_STORAGE)
@@ -149,6 +234,8 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
             Log.d(LOG_TAG, "onStart(): Binding and starting service");
 
             mPlayIntent = new Intent(this, MusicService.class);
+            mPlayIntent.putExtra(EXTRA_CODEC_ENGINE,
+                    getIntent().getBooleanExtra(EXTRA_CODEC_ENGINE, false));
             bindService(mPlayIntent, mMusicConnection, Context.BIND_AUTO_CREATE);
             startService(mPlayIntent);
         }
@@ -160,12 +247,92 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
     @Override
     protected void onStop() {
         Log.d(LOG_TAG, "onStop()");
+
+        // Stops measuring frames that are no longer drawn.
+        if (mFrameTimeMonitor != null) mFrameTimeMonitor.stop();
+
         super.onStop();
     }
 
+    /**
+     * Invoked when the Activity is destroyed, including during an orientation change.
+     */
+    @Override
+    protected void onDestroy() {
+        Log.d(LOG_TAG, "onDestroy()");
+
+        // Detaches from the loader since it outlives this Activity instance.
+        Loader<LibraryDelta> loader = getLoaderManager().getLoader(SONG_LOADER_ID);
+        if (loader != null) ((SongLoader) loader).setOnPageLoadedListener(null);
+
+        // Detaches from the Service class as well, which outlives this Activity instance too.
+        if (mMusicService != null) mMusicService.setOnNowPlayingChangedListener(null);
+
+        // Detaches from the metadata enricher, which outlives this Activity instance as well.
+        MetadataEnricher.getInstance(this).setListener(null);
+        DuplicateFinder.getInstance(this).setListener(null);
+
+        // Releases whatever was started at process start but never adopted, should this
+        // Activity be leaving for good before it got to it.
+        if (isFinishing()) StartupOrchestrator.release(getApplicationContext());
+
+        super.onDestroy();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.song_options, menu);
+
+        // Filters the song list as the user types into the search box, and restores it once the
+        // search box is closed.
+        MenuItem searchItem = menu.findItem(R.id.option_search);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String query) {
+                search(query);
+                return true;
+            }
+        });
+        MenuItemCompat.setOnActionExpandListener(searchItem,
+                new MenuItemCompat.OnActionExpandListener() {
+                    @Override
+                    public boolean onMenuItemActionExpand(MenuItem item) {
+                        return true;
+                    }
+
+                    @Override
+                    public boolean onMenuItemActionCollapse(MenuItem item) {
+                        search("");
+                        return true;
+                    }
+                });
+
+        // Checks the playback modes, which may have been restored from the previous session.
+        menu.findItem(R.id.option_shuffle).setChecked(mShuffle);
+        menu.findItem(R.id.option_auto_repeat).setChecked(mAutoRepeat);
+        menu.findItem(R.id.option_gapless).setChecked(mGapless);
+
+        // Checks the sort order that's in use, which outlives this Activity instance.
+        switch (mSortOrder) {
+            case ARTIST:
+                menu.findItem(R.id.option_sort_artist).setChecked(true);
+                break;
+            case PATH:
+                menu.findItem(R.id.option_sort_path).setChecked(true);
+                break;
+            default:
+                menu.findItem(R.id.option_sort_title).setChecked(true);
+                break;
+        }
+
         return super.onCreateOptionsMenu(menu);
     }
 
@@ -175,7 +342,22 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
         // Performs the following for the respective item.
         switch (item.getItemId()) {
             case R.id.option_now_playing:
-                mSongListView.setSelection(songPosition); // Positions to 0 if less than 0
+                scrollToPosition(songPosition); // Positions to 0 if less than 0
+                break;
+            case R.id.option_queue:
+                showQueue();
+                break;
+            case R.id.option_browse_all:
+                search("");
+                break;
+            case R.id.option_browse_artist:
+                showGroups(GroupIndex.Grouping.ARTIST);
+                break;
+            case R.id.option_browse_album:
+                showGroups(GroupIndex.Grouping.ALBUM);
+                break;
+            case R.id.option_browse_folder:
+                showGroups(GroupIndex.Grouping.FOLDER);
                 break;
             case R.id.option_shuffle:
                 if (!item.isChecked()) {
@@ -195,6 +377,35 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
                     mAutoRepeat = false;
                 }
                 break;
+            case R.id.option_gapless:
+                if (!item.isChecked()) {
+                    item.setChecked(true);
+                    mGapless = true;
+                } else {
+                    item.setChecked(false);
+                    mGapless = false;
+                }
+                break;
+            case R.id.option_sort_title:
+                item.setChecked(true);
+                setSortOrder(SongSorter.SortOrder.TITLE);
+                break;
+            case R.id.option_sort_artist:
+                item.setChecked(true);
+                setSortOrder(SongSorter.SortOrder.ARTIST);
+                break;
+            case R.id.option_sort_path:
+                item.setChecked(true);
+                setSortOrder(SongSorter.SortOrder.PATH);
+                break;
+            case R.id.option_duplicates:
+                DuplicateFinder.getInstance(this).start();
+                Toast.makeText(this, R.string.toast_duplicates_searching, Toast.LENGTH_SHORT)
+                        .show();
+                break;
+            case R.id.option_metrics:
+                showMetrics();
+                break;
             case R.id.option_end:
                 stopService(mPlayIntent);
                 mMusicService = null;
@@ -202,9 +413,34 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
                 break;
         }
 
+        // Lets the Service class re-pick the song it prepared ahead of time.
+        if (mMusicService != null && (item.getItemId() == R.id.option_shuffle
+                || item.getItemId() == R.id.option_auto_repeat
+                || item.getItemId() == R.id.option_gapless)) {
+            mMusicService.onPlaybackModeChanged();
+        }
+
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Switches the order the song list is presented in. The list is re-sorted by the loader in the
+     * background (or handed back right away should that order already be cached), and then swapped
+     * in by onLoadFinished().
+     *
+     * @param sortOrder is the new sort order.
+     */
+    private void setSortOrder(SongSorter.SortOrder sortOrder) {
+        if (sortOrder == mSortOrder) return;
+        mSortOrder = sortOrder;
+
+        Loader<LibraryDelta> loader = getLoaderManager().getLoader(SONG_LOADER_ID);
+        if (loader != null) {
+            ((SongLoader) loader).setSortOrder(sortOrder);
+            loader.onContentChanged();
+        }
+    }
+
     // Displays a permission dialog when requested for devices M and above.
     @Override
     public void onRequestPermissionsResult(int requestCode, String[] permissions,
@@ -251,160 +487,619 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
                 getSystemService(Context.TELEPHONY_SERVICE);
         telephonyManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_CALL_STATE);
 
-        // ListView initialization.
-        mSongListView = (ListView) findViewById(R.id.song_list);
+        // RecyclerView initialization, along with a fast-scroll thumb that jumps by section.
+        mSongListView = (RecyclerView) findViewById(R.id.song_list);
+        mSongListLayout = new LinearLayoutManager(this);
+        mSongListView.setLayoutManager(mSongListLayout);
+        mSongListView.setHasFixedSize(true);
+        new FastScroller(mSongListView);
 
-        // Initializes and then sets the empty state TextView to the ListView for when it should be
-        // empty.
+        // Initializes the empty state TextView, which is displayed in place of the list whenever
+        // the list is empty.
         mEmptyStateTextView = (TextView) findViewById(R.id.empty_view);
         mEmptyStateTextView.setText(R.string.no_songs); // Initial state display.
-        mSongListView.setEmptyView(mEmptyStateTextView);
 
-        // Instantiates the following adapter that takes an empty array list as initial input.
-        mSongAdapter = new SongAdapter(this, new ArrayList<Song>());
+        // Instantiates the following adapter that takes the initially empty song list as input.
+        mSongList = new SongTable();
+        mSongAdapter = new SongAdapter(this, mSongList);
+        MetadataEnricher.getInstance(this).setListener(this);
+        DuplicateFinder.getInstance(this).setListener(this);
 
         // Sets the adapter on the list view so the list can be populated in the UI.
-        mSongListView.setAdapter(mSongAdapter);
+        boolean fullRebinds = getIntent().getBooleanExtra(EXTRA_FULL_REBINDS, false);
+        mReadAhead = !getIntent().getBooleanExtra(EXTRA_NO_READ_AHEAD, false);
+        mSongAdapter.setFullRebinds(fullRebinds);
+        mSongAdapter.setOnSongClickListener(mSongClickListener);
+        showAdapter(mSongAdapter);
 
-        // Registers the list view for a context menu of song options.
-        registerForContextMenu(mSongListView);
+        // Measures the frames drawn after each playback change, labeled by the update strategy.
+        mFrameTimeMonitor = new FrameTimeMonitor(fullRebinds ? "Full rebinds" : "Targeted rebinds");
 
-        // Sets each song with a functionality.
-        mSongListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
-            @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long l) {
-                Log.d(LOG_TAG, "Song item clicked");
+        // Invokes the controller setup.
+        setController();
 
-                // Reassigns the current song position and updates the adapter's view.
-                songPosition = position;
-                mSongAdapter.notifyDataSetChanged();
+        // Retrieves a reference to the LoaderManager in order to interact with loaders.
+        LoaderManager loaderManager = getLoaderManager();
 
-                // Plays the respective song.
-                mMusicService.playSong();
+        // Passes the song loader ID to be used regardless of configuration change, and then
+        // listens for the pages of the initial load.
+        Bundle loaderArgs = new Bundle();
+        loaderArgs.putBoolean(EXTRA_SKIP_SNAPSHOT,
+                getIntent().getBooleanExtra(EXTRA_SKIP_SNAPSHOT, false));
+        SongLoader songLoader = (SongLoader) loaderManager.initLoader(SONG_LOADER_ID, loaderArgs,
+                this);
+        songLoader.setOnPageLoadedListener(this);
+        songLoader.setSortOrder(mSortOrder);
+
+        // Hands the song list over in case the service got bound first.
+        setSongList();
+    }
+
+    // Sets each song with a functionality, and lets the user select several songs by
+    // long-clicking one in order to delete or queue them at once.
+    private final SongAdapter.OnSongClickListener mSongClickListener =
+            new SongAdapter.OnSongClickListener() {
+        @Override
+        public void onSongClick(int position) {
+            Log.d(LOG_TAG, "Song item clicked");
 
-                // Sets the flag to false for the controller's duration and position purposes.
-                if (mPlaybackPaused) mPlaybackPaused = false;
+            // Adds the song to the selection (or takes it out) while there's one.
+            if (mSelectionMode != null) {
+                toggleSelection(position);
+                return;
             }
-        });
 
-        // Sets the list view long-clickable with the following functionality.
-        mSongListView.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
-            @Override
-            public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long l) {
+            // Looks the song up in the song list should a search result have been clicked.
+            position = toSongListPosition(position);
+            if (position < 0) return;
 
-                // Reassigns the current song position.
-                mSongPositionOptions = position;
+            // Reassigns the current song position.
+            songPosition = position;
 
-                // Opens up the context menu of song options.
-                openContextMenu(mSongListView);
+            // Plays the respective song, timing how long it takes until it's audible.
+            PlaybackMetrics.markTap();
+            mMusicService.playSong();
 
-                return true;
+            // Sets the flag to false for the controller's duration and position purposes, and
+            // then updates the affected rows.
+            if (mPlaybackPaused) mPlaybackPaused = false;
+            updateNowPlaying();
+        }
+
+        @Override
+        public boolean onSongLongClick(int position) {
+            if (mSelectionMode == null) mSelectionMode = startSupportActionMode(mSelectionCallback);
+            if (mSelectionMode == null) return false;
+
+            toggleSelection(position);
+            return true;
+        }
+    };
+
+    // Handles the action mode of the selected songs.
+    private final ActionMode.Callback mSelectionCallback = new ActionMode.Callback() {
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            getMenuInflater().inflate(R.menu.song_selection, menu);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+
+            // The rows' IDs are the songs' IDs, in the song list and search results alike.
+            long[] ids = getDisplayedAdapter().getSelectedIds();
+            switch (item.getItemId()) {
+                case R.id.option_delete:
+                    confirmDelete(ids, mode);
+                    return true;
+                case R.id.option_play_next:
+                case R.id.option_enqueue:
+                case R.id.option_enqueue_artist:
+                    enqueue(ids, item.getItemId());
+                    mode.finish();
+                    return true;
             }
-        });
 
-        // Invokes the controller setup.
-        setController();
+            return false;
+        }
 
-        // Retrieves a reference to the LoaderManager in order to interact with loaders.
-        LoaderManager loaderManager = getLoaderManager();
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+            mSelectionMode = null;
+            mSongAdapter.clearSelection();
+            if (mSearchAdapter != null) mSearchAdapter.clearSelection();
+        }
+    };
+
+    // Displays the empty state TextView in place of the list whenever the adapter displayed is
+    // empty.
+    private final RecyclerView.AdapterDataObserver mEmptyViewObserver =
+            new RecyclerView.AdapterDataObserver() {
+        @Override
+        public void onChanged() {
+            updateEmptyView();
+        }
+
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            updateEmptyView();
+        }
 
-        // Passes the song loader ID to be used regardless of configuration change.
-        loaderManager.initLoader(songLoaderID, null, this);
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            updateEmptyView();
+        }
+    };
+
+    /**
+     * Selects the song at the passed-in position of the displayed list, or deselects it, and
+     * then finishes the action mode should nothing be selected anymore.
+     *
+     * @param position is the position of the song.
+     */
+    private void toggleSelection(int position) {
+        int count = getDisplayedAdapter().toggleSelection(position);
+        if (count == 0) {
+            mSelectionMode.finish();
+        } else {
+            mSelectionMode.setTitle(getString(R.string.selection_count, count));
+        }
     }
 
-    @Override
-    public void onCreateContextMenu(ContextMenu menu, View v, ContextMenu.ContextMenuInfo
-            menuInfo) {
-        super.onCreateContextMenu(menu, v, menuInfo);
+    /**
+     * Returns the adapter that's displayed, i.e. the song list's or the search results'.
+     */
+    private SongAdapter getDisplayedAdapter() {
+        return (SongAdapter) mSongListView.getAdapter();
+    }
 
-        // References the current song that was long-clicked.
-        Song song = mSongAdapter.getItem(mSongPositionOptions);
+    /**
+     * Displays the passed-in adapter's songs from the top, ending the selection of the ones
+     * displayed before.
+     *
+     * @param adapter is the adapter to display.
+     */
+    private void showAdapter(SongAdapter adapter) {
+        RecyclerView.Adapter<?> previous = mSongListView.getAdapter();
+        if (adapter == previous) return;
+
+        if (mSelectionMode != null) mSelectionMode.finish();
+        if (previous != null) previous.unregisterAdapterDataObserver(mEmptyViewObserver);
+        adapter.registerAdapterDataObserver(mEmptyViewObserver);
+        mSongListView.setAdapter(adapter);
+        scrollToPosition(0);
+        updateEmptyView();
+    }
 
-        // Sets the menu's title to the respective song's title.
-        menu.setHeaderTitle(song.getTitle());
+    /**
+     * Displays the empty state TextView in place of the list should the list be empty.
+     */
+    private void updateEmptyView() {
+        boolean empty = mSongListView.getAdapter() == null
+                || mSongListView.getAdapter().getItemCount() == 0;
+        mEmptyStateTextView.setVisibility(empty ? View.VISIBLE : View.GONE);
+        mSongListView.setVisibility(empty ? View.GONE : View.VISIBLE);
+    }
 
-        // Adds the following menu options.
-        menu.add(0, v.getId(), 0, "Delete");
+    /**
+     * Scrolls the list so that the passed-in position is the first row displayed, or to the top
+     * should the position be negative.
+     *
+     * @param position is the position in the displayed list.
+     */
+    private void scrollToPosition(int position) {
+        mSongListLayout.scrollToPositionWithOffset(Math.max(0, position), 0);
     }
 
-    @Override
-    public boolean onContextItemSelected(MenuItem item) {
-
-        // Runs code for the following menu option should the selected item match the title, and the
-        // song currently playing not be attempted to delete. Otherwise, displays a Toast message.
-        if (item.getTitle().equals("Delete") && mSongPositionOptions != songPosition) {
-
-            // References the current song.
-            final Song song = mSongAdapter.getItem(mSongPositionOptions);
-
-            // Displays a dialog to confirm whether the user really wants to delete the song or not.
-            new AlertDialog.Builder(this)
-                    .setMessage("Are you sure you want to delete \"" + song.getTitle() + "\"?")
-                    .setNegativeButton(android.R.string.no, null)
-                    .setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
-
-                        public void onClick(DialogInterface arg0, int arg1) {
-
-                            // Decrements the position of the song currently playing if the deleted
-                            // song is above it. Note that the current position wouldn't be
-                            // impacted if the deleted song is below.
-                            if (mSongPositionOptions < songPosition) songPosition--;
-
-                            // Sets up the projection cursor-parameter (only the ID is required).
-                            String[] projection = {MediaStore.Audio.Media._ID};
-
-                            // Matches on the file path for the following cursor-parameters.
-                            String selection = MediaStore.Audio.Media.DATA + " = ?";
-                            String[] selectionArgs = new String[]{song.getPath()};
-
-                            // Queries for the ID of the media matching the file path.
-                            Uri musicUri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-                            ContentResolver musicResolver = getContentResolver();
-                            Cursor musicCursor = musicResolver.query(
-                                    musicUri,
-                                    projection,
-                                    selection,
-                                    selectionArgs,
-                                    null);
-
-                            // Addresses the path's row in the database to delete via the content
-                            // resolver which ultimately removes the song file. Otherwise, displays
-                            // a Toast message.
-                            if (musicCursor != null) {
-                                if (musicCursor.moveToFirst()) {
-                                    long id = musicCursor.getLong(
-                                            musicCursor.getColumnIndexOrThrow(
-                                                    MediaStore.Audio.Media._ID));
-                                    Uri deleteUri = ContentUris.withAppendedId(
-                                            MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, id);
-                                    musicResolver.delete(deleteUri, null, null);
-
-                                    Toast.makeText(
-                                            getApplicationContext(),
-                                            song.getTitle() + " deleted",
-                                            Toast.LENGTH_SHORT).show();
-                                } else {
-                                    Toast.makeText(
-                                            getApplicationContext(),
-                                            R.string.toast_file_not_found,
-                                            Toast.LENGTH_SHORT).show();
-                                }
-
-                                musicCursor.close();
-                            }
-
-                            // Increments the loader ID to eventually rerun the whole loader process
-                            // to render an updated ListView.
-                            songLoaderID++;
-                            LoaderManager loaderManager = getLoaderManager();
-                            loaderManager.initLoader(songLoaderID, null, MainActivity.this);
+    /**
+     * Queues the passed-in songs up in the Service class, either to play next, after the songs
+     * already queued, or along with every other song of their artists.
+     *
+     * @param ids is the IDs of the selected songs, in list order.
+     * @param option is the ID of the option the user picked.
+     */
+    private void enqueue(long[] ids, int option) {
+        if (mMusicService == null || ids.length == 0) return;
+
+        int count = ids.length;
+        if (option == R.id.option_play_next) {
+            mMusicService.playAfterCurrent(ids);
+        } else if (option == R.id.option_enqueue) {
+            mMusicService.enqueue(ids);
+        } else {
+
+            // Queues each artist once, in the order their first selected song is listed, by
+            // their groups' rows rather than a pass over the list per artist, and all of them in
+            // a single edit of the queue.
+            Set<String> artists = new LinkedHashSet<>();
+            for (long id : ids) {
+                int position = mSongList.indexOfId(id);
+                if (position >= 0) artists.add(mSongList.getArtist(position));
+            }
+            long[] queued = new long[0];
+            count = 0;
+            for (String artist : artists) {
+                int group = artist != null && mGroupIndex != null
+                        ? mGroupIndex.indexOfKey(GroupIndex.Grouping.ARTIST, artist) : -1;
+                if (group < 0) continue;
+
+                int[] rows = mGroupIndex.getRows(GroupIndex.Grouping.ARTIST, group);
+                if (count + rows.length > queued.length) {
+                    queued = Arrays.copyOf(queued, Math.max(count + rows.length, count * 2));
+                }
+                for (int row : rows) queued[count++] = mSongList.getID(row);
+            }
+            if (count > 0) mMusicService.enqueue(Arrays.copyOf(queued, count));
+        }
+
+        Toast.makeText(this, getResources().getQuantityString(R.plurals.toast_songs_queued,
+                count, count), Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Lists the songs queued up to play next, the first QUEUE_DIALOG_LIMIT of them at least.
+     * Picking one lets the user move it to the top of the queue or remove it.
+     */
+    private void showQueue() {
+        if (mMusicService == null) return;
+
+        final long[] queue = mMusicService.getQueue();
+        int shown = Math.min(queue.length, QUEUE_DIALOG_LIMIT);
+        String[] titles = new String[shown + (queue.length > shown ? 1 : 0)];
+        for (int i = 0; i < shown; i++) {
+            int position = mSongList.indexOfId(queue[i]);
+            titles[i] = position >= 0 ? mSongList.getTitle(position) : "";
+        }
+        if (shown < queue.length) {
+            titles[shown] = getString(R.string.dialog_queue_more, queue.length - shown);
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.dialog_queue_title, queue.length))
+                .setPositiveButton(android.R.string.ok, null);
+        if (queue.length == 0) {
+            builder.setMessage(R.string.dialog_queue_empty);
+        } else {
+            final int listed = shown;
+            builder.setItems(titles, new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int which) {
+                    if (which < listed) showQueueEntryOptions(which);
+                }
+            });
+            builder.setNeutralButton(R.string.dialog_queue_clear,
+                    new DialogInterface.OnClickListener() {
+                        public void onClick(DialogInterface dialog, int which) {
+                            if (mMusicService != null) mMusicService.clearQueue();
+                        }
+                    });
+        }
+        builder.create().show();
+    }
+
+    /**
+     * Lets the user move the queued song at the passed-in position to the top of the queue, or
+     * remove it from the queue, and then lists the queue again.
+     *
+     * @param index is the position of the song within the queue.
+     */
+    private void showQueueEntryOptions(final int index) {
+        String[] options = {getString(R.string.queue_move_to_top),
+                getString(R.string.queue_remove)};
+        new AlertDialog.Builder(this)
+                .setItems(options, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (mMusicService == null) return;
+
+                        if (which == 0) {
+                            mMusicService.moveInQueue(index, 0);
+                        } else {
+                            mMusicService.removeFromQueue(index);
                         }
-                    }).create().show();
-        } else if (item.getTitle().equals("Delete") && mSongPositionOptions == songPosition) {
+                        showQueue();
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .create().show();
+    }
+
+    /**
+     * Asks the user to confirm deleting the passed-in songs, and then deletes them in the
+     * background. The song currently playing is left out.
+     *
+     * @param ids is the IDs of the selected songs.
+     * @param mode is the selection's action mode, which is finished once the user confirms, or
+     *             null should the songs not come from a selection.
+     */
+    private void confirmDelete(long[] ids, final ActionMode mode) {
+        long nowPlayingId = getNowPlayingId();
+        long[] deleteIds = new long[ids.length];
+        int count = 0;
+        for (long id : ids) {
+            if (id != nowPlayingId) deleteIds[count++] = id;
+        }
+        if (count < ids.length) {
             Toast.makeText(this, R.string.toast_song_curr_playing, Toast.LENGTH_SHORT).show();
         }
+        if (count == 0) return;
+
+        // Sorted for removing the rows in a single pass once they're deleted.
+        final long[] sortedIds = Arrays.copyOf(deleteIds, count);
+        Arrays.sort(sortedIds);
+
+        // Names the song should there be only one, as before.
+        String message;
+        if (count == 1) {
+            int position = mSongList.indexOfId(sortedIds[0]);
+            message = "Are you sure you want to delete \""
+                    + (position >= 0 ? mSongList.getTitle(position) : "") + "\"?";
+        } else {
+            message = getResources().getQuantityString(R.plurals.dialog_delete_songs_confirm,
+                    count, count);
+        }
 
-        return true;
+        // Displays a dialog to confirm whether the user really wants to delete the songs or not.
+        new AlertDialog.Builder(this)
+                .setMessage(message)
+                .setNegativeButton(android.R.string.no, null)
+                .setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
+
+                    public void onClick(DialogInterface arg0, int arg1) {
+                        if (mode != null) mode.finish();
+
+                        // Deletes every song with one statement off the main thread, and then
+                        // removes the rows in onSongsDeleted().
+                        new SongDeleteTask(getApplicationContext().getContentResolver(),
+                                sortedIds, MainActivity.this).execute();
+                    }
+                }).create().show();
+    }
+
+    /**
+     * Invoked once the songs are deleted, and removes their rows from the song list in place
+     * rather than reloading the library.
+     *
+     * @param ids is the IDs that were asked to be deleted, sorted ascending.
+     * @param deletedCount is the number of songs that were actually deleted.
+     */
+    @Override
+    public void onSongsDeleted(long[] ids, int deletedCount) {
+        if (isFinishing() || mSongList == null) return;
+
+        // Lets the loader find out which ones are gone should only some of them be deleted.
+        if (deletedCount < ids.length) {
+            Toast.makeText(this, R.string.toast_songs_not_deleted, Toast.LENGTH_SHORT).show();
+            Loader<LibraryDelta> loader = getLoaderManager().getLoader(SONG_LOADER_ID);
+            if (loader != null) loader.onContentChanged();
+            return;
+        }
+
+        // Removes the rows in a single pass, and then re-resolves the current song's position
+        // since any number of rows above it may be gone. The search index leaves them out as
+        // well, rather than waiting for the loader's next pass.
+        long currentSongId = getNowPlayingId();
+        if (mSectionIndex != null) mSectionIndex.removeRows(mSongList, ids);
+        if (mGroupIndex != null) mGroupIndex.removeRows(mSongList, ids);
+        int[] removedPositions = mSongList.removeIds(ids);
+        if (mSearchIndex != null) mSearchIndex.removeIds(ids);
+        if (currentSongId >= 0) songPosition = mSongList.indexOfId(currentSongId);
+        mSongAdapter.notifyRemoved(removedPositions);
+
+        // Drops the rows from the search results being displayed as well.
+        if (mSearchResults != null) {
+            List<Song> remaining = new ArrayList<>(mSearchResults.size());
+            for (Song song : mSearchResults) {
+                if (Arrays.binarySearch(ids, song.getID()) < 0) remaining.add(song);
+            }
+            showSearchResults(remaining);
+        }
+
+        // Lets the Service class drop the songs from the queue, and re-pick the song it prepared
+        // ahead of time in case it's gone.
+        if (mMusicService != null) mMusicService.onLibraryChanged(new long[0], ids, false);
+
+        Toast.makeText(this, getResources().getQuantityString(R.plurals.toast_songs_deleted,
+                deletedCount, deletedCount), Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Displays the songs that match the passed-in query in place of the song list, or the song
+     * list itself should the query be empty.
+     *
+     * @param query is the text in the search box.
+     */
+    private void search(String query) {
+        mSearchQuery = query != null ? query : "";
+        if (mSongListView == null) return;
+
+        // Searching (or closing the search box) leaves the group being browsed.
+        mBrowseGrouping = null;
+        mBrowseKey = null;
+
+        if (mSearchQuery.trim().isEmpty() || mSearchIndex == null) {
+            mSearchResults = null;
+            mSearchAdapter = null;
+            showAdapter(mSongAdapter);
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        mSearchResults = mSearchIndex.search(mSearchQuery);
+        Log.d(LOG_TAG, "Search \"" + mSearchQuery + "\" matched " + mSearchResults.size()
+                + " songs in " + (System.nanoTime() - startTime) / 1000 + " us");
+
+        showSearchResults(mSearchResults);
+    }
+
+    /**
+     * Displays the passed-in search results in place of the song list.
+     *
+     * @param results is the matching songs.
+     */
+    private void showSearchResults(List<Song> results) {
+        mSearchResults = results;
+        mSearchAdapter = new SongAdapter(this, results);
+        mSearchAdapter.setFullRebinds(getIntent().getBooleanExtra(EXTRA_FULL_REBINDS, false));
+        mSearchAdapter.setNowPlaying(getNowPlayingId(), mPlaybackPaused);
+        mSearchAdapter.setOnSongClickListener(mSongClickListener);
+        showAdapter(mSearchAdapter);
+    }
+
+    /**
+     * Lists the groups of the passed-in grouping by name, along with the number of songs in each,
+     * and then displays the songs of the group the user picks.
+     *
+     * @param grouping is the grouping.
+     */
+    private void showGroups(final GroupIndex.Grouping grouping) {
+        if (mGroupIndex == null) return;
+
+        // Leaves the empty groups out, and orders the rest the way the song list is collated.
+        int groupCount = mGroupIndex.getGroupCount(grouping);
+        final String[] labels = new String[groupCount];
+        List<Integer> groups = new ArrayList<>();
+        for (int group = 0; group < groupCount; group++) {
+            if (mGroupIndex.getSize(grouping, group) == 0) continue;
+            labels[group] = getGroupLabel(grouping, group);
+            groups.add(group);
+        }
+        final Collator collator = SongSorter.newCollator();
+        Collections.sort(groups, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return collator.compare(labels[a], labels[b]);
+            }
+        });
+
+        final Object[] keys = new Object[groups.size()];
+        String[] items = new String[groups.size()];
+        for (int i = 0; i < items.length; i++) {
+            int group = groups.get(i);
+            keys[i] = mGroupIndex.getKey(grouping, group);
+            items[i] = getString(R.string.group_size, labels[group],
+                    mGroupIndex.getSize(grouping, group));
+        }
+
+        new AlertDialog.Builder(this)
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        showGroup(grouping, keys[which]);
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .create().show();
+    }
+
+    /**
+     * Displays the songs of the group with the passed-in key in place of the song list, in the
+     * song list's order, or the song list itself should the group be gone or empty.
+     *
+     * @param grouping is the grouping.
+     * @param key is the key of the group.
+     */
+    private void showGroup(GroupIndex.Grouping grouping, Object key) {
+        int group = mGroupIndex != null ? mGroupIndex.indexOfKey(grouping, key) : -1;
+        if (group < 0 || mGroupIndex.getSize(grouping, group) == 0) {
+            search("");
+            return;
+        }
+
+        // Copies the group's rows straight out of the song list, without a Song per row.
+        SongTable songs = new SongTable(mGroupIndex.getSize(grouping, group));
+        songs.addRows(mSongList, mGroupIndex.getRows(grouping, group));
+        mSearchQuery = "";
+        showSearchResults(songs);
+        mBrowseGrouping = grouping;
+        mBrowseKey = key;
+    }
+
+    /**
+     * Returns the name of a group - the artist, the album as enriched (or the folder of its first
+     * song until it is), or the folder's path.
+     *
+     * @param grouping is the grouping.
+     * @param group is the number of the group.
+     */
+    private String getGroupLabel(GroupIndex.Grouping grouping, int group) {
+        Object key = mGroupIndex.getKey(grouping, group);
+        switch (grouping) {
+            case ARTIST:
+                return key != null ? (String) key : getString(R.string.group_unknown);
+            case ALBUM:
+                int row = mGroupIndex.getRow(grouping, group, 0);
+                SongMetadata metadata = MetadataEnricher.getInstance(this)
+                        .get(mSongList.getID(row));
+                if (metadata != null && metadata.getAlbum() != null) return metadata.getAlbum();
+
+                String folder = mSongList.getFolder(row);
+                if (folder == null || folder.length() < 2) return getString(R.string.group_unknown);
+                return folder.substring(folder.lastIndexOf('/', folder.length() - 2) + 1,
+                        folder.length() - 1);
+            default:
+                if (key == null) return getString(R.string.group_unknown);
+                String path = (String) key;
+                return path.length() > 1 ? path.substring(0, path.length() - 1) : path;
+        }
+    }
+
+    /**
+     * Returns the ID of the song at the current song position, or -1 if there's none.
+     */
+    private long getNowPlayingId() {
+        return songPosition >= 0 && songPosition < mSongList.size()
+                ? mSongList.getID(songPosition) : -1;
+    }
+
+    /**
+     * Returns the IDs of the songs the passed-in pass added to the library.
+     */
+    private static long[] addedIds(LibraryDelta delta) {
+        List<Song> added = delta.getAdded();
+        long[] ids = new long[added.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = added.get(i).getID();
+
+        return ids;
+    }
+
+    /**
+     * Updates the rows whose "now playing" state changed, in the song list as well as in the
+     * search results.
+     */
+    private void updateNowPlaying() {
+        if (mSongList == null) return; // UI not set up yet
+
+        long songId = getNowPlayingId();
+        mSongAdapter.setNowPlaying(songId, mPlaybackPaused);
+        if (mSearchAdapter != null) mSearchAdapter.setNowPlaying(songId, mPlaybackPaused);
+
+        mFrameTimeMonitor.startWindow();
+    }
+
+    /**
+     * Invoked by the Service class when it moves on to another song by itself.
+     */
+    @Override
+    public void onNowPlayingChanged() {
+        updateNowPlaying();
+    }
+
+    /**
+     * Returns the song list position of the passed-in RecyclerView position, which differs while
+     * search results are displayed.
+     *
+     * @param position is the position in the RecyclerView.
+     * @return the position in the song list, or -1 should the song no longer be in it.
+     */
+    private int toSongListPosition(int position) {
+        if (mSongListView.getAdapter() != mSearchAdapter || mSearchResults == null) {
+            return position;
+        }
+
+        return mSongList.indexOfId(mSearchResults.get(position).getID());
     }
 
     /**
@@ -432,6 +1127,17 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
             // respectively.
             mMusicBound = true;
             setSongList();
+            mMusicService.setOnNowPlayingChangedListener(MainActivity.this);
+
+            // This binding keeps the Service bound from now on, so the one made at process start
+            // is no longer needed.
+            StartupOrchestrator.mark(StartupOrchestrator.Milestone.SERVICE_READY);
+            StartupOrchestrator.releaseEarlyBinding(getApplicationContext());
+
+            // Re-checks the playback modes the Service class may have restored, and resumes the
+            // previous session should the library be loaded already.
+            invalidateOptionsMenu();
+            resumeSession();
         }
 
         @Override
@@ -442,6 +1148,19 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
         }
     };
 
+    /**
+     * Lets the Service class prepare the song of the previous session, paused where it was left,
+     * once both the Service class is bound and the library is loaded (in whichever order).
+     */
+    private void resumeSession() {
+        if (mMusicService == null || !mLoadFinished) return;
+        if (!mMusicService.resumeSession()) return;
+
+        mPlaybackPaused = true;
+        updateNowPlaying();
+        scrollToPosition(songPosition);
+    }
+
     /**
      * Sets the controller up.
      */
@@ -474,26 +1193,34 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
      * Plays the next song via the Service class.
      */
     private void playNext(){
+
+        // Counts the song as skipped should it not have completed yet.
+        if (mMusicService.getClock().getState() != PlaybackClock.STATE_IDLE) {
+            PlaybackMetrics.increment(PlaybackMetrics.Counter.SKIPPED_TRACKS);
+        }
+
+        PlaybackMetrics.markTap();
         mMusicService.playNext();
 
         // Sets the flag to false for the controller's duration and position purposes.
         if (mPlaybackPaused) mPlaybackPaused = false;
 
-        // Updates the adapter's views.
-        mSongAdapter.notifyDataSetChanged();
+        // Updates the affected rows.
+        updateNowPlaying();
     }
 
     /**
      * Plays the previous song via the Service class.
      */
     private void playPrevious(){
+        PlaybackMetrics.markTap();
         mMusicService.playPrevious();
 
         // Sets the flag to false for the controller's duration and position purposes.
         if (mPlaybackPaused) mPlaybackPaused = false;
 
-        // Updates the adapter's views.
-        mSongAdapter.notifyDataSetChanged();
+        // Updates the affected rows.
+        updateNowPlaying();
     }
 
     // The following are MediaPlayerControl interface methods.
@@ -501,9 +1228,9 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
     public void start() {
         Log.d(LOG_TAG, "start()");
 
-        // Sets the pause flag back to false and then updates the adapter's view.
+        // Sets the pause flag back to false and then updates the affected row.
         mPlaybackPaused = false;
-        mSongAdapter.notifyDataSetChanged();
+        updateNowPlaying();
 
         // Executes when the user resumes the paused song.
         mMusicService.go();
@@ -513,48 +1240,35 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
     public void pause() {
         Log.d(LOG_TAG, "pause()");
 
-        // Sets the pause flag to true and then updates the adapter's view.
+        // Sets the pause flag to true and then updates the affected row.
         mPlaybackPaused = true;
-        mSongAdapter.notifyDataSetChanged();
+        updateNowPlaying();
 
         // Executes when the user pauses the current song.
         mMusicService.pausePlayer();
     }
 
     /**
-     * Getter interface method for the song's total length.
+     * Getter interface method for the song's total length. The controller polls this several
+     * times a second, so it only reads the Service's playback clock (which returns 0 unless a
+     * song is playing or paused) rather than going through to the MediaPlayer.
      */
     @Override
     public int getDuration() {
-        Log.d(LOG_TAG, "getDuration()");
-
-        // Returns the song's current duration as it is currently playing. Otherwise, returns 0
-        // with the exception of it being paused (so return its duration).
-        if (mMusicService != null && mMusicBound && mMusicService.isPlaying()) {
-            return mMusicService.getDuration();
-        } else {
-            if (mPlaybackPaused) return mMusicService.getDuration();
+        if (mMusicService != null && mMusicBound) return mMusicService.getClock().getDuration();
 
-            return 0;
-        }
+        return 0;
     }
 
     /**
-     * Getter interface method for the song's current position at the minute-mark.
+     * Getter interface method for the song's current position at the minute-mark, which is
+     * extrapolated by the playback clock as well.
      */
     @Override
     public int getCurrentPosition() {
-        Log.d(LOG_TAG, "getCurrentPosition()");
+        if (mMusicService != null && mMusicBound) return mMusicService.getClock().getPosition();
 
-        // Returns the song's current position as it is currently playing. Otherwise, returns 0
-        // with the exception of it being paused (so return its position).
-        if (mMusicService != null && mMusicBound && mMusicService.isPlaying()) {
-            return mMusicService.getPosition();
-        } else {
-            if (mPlaybackPaused) return mMusicService.getPosition();
-
-            return 0;
-        }
+        return 0;
     }
 
     @Override
@@ -564,9 +1278,7 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
 
     @Override
     public boolean isPlaying() {
-        Log.d(LOG_TAG, "isPlaying()");
-
-        if (mMusicService != null && mMusicBound) return mMusicService.isPlaying();
+        if (mMusicService != null && mMusicBound) return mMusicService.getClock().isPlaying();
 
         return false;
     }
@@ -597,50 +1309,205 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
     }
 
     @Override
-    public Loader<List<Song>> onCreateLoader(int i, Bundle bundle) {
+    public Loader<LibraryDelta> onCreateLoader(int i, Bundle bundle) {
         Log.d(LOG_TAG, "onCreateLoader()");
 
         // Displays the progress bar while running the loader.
         mProgressBar.setVisibility(View.VISIBLE);
+        mLoadStartTime = SystemClock.elapsedRealtime();
 
-        return new SongLoader(this);
+        return new SongLoader(this, !bundle.getBoolean(EXTRA_SKIP_SNAPSHOT));
     }
 
+    /**
+     * Invoked on the main thread with each page of the initial load, so that the first rows show
+     * up long before the whole library is read.
+     *
+     * @param page is the next page of songs, in title order as stored rather than collated.
+     */
     @Override
-    public void onLoadFinished(Loader<List<Song>> loader, List<Song> songs) {
+    public void onPageLoaded(List<Song> page) {
+
+        // The whole list gets replaced once the load finishes, so pages are only of use before.
+        if (mLoadFinished) return;
 
-        // Clears the adapter of previous song data.
-        mSongAdapter.clear();
+        if (mSongList.isEmpty()) {
+            long now = SystemClock.elapsedRealtime();
+            Log.d(LOG_TAG, "First rows after " + (now - mLoadStartTime) + " ms");
 
-        // Sorts the data so that the song titles are presented alphabetically.
-        Collections.sort(songs, new Comparator<Song>(){
-            public int compare(Song a, Song b){
-                return a.getTitle().compareTo(b.getTitle());
+            // Logs the cold-start time as well on devices that know when the process started.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                Log.d(LOG_TAG, "First rows after " + (now - Process.getStartElapsedRealtime())
+                        + " ms since process start (snapshot "
+                        + (getIntent().getBooleanExtra(EXTRA_SKIP_SNAPSHOT, false)
+                        ? "skipped" : "allowed") + ")");
             }
-        });
 
-        // Runs the following should the song list not be null nor empty.
-        if (songs != null && !songs.isEmpty()) {
+            // Hides the progress bar as soon as there's something to show.
+            mProgressBar.setVisibility(View.INVISIBLE);
+            StartupOrchestrator.mark(StartupOrchestrator.Milestone.FIRST_ROWS);
+        }
+
+        // Appends the page to the adapter's dataset, binding only the rows that were added.
+        int start = mSongList.size();
+        mSongList.addAll(page);
+        mSongAdapter.notifyItemRangeInserted(start, page.size());
+    }
+
+    @Override
+    public void onLoadFinished(Loader<LibraryDelta> loader, LibraryDelta delta) {
+        Log.d(LOG_TAG, "onLoadFinished(): " + delta);
+
+        // Hides the progress bar after the loader finishes.
+        mProgressBar.setVisibility(View.INVISIBLE);
+
+        // Enables searching as soon as the first index is handed over.
+        boolean searchable = mSearchIndex == null;
+        mSearchIndex = delta.getSearchIndex();
+        if (searchable && !mSearchQuery.isEmpty()) search(mSearchQuery);
+
+        // Nothing to update should the library be unchanged since the previous load, and be
+        // sorted the same way.
+        boolean reordered = delta.getSortOrder() != mListSortOrder;
+        if (mLoadFinished && delta.isEmpty() && !reordered) return;
+        mListSortOrder = delta.getSortOrder();
+
+        // Remembers the song currently playing so that its position can be re-resolved after the
+        // list changes.
+        long currentSongId = songPosition >= 0 && songPosition < mSongList.size()
+                ? mSongList.getID(songPosition) : -1;
+
+        // Note that the loader has already sorted the library, so neither of the following sorts
+        // anything on the main thread. The songs that were added are only known should the list
+        // have been loaded before, rather than filled in page by page.
+        long[] addedIds = mLoadFinished && !delta.isFull() ? addedIds(delta) : null;
+        LibraryDelta.Patch patch = null;
+        if (!mLoadFinished || reordered) {
+
+            // Replaces the whole list should there be nothing to patch yet, or should the list be
+            // presented in another order now.
+            delta.copyTo(mSongList);
+            mSectionIndex = new SectionIndex(delta.getSectionIndex());
+            mSongAdapter.setSectionIndex(mSectionIndex);
+            mGroupIndex = new GroupIndex(delta.getGroupIndex());
+        } else {
 
-            // Reassigns the value of the songs list field.
-            mSongList = songs;
+            // Otherwise, patches only the rows that changed into the existing list, and only
+            // their sections and groups.
+            patch = delta.applyTo(mSongList, mSectionIndex, mGroupIndex);
+        }
+        if (currentSongId >= 0) songPosition = mSongList.indexOfId(currentSongId);
+
+        // Lets the Service class re-pick the song it prepared ahead of time, since the next song
+        // depends on the order. Songs that were added or removed may change it as well.
+        if (mMusicService != null && (reordered || !delta.isEmpty())) {
+            mMusicService.onLibraryChanged(addedIds, delta.getRemovedIds(), reordered);
+        }
+
+        // Fills in the details and loudness of new or changed songs in the background. Songs
+        // whose files are unchanged are served from the metadata cache, so re-running is cheap.
+        if (!mLoadFinished || !delta.isEmpty()) {
+            MetadataEnricher.getInstance(this).start();
+            LoudnessScanner.getInstance(this).start();
+        }
 
-            // Sets the flag to true and invokes setting up the song list, respectively.
+        // Sets the flag to true once the initial load is done. Note that the Service class holds
+        // on to the same list, so it doesn't need to be handed over again.
+        if (!mLoadFinished) {
             mLoadFinished = true;
-            setSongList();
 
-            // Adds the list of Songs to the adapter's dataset.
-            mSongAdapter.addAll(songs);
+            // Either mark is a no-op should it have been reached before.
+            if (!mSongList.isEmpty()) {
+                StartupOrchestrator.mark(StartupOrchestrator.Milestone.FIRST_ROWS);
+            }
+            StartupOrchestrator.mark(StartupOrchestrator.Milestone.LIBRARY_LOADED);
+
+            // Views the current song in-focus - positions to 0, the first row, if songPosition is
+            // negative. This is particularly useful when the app is maximized back into session.
+            scrollToPosition(songPosition);
+
+            // Resumes the previous session should the Service class be bound already.
+            resumeSession();
         }
 
-        // Hides the progress bar after the loader finishes.
-        mProgressBar.setVisibility(View.INVISIBLE);
+        // Updates the adapter's views with the patched list, rebinding only the rows the patch
+        // touched unless the whole list was replaced, as well as the search results or the group
+        // being browsed.
+        if (patch != null) {
+            mSongAdapter.notifyPatched(patch);
+        } else {
+            mSongAdapter.notifyDataSetChanged();
+        }
+        if (mBrowseGrouping != null) {
+            showGroup(mBrowseGrouping, mBrowseKey);
+        } else if (mSearchResults != null) {
+            search(mSearchQuery);
+        }
+        updateNowPlaying();
+    }
+
+    /**
+     * Invoked on the main thread after each batch of songs the metadata enricher filled in.
+     *
+     * @param ids is the IDs of the songs.
+     */
+    @Override
+    public void onMetadataEnriched(Set<Long> ids) {
+        mSongAdapter.onMetadataEnriched(ids);
+        if (mSearchAdapter != null) mSearchAdapter.onMetadataEnriched(ids);
+    }
 
-        // Views the current song in-focus - positions to 0, the first row, if songPosition is
-        // negative. This is particularly useful when the app is maximized back into session.
-        mSongListView.setSelection(songPosition);
+    /**
+     * Invoked on the main thread once the duplicate search has finished, and lists the groups of
+     * duplicates along with the search's throughput. The user can then delete every song but the
+     * first of each group, which goes through the same confirmation as deleting a selection.
+     *
+     * @param result is the duplicates found.
+     */
+    @Override
+    public void onDuplicatesFound(DuplicateFinder.Result result) {
+        if (isFinishing() || mSongList == null) return;
+
+        StringBuilder message = new StringBuilder(getString(R.string.dialog_duplicates_stats,
+                result.getFileCount(), result.getCachedCount(), result.getTotalMillis(),
+                result.getMegabytesPerSecond(), result.getFilesPerSecond()));
+        message.append("\n\n");
+
+        final List<long[]> groups = result.getGroups();
+        int duplicateCount = result.getDuplicateCount();
+        if (groups.isEmpty()) {
+            message.append(getString(R.string.dialog_duplicates_none));
+        } else {
+            message.append(getResources().getQuantityString(R.plurals.dialog_duplicates_found,
+                    duplicateCount, duplicateCount));
+            for (int i = 0; i < Math.min(groups.size(), DUPLICATES_DIALOG_LIMIT); i++) {
+                long[] group = groups.get(i);
+                int position = mSongList.indexOfId(group[0]);
+                message.append("\n").append(position >= 0 ? mSongList.getTitle(position) : "")
+                        .append(" (").append(group.length).append(")");
+            }
+            if (groups.size() > DUPLICATES_DIALOG_LIMIT) message.append("\n\u2026");
+        }
 
-        Log.d(LOG_TAG, "onLoadFinished()");
+        AlertDialog.Builder builder = new AlertDialog.Builder(this)
+                .setTitle(R.string.dialog_duplicates_title)
+                .setMessage(message)
+                .setNegativeButton(android.R.string.ok, null);
+        if (duplicateCount > 0) {
+            final long[] extraIds = new long[duplicateCount];
+            int count = 0;
+            for (long[] group : groups) {
+                System.arraycopy(group, 1, extraIds, count, group.length - 1);
+                count += group.length - 1;
+            }
+            builder.setPositiveButton(R.string.dialog_duplicates_delete,
+                    new DialogInterface.OnClickListener() {
+                        public void onClick(DialogInterface dialog, int which) {
+                            confirmDelete(extraIds, null);
+                        }
+                    });
+        }
+        builder.create().show();
     }
 
     /**
@@ -649,25 +1516,66 @@ public class MainActivity extends AppCompatActivity implements MediaPlayerContro
      * @param loader is the passed-in loader that could be addressed.
      */
     @Override
-    public void onLoaderReset(Loader<List<Song>> loader) {
+    public void onLoaderReset(Loader<LibraryDelta> loader) {
         Log.d(LOG_TAG, "onLoaderReset()");
 
-        // Clears out the existing data since the loader resetted.
-        mSongAdapter.clear();
+        // Leaves the song list as is since the Service class may still be playing from it.
     }
 
     /**
-     * Setter method for the song list ONLY when both the service is bound AND the loader finishing
-     * up the load.
+     * Setter method for the song list ONLY when both the service is bound AND the list being
+     * initialized. Since pages of the initial load are appended to this same list, songs can be
+     * played before the load finishes.
      */
     private void setSongList() {
-        if (mMusicBound && mLoadFinished) {
+        if (mMusicBound && mSongList != null) {
             Log.d(LOG_TAG, "Setting up song list");
 
             mMusicService.setList(mSongList);
         }
     }
 
+    /**
+     * Displays the playback metrics recorded so far along with the startup timeline, and writes
+     * them to a file in the app's external files directory as well so that they can be pulled off
+     * the device.
+     */
+    private void showMetrics() {
+        final String dump = PlaybackMetrics.dump() + "\n" + StartupOrchestrator.describeTimeline();
+
+        File directory = getExternalFilesDir(null);
+        if (directory == null) directory = getFilesDir(); // Should external storage be missing
+        final File file = new File(directory, METRICS_FILE_NAME);
+
+        // Writes the file off the main thread.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (PlaybackMetrics.writeDump(file, dump)) {
+                    Log.d(LOG_TAG, "Metrics written to " + file);
+                }
+            }
+        }).start();
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.dialog_metrics_title)
+                .setMessage(dump + "\n" + getString(R.string.dialog_metrics_file, file))
+                .setPositiveButton(android.R.string.ok, null)
+                .create().show();
+    }
+
+    /**
+     * Releases the cached album art as the system runs low on memory.
+     *
+     * @param level is the trim level.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        AlbumArtLoader.getInstance(this).trimMemory(level);
+    }
+
     /**
      * Invoked when the user presses the navigation key, back button.
      */
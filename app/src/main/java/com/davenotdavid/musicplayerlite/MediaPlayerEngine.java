@@ -0,0 +1,157 @@
+package com.davenotdavid.musicplayerlite;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * {@link PlaybackEngine} backed by a MediaPlayer, which chains the next song via
+ * {@link MediaPlayer#setNextMediaPlayer(MediaPlayer)}.
+ */
+public class MediaPlayerEngine implements PlaybackEngine, MediaPlayer.OnPreparedListener,
+        MediaPlayer.OnErrorListener, MediaPlayer.OnCompletionListener,
+        MediaPlayer.OnInfoListener, MediaPlayer.OnSeekCompleteListener {
+
+    // Log tag constant.
+    private static final String LOG_TAG = MediaPlayerEngine.class.getSimpleName();
+
+    // MediaPlayer field.
+    private final MediaPlayer mPlayer;
+
+    // Listener field.
+    private Listener mListener;
+
+    /**
+     * Creates a {@link MediaPlayerEngine} object.
+     */
+    public MediaPlayerEngine() {
+        mPlayer = new MediaPlayer();
+
+        // Sets the stream type to music.
+        mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+
+        // Sets the following to their respective listener.
+        mPlayer.setOnPreparedListener(this); // When the MediaPlayer instance is prepared.
+        mPlayer.setOnCompletionListener(this); // When a song has completed playback.
+        mPlayer.setOnErrorListener(this); // When an error is thrown.
+        mPlayer.setOnInfoListener(this); // When a song starts as the next one.
+        mPlayer.setOnSeekCompleteListener(this); // When a seek has been carried out.
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void setDataSource(Context context, Uri uri) throws IOException {
+        mPlayer.setDataSource(context, uri);
+    }
+
+    @Override
+    public void prepareAsync() {
+        mPlayer.prepareAsync();
+    }
+
+    @Override
+    public void start() {
+        mPlayer.start();
+    }
+
+    @Override
+    public void pause() {
+        mPlayer.pause();
+    }
+
+    @Override
+    public void stop() {
+        mPlayer.stop();
+    }
+
+    @Override
+    public void seekTo(int position) {
+        mPlayer.seekTo(position);
+    }
+
+    @Override
+    public void reset() {
+        mPlayer.reset();
+    }
+
+    @Override
+    public void release() {
+        mPlayer.release();
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mPlayer.isPlaying();
+    }
+
+    @Override
+    public int getDuration() {
+        return mPlayer.getDuration();
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return mPlayer.getCurrentPosition();
+    }
+
+    @Override
+    public void setVolume(float volume) {
+        mPlayer.setVolume(volume, volume);
+    }
+
+    @Override
+    public void setNextEngine(PlaybackEngine next) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) return;
+
+        mPlayer.setNextMediaPlayer(next != null ? ((MediaPlayerEngine) next).mPlayer : null);
+    }
+
+    @Override
+    public float getBufferFillLevel() {
+        return -1;
+    }
+
+    @Override
+    public long getUnderrunCount() {
+        return -1;
+    }
+
+    @Override
+    public void onPrepared(MediaPlayer mediaPlayer) {
+        if (mListener != null) mListener.onPrepared(this);
+    }
+
+    @Override
+    public boolean onError(MediaPlayer mediaPlayer, int what, int extra) {
+        return mListener != null && mListener.onError(this, what, extra);
+    }
+
+    @Override
+    public boolean onInfo(MediaPlayer mediaPlayer, int what, int extra) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                && what == MediaPlayer.MEDIA_INFO_STARTED_AS_NEXT) {
+            Log.d(LOG_TAG, "onInfo(): Started as next");
+        }
+
+        return false;
+    }
+
+    @Override
+    public void onCompletion(MediaPlayer mediaPlayer) {
+        if (mListener != null) mListener.onCompletion(this);
+    }
+
+    @Override
+    public void onSeekComplete(MediaPlayer mediaPlayer) {
+        if (mListener != null) mListener.onSeekComplete(this);
+    }
+}
@@ -0,0 +1,327 @@
+package com.davenotdavid.musicplayerlite;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent cache of enriched song metadata and loudness analyses, keyed by the song's ID along
+ * with its DATE_MODIFIED so that an entry is only trusted for as long as the file is unchanged.
+ * Audio fingerprints are keyed by the file's path instead, and trusted for as long as its size and
+ * modification time are unchanged.
+ */
+public class MetadataCache extends SQLiteOpenHelper {
+
+    // Database constants.
+    private static final String DATABASE_NAME = "metadata.db";
+    private static final int DATABASE_VERSION = 3;
+
+    // Table and column constants.
+    private static final String TABLE = "metadata";
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_DATE_MODIFIED = "date_modified";
+    private static final String COLUMN_DURATION = "duration";
+    private static final String COLUMN_ALBUM = "album";
+    private static final String COLUMN_TRACK = "track";
+    private static final String COLUMN_BITRATE = "bitrate";
+    private static final String COLUMN_SAMPLE_RATE = "sample_rate";
+    private static final String LOUDNESS_TABLE = "loudness";
+    private static final String COLUMN_LOUDNESS = "loudness";
+    private static final String COLUMN_PEAK = "peak";
+    private static final String FINGERPRINT_TABLE = "fingerprints";
+    private static final String COLUMN_PATH = "path";
+    private static final String COLUMN_SIZE = "size";
+    private static final String COLUMN_LAST_MODIFIED = "last_modified";
+    private static final String COLUMN_PAYLOAD_LENGTH = "payload_length";
+    private static final String COLUMN_HASH = "hash";
+
+    // Single instance, shared by everything that reads or writes the database.
+    private static MetadataCache sInstance;
+
+    /**
+     * Returns the single {@link MetadataCache} object, creating it on first use.
+     *
+     * @param context is any context - only the application context is kept.
+     */
+    public static synchronized MetadataCache getInstance(Context context) {
+        if (sInstance == null) sInstance = new MetadataCache(context.getApplicationContext());
+
+        return sInstance;
+    }
+
+    /**
+     * Creates a {@link MetadataCache} object.
+     *
+     * @param context is the application context.
+     */
+    private MetadataCache(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY, "
+                + COLUMN_DATE_MODIFIED + " INTEGER NOT NULL, "
+                + COLUMN_DURATION + " INTEGER NOT NULL, "
+                + COLUMN_ALBUM + " TEXT, "
+                + COLUMN_TRACK + " INTEGER NOT NULL, "
+                + COLUMN_BITRATE + " INTEGER NOT NULL, "
+                + COLUMN_SAMPLE_RATE + " INTEGER NOT NULL)");
+
+        // Loudness is null for songs that couldn't be measured.
+        db.execSQL("CREATE TABLE " + LOUDNESS_TABLE + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY, "
+                + COLUMN_DATE_MODIFIED + " INTEGER NOT NULL, "
+                + COLUMN_LOUDNESS + " REAL, "
+                + COLUMN_PEAK + " REAL NOT NULL)");
+
+        db.execSQL("CREATE TABLE " + FINGERPRINT_TABLE + " ("
+                + COLUMN_PATH + " TEXT PRIMARY KEY, "
+                + COLUMN_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_LAST_MODIFIED + " INTEGER NOT NULL, "
+                + COLUMN_PAYLOAD_LENGTH + " INTEGER NOT NULL, "
+                + COLUMN_HASH + " INTEGER NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+
+        // It's only a cache, so it's simply rebuilt.
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        db.execSQL("DROP TABLE IF EXISTS " + LOUDNESS_TABLE);
+        db.execSQL("DROP TABLE IF EXISTS " + FINGERPRINT_TABLE);
+        onCreate(db);
+    }
+
+    /**
+     * Reads every cached entry.
+     *
+     * @return the entries by song ID.
+     */
+    public Map<Long, SongMetadata> readAll() {
+        Map<Long, SongMetadata> entries = new HashMap<>();
+        Cursor cursor = getReadableDatabase().query(TABLE, null, null, null, null, null, null);
+        try {
+            int idColumn = cursor.getColumnIndexOrThrow(COLUMN_ID);
+            int dateModifiedColumn = cursor.getColumnIndexOrThrow(COLUMN_DATE_MODIFIED);
+            int durationColumn = cursor.getColumnIndexOrThrow(COLUMN_DURATION);
+            int albumColumn = cursor.getColumnIndexOrThrow(COLUMN_ALBUM);
+            int trackColumn = cursor.getColumnIndexOrThrow(COLUMN_TRACK);
+            int bitrateColumn = cursor.getColumnIndexOrThrow(COLUMN_BITRATE);
+            int sampleRateColumn = cursor.getColumnIndexOrThrow(COLUMN_SAMPLE_RATE);
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(idColumn);
+                entries.put(id, new SongMetadata(id, cursor.getLong(dateModifiedColumn),
+                        cursor.getLong(durationColumn), cursor.getString(albumColumn),
+                        cursor.getInt(trackColumn), cursor.getInt(bitrateColumn),
+                        cursor.getInt(sampleRateColumn)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return entries;
+    }
+
+    /**
+     * Writes a batch of entries in a single transaction, replacing older entries of the same
+     * songs.
+     *
+     * @param batch is the entries to write.
+     */
+    public void writeBatch(List<SongMetadata> batch) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (SongMetadata metadata : batch) {
+                values.put(COLUMN_ID, metadata.getID());
+                values.put(COLUMN_DATE_MODIFIED, metadata.getDateModified());
+                values.put(COLUMN_DURATION, metadata.getDuration());
+                values.put(COLUMN_ALBUM, metadata.getAlbum());
+                values.put(COLUMN_TRACK, metadata.getTrackNumber());
+                values.put(COLUMN_BITRATE, metadata.getBitrate());
+                values.put(COLUMN_SAMPLE_RATE, metadata.getSampleRate());
+                db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes the entries of the passed-in songs in a single transaction, e.g. of the songs that
+     * are no longer in the library.
+     *
+     * @param ids is the IDs of the songs.
+     */
+    public void deleteAll(List<Long> ids) {
+        deleteAll(TABLE, ids);
+    }
+
+    /**
+     * Reads every cached loudness analysis.
+     *
+     * @return the analyses by song ID.
+     */
+    public Map<Long, TrackLoudness> readLoudness() {
+        Map<Long, TrackLoudness> entries = new HashMap<>();
+        Cursor cursor = getReadableDatabase().query(LOUDNESS_TABLE, null, null, null, null, null,
+                null);
+        try {
+            int idColumn = cursor.getColumnIndexOrThrow(COLUMN_ID);
+            int dateModifiedColumn = cursor.getColumnIndexOrThrow(COLUMN_DATE_MODIFIED);
+            int loudnessColumn = cursor.getColumnIndexOrThrow(COLUMN_LOUDNESS);
+            int peakColumn = cursor.getColumnIndexOrThrow(COLUMN_PEAK);
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(idColumn);
+                double loudness = cursor.isNull(loudnessColumn) ? LoudnessAnalyzer.UNMEASURED
+                        : cursor.getDouble(loudnessColumn);
+                entries.put(id, new TrackLoudness(id, cursor.getLong(dateModifiedColumn),
+                        loudness, cursor.getFloat(peakColumn)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return entries;
+    }
+
+    /**
+     * Writes a loudness analysis, replacing an older one of the same song.
+     *
+     * @param loudness is the analysis.
+     */
+    public void writeLoudness(TrackLoudness loudness) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_ID, loudness.getID());
+        values.put(COLUMN_DATE_MODIFIED, loudness.getDateModified());
+        if (loudness.isMeasured()) {
+            values.put(COLUMN_LOUDNESS, loudness.getLoudness());
+        } else {
+            values.putNull(COLUMN_LOUDNESS);
+        }
+        values.put(COLUMN_PEAK, loudness.getPeak());
+        getWritableDatabase().insertWithOnConflict(LOUDNESS_TABLE, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Deletes the loudness analyses of the passed-in songs in a single transaction.
+     *
+     * @param ids is the IDs of the songs.
+     */
+    public void deleteLoudness(List<Long> ids) {
+        deleteAll(LOUDNESS_TABLE, ids);
+    }
+
+    /**
+     * Reads every cached fingerprint.
+     *
+     * @return the fingerprints by path.
+     */
+    public Map<String, TrackFingerprint> readFingerprints() {
+        Map<String, TrackFingerprint> entries = new HashMap<>();
+        Cursor cursor = getReadableDatabase().query(FINGERPRINT_TABLE, null, null, null, null,
+                null, null);
+        try {
+            int pathColumn = cursor.getColumnIndexOrThrow(COLUMN_PATH);
+            int sizeColumn = cursor.getColumnIndexOrThrow(COLUMN_SIZE);
+            int lastModifiedColumn = cursor.getColumnIndexOrThrow(COLUMN_LAST_MODIFIED);
+            int payloadLengthColumn = cursor.getColumnIndexOrThrow(COLUMN_PAYLOAD_LENGTH);
+            int hashColumn = cursor.getColumnIndexOrThrow(COLUMN_HASH);
+            while (cursor.moveToNext()) {
+                String path = cursor.getString(pathColumn);
+                entries.put(path, new TrackFingerprint(path, cursor.getLong(sizeColumn),
+                        cursor.getLong(lastModifiedColumn), cursor.getLong(payloadLengthColumn),
+                        cursor.getLong(hashColumn)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return entries;
+    }
+
+    /**
+     * Writes a batch of fingerprints in a single transaction, replacing older fingerprints of the
+     * same files.
+     *
+     * @param batch is the fingerprints to write.
+     */
+    public void writeFingerprints(List<TrackFingerprint> batch) {
+        if (batch.isEmpty()) return;
+
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (TrackFingerprint fingerprint : batch) {
+                values.put(COLUMN_PATH, fingerprint.getPath());
+                values.put(COLUMN_SIZE, fingerprint.getSize());
+                values.put(COLUMN_LAST_MODIFIED, fingerprint.getLastModified());
+                values.put(COLUMN_PAYLOAD_LENGTH, fingerprint.getPayloadLength());
+                values.put(COLUMN_HASH, fingerprint.getHash());
+                db.insertWithOnConflict(FINGERPRINT_TABLE, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes the fingerprints of the passed-in files in a single transaction, e.g. of the files
+     * that are no longer in the library.
+     *
+     * @param paths is the paths of the files.
+     */
+    public void deleteFingerprints(List<String> paths) {
+        if (paths.isEmpty()) return;
+
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement statement = db.compileStatement(
+                    "DELETE FROM " + FINGERPRINT_TABLE + " WHERE " + COLUMN_PATH + " = ?");
+            for (String path : paths) {
+                statement.bindString(1, path);
+                statement.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes the rows of the passed-in songs from the passed-in table in a single transaction.
+     */
+    private void deleteAll(String table, List<Long> ids) {
+        if (ids.isEmpty()) return;
+
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement statement = db.compileStatement(
+                    "DELETE FROM " + table + " WHERE " + COLUMN_ID + " = ?");
+            for (long id : ids) {
+                statement.bindLong(1, id);
+                statement.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package com.davenotdavid.musicplayerlite;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMetadataRetriever;
+import android.os.Build;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills in the details of the songs that the song list doesn't load (duration, album, track
+ * number, bitrate, and sample rate) in the background once the library is loaded.
+ *
+ * Each pass works in two stages. The details the MediaStore already has are read with a single
+ * query, and are available right away. Only the bitrate and sample rate need the file itself to
+ * be opened, which is slow, so those are probed on bounded thread pools - one per kind of storage,
+ * since internal flash serves parallel reads well while removable cards only slow down from them.
+ * Probed details are written to the {@link MetadataCache} in batches, keyed by the song's ID and
+ * DATE_MODIFIED, so that later passes only probe new or changed files. The listener is notified
+ * after each batch, so that the list fills in incrementally.
+ *
+ * Probing waits at the {@link PauseGate} while the {@link MusicService} prepares a song, so that
+ * it never competes with playback for I/O.
+ */
+public class MetadataEnricher {
+
+    // Log tag constant.
+    private static final String LOG_TAG = MetadataEnricher.class.getSimpleName();
+
+    // Columns of the MediaStore query.
+    private static final String[] PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.DATA,
+            MediaStore.Audio.Media.DATE_MODIFIED,
+            MediaStore.Audio.Media.DURATION,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.TRACK
+    };
+
+    // Most threads that probe internal storage at once - flash storage gains little beyond that.
+    private static final int MAX_INTERNAL_THREADS = 4;
+
+    // Threads that probe removable storage, which seeks rather than reads in parallel.
+    private static final int REMOVABLE_THREADS = 1;
+
+    // Probed songs per cache transaction and listener notification.
+    private static final int BATCH_SIZE = 64;
+
+    // Longest time a partial batch waits for more results before it's written anyway.
+    private static final long BATCH_TIMEOUT_MILLIS = 1000;
+
+    // MediaStore track numbers encode the disc number in their thousands.
+    private static final int TRACKS_PER_DISC = 1000;
+
+    /**
+     * Listener that's notified on the main thread whenever details of songs are added or updated.
+     */
+    public interface OnMetadataEnrichedListener {
+
+        /**
+         * Invoked with the IDs of the songs whose details changed.
+         *
+         * @param ids is the IDs of the songs.
+         */
+        void onMetadataEnriched(Set<Long> ids);
+    }
+
+    // Single instance, which outlives the Activity so that a pass survives rotations.
+    private static MetadataEnricher sInstance;
+
+    // Fields used for reading and caching the details.
+    private final ContentResolver mResolver;
+    private final MetadataCache mCache;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Thread that runs the passes, and the pools that probe the files.
+    private final ExecutorService mCoordinator;
+    private final ExecutorService mInternalExecutor;
+    private final ExecutorService mRemovableExecutor;
+    private final int mInternalThreads;
+
+    // Gate that the MusicService closes while it prepares a song.
+    private final PauseGate mGate = new PauseGate();
+
+    // Known details by song ID.
+    private final Map<Long, SongMetadata> mMetadata = new ConcurrentHashMap<>();
+
+    // Fields used for making sure only one pass runs at a time, with another one following should
+    // the library change in the meantime. Only accessed on the main thread.
+    private boolean mRunning, mRestart;
+
+    // Listener field, only accessed on the main thread.
+    private OnMetadataEnrichedListener mListener;
+
+    /**
+     * Returns the single {@link MetadataEnricher} object, creating it on first use.
+     *
+     * @param context is any context - only the application context is kept.
+     */
+    public static MetadataEnricher getInstance(Context context) {
+        if (sInstance == null) sInstance = new MetadataEnricher(context.getApplicationContext());
+
+        return sInstance;
+    }
+
+    /**
+     * Creates a {@link MetadataEnricher} object.
+     *
+     * @param context is the application context.
+     */
+    private MetadataEnricher(Context context) {
+        mResolver = context.getContentResolver();
+        mCache = MetadataCache.getInstance(context);
+
+        mInternalThreads = Math.max(1, Math.min(MAX_INTERNAL_THREADS,
+                Runtime.getRuntime().availableProcessors()));
+        mCoordinator = BackgroundExecutors.newExecutor(LOG_TAG, 1);
+        mInternalExecutor = BackgroundExecutors.newExecutor(LOG_TAG, mInternalThreads);
+        mRemovableExecutor = BackgroundExecutors.newExecutor(LOG_TAG, REMOVABLE_THREADS);
+    }
+
+    /**
+     * Setter method for the listener. Must be called on the main thread.
+     *
+     * @param listener is the listener, or null to stop listening.
+     */
+    public void setListener(OnMetadataEnrichedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Returns the known details of the passed-in song, or null if there are none yet.
+     *
+     * @param songId is the ID of the song.
+     */
+    public SongMetadata get(long songId) {
+        return mMetadata.get(songId);
+    }
+
+    /**
+     * Holds back or lets through the probing, e.g. while a song is being prepared.
+     *
+     * @param paused is true for holding it back, or false for letting it through.
+     */
+    public void setPaused(boolean paused) {
+        mGate.setPaused(paused);
+    }
+
+    /**
+     * Starts a pass over the library, or schedules another one should a pass already be running.
+     * Must be called on the main thread, e.g. whenever the library has been (re)loaded.
+     */
+    public void start() {
+        if (mRunning) {
+            mRestart = true;
+            return;
+        }
+
+        mRunning = true;
+        mCoordinator.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean interrupted = false;
+                try {
+                    runPass();
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Error enriching metadata.", e);
+                } catch (InterruptedException e) {
+                    Log.e(LOG_TAG, "Enrichment interrupted.", e);
+                    interrupted = true;
+                    Thread.currentThread().interrupt();
+                } finally {
+
+                    // Lets the next call start a pass however this one ended, but only runs the
+                    // pass that was asked for in the meantime should this one not be interrupted.
+                    final boolean restart = !interrupted;
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mRunning = false;
+                            if (mRestart) {
+                                mRestart = false;
+                                if (restart) start();
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a single pass on the coordinator thread.
+     */
+    private void runPass() throws InterruptedException {
+        long startTime = SystemClock.elapsedRealtime();
+        Map<Long, SongMetadata> cached = mCache.readAll();
+
+        // Stage one: the details the MediaStore has, along with the cached probe results that
+        // are still valid. Everything else is queued up for probing.
+        List<SongMetadata> pending = new ArrayList<>();
+        List<String> pendingPaths = new ArrayList<>();
+        Set<Long> ready = new HashSet<>();
+        Cursor cursor = mResolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, PROJECTION,
+                null, null, null);
+        if (cursor == null) return;
+        try {
+            int idColumn = cursor.getColumnIndex(MediaStore.Audio.Media._ID);
+            int dataColumn = cursor.getColumnIndex(MediaStore.Audio.Media.DATA);
+            int dateModifiedColumn = cursor.getColumnIndex(MediaStore.Audio.Media.DATE_MODIFIED);
+            int durationColumn = cursor.getColumnIndex(MediaStore.Audio.Media.DURATION);
+            int albumColumn = cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM);
+            int trackColumn = cursor.getColumnIndex(MediaStore.Audio.Media.TRACK);
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(idColumn);
+                long dateModified = cursor.getLong(dateModifiedColumn);
+                SongMetadata entry = cached.remove(id);
+                if (entry == null || entry.getDateModified() != dateModified) {
+                    entry = new SongMetadata(id, dateModified, cursor.getLong(durationColumn),
+                            cursor.getString(albumColumn),
+                            cursor.getInt(trackColumn) % TRACKS_PER_DISC, 0, 0);
+                    pending.add(entry);
+                    pendingPaths.add(cursor.getString(dataColumn));
+                }
+
+                if (!entry.equals(mMetadata.put(id, entry))) ready.add(id);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Whatever's left in the cache belongs to songs that no longer exist.
+        mCache.deleteAll(new ArrayList<>(cached.keySet()));
+        notifyListener(ready);
+
+        Log.d(LOG_TAG, "Enrichment pass: " + mMetadata.size() + " songs, " + pending.size()
+                + " to probe");
+
+        // Stage two: probes the files, keeping only a few probes queued per thread so that the
+        // pools never hold the whole library.
+        final BlockingQueue<SongMetadata> results = new LinkedBlockingQueue<>();
+        final Semaphore inFlight = new Semaphore(2 * (mInternalThreads + REMOVABLE_THREADS));
+        String internalRoot = Environment.isExternalStorageRemovable() ? null
+                : Environment.getExternalStorageDirectory().getAbsolutePath();
+        List<SongMetadata> batch = new ArrayList<>(BATCH_SIZE);
+        int received = 0;
+        for (int i = 0; i < pending.size(); i++) {
+            inFlight.acquire();
+            final SongMetadata entry = pending.get(i);
+            final String path = pendingPaths.get(i);
+            ExecutorService executor = path != null && internalRoot != null
+                    && path.startsWith(internalRoot) ? mInternalExecutor : mRemovableExecutor;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        results.add(probe(entry, path));
+                    } catch (InterruptedException e) {
+                        results.add(entry);
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+
+            // Collects whatever has finished in the meantime.
+            SongMetadata result;
+            while ((result = results.poll()) != null) {
+                received++;
+                batch.add(result);
+                if (batch.size() >= BATCH_SIZE) writeBatch(batch);
+            }
+        }
+
+        // Waits for the remaining probes, writing partial batches should they be slow to come.
+        while (received < pending.size()) {
+            SongMetadata result = results.poll(BATCH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (result != null) {
+                received++;
+                batch.add(result);
+            }
+            if (batch.size() >= BATCH_SIZE || (result == null && !batch.isEmpty())) {
+                writeBatch(batch);
+            }
+        }
+        if (!batch.isEmpty()) writeBatch(batch);
+
+        Log.d(LOG_TAG, "Enrichment pass took " + (SystemClock.elapsedRealtime() - startTime)
+                + " ms");
+    }
+
+    /**
+     * Writes a batch of probe results to the cache in one transaction, and then notifies the
+     * listener. Waits at the gate first, since it's I/O too.
+     *
+     * @param batch is the results, which is cleared afterwards.
+     */
+    private void writeBatch(List<SongMetadata> batch) throws InterruptedException {
+        mGate.await();
+        mCache.writeBatch(batch);
+
+        Set<Long> ids = new HashSet<>();
+        for (SongMetadata metadata : batch) {
+            mMetadata.put(metadata.getID(), metadata);
+            ids.add(metadata.getID());
+        }
+        batch.clear();
+
+        notifyListener(ids);
+    }
+
+    /**
+     * Notifies the listener on the main thread, should there be any changes.
+     *
+     * @param ids is the IDs of the songs whose details changed.
+     */
+    private void notifyListener(final Set<Long> ids) {
+        if (ids.isEmpty()) return;
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) mListener.onMetadataEnriched(ids);
+            }
+        });
+    }
+
+    /**
+     * Reads the bitrate and sample rate from the passed-in song's file. Details that can't be
+     * read are left at 0, and are cached as such so that the file isn't probed again until it
+     * changes.
+     *
+     * @param entry is the song's details so far.
+     * @param path is the path of the song's file.
+     * @return the song's details including those read from the file.
+     * @throws InterruptedException should the thread be interrupted while waiting at the gate.
+     */
+    private SongMetadata probe(SongMetadata entry, String path) throws InterruptedException {
+        if (path == null) return entry;
+
+        mGate.await();
+        long startTime = SystemClock.elapsedRealtime();
+        int bitrate = 0;
+        int sampleRate = 0;
+
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(path);
+            bitrate = parseInt(retriever.extractMetadata(
+                    MediaMetadataRetriever.METADATA_KEY_BITRATE));
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Error reading bitrate of " + path, e);
+        } finally {
+            retriever.release();
+        }
+
+        // The retriever only reports the sample rate on much newer versions, so the extractor
+        // reads it from the audio track's format instead.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            MediaExtractor extractor = new MediaExtractor();
+            try {
+                extractor.setDataSource(path);
+                for (int i = 0; i < extractor.getTrackCount(); i++) {
+                    MediaFormat format = extractor.getTrackFormat(i);
+                    String mime = format.getString(MediaFormat.KEY_MIME);
+                    if (mime == null || !mime.startsWith("audio/")) continue;
+
+                    if (format.containsKey(MediaFormat.KEY_SAMPLE_RATE)) {
+                        sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    }
+                    break;
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.e(LOG_TAG, "Error reading sample rate of " + path, e);
+            } finally {
+                extractor.release();
+            }
+        }
+
+        PlaybackMetrics.recordSince(PlaybackMetrics.Timer.METADATA_PROBE, startTime);
+        return entry.withFileDetails(bitrate, sampleRate);
+    }
+
+    /**
+     * Parses the passed-in metadata value, or returns 0 should it be missing or malformed.
+     */
+    private static int parseInt(String value) {
+        if (value == null) return 0;
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
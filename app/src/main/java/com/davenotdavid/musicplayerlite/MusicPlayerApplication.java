@@ -0,0 +1,18 @@
+package com.davenotdavid.musicplayerlite;
+
+import android.app.Application;
+
+/**
+ * Application class, which is only used for marking the start of the process for the
+ * {@link StartupOrchestrator}. The head start on a cold start is left to the
+ * {@link SplashScreenActivity}, since the process isn't always started for the UI.
+ */
+public class MusicPlayerApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        StartupOrchestrator.markProcessStart();
+    }
+}
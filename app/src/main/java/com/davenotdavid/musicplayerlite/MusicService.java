@@ -3,46 +3,116 @@ package com.davenotdavid.musicplayerlite;
 import android.app.Service;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.media.MediaPlayer;
 import android.os.IBinder;
 import android.content.ContentUris;
-import android.media.AudioManager;
-import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.v7.app.AlertDialog;
 import android.util.Log;
 
-import java.util.List;
-import java.util.Random;
+import java.util.Arrays;
 
 import static com.davenotdavid.musicplayerlite.MainActivity.mAutoRepeat;
+import static com.davenotdavid.musicplayerlite.MainActivity.mGapless;
+import static com.davenotdavid.musicplayerlite.MainActivity.mReadAhead;
 import static com.davenotdavid.musicplayerlite.MainActivity.mShuffle;
-import static com.davenotdavid.musicplayerlite.MainActivity.mSongAdapter;
 import static com.davenotdavid.musicplayerlite.MainActivity.showController;
 import static com.davenotdavid.musicplayerlite.MainActivity.songPosition;
 
 /**
  * A subclass of {@link Service} that assists with executing music playback continuously even when
  * the app is minimized.
+ *
+ * Songs are played by a {@link PlaybackEngine} - a MediaPlayer by default, or the decoder-driven
+ * {@link CodecPlaybackEngine} should it have been asked for at launch. In gapless mode, the next
+ * song is prepared on a second engine while the current one plays, and chained via
+ * {@link PlaybackEngine#setNextEngine(PlaybackEngine)} so that playback continues without a
+ * reset()/prepareAsync() round trip in between.
+ *
+ * Songs the user queued up play before the rest of the list (or the shuffle order), from a
+ * {@link PlayQueue} that's edited in O(log n) however long it gets.
  */
-public class MusicService extends Service implements MediaPlayer.OnPreparedListener,
-        MediaPlayer.OnErrorListener, MediaPlayer.OnCompletionListener {
+public class MusicService extends Service implements PlaybackEngine.Listener {
 
     // Log tag constant.
     private static final String LOG_TAG = MusicService.class.getSimpleName();
 
-    // MediaPlayer field.
-    private MediaPlayer mPlayer;
+    // Interval the position is recorded at while playing, and the most songs played before the
+    // current one that are recorded as part of the queue.
+    private static final long POSITION_RECORD_INTERVAL_MILLIS = 5000;
+    private static final int MAX_RECORDED_HISTORY = 100;
+
+    // Player field.
+    private PlaybackEngine mPlayer;
+
+    // Second player that the next song is prepared on in gapless mode, along with the ID of that
+    // song and whether it's been handed to the current player yet.
+    private PlaybackEngine mNextPlayer;
+    private long mNextSongId = -1;
+    private boolean mPreparingNext, mNextPlayerReady;
+
+    // Clock that's published to on every state change, which the controller's polling reads
+    // instead of the player.
+    private final PlaybackClock mClock = new PlaybackClock();
 
     // Song list field.
-    private List<Song> mSongList;
+    private SongTable mSongList;
 
     // Initialization used to assist with the binding process.
     private final IBinder mMusicBinder = new MusicBinder();
 
-    // Random field used to assist with implementing shuffle functionality.
-    private Random mRandom;
+    // Shuffle engine used to assist with implementing shuffle functionality, which keeps track
+    // of the songs played so far (in any mode) by their IDs.
+    private ShuffleEngine mShuffleEngine;
+
+    // Songs the user queued up to play next, which take precedence over the list and shuffle
+    // order.
+    private final PlayQueue mQueue = new PlayQueue();
+
+    // Time the previous song completed at, used for measuring the gap until the next one starts
+    // - 0 when the current song was started by the user instead.
+    private long mCompletionTime;
+
+    // Times the current and the next player started preparing at, for the prepare-time metrics.
+    private long mPrepareStartTime, mNextPrepareStartTime;
+
+    // Warmer of the upcoming song's file when it isn't prepared ahead on the next player, and
+    // whether the song being prepared was warmed, which splits the prepare-time metrics.
+    private final ReadAheadWarmer mReadAheadWarmer = new ReadAheadWarmer();
+    private boolean mPreparingWarmed;
+
+    // Listener that's notified whenever this Service class moves on to another song by itself.
+    private OnNowPlayingChangedListener mNowPlayingListener;
+
+    // Fields used for keeping track of the gaps between songs.
+    private int mHandoverCount;
+    private long mHandoverGapTotal, mHandoverGapMax;
+
+    // Recorder of the session, which lets the session be picked up again after the process is
+    // killed, and the handler that records the position periodically.
+    private SessionRecorder mSessionRecorder;
+    private final Handler mHandler = new Handler();
+    private final Runnable mPositionRecorder = new Runnable() {
+        @Override
+        public void run() {
+            recordPosition();
+            if (mClock.isPlaying()) mHandler.postDelayed(this, POSITION_RECORD_INTERVAL_MILLIS);
+        }
+    };
+
+    // Song of the previous session that's yet to be resumed (or -1 if none) and the position it
+    // was left at, along with the position the song being prepared should be resumed at (or -1
+    // should it start playing from the beginning instead).
+    private long mRestoredSongId = -1;
+    private int mRestoredPosition;
+    private int mResumePosition = -1;
+
+    // Boolean flag used for playing songs through the decoder-driven engine, as asked for by the
+    // intent the Service was started or bound with.
+    private boolean mCodecEngine;
 
     @Override
     public void onCreate(){
@@ -50,24 +120,92 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
 
         Log.d(LOG_TAG, "MusicService: onCreate()"); // Gets invoked once at most
 
-        // Initializations.
+        // Initializations - the seed is logged so that a shuffled order can be reproduced.
+        initMusicPlayer();
+        mShuffleEngine = new ShuffleEngine(System.currentTimeMillis());
+        Log.d(LOG_TAG, "Shuffle seed: " + mShuffleEngine.getSeed());
+
+        // Picks the previous session up should nothing have been played in this process yet,
+        // i.e. should the process have been killed since.
+        mSessionRecorder = SessionRecorder.getInstance(this);
+        PlaybackState state = mSessionRecorder.restore();
+        if (state != null && songPosition < 0) {
+            mShuffle = state.isShuffle();
+            mAutoRepeat = state.isAutoRepeat();
+            mShuffleEngine.restore(state.getQueue(), state.getQueueCursor());
+            mQueue.addAll(state.getUpNext());
+            mRestoredSongId = state.getSongId();
+            mRestoredPosition = state.getPosition();
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        applyEngineChoice(intent);
+
+        return super.onStartCommand(intent, flags, startId);
+    }
+
+    /**
+     * Switches to the engine the passed-in start or bind intent asks for, should it ask for one.
+     *
+     * @param intent is the intent, which may be null should the Service have been restarted.
+     */
+    private void applyEngineChoice(Intent intent) {
+        if (intent == null || !intent.hasExtra(MainActivity.EXTRA_CODEC_ENGINE)) return;
+
+        setCodecEngine(intent.getBooleanExtra(MainActivity.EXTRA_CODEC_ENGINE, false));
+    }
+
+    /**
+     * Switches the engine songs are played through, recreating the players should it change.
+     * A song that's loaded is prepared again on the new player, paused at the position it was
+     * at.
+     *
+     * @param codecEngine is whether or not to play songs through the decoder-driven engine.
+     */
+    public void setCodecEngine(boolean codecEngine) {
+        if (codecEngine == mCodecEngine) return;
+
+        Log.d(LOG_TAG, "Switching to the " + (codecEngine ? "codec" : "MediaPlayer") + " engine");
+        mCodecEngine = codecEngine;
+
+        int state = mClock.getState();
+        boolean loaded = state == PlaybackClock.STATE_PLAYING
+                || state == PlaybackClock.STATE_PAUSED;
+        int position = mClock.getPosition();
+        invalidateNextPlayer();
+        mPlayer.release();
+        mNextPlayer.release();
         initMusicPlayer();
-        mRandom = new Random();
+        mClock.publishIdle();
+
+        if (loaded && mSongList != null && songPosition >= 0
+                && songPosition < mSongList.size()) {
+            playSong();
+            mResumePosition = position;
+        }
     }
 
     /**
-     * Initializing method for the MediaPlayer.
+     * Initializing method for the players.
      */
     public void initMusicPlayer(){
-        mPlayer = new MediaPlayer();
+        mPlayer = createPlayer();
+        mNextPlayer = createPlayer();
+    }
 
-        // Sets the stream type to music.
-        mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+    /**
+     * Creates a player that reports to this Service class - the codec engine should it have been
+     * asked for (and be supported), or a MediaPlayer otherwise.
+     */
+    private PlaybackEngine createPlayer() {
+        PlaybackEngine player = mCodecEngine
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                ? new CodecPlaybackEngine() : new MediaPlayerEngine();
+        player.setListener(this);
 
-        // Sets the following to their respective listener.
-        mPlayer.setOnPreparedListener(this); // When the MediaPlayer instance is prepared.
-        mPlayer.setOnCompletionListener(this); // When a song has completed playback.
-        mPlayer.setOnErrorListener(this); // When an error is thrown.
+        return player;
     }
 
     /**
@@ -75,10 +213,38 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
      *
      * @param songs is the list of songs.
      */
-    public void setList(List<Song> songs){
+    public void setList(SongTable songs){
         mSongList = songs;
     }
 
+    /**
+     * Getter method for the playback clock, which is safe to poll from any thread.
+     */
+    public PlaybackClock getClock() {
+        return mClock;
+    }
+
+    /**
+     * Interface used for letting the Activity know that another song started playing without it
+     * asking for one (e.g. once a song completes).
+     */
+    public interface OnNowPlayingChangedListener {
+
+        /**
+         * Invoked after songPosition moved on to the song that's now playing.
+         */
+        void onNowPlayingChanged();
+    }
+
+    /**
+     * Setter method for the listener that's notified of songs started by this Service class.
+     *
+     * @param listener is the listener, or null to stop being notified.
+     */
+    public void setOnNowPlayingChangedListener(OnNowPlayingChangedListener listener) {
+        mNowPlayingListener = listener;
+    }
+
     /**
      * Assists with the interaction between the Activity and this Service class.
      */
@@ -92,6 +258,8 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
     public IBinder onBind(Intent intent) {
         Log.d(LOG_TAG, "onBind()");
 
+        applyEngineChoice(intent);
+
         return mMusicBinder;
     }
 
@@ -99,9 +267,19 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
     public boolean onUnbind(Intent intent){
         Log.d(LOG_TAG, "onUnbind()");
 
-        // Releases MediaPlayer resources when the Service is unbound (e.g. user closing app).
+        // Records where playback was left before the position is gone.
+        recordPosition();
+        mHandler.removeCallbacks(mPositionRecorder);
+
+        // Releases the players' resources when the Service is unbound (e.g. user closing app).
+        mClock.publishIdle();
+        mReadAheadWarmer.cancelUnless(-1);
         mPlayer.stop();
         mPlayer.release();
+        mNextPlayer.release();
+        MetadataEnricher.getInstance(this).setPaused(false);
+        LoudnessScanner.getInstance(this).setPaused(false);
+        DuplicateFinder.getInstance(this).setPaused(false);
         return false;
     }
 
@@ -109,7 +287,11 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
      * Plays a song from the song list.
      */
     public void playSong(){
+        mCompletionTime = 0;
+        mResumePosition = -1;
+        invalidateNextPlayer(); // The song after this one may differ from what was prepared.
         mPlayer.reset(); // Used also when the user plays songs progressively.
+        mClock.publish(PlaybackClock.STATE_PREPARING, 0, 0);
 
         // Retrieves the respective song.
         Song song = mSongList.get(songPosition);
@@ -117,14 +299,23 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
         // Retrieves the song's ID.
         long currentSong = song.getID();
 
+        // Records the song in the shuffle history (a no-op should the engine have picked it).
+        mShuffleEngine.sync(mSongList);
+        mShuffleEngine.start(currentSong);
+        recordPosition();
+
+        // Stops warming another song's file, since the user skipped somewhere else.
+        mReadAheadWarmer.cancelUnless(currentSong);
+        mPreparingWarmed = mReadAheadWarmer.isWarmed(currentSong);
+
         // Sets up the URI.
-        Uri trackUri = ContentUris.withAppendedId(
-                android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                currentSong);
+        Uri trackUri = getTrackUri(currentSong);
+        mPrepareStartTime = SystemClock.elapsedRealtime();
 
-        // Tries setting up the URI as the data source for the MediaPlayer.
+        // Tries setting up the URI as the data source for the player.
         try {
             mPlayer.setDataSource(getApplicationContext(), trackUri);
+            applyVolume(mPlayer, currentSong);
         } catch (Exception e) {
             Log.e(LOG_TAG, "Error setting data source.", e);
         }
@@ -134,6 +325,9 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
         try {
             mPlayer.prepareAsync();
         } catch (IllegalStateException e) {
+            PlaybackMetrics.increment(PlaybackMetrics.Counter.PLAYBACK_ERRORS);
+            PlaybackMetrics.cancelTap();
+            mClock.publishIdle();
             new AlertDialog.Builder(this)
                     .setTitle(R.string.dialog_song_error_title)
                     .setMessage("\"" + song.getTitle() + "\" could not be played")
@@ -141,94 +335,588 @@ public class MusicService extends Service implements MediaPlayer.OnPreparedListe
                         public void onClick(DialogInterface arg0, int arg1) {}
                     }).create().show();
         }
+
+        updateBackgroundGate();
     }
 
     @Override
-    public void onPrepared(MediaPlayer mediaPlayer) {
+    public void onPrepared(PlaybackEngine mediaPlayer) {
         Log.d(LOG_TAG, "onPrepared()");
 
+        // Hands the next song over to the current player once it's prepared in the background.
+        if (mediaPlayer == mNextPlayer) {
+            PlaybackMetrics.recordSince(PlaybackMetrics.Timer.PREPARE, mNextPrepareStartTime);
+            onNextPlayerPrepared();
+            updateBackgroundGate();
+            return;
+        }
+
+        // Leaves a song of the previous session paused at the position it was left at.
+        if (mResumePosition >= 0) {
+            int position = mResumePosition;
+            mResumePosition = -1;
+            if (position > 0) mediaPlayer.seekTo(position);
+            mClock.publish(PlaybackClock.STATE_PAUSED, mediaPlayer.getDuration(), position);
+            updateBackgroundGate();
+            showController();
+
+            prepareNextPlayer();
+            readAheadNext();
+            recordQueue();
+            return;
+        }
+
+        PlaybackMetrics.recordSince(PlaybackMetrics.Timer.PREPARE, mPrepareStartTime);
+        PlaybackMetrics.recordSince(mPreparingWarmed ? PlaybackMetrics.Timer.PREPARE_WARM
+                : PlaybackMetrics.Timer.PREPARE_COLD, mPrepareStartTime);
         mediaPlayer.start(); // Begins playback
+        publishPlaying();
+        updateBackgroundGate();
+        PlaybackMetrics.onAudioStarted();
+
+        // Records the gap after the previous song should this one have followed it.
+        if (mCompletionTime > 0) {
+            recordHandoverGap(SystemClock.elapsedRealtime() - mCompletionTime, false);
+            mCompletionTime = 0;
+        }
 
         showController(); // Updates the controller accordingly
+
+        prepareNextPlayer();
+        readAheadNext();
+        recordQueue();
     }
 
     @Override
-    public boolean onError(MediaPlayer mediaPlayer, int i, int i1) {
-        Log.d(LOG_TAG, "onError()");
+    public boolean onError(PlaybackEngine mediaPlayer, int i, int i1) {
+        Log.d(LOG_TAG, "onError(): what " + i + ", extra " + i1);
 
+        PlaybackMetrics.increment(PlaybackMetrics.Counter.PLAYBACK_ERRORS);
+        if (mediaPlayer == mPlayer) PlaybackMetrics.cancelTap();
         mediaPlayer.reset();
+        if (mediaPlayer == mPlayer) mClock.publishIdle();
+
+        // Falls back to preparing the next song after the current one completes.
+        if (mediaPlayer == mNextPlayer) {
+            mPreparingNext = false;
+            mNextPlayerReady = false;
+            mNextSongId = -1;
+        }
 
+        updateBackgroundGate();
         return false;
     }
 
     // Invoked when a song is complete.
     @Override
-    public void onCompletion(MediaPlayer mediaPlayer) {
-        if (mPlayer.getCurrentPosition() > 0){ // Greater than the 0 millisecond mark
+    public void onCompletion(PlaybackEngine mediaPlayer) {
+
+        // Ignores the next player, which only completes when it fails to prepare.
+        if (mediaPlayer != mPlayer) return;
+
+        long completionTime = SystemClock.elapsedRealtime();
+        if (mNextPlayerReady) {
+
+            // The next player has already taken over, so only the references are swapped.
+            handOverToNextPlayer(completionTime);
+        } else if (mPlayer.getCurrentPosition() > 0){ // Greater than the 0 millisecond mark
             mediaPlayer.reset();
+            mClock.publishIdle();
 
             // Repeats the song (re-initializes mPlayer by setting the data source prior to
             // preparing the task) should the auto-repeat option be checked. Otherwise, plays the
             // next song.
             if (mAutoRepeat) playSong();
             else playNext();
+
+            // Measures the gap once the song is prepared.
+            mCompletionTime = completionTime;
+        }
+
+        // Lets the Activity update the rows of the previous and the new song.
+        if (mNowPlayingListener != null) mNowPlayingListener.onNowPlayingChanged();
+    }
+
+    /**
+     * Prepares the song that will play after the current one on the second player, should
+     * gapless mode be enabled.
+     */
+    private void prepareNextPlayer() {
+        if (!mGapless || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) return;
+        if (mSongList == null || mSongList.isEmpty()) return;
+
+        int nextPosition = mAutoRepeat ? songPosition : peekNextPosition();
+        if (nextPosition < 0 || nextPosition >= mSongList.size()) return;
+
+        mNextPlayer.reset();
+        mNextSongId = mSongList.getID(nextPosition);
+        mNextPlayerReady = false;
+        mNextPrepareStartTime = SystemClock.elapsedRealtime();
+        try {
+            mNextPlayer.setDataSource(getApplicationContext(), getTrackUri(mNextSongId));
+            applyVolume(mNextPlayer, mNextSongId);
+            mNextPlayer.prepareAsync();
+            mPreparingNext = true;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Error preparing next song.", e);
+            mNextPlayer.reset();
+            mNextSongId = -1;
         }
 
-        // Updates the adapter's view accordingly.
-        mSongAdapter.notifyDataSetChanged();
+        updateBackgroundGate();
+    }
+
+    /**
+     * Chains the prepared next player to the current one.
+     */
+    private void onNextPlayerPrepared() {
+        if (!mPreparingNext || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) return;
+
+        mPreparingNext = false;
+        try {
+            mPlayer.setNextEngine(mNextPlayer);
+            mNextPlayerReady = true;
+        } catch (IllegalStateException e) {
+            Log.e(LOG_TAG, "Error chaining next song.", e);
+            mNextPlayer.reset();
+            mNextSongId = -1;
+        }
+    }
+
+    /**
+     * Discards the prepared next song, e.g. when the user picks another song or toggles a
+     * playback mode.
+     */
+    private void invalidateNextPlayer() {
+        if (mNextPlayerReady && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            try {
+                mPlayer.setNextEngine(null);
+            } catch (IllegalStateException e) {
+                Log.e(LOG_TAG, "Error unchaining next song.", e);
+            }
+        }
+        if (mNextSongId >= 0 || mPreparingNext) mNextPlayer.reset();
+
+        mNextSongId = -1;
+        mPreparingNext = false;
+        mNextPlayerReady = false;
+        updateBackgroundGate();
+    }
+
+    /**
+     * Holds back the metadata enrichment, loudness scan and duplicate search while either player
+     * is preparing a song, so that they don't compete with playback for I/O, and lets them
+     * through otherwise.
+     */
+    private void updateBackgroundGate() {
+        boolean preparing = mClock.getState() == PlaybackClock.STATE_PREPARING || mPreparingNext;
+        MetadataEnricher.getInstance(this).setPaused(preparing);
+        LoudnessScanner.getInstance(this).setPaused(preparing);
+        DuplicateFinder.getInstance(this).setPaused(preparing);
+    }
+
+    /**
+     * Sets the passed-in player's volume so that the passed-in song plays at about the same
+     * loudness as any other, should its loudness have been analyzed.
+     *
+     * @param player is the player the song was set on.
+     * @param songId is the ID of the song.
+     */
+    private void applyVolume(PlaybackEngine player, long songId) {
+        player.setVolume(LoudnessScanner.getInstance(this).getVolume(songId));
+    }
+
+    /**
+     * Swaps the players after the next one has started playing in place of the completed one,
+     * and starts preparing the song after that.
+     *
+     * @param completionTime is the time the previous song completed at.
+     */
+    private void handOverToNextPlayer(long completionTime) {
+        PlaybackEngine completedPlayer = mPlayer;
+        mPlayer = mNextPlayer;
+        mNextPlayer = completedPlayer;
+        mNextPlayer.reset();
+
+        // Resolves the position by ID since the song list may have been patched in the meantime.
+        int position = mSongList.indexOfId(mNextSongId);
+        if (position >= 0) songPosition = position;
+
+        // Dequeues the song should it have been prepared as the head of the queue.
+        if (!mAutoRepeat && !mQueue.isEmpty() && mQueue.get(0) == mNextSongId) {
+            mQueue.remove(0);
+            mSessionRecorder.recordUpNextRemove(0, 1);
+        }
+        mShuffleEngine.start(mNextSongId);
+        mNextSongId = -1;
+        mNextPlayerReady = false;
+        publishPlaying();
+        recordPosition();
+
+        // The next song already started when the previous one ended, so the gap is the time from
+        // the completion to its start (i.e. how far it had played before it was noticed).
+        long startTime = SystemClock.elapsedRealtime() - mPlayer.getCurrentPosition();
+        recordHandoverGap(Math.max(0, startTime - completionTime), true);
+
+        prepareNextPlayer();
+        readAheadNext();
+        recordQueue();
+    }
+
+    /**
+     * Warms the file of the song after the current one, unless the next player is already
+     * preparing it (which reads the file right away anyway).
+     */
+    private void readAheadNext() {
+        if (!mReadAhead || mNextSongId >= 0) return;
+        if (mSongList == null || mSongList.isEmpty()) return;
+
+        int nextPosition = mAutoRepeat ? songPosition : peekNextPosition();
+        if (nextPosition < 0 || nextPosition >= mSongList.size()) return;
+
+        mReadAheadWarmer.warm(mSongList.getID(nextPosition), mSongList.getPath(nextPosition));
+    }
+
+    /**
+     * Records and logs the gap between the end of one song and the start of the next one.
+     *
+     * @param gap is the gap in milliseconds.
+     * @param gapless is whether or not the next song was handed over by the next player.
+     */
+    private void recordHandoverGap(long gap, boolean gapless) {
+        mHandoverCount++;
+        mHandoverGapTotal += gap;
+        if (gap > mHandoverGapMax) mHandoverGapMax = gap;
+
+        Log.d(LOG_TAG, "Handover gap: " + gap + " ms (" + (gapless ? "gapless" : "prepared")
+                + "), average " + mHandoverGapTotal / mHandoverCount + " ms, max "
+                + mHandoverGapMax + " ms over " + mHandoverCount + " changes");
+
+        // Logs how full the new song's buffer is and how often it ran dry, should the player
+        // expose its buffer.
+        if (mPlayer.getBufferFillLevel() >= 0) {
+            Log.d(LOG_TAG, "Buffer fill: " + Math.round(mPlayer.getBufferFillLevel() * 100)
+                    + "%, underruns " + mPlayer.getUnderrunCount());
+        }
+    }
+
+    /**
+     * Invoked by the Activity whenever shuffle, auto-repeat, or gapless mode is toggled, so that
+     * the prepared next song gets re-picked.
+     */
+    public void onPlaybackModeChanged() {
+        mSessionRecorder.recordModes(mShuffle, mAutoRepeat);
+
+        invalidateNextPlayer();
+        if (mPlayer.isPlaying() || MainActivity.mPlaybackPaused) {
+            prepareNextPlayer();
+            readAheadNext();
+            recordQueue();
+        }
+    }
+
+    /**
+     * Prepares the song of the previous session, paused at the position it was left at, should
+     * it still be in the list and should nothing have been played since.
+     *
+     * @return whether or not the song is being prepared.
+     */
+    public boolean resumeSession() {
+        long songId = mRestoredSongId;
+        mRestoredSongId = -1;
+        if (songId < 0 || songPosition >= 0 || mSongList == null) return false;
+
+        int position = mSongList.indexOfId(songId);
+        if (position < 0) return false;
+
+        songPosition = position;
+        playSong();
+        mResumePosition = mRestoredPosition;
+        return true;
+    }
+
+    /**
+     * Records the current song and the position within it.
+     */
+    private void recordPosition() {
+        mSessionRecorder.recordPosition(mShuffleEngine.current(), mClock.getPosition());
+    }
+
+    /**
+     * Records the queue, i.e. the songs around the current one in the order they were (or will
+     * be) played.
+     */
+    private void recordQueue() {
+        long[] history = mShuffleEngine.getHistory();
+        int cursor = mShuffleEngine.getCursor();
+        int from = Math.max(0, cursor - MAX_RECORDED_HISTORY);
+        mSessionRecorder.recordQueue(Arrays.copyOfRange(history, from, history.length),
+                cursor - from);
+    }
+
+    /**
+     * Invoked by the Activity after songs were added to or removed from the list, which drops the
+     * removed songs from the shuffle pool and the queue, and re-picks the song prepared (or read)
+     * ahead of time only should it no longer be the next one. Costs time proportional to the
+     * number of songs that changed should they be known, and a pass over the list otherwise.
+     *
+     * @param addedIds is the IDs of the songs added to the list, or null should the whole list
+     *                 have been replaced, e.g. by the first load.
+     * @param removedIds is the IDs of the songs removed from the list, sorted ascending.
+     * @param reordered is whether or not the list is presented in another order now.
+     */
+    public void onLibraryChanged(long[] addedIds, long[] removedIds, boolean reordered) {
+        if (mSongList == null) return;
+
+        mShuffleEngine.update(mSongList, addedIds, removedIds);
+
+        // Drops the queued songs that are gone. Only a list that was replaced whole, which is
+        // rare, has its queue recorded whole rather than as the removed IDs.
+        if (!mQueue.isEmpty()) {
+            if (addedIds != null) {
+                if (mQueue.removeIds(removedIds) > 0) {
+                    mSessionRecorder.recordUpNextRemoveIds(removedIds);
+                }
+            } else {
+                long[] ids = mSongList.copyIds();
+                Arrays.sort(ids);
+                if (mQueue.retainIds(ids) > 0) mSessionRecorder.recordUpNext(mQueue.toArray());
+            }
+        }
+
+        if (reordered) {
+            onPlaybackModeChanged();
+        } else {
+            repickNext();
+        }
+    }
+
+    /**
+     * Re-picks the song prepared (or read) ahead of time should it no longer be the next one.
+     */
+    private void repickNext() {
+        if (mSongList == null || mSongList.isEmpty()) return;
+
+        // Re-targets the read-ahead should nothing be prepared ahead of time.
+        if (mNextSongId < 0) {
+            if (mPlayer.isPlaying()) readAheadNext();
+            return;
+        }
+
+        int nextPosition = mAutoRepeat ? songPosition : peekNextPosition();
+        if (nextPosition >= 0 && nextPosition < mSongList.size()
+                && mSongList.getID(nextPosition) == mNextSongId) return;
+
+        onPlaybackModeChanged();
+    }
+
+    /**
+     * Returns the IDs of the songs queued up to play next, in order.
+     */
+    public long[] getQueue() {
+        return mQueue.toArray();
+    }
+
+    /**
+     * Queues songs up to play right after the current one, ahead of the songs already queued, in
+     * the passed-in order.
+     *
+     * @param ids is the IDs of the songs.
+     */
+    public void playAfterCurrent(long[] ids) {
+        mQueue.insertAll(0, ids);
+        mSessionRecorder.recordUpNextInsert(0, ids);
+        repickNext();
+    }
+
+    /**
+     * Queues songs up to play after the ones already queued, in the passed-in order.
+     *
+     * @param ids is the IDs of the songs.
+     */
+    public void enqueue(long[] ids) {
+        int index = mQueue.size();
+        mQueue.addAll(ids);
+        mSessionRecorder.recordUpNextInsert(index, ids);
+        repickNext();
+    }
+
+    /**
+     * Moves a queued song to another position within the queue.
+     *
+     * @param from is the position of the song.
+     * @param to is the position the song ends up at.
+     */
+    public void moveInQueue(int from, int to) {
+        mQueue.move(from, to);
+        mSessionRecorder.recordUpNextMove(from, to);
+        repickNext();
+    }
+
+    /**
+     * Removes a song from the queue.
+     *
+     * @param index is the position of the song within the queue.
+     */
+    public void removeFromQueue(int index) {
+        mQueue.remove(index);
+        mSessionRecorder.recordUpNextRemove(index, 1);
+        repickNext();
+    }
+
+    /**
+     * Removes every song from the queue.
+     */
+    public void clearQueue() {
+        int count = mQueue.size();
+        mQueue.clear();
+        if (count > 0) mSessionRecorder.recordUpNextRemove(0, count);
+        repickNext();
+    }
+
+    /**
+     * Returns the URI of the song with the passed-in ID.
+     *
+     * @param songId is the ID of the song.
+     */
+    private static Uri getTrackUri(long songId) {
+        return ContentUris.withAppendedId(
+                android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                songId);
     }
 
     // The following methods all apply to standard playback control functions that the user will
-    // expect.
+    // expect. The getters read the clock rather than the player.
     public int getPosition(){
-        return mPlayer.getCurrentPosition();
+        return mClock.getPosition();
     }
 
     public int getDuration(){
-        return mPlayer.getDuration();
+        return mClock.getDuration();
     }
 
     public boolean isPlaying(){
-        return mPlayer.isPlaying();
+        return mClock.isPlaying();
     }
 
     public void pausePlayer(){
         mPlayer.pause();
+        mClock.publish(PlaybackClock.STATE_PAUSED, mPlayer.getDuration(),
+                mPlayer.getCurrentPosition());
+        recordPosition();
     }
 
     public void seek(int position){
         mPlayer.seekTo(position);
+
+        // Anchors at the target right away so that the seek bar doesn't jump back in the
+        // meantime - the actual position is published once the seek completes.
+        mClock.publish(mClock.getState(), mClock.getDuration(), position);
+        recordPosition();
     }
 
     public void go(){
         mPlayer.start();
+        publishPlaying();
+    }
+
+    @Override
+    public void onSeekComplete(PlaybackEngine mediaPlayer) {
+        if (mediaPlayer != mPlayer) return;
+
+        int state = mClock.getState();
+        if (state == PlaybackClock.STATE_PLAYING || state == PlaybackClock.STATE_PAUSED) {
+            mClock.publish(state, mPlayer.getDuration(), mPlayer.getCurrentPosition());
+        }
+    }
+
+    /**
+     * Publishes the current player's song as playing from its current position.
+     */
+    private void publishPlaying() {
+        mClock.publish(PlaybackClock.STATE_PLAYING, mPlayer.getDuration(),
+                mPlayer.getCurrentPosition());
+
+        // (Re)starts recording the position periodically for as long as the song plays.
+        mHandler.removeCallbacks(mPositionRecorder);
+        mHandler.postDelayed(mPositionRecorder, POSITION_RECORD_INTERVAL_MILLIS);
     }
 
     /**
-     * Runs the following code for when the previous song is played.
+     * Runs the following code for when the previous song is played. Steps back through the
+     * shuffle history should shuffle be on, and falls back to the previous song in the list
+     * otherwise or once the history runs out.
      */
     public void playPrevious(){
+        if (mShuffle) {
+            mShuffleEngine.sync(mSongList);
+            int position = mSongList.indexOfId(mShuffleEngine.previous());
+            if (position >= 0) {
+                songPosition = position;
+                playSong();
+                return;
+            }
+        }
+
         songPosition--;
         if (songPosition < 0) songPosition = mSongList.size() - 1;
         playSong();
     }
 
     /**
-     * Runs the following code for when the next song is played. Shuffles by retrieving a random
-     * song from the list should the boolean flag be true.
+     * Runs the following code for when the next song is played.
      */
     public void playNext(){
-        if (mShuffle){
-            int newSong = songPosition;
-            while (newSong == songPosition){ // Loops until false so guaranteed random
-                newSong = mRandom.nextInt(mSongList.size());
-            }
-            songPosition = newSong;
+        int queuedPosition = peekQueuedPosition();
+        if (queuedPosition >= 0) {
+            mQueue.remove(0);
+            mSessionRecorder.recordUpNextRemove(0, 1);
+            songPosition = queuedPosition;
         } else {
-            songPosition++;
-            if (songPosition >= mSongList.size()) songPosition = 0;
+            songPosition = peekNextPosition();
         }
 
         playSong();
     }
+
+    /**
+     * Returns the position of the song that playNext() would play, without moving to it. Draws
+     * the next song of the shuffle order should the boolean flag be true - that pick is kept
+     * until it's played so that the song prepared ahead of time is the one that plays. The song
+     * at the head of the queue comes first should there be any.
+     */
+    private int peekNextPosition() {
+        int queuedPosition = peekQueuedPosition();
+        if (queuedPosition >= 0) return queuedPosition;
+
+        int size = mSongList.size();
+        if (mShuffle){
+            mShuffleEngine.sync(mSongList);
+            int position = mSongList.indexOfId(mShuffleEngine.peekNext());
+            return position >= 0 ? position : 0;
+        }
+
+        int nextPosition = songPosition + 1;
+        return nextPosition >= size ? 0 : nextPosition;
+    }
+
+    /**
+     * Returns the position of the song at the head of the queue without dequeuing it, dropping
+     * the queued songs that are no longer in the list on the way.
+     *
+     * @return the position, or -1 should the queue be empty.
+     */
+    private int peekQueuedPosition() {
+        int position = -1;
+        int dropped = 0;
+        while (!mQueue.isEmpty()) {
+            position = mSongList.indexOfId(mQueue.get(0));
+            if (position >= 0) break;
+            mQueue.remove(0);
+            dropped++;
+        }
+        if (dropped > 0) mSessionRecorder.recordUpNextRemove(0, dropped);
+
+        return position;
+    }
 }
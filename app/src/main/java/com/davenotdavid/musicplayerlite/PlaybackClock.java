@@ -0,0 +1,119 @@
+package com.davenotdavid.musicplayerlite;
+
+import android.os.SystemClock;
+
+/**
+ * Keeps track of the playback position without asking the MediaPlayer for it. MusicService
+ * publishes a {@link Snapshot} whenever the playback state changes (a song being prepared,
+ * started, paused, resumed, or seeked), and the position in between is extrapolated from the
+ * time that's passed since - so the controller's frequent polling only reads a volatile field and
+ * the monotonic clock, without any native MediaPlayer calls, locks, or allocations.
+ */
+public class PlaybackClock {
+
+    // Playback states.
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_PREPARING = 1;
+    public static final int STATE_PLAYING = 2;
+    public static final int STATE_PAUSED = 3;
+
+    // Snapshot that's published when nothing is loaded.
+    private static final Snapshot IDLE = new Snapshot(STATE_IDLE, 0, 0, 0);
+
+    // Most recently published snapshot, which is swapped as a whole so that readers on any thread
+    // never see a half-updated state.
+    private volatile Snapshot mSnapshot = IDLE;
+
+    /**
+     * Immutable playback state as of a state change.
+     */
+    private static final class Snapshot {
+
+        // Fields used for describing the state.
+        final int state;
+        final int duration;
+        final int anchorPosition;
+        final long anchorTime;
+
+        /**
+         * Creates a {@link Snapshot} object.
+         *
+         * @param state is one of the playback states.
+         * @param duration is the song's length in milliseconds.
+         * @param anchorPosition is the position in milliseconds at the anchor time.
+         * @param anchorTime is the {@link SystemClock#elapsedRealtime()} the position was read at.
+         */
+        private Snapshot(int state, int duration, int anchorPosition, long anchorTime) {
+            this.state = state;
+            this.duration = duration;
+            this.anchorPosition = anchorPosition;
+            this.anchorTime = anchorTime;
+        }
+    }
+
+    /**
+     * Publishes a new playback state, anchoring the position at the current time.
+     *
+     * @param state is one of the playback states.
+     * @param duration is the song's length in milliseconds.
+     * @param position is the song's current position in milliseconds.
+     */
+    public void publish(int state, int duration, int position) {
+        mSnapshot = new Snapshot(state, Math.max(0, duration), Math.max(0, position),
+                SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Publishes the idle state, e.g. once the player is reset or released.
+     */
+    public void publishIdle() {
+        mSnapshot = IDLE;
+    }
+
+    /**
+     * Returns the playback state.
+     */
+    public int getState() {
+        return mSnapshot.state;
+    }
+
+    /**
+     * Returns whether or not a song is currently playing.
+     */
+    public boolean isPlaying() {
+        return mSnapshot.state == STATE_PLAYING;
+    }
+
+    /**
+     * Returns the length of the song in milliseconds, or 0 should none be playing or paused.
+     */
+    public int getDuration() {
+        Snapshot snapshot = mSnapshot;
+        return isLoaded(snapshot) ? snapshot.duration : 0;
+    }
+
+    /**
+     * Returns the song's current position in milliseconds, extrapolated from the last published
+     * state, or 0 should none be playing or paused.
+     */
+    public int getPosition() {
+        Snapshot snapshot = mSnapshot;
+        if (!isLoaded(snapshot)) return 0;
+        if (snapshot.state == STATE_PAUSED) return snapshot.anchorPosition;
+
+        long position = snapshot.anchorPosition
+                + (SystemClock.elapsedRealtime() - snapshot.anchorTime);
+
+        // Stops at the end rather than running past it before the completion is published.
+        if (snapshot.duration > 0 && position > snapshot.duration) return snapshot.duration;
+
+        return (int) position;
+    }
+
+    /**
+     * Returns whether or not the passed-in snapshot has a song loaded.
+     */
+    private static boolean isLoaded(Snapshot snapshot) {
+        return snapshot.state == STATE_PLAYING || snapshot.state == STATE_PAUSED;
+    }
+}
@@ -0,0 +1,114 @@
+package com.davenotdavid.musicplayerlite;
+
+import android.content.Context;
+import android.net.Uri;
+
+import java.io.IOException;
+
+/**
+ * Player of a single song at a time, which the {@link MusicService} drives the same way whether
+ * it's backed by a MediaPlayer ({@link MediaPlayerEngine}) or by a decoder feeding an audio
+ * output directly ({@link CodecPlaybackEngine}). The lifecycle follows the MediaPlayer's - set
+ * the data source, prepare, start - and every listener method is invoked on the main thread.
+ */
+public interface PlaybackEngine {
+
+    /**
+     * Listener that's notified of the engine's state changes on the main thread.
+     */
+    interface Listener {
+
+        /**
+         * Invoked once the song is prepared and ready to start.
+         */
+        void onPrepared(PlaybackEngine engine);
+
+        /**
+         * Invoked once the song played to its end, after the next engine (should there be one)
+         * already took over.
+         */
+        void onCompletion(PlaybackEngine engine);
+
+        /**
+         * Invoked should the song fail to be prepared or played.
+         *
+         * @param what is the type of the error.
+         * @param extra is an error code specific to the engine.
+         * @return whether or not the error was handled.
+         */
+        boolean onError(PlaybackEngine engine, int what, int extra);
+
+        /**
+         * Invoked once a seek has been carried out.
+         */
+        void onSeekComplete(PlaybackEngine engine);
+    }
+
+    /**
+     * Setter method for the listener.
+     */
+    void setListener(Listener listener);
+
+    /**
+     * Sets the song to play.
+     *
+     * @throws IOException should the song not be readable.
+     */
+    void setDataSource(Context context, Uri uri) throws IOException;
+
+    /**
+     * Prepares the song in the background, which the listener is notified of once it's done.
+     */
+    void prepareAsync();
+
+    void start();
+
+    void pause();
+
+    void stop();
+
+    void seekTo(int position);
+
+    /**
+     * Returns to the idle state, dropping the song and anything prepared for it.
+     */
+    void reset();
+
+    /**
+     * Releases every resource, after which the engine can't be used anymore.
+     */
+    void release();
+
+    boolean isPlaying();
+
+    int getDuration();
+
+    int getCurrentPosition();
+
+    /**
+     * Sets the volume the song plays at.
+     *
+     * @param volume is the volume within [0, 1].
+     */
+    void setVolume(float volume);
+
+    /**
+     * Chains a prepared engine of the same kind to start as soon as this one completes, for
+     * gapless playback.
+     *
+     * @param next is the next engine, or null to unchain it.
+     */
+    void setNextEngine(PlaybackEngine next);
+
+    /**
+     * Returns the fraction of the engine's PCM buffer that's filled, or -1 should the engine
+     * not expose its buffer.
+     */
+    float getBufferFillLevel();
+
+    /**
+     * Returns the number of times the engine's output ran dry while playing, or -1 should the
+     * engine not expose it.
+     */
+    long getUnderrunCount();
+}
@@ -0,0 +1,253 @@
+package com.davenotdavid.musicplayerlite;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide registry of playback latency and health metrics - histograms of how long things
+ * take (e.g. from tapping a song until it's audible), and counters of how often things go wrong.
+ *
+ * Recording only updates preallocated atomic arrays, so it's allocation-free, lock-free, and safe
+ * from any thread, which keeps it cheap enough to leave on in release builds. Formatting only
+ * happens when a dump is asked for.
+ */
+public final class PlaybackMetrics {
+
+    // Log tag constant.
+    private static final String LOG_TAG = PlaybackMetrics.class.getSimpleName();
+
+    /**
+     * Durations that are recorded into histograms, in milliseconds.
+     */
+    public enum Timer {
+        TAP_TO_AUDIO("Tap to audio"), // From a user's tap until playback starts
+        PREPARE("Prepare"), // From setting the data source until the player is prepared
+        PREPARE_WARM("Prepare (read ahead)"), // Prepares of songs whose files were read ahead
+        PREPARE_COLD("Prepare (cold)"), // Prepares of songs whose files weren't
+        READ_AHEAD("Read-ahead"), // Warming the upcoming song's file into the page cache
+        LOAD("Library load"), // A whole loader pass, including the sort and search index
+        SORT("Library sort"), // Collating and sorting the library for a sort order
+        ALBUM_ART_DECODE("Album art decode"), // Decoding a thumbnail from the full-size art
+        METADATA_PROBE("Metadata probe"), // Reading the bitrate and sample rate from a file
+        LOUDNESS_ANALYSIS("Loudness analysis"), // Decoding and analyzing a whole song
+        FINGERPRINT("Fingerprint"); // Reading and hashing a file's audio payload
+
+        private final String mLabel;
+
+        Timer(String label) {
+            mLabel = label;
+        }
+    }
+
+    /**
+     * Events that are counted.
+     */
+    public enum Counter {
+        PLAYBACK_ERRORS("Playback errors"), // Songs that couldn't be set up or played
+        SKIPPED_TRACKS("Skipped tracks"), // Songs skipped by the user before they completed
+        UNDERRUNS("Audio underruns"); // Times the codec engine's output ran dry while playing
+
+        private final String mLabel;
+
+        Counter(String label) {
+            mLabel = label;
+        }
+    }
+
+    // Values below this are recorded exactly, and values above it in one of SUB_BUCKETS buckets
+    // per power of two (i.e. within ~12%).
+    private static final int LINEAR_LIMIT = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Enough buckets for any non-negative long value.
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (63 - 4) * SUB_BUCKETS;
+
+    // Histograms per timer, laid out as one array each for the buckets, counts, sums and maxima.
+    private static final int TIMER_COUNT = Timer.values().length;
+    private static final AtomicLongArray sBuckets = new AtomicLongArray(TIMER_COUNT * BUCKET_COUNT);
+    private static final AtomicLongArray sCounts = new AtomicLongArray(TIMER_COUNT);
+    private static final AtomicLongArray sSums = new AtomicLongArray(TIMER_COUNT);
+    private static final AtomicLongArray sMaxima = new AtomicLongArray(TIMER_COUNT);
+
+    // Counter values.
+    private static final AtomicLongArray sCounters =
+            new AtomicLongArray(Counter.values().length);
+
+    // Time of the user's last tap that hasn't turned into audio yet, or 0 if there's none.
+    private static final AtomicLong sPendingTapTime = new AtomicLong();
+
+    // Time the registry started recording at.
+    private static final long sStartTime = SystemClock.elapsedRealtime();
+
+    private PlaybackMetrics() {}
+
+    /**
+     * Records a duration.
+     *
+     * @param timer is the histogram to record it in.
+     * @param millis is the duration in milliseconds.
+     */
+    public static void record(Timer timer, long millis) {
+        if (millis < 0) millis = 0;
+
+        int index = timer.ordinal();
+        sBuckets.incrementAndGet(index * BUCKET_COUNT + bucketOf(millis));
+        sCounts.incrementAndGet(index);
+        sSums.addAndGet(index, millis);
+
+        // Raises the maximum unless another thread already raised it past this value.
+        long max;
+        do {
+            max = sMaxima.get(index);
+        } while (millis > max && !sMaxima.compareAndSet(index, max, millis));
+    }
+
+    /**
+     * Records the time that's passed since the passed-in start time.
+     *
+     * @param timer is the histogram to record it in.
+     * @param startTime is the {@link SystemClock#elapsedRealtime()} the duration started at.
+     */
+    public static void recordSince(Timer timer, long startTime) {
+        record(timer, SystemClock.elapsedRealtime() - startTime);
+    }
+
+    /**
+     * Increments a counter.
+     *
+     * @param counter is the counter.
+     */
+    public static void increment(Counter counter) {
+        sCounters.incrementAndGet(counter.ordinal());
+    }
+
+    /**
+     * Marks the time of a user's tap that should start playback (e.g. a song being clicked, or
+     * the next button), replacing an earlier tap that hasn't been heard yet.
+     */
+    public static void markTap() {
+        sPendingTapTime.set(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Records the tap-to-audio latency once playback starts, should there be a pending tap.
+     */
+    public static void onAudioStarted() {
+        long tapTime = sPendingTapTime.getAndSet(0);
+        if (tapTime > 0) recordSince(Timer.TAP_TO_AUDIO, tapTime);
+    }
+
+    /**
+     * Discards the pending tap, e.g. once the song it started couldn't be played.
+     */
+    public static void cancelTap() {
+        sPendingTapTime.set(0);
+    }
+
+    /**
+     * Returns the bucket the passed-in non-negative value falls into.
+     */
+    private static int bucketOf(long value) {
+        if (value < LINEAR_LIMIT) return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exponent - 4) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the upper bound of the values that fall into the passed-in bucket.
+     */
+    private static long bucketUpperBound(int bucket) {
+        if (bucket < LINEAR_LIMIT) return bucket;
+
+        int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 4;
+        int subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Returns the value that the passed-in fraction of a timer's recordings is at or below, as
+     * read from its histogram.
+     */
+    private static long percentile(int index, long count, double fraction) {
+        long target = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += sBuckets.get(index * BUCKET_COUNT + i);
+            if (seen >= target) return Math.min(bucketUpperBound(i), sMaxima.get(index));
+        }
+
+        return sMaxima.get(index);
+    }
+
+    /**
+     * Returns a human-readable summary of every metric recorded so far.
+     */
+    public static String dump() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Uptime: ").append((SystemClock.elapsedRealtime() - sStartTime) / 1000)
+                .append(" s\n");
+
+        for (Timer timer : Timer.values()) {
+            int index = timer.ordinal();
+            long count = sCounts.get(index);
+            builder.append('\n').append(timer.mLabel).append(": ");
+            if (count == 0) {
+                builder.append("no samples\n");
+                continue;
+            }
+
+            builder.append(count).append(" samples\n")
+                    .append("  avg ").append(sSums.get(index) / count)
+                    .append(" ms, p50 ").append(percentile(index, count, 0.5))
+                    .append(" ms, p90 ").append(percentile(index, count, 0.9))
+                    .append(" ms, p99 ").append(percentile(index, count, 0.99))
+                    .append(" ms, max ").append(sMaxima.get(index)).append(" ms\n");
+        }
+
+        builder.append('\n');
+        for (Counter counter : Counter.values()) {
+            builder.append(counter.mLabel).append(": ")
+                    .append(sCounters.get(counter.ordinal())).append('\n');
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Writes a dump to the passed-in file, replacing its contents.
+     *
+     * @param file is the file to write to.
+     * @param dump is the dump, along with anything else that should go into the file.
+     * @return whether or not the dump was written.
+     */
+    public static boolean writeDump(File file, String dump) {
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            writer.write(dump);
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error writing metrics to " + file, e);
+            return false;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing " + file, e);
+                }
+            }
+        }
+    }
+}
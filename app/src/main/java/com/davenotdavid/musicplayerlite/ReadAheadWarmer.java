@@ -0,0 +1,171 @@
+package com.davenotdavid.musicplayerlite;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Reads the parts of the upcoming song's file that preparing it reads first into the page cache
+ * ahead of time, so that the prepare doesn't wait on a cold read (which dominates on slow SD
+ * cards and adoptable storage).
+ *
+ * That's the start of the audio (past a leading ID3v2 tag, which the player skips over, and
+ * which may hold megabytes of embedded art) along with the end of the file, where MP4 files may
+ * keep their seek index and MP3 files their ID3v1 and APE tags. Reads go through a FileChannel in
+ * chunks, and warming another song (or cancelling) stops the one in progress between chunks.
+ */
+public class ReadAheadWarmer {
+
+    // Log tag constant.
+    private static final String LOG_TAG = ReadAheadWarmer.class.getSimpleName();
+
+    // Bytes warmed at the start of the audio and at the end of the file.
+    private static final int HEAD_BYTES = 384 * 1024;
+    private static final int TAIL_BYTES = 128 * 1024;
+
+    // Bytes read per chunk, between which cancellation is checked.
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    // Size of an ID3v2 header, and the flag that marks a footer of the same size.
+    private static final int ID3_HEADER_BYTES = 10;
+    private static final int ID3_FOOTER_FLAG = 0x10;
+
+    // Thread the files are read on.
+    private final ExecutorService mExecutor;
+
+    // Buffer the chunks are read into, only used on the reading thread.
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(CHUNK_BYTES);
+
+    // IDs of the song being warmed (or -1 if none), and of the song last warmed completely.
+    private volatile long mTargetId = -1;
+    private volatile long mWarmedId = -1;
+
+    /**
+     * Creates a {@link ReadAheadWarmer} object.
+     */
+    public ReadAheadWarmer() {
+        mExecutor = BackgroundExecutors.newExecutor(LOG_TAG, 1);
+    }
+
+    /**
+     * Warms the passed-in song's file in the background, stopping the warm-up of any other song.
+     *
+     * @param songId is the ID of the song.
+     * @param path is the path of the song's file.
+     */
+    public void warm(final long songId, final String path) {
+        if (path == null || songId == mTargetId || songId == mWarmedId) return;
+
+        mTargetId = songId;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mTargetId != songId) return; // Superseded before it even started
+
+                long startTime = SystemClock.elapsedRealtime();
+                if (read(songId, path)) {
+                    mWarmedId = songId;
+                    PlaybackMetrics.recordSince(PlaybackMetrics.Timer.READ_AHEAD, startTime);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the warm-up in progress unless it's of the passed-in song, e.g. once the user skips
+     * to a song other than the upcoming one.
+     *
+     * @param songId is the ID of the song that's about to be prepared, or -1 for stopping any.
+     */
+    public void cancelUnless(long songId) {
+        if (mTargetId != songId) mTargetId = -1;
+    }
+
+    /**
+     * Returns whether or not the passed-in song's file was warmed completely.
+     *
+     * @param songId is the ID of the song.
+     */
+    public boolean isWarmed(long songId) {
+        return songId >= 0 && songId == mWarmedId;
+    }
+
+    /**
+     * Reads the head and the tail of the passed-in file, as long as the song is still the target.
+     *
+     * @return whether or not the file was read completely.
+     */
+    private boolean read(long songId, String path) {
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(path);
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+
+            long headStart = Math.min(size, audioStart(channel));
+            long headEnd = Math.min(size, headStart + HEAD_BYTES);
+            if (!readRange(channel, headStart, headEnd, songId)) return false;
+
+            long tailStart = Math.max(headEnd, size - TAIL_BYTES);
+            return readRange(channel, tailStart, size, songId);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error reading ahead " + path, e);
+            return false;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing " + path, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the offset the audio starts at, i.e. past a leading ID3v2 tag should there be one.
+     */
+    private long audioStart(FileChannel channel) throws IOException {
+        mBuffer.clear();
+        mBuffer.limit(ID3_HEADER_BYTES);
+        if (channel.read(mBuffer, 0) < ID3_HEADER_BYTES) return 0;
+
+        if (mBuffer.get(0) != 'I' || mBuffer.get(1) != 'D' || mBuffer.get(2) != '3') return 0;
+
+        // The tag's size is stored in four bytes of seven bits each.
+        long tagSize = 0;
+        for (int i = 6; i < ID3_HEADER_BYTES; i++) {
+            tagSize = (tagSize << 7) | (mBuffer.get(i) & 0x7f);
+        }
+
+        long start = ID3_HEADER_BYTES + tagSize;
+        if ((mBuffer.get(5) & ID3_FOOTER_FLAG) != 0) start += ID3_HEADER_BYTES;
+        return start;
+    }
+
+    /**
+     * Reads the passed-in range chunk by chunk, stopping should another song become the target.
+     *
+     * @return whether or not the range was read completely.
+     */
+    private boolean readRange(FileChannel channel, long start, long end, long songId)
+            throws IOException {
+        long position = start;
+        while (position < end) {
+            if (mTargetId != songId) return false;
+
+            mBuffer.clear();
+            mBuffer.limit((int) Math.min(CHUNK_BYTES, end - position));
+            int read = channel.read(mBuffer, position);
+            if (read < 0) break;
+            position += read;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,249 @@
+package com.davenotdavid.musicplayerlite;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Records the playback state of the session to a {@link PlaybackJournal}, so that it can be
+ * picked up again after the process was killed in the background.
+ *
+ * Every record is handed to a background thread that owns the journal, so recording never waits
+ * on I/O - the caller only pays for queueing a task, which is what lets the MusicService record
+ * the position every few seconds. The journal is read back once per process on the caller's own
+ * thread, since the state is needed before playback can continue.
+ */
+public class SessionRecorder {
+
+    // Log tag constant.
+    private static final String LOG_TAG = SessionRecorder.class.getSimpleName();
+
+    // Name of the journal file, which is kept in the files directory since the cache directory
+    // may be cleared while the app isn't running.
+    private static final String JOURNAL_FILE_NAME = "playback.journal";
+
+    // Single instance, since only one journal may be open at a time.
+    private static SessionRecorder sInstance;
+
+    // Journal, which is written on the recording thread and read back on the caller's, each while
+    // holding its lock.
+    private final PlaybackJournal mJournal;
+
+    // Thread the journal is written on.
+    private final ExecutorService mExecutor;
+
+    /**
+     * Returns the single {@link SessionRecorder} object, creating it on first use.
+     *
+     * @param context is any context - only the application context is used.
+     */
+    public static SessionRecorder getInstance(Context context) {
+        if (sInstance == null) sInstance = new SessionRecorder(context.getApplicationContext());
+
+        return sInstance;
+    }
+
+    /**
+     * Creates a {@link SessionRecorder} object.
+     *
+     * @param context is the application context.
+     */
+    private SessionRecorder(Context context) {
+        mJournal = new PlaybackJournal(new File(context.getFilesDir(), JOURNAL_FILE_NAME));
+        mExecutor = BackgroundExecutors.newExecutor(LOG_TAG, 1);
+    }
+
+    /**
+     * Reads the previous session back from the journal in a single read on the calling thread,
+     * rather than waiting on the shared background threads, which a long pass may be holding.
+     *
+     * @return the state of the previous session, or null should it be unreadable.
+     */
+    public PlaybackState restore() {
+        synchronized (mJournal) {
+            try {
+                long startTime = System.nanoTime();
+                PlaybackState state = mJournal.replay();
+                Log.d(LOG_TAG, "Restored " + state + " from " + mJournal.getSize()
+                        + " bytes in " + (System.nanoTime() - startTime) / 1000 + " us");
+
+                return state;
+            } catch (IOException | RuntimeException e) {
+                Log.e(LOG_TAG, "Error restoring the session.", e);
+
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Records the song that's playing and the position within it.
+     *
+     * @param songId is the ID of the song, or -1 if none.
+     * @param position is the position in milliseconds.
+     */
+    public void recordPosition(final long songId, final int position) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (mJournal) {
+                        mJournal.appendPosition(songId, position);
+                    }
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error recording the position.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records the playback modes.
+     *
+     * @param shuffle is whether or not shuffle is on.
+     * @param autoRepeat is whether or not auto-repeat is on.
+     */
+    public void recordModes(final boolean shuffle, final boolean autoRepeat) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (mJournal) {
+                        mJournal.appendModes(shuffle, autoRepeat);
+                    }
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error recording the playback modes.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records the queue.
+     *
+     * @param queue is the song IDs, which must not be modified afterwards.
+     * @param cursor is the index of the current song within the queue, or -1 if none.
+     */
+    public void recordQueue(final long[] queue, final int cursor) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (mJournal) {
+                        mJournal.appendQueue(queue, cursor);
+                    }
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error recording the queue.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records the songs the user queued up to play next, whole. Edits are recorded by the
+     * methods below instead, which only record what changed.
+     *
+     * @param upNext is the song IDs, which must not be modified afterwards.
+     */
+    public void recordUpNext(final long[] upNext) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (mJournal) {
+                        mJournal.appendUpNext(upNext);
+                    }
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error recording the up-next queue.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records songs inserted into the ones queued up to play next.
+     *
+     * @param index is the position the first of the songs ended up at.
+     * @param ids is the IDs of the songs, which must not be modified afterwards.
+     */
+    public void recordUpNextInsert(final int index, final long[] ids) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (mJournal) {
+                        mJournal.appendUpNextInsert(index, ids);
+                    }
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error recording the up-next queue.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records a run of songs removed from the ones queued up to play next.
+     *
+     * @param from is the position of the first song removed.
+     * @param count is the number of songs removed.
+     */
+    public void recordUpNextRemove(final int from, final int count) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (mJournal) {
+                        mJournal.appendUpNextRemove(from, count);
+                    }
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error recording the up-next queue.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records a song moved within the ones queued up to play next.
+     *
+     * @param from is the position the song was at.
+     * @param to is the position the song ended up at.
+     */
+    public void recordUpNextMove(final int from, final int to) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (mJournal) {
+                        mJournal.appendUpNextMove(from, to);
+                    }
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error recording the up-next queue.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records songs removed by ID from the ones queued up to play next.
+     *
+     * @param ids is the IDs of the songs, sorted ascending, which must not be modified
+     *            afterwards.
+     */
+    public void recordUpNextRemoveIds(final long[] ids) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (mJournal) {
+                        mJournal.appendUpNextRemoveIds(ids);
+                    }
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error recording the up-next queue.", e);
+                }
+            }
+        });
+    }
+}
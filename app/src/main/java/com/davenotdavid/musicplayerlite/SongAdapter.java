@@ -1,108 +1,503 @@
 package com.davenotdavid.musicplayerlite;
 
+import android.support.v7.widget.RecyclerView;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.ImageView;
+import android.widget.SectionIndexer;
+
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import android.content.Context;
+import android.text.format.DateUtils;
 import android.view.LayoutInflater;
 import android.widget.TextView;
 
 import io.gresse.hugo.vumeterlibrary.VuMeterView;
 
-import static com.davenotdavid.musicplayerlite.MainActivity.mPlaybackPaused;
-import static com.davenotdavid.musicplayerlite.MainActivity.songPosition;
-
 /**
- * Adapter that's used for displaying the songs to the ListView via MainActivity.
+ * Adapter that's used for displaying the songs to the RecyclerView via MainActivity.
+ *
+ * Rows have stable IDs (the song IDs), and the adapter keeps track of which song is playing
+ * itself. A change of the song that's playing, or of whether it's paused, is posted as a partial
+ * change of the (at most two) rows it affects, which only rebinds their equalizers - rows that
+ * are off screen pick the change up once they're bound, including the ones RecyclerView caches.
+ *
+ * Album art is handed to the {@link AlbumArtLoader}, so binding never decodes anything itself.
+ * Durations come from the {@link MetadataEnricher}, whose batches are posted as partial changes
+ * of the rows they affect as well.
+ *
+ * Fast scrolling reads its sections from a {@link SectionIndex} that's built along with the sort
+ * on the loader thread, so jumping to a section never walks the list.
+ *
+ * Selected rows are kept by song ID, so that a selection survives rows moving around while the
+ * list is patched.
  */
-public class SongAdapter extends ArrayAdapter<Song> {
+public class SongAdapter extends RecyclerView.Adapter<SongAdapter.ViewHolder>
+        implements SectionIndexer {
 
     // Log tag constant.
     private static final String LOG_TAG = SongAdapter.class.getSimpleName();
 
+    // Equalizer states of a row.
+    private static final int STATE_HIDDEN = 0;
+    private static final int STATE_PLAYING = 1;
+    private static final int STATE_PAUSED = 2;
+
+    // Payloads of the partial changes, each of which only rebinds the part of the row it names.
+    private static final Object PAYLOAD_NOW_PLAYING = new Object();
+    private static final Object PAYLOAD_DETAILS = new Object();
+    private static final Object PAYLOAD_SELECTION = new Object();
+
+    // Context used for inflating the rows and reading their strings.
+    private final Context mContext;
+
+    // The songs being displayed.
+    private final List<Song> mSongs;
+
+    // RecyclerView the adapter is attached to, or null if none - changes are only posted while
+    // it's attached, since attaching it binds every row afresh.
+    private RecyclerView mRecyclerView;
+
+    // ID of the song that's currently being played (or -1 if none), and whether it's paused.
+    private long mNowPlayingId = -1;
+    private boolean mNowPlayingPaused;
+
+    // Boolean flag that's used to fall back to rebinding every row on each change, for comparing
+    // frame times against the targeted updates.
+    private boolean mFullRebinds;
+
+    // Loader of the rows' album art.
+    private final AlbumArtLoader mAlbumArtLoader;
+
+    // Source of the rows' durations.
+    private final MetadataEnricher mMetadataEnricher;
+
+    // Fast-scroll sections of the songs, or null if there are none (e.g. for search results).
+    private SectionIndex mSectionIndex;
+
+    // IDs of the selected songs.
+    private final Set<Long> mSelectedIds = new HashSet<>();
+
+    // Listener that's notified of clicks on the rows.
+    private OnSongClickListener mOnSongClickListener;
+
     /**
-     * Provides a view for an AdapterView (ListView, GridView, and etc.).
+     * Interface that's used for handling clicks on the rows.
+     */
+    public interface OnSongClickListener {
+
+        /**
+         * Invoked when a row is clicked.
+         *
+         * @param position is the position of the row.
+         */
+        void onSongClick(int position);
+
+        /**
+         * Invoked when a row is long-clicked.
+         *
+         * @param position is the position of the row.
+         * @return true if the long click was consumed.
+         */
+        boolean onSongLongClick(int position);
+    }
+
+    /**
+     * Creates a {@link SongAdapter} object.
      *
      * @param context is an Activity context.
      * @param songList is a song list.
      */
     public SongAdapter(Context context, List<Song> songList){
-        super(context, 0, songList);
+        mContext = context;
+        mSongs = songList;
+        mAlbumArtLoader = AlbumArtLoader.getInstance(context);
+        mMetadataEnricher = MetadataEnricher.getInstance(context);
+        setHasStableIds(true);
     }
 
     /**
-     * Provides a view for an AdapterView (ListView, GridView, and etc.).
+     * Setter method for the listener that's notified of clicks on the rows.
      *
-     * @param position is the position in the list of data that should be displayed in the
-     *                 list item view.
-     * @param convertView is the recycled view to populate.
-     * @param parent is the parent ViewGroup that is used for inflation.
+     * @param listener is the listener.
      */
+    public void setOnSongClickListener(OnSongClickListener listener) {
+        mOnSongClickListener = listener;
+    }
+
+    /**
+     * Setter method for whether every row should be rebound on each change.
+     *
+     * @param fullRebinds is true for rebinding every row, or false for only the affected ones.
+     */
+    public void setFullRebinds(boolean fullRebinds) {
+        mFullRebinds = fullRebinds;
+    }
+
+    /**
+     * Setter method for the fast-scroll sections, which must be kept up to date with the songs.
+     *
+     * @param sectionIndex is the sections of the songs.
+     */
+    public void setSectionIndex(SectionIndex sectionIndex) {
+        mSectionIndex = sectionIndex;
+    }
+
     @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
+    public Object[] getSections() {
+        return mSectionIndex != null ? mSectionIndex.getSections() : new Object[0];
+    }
 
-        // Initializes the following to hold child views later on.
-        ViewHolder holder;
+    @Override
+    public int getPositionForSection(int sectionIndex) {
+        return mSectionIndex != null ? mSectionIndex.getPositionForSection(sectionIndex) : 0;
+    }
 
-        // Checks if the existing view is being reused, otherwise inflates the view.
-        if (convertView == null) {
-            convertView = LayoutInflater.from(getContext()).inflate(R.layout.list_item, parent,
-                    false);
+    @Override
+    public int getSectionForPosition(int position) {
+        return mSectionIndex != null ? mSectionIndex.getSectionForPosition(position) : 0;
+    }
 
-            // Instantiates the following class with the recycled view.
-            holder = new ViewHolder(convertView);
+    /**
+     * Updates the song that's currently being played, rebinding only the rows whose state changed
+     * (i.e. the previous song's and the new one's).
+     *
+     * @param songId is the ID of the song, or -1 if none.
+     * @param paused is whether or not playback is paused.
+     */
+    public void setNowPlaying(long songId, boolean paused) {
+        if (songId == mNowPlayingId && paused == mNowPlayingPaused) return;
 
-            // Associates the holder with the view for later lookup.
-            convertView.setTag(holder);
-        } else {
+        long previousId = mNowPlayingId;
+        mNowPlayingId = songId;
+        mNowPlayingPaused = paused;
 
-            // Otherwise, the view already exists so retrieve it.
-            holder = (ViewHolder) convertView.getTag();
+        // Rows pick the state up once they're bound should the adapter not be displayed.
+        if (mRecyclerView == null) return;
+        if (mFullRebinds) {
+            notifyDataSetChanged();
+            return;
         }
 
-        // Initializes and references, and then sets the songs' details as texts, accordingly.
-        Song currentSong = getItem(position);
-        if (currentSong != null) {
-            holder.song.setText(currentSong.getTitle());
-            holder.artist.setText(currentSong.getArtist());
+        if (previousId != songId) notifyChanged(previousId, PAYLOAD_NOW_PLAYING);
+        notifyChanged(songId, PAYLOAD_NOW_PLAYING);
+    }
+
+    /**
+     * Rebinds the details of the rows whose songs were just enriched.
+     *
+     * @param songIds is the IDs of the enriched songs.
+     */
+    public void onMetadataEnriched(Set<Long> songIds) {
+        if (mRecyclerView == null) return;
+
+        // Looks each song up through the song list's ID index, or walks the (usually short)
+        // search results once.
+        if (mSongs instanceof SongTable) {
+            for (long songId : songIds) notifyChanged(songId, PAYLOAD_DETAILS);
+            return;
+        }
+        for (int position = 0; position < mSongs.size(); position++) {
+            if (songIds.contains(getItemId(position))) {
+                notifyItemChanged(position, PAYLOAD_DETAILS);
+            }
+        }
+    }
+
+    /**
+     * Selects the song at the passed-in position, or deselects it should it be selected.
+     *
+     * @param position is the position of the song.
+     * @return the number of songs selected afterwards.
+     */
+    public int toggleSelection(int position) {
+        long songId = getItemId(position);
+        if (!mSelectedIds.remove(songId)) mSelectedIds.add(songId);
+        notifyItemChanged(position, PAYLOAD_SELECTION);
+
+        return mSelectedIds.size();
+    }
+
+    /**
+     * Returns the IDs of the selected songs that are still displayed, in the order of the list.
+     */
+    public long[] getSelectedIds() {
+        long[] ids = new long[mSelectedIds.size()];
+        int count = 0;
+        for (int position = 0; position < mSongs.size() && count < ids.length; position++) {
+            long songId = getItemId(position);
+            if (mSelectedIds.contains(songId)) ids[count++] = songId;
+        }
+
+        return count < ids.length ? Arrays.copyOf(ids, count) : ids;
+    }
+
+    /**
+     * Deselects every song.
+     */
+    public void clearSelection() {
+        if (mSelectedIds.isEmpty()) return;
+
+        mSelectedIds.clear();
+        notifyItemRangeChanged(0, getItemCount(), PAYLOAD_SELECTION);
+    }
+
+    /**
+     * Posts the rows the passed-in patch removed and inserted, or a change of the whole data set
+     * should the list have been rebuilt instead.
+     *
+     * @param patch is the patch that was applied to the songs.
+     */
+    public void notifyPatched(LibraryDelta.Patch patch) {
+        if (patch.isRebuilt() || mFullRebinds) {
+            notifyDataSetChanged();
+            return;
+        }
+
+        notifyRemoved(patch.getRemovedPositions());
+        notifyInserted(patch.getInsertedPositions());
+    }
+
+    /**
+     * Posts the removal of the rows at the passed-in positions, a run of adjacent rows at a time
+     * and from the bottom up, so that each position is still valid once it's posted.
+     *
+     * @param positions is the positions the rows were at, in ascending order.
+     */
+    public void notifyRemoved(int[] positions) {
+        int end = positions.length - 1;
+        while (end >= 0) {
+            int start = end;
+            while (start > 0 && positions[start - 1] == positions[start] - 1) start--;
+            notifyItemRangeRemoved(positions[start], end - start + 1);
+            end = start - 1;
+        }
+    }
+
+    /**
+     * Posts the insertion of the rows at the passed-in positions, a run of adjacent rows at a
+     * time and from the top down.
+     *
+     * @param positions is the positions the rows are at now, in ascending order.
+     */
+    public void notifyInserted(int[] positions) {
+        int start = 0;
+        while (start < positions.length) {
+            int end = start;
+            while (end + 1 < positions.length && positions[end + 1] == positions[end] + 1) end++;
+            notifyItemRangeInserted(positions[start], end - start + 1);
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Posts a partial change of the row of the passed-in song, if it's displayed.
+     *
+     * @param songId is the ID of the song.
+     * @param payload is the part of the row to rebind.
+     */
+    private void notifyChanged(long songId, Object payload) {
+        if (songId < 0) return;
+
+        int position = indexOfId(songId);
+        if (position >= 0) notifyItemChanged(position, payload);
+    }
+
+    /**
+     * Returns the position of the passed-in song, or -1 should it not be displayed.
+     */
+    private int indexOfId(long songId) {
+        if (mSongs instanceof SongTable) return ((SongTable) mSongs).indexOfId(songId);
+
+        for (int position = 0; position < mSongs.size(); position++) {
+            if (mSongs.get(position).getID() == songId) return position;
         }
 
-        // Displays an equalizer for the song that's currently being played. Otherwise, hides the
-        // view.
-        if (position == songPosition) {
-            holder.equalizer.setVisibility(View.VISIBLE);
+        return -1;
+    }
 
-            // Pauses the equalizer should the pause button be pressed. Otherwise, resumes it.
-            if (mPlaybackPaused) {
-                holder.equalizer.pause();
-            } else {
-                holder.equalizer.resume(true);
+    @Override
+    public void onAttachedToRecyclerView(RecyclerView recyclerView) {
+        mRecyclerView = recyclerView;
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        mRecyclerView = null;
+    }
+
+    @Override
+    public int getItemCount() {
+        return mSongs.size();
+    }
+
+    /**
+     * Returns the ID of the song at the passed-in position.
+     */
+    @Override
+    public long getItemId(int position) {
+        if (mSongs instanceof SongTable) return ((SongTable) mSongs).getID(position);
+
+        return mSongs.get(position).getID();
+    }
+
+    /**
+     * Inflates a row, and hands its clicks over to the listener.
+     *
+     * @param parent is the parent ViewGroup that is used for inflation.
+     * @param viewType is the type of the row, of which there's only one.
+     */
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View itemView = LayoutInflater.from(mContext).inflate(R.layout.list_item, parent, false);
+        final ViewHolder holder = new ViewHolder(itemView);
+
+        itemView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                int position = holder.getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION && mOnSongClickListener != null) {
+                    mOnSongClickListener.onSongClick(position);
+                }
             }
-        } else {
+        });
+        itemView.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                int position = holder.getAdapterPosition();
+                return position != RecyclerView.NO_POSITION && mOnSongClickListener != null
+                        && mOnSongClickListener.onSongLongClick(position);
+            }
+        });
+
+        return holder;
+    }
+
+    /**
+     * Binds every part of a row to the song at the passed-in position.
+     *
+     * @param holder is the row's holder.
+     * @param position is the position in the list of data that should be displayed in the row.
+     */
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+
+        // Initializes and references, and then sets the songs' details as texts, accordingly.
+        Song currentSong = mSongs.get(position);
+        holder.song.setText(currentSong.getTitle());
+        bindArtist(holder, currentSong);
+
+        // Shows the cached art right away, or cancels the recycled row's earlier request and
+        // loads it in the background.
+        mAlbumArtLoader.bind(holder.art, currentSong.getAlbumID());
+
+        bindEqualizer(holder, currentSong.getID());
+        bindSelection(holder, currentSong.getID());
+    }
+
+    /**
+     * Binds only the parts of a row named by the passed-in payloads, or every part should there
+     * be none.
+     *
+     * @param holder is the row's holder.
+     * @param position is the position in the list of data that should be displayed in the row.
+     * @param payloads is the payloads of the partial changes since the row was last bound.
+     */
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position, List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+
+        long songId = getItemId(position);
+        if (payloads.contains(PAYLOAD_NOW_PLAYING)) bindEqualizer(holder, songId);
+        if (payloads.contains(PAYLOAD_DETAILS)) bindArtist(holder, mSongs.get(position));
+        if (payloads.contains(PAYLOAD_SELECTION)) bindSelection(holder, songId);
+    }
+
+    /**
+     * Displays the song's artist, along with its duration once it's known.
+     *
+     * @param holder is the row's holder.
+     * @param song is the song the row displays.
+     */
+    private void bindArtist(ViewHolder holder, Song song) {
+        SongMetadata metadata = mMetadataEnricher.get(song.getID());
+        if (metadata == null || metadata.getDuration() <= 0) {
+            holder.artist.setText(song.getArtist());
+            return;
+        }
+
+        holder.artist.setText(mContext.getString(R.string.song_artist_duration,
+                song.getArtist(), DateUtils.formatElapsedTime(metadata.getDuration() / 1000)));
+    }
+
+    /**
+     * Displays an equalizer for the song that's currently being played, and hides it otherwise.
+     * The equalizer is only touched when the row's state actually changes, since resuming it
+     * restarts its animation.
+     *
+     * @param holder is the row's holder.
+     * @param songId is the ID of the song the row displays.
+     */
+    private void bindEqualizer(ViewHolder holder, long songId) {
+        int state = songId != mNowPlayingId ? STATE_HIDDEN
+                : (mNowPlayingPaused ? STATE_PAUSED : STATE_PLAYING);
+        if (state == holder.equalizerState && !mFullRebinds) return;
+        holder.equalizerState = state;
+
+        if (state == STATE_HIDDEN) {
             holder.equalizer.setVisibility(View.GONE);
+            return;
         }
 
-        return convertView;
+        // Pauses the equalizer should the pause button be pressed. Otherwise, resumes it.
+        holder.equalizer.setVisibility(View.VISIBLE);
+        if (state == STATE_PAUSED) {
+            holder.equalizer.pause();
+        } else {
+            holder.equalizer.resume(true);
+        }
+    }
+
+    /**
+     * Highlights the row should its song be selected.
+     *
+     * @param holder is the row's holder.
+     * @param songId is the ID of the song the row displays.
+     */
+    private void bindSelection(ViewHolder holder, long songId) {
+        holder.itemView.setActivated(mSelectedIds.contains(songId));
     }
 
     // ViewHolder class used to hold and initialize the set of child views so they don't get looked
     // up repeatedly.
-    private class ViewHolder {
+    static class ViewHolder extends RecyclerView.ViewHolder {
         TextView song;
         TextView artist;
         VuMeterView equalizer;
+        ImageView art;
+
+        // State the equalizer was last bound to - unknown until the first bind.
+        int equalizerState = -1;
 
         /**
          * Creates a {@link ViewHolder} object.
          *
-         * @param itemView is the passed-in recycled view from the adapter's getView() method.
+         * @param itemView is the inflated row.
          */
         private ViewHolder(View itemView) {
+            super(itemView);
+
             song = (TextView) itemView.findViewById(R.id.song_title);
             artist = (TextView) itemView.findViewById(R.id.song_artist);
             equalizer = (VuMeterView) itemView.findViewById(R.id.song_equalizer);
+            art = (ImageView) itemView.findViewById(R.id.song_art);
         }
     }
 }
@@ -0,0 +1,91 @@
+package com.davenotdavid.musicplayerlite;
+
+import android.content.ContentResolver;
+import android.os.AsyncTask;
+import android.provider.MediaStore;
+import android.util.Log;
+
+/**
+ * Deletes songs from the MediaStore (and thereby their files) by their IDs on a background thread.
+ * Rather than a query and a delete per song, the IDs are deleted with a single
+ * "_ID IN (...)" statement per chunk of IDs, so that a batch of a few hundred songs costs one
+ * round trip to the media provider.
+ */
+public class SongDeleteTask extends AsyncTask<Void, Void, Integer> {
+
+    // Log tag constant.
+    private static final String LOG_TAG = SongDeleteTask.class.getSimpleName();
+
+    // Upper bound of IDs per statement, safely below SQLite's limit of 999 bound arguments.
+    private static final int MAX_IDS_PER_STATEMENT = 500;
+
+    // Content resolver the songs are deleted through.
+    private final ContentResolver mResolver;
+
+    // IDs of the songs to delete.
+    private final long[] mIds;
+
+    // Listener that's notified on the main thread once the songs are deleted.
+    private final OnSongsDeletedListener mListener;
+
+    /**
+     * Interface used for handing the result back to the main thread.
+     */
+    public interface OnSongsDeletedListener {
+
+        /**
+         * Invoked on the main thread once the delete finished.
+         *
+         * @param ids is the IDs that were asked to be deleted.
+         * @param deletedCount is the number of songs that were actually deleted.
+         */
+        void onSongsDeleted(long[] ids, int deletedCount);
+    }
+
+    /**
+     * Creates a {@link SongDeleteTask} object.
+     *
+     * @param resolver is the content resolver, e.g. the application context's.
+     * @param ids is the IDs of the songs to delete.
+     * @param listener is notified once the songs are deleted.
+     */
+    public SongDeleteTask(ContentResolver resolver, long[] ids, OnSongsDeletedListener listener) {
+        mResolver = resolver;
+        mIds = ids;
+        mListener = listener;
+    }
+
+    @Override
+    protected Integer doInBackground(Void... params) {
+        int deletedCount = 0;
+        for (int start = 0; start < mIds.length; start += MAX_IDS_PER_STATEMENT) {
+            int end = Math.min(mIds.length, start + MAX_IDS_PER_STATEMENT);
+
+            // Builds "_id IN (?,?,...)" along with its arguments.
+            StringBuilder selection = new StringBuilder(MediaStore.Audio.Media._ID)
+                    .append(" IN (");
+            String[] selectionArgs = new String[end - start];
+            for (int i = start; i < end; i++) {
+                if (i > start) selection.append(',');
+                selection.append('?');
+                selectionArgs[i - start] = Long.toString(mIds[i]);
+            }
+            selection.append(')');
+
+            try {
+                deletedCount += mResolver.delete(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                        selection.toString(), selectionArgs);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Error deleting songs.", e);
+            }
+        }
+        Log.d(LOG_TAG, "Deleted " + deletedCount + " of " + mIds.length + " songs");
+
+        return deletedCount;
+    }
+
+    @Override
+    protected void onPostExecute(Integer deletedCount) {
+        mListener.onSongsDeleted(mIds, deletedCount);
+    }
+}
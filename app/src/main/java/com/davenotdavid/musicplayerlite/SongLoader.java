@@ -1,78 +1,226 @@
 package com.davenotdavid.musicplayerlite;
 
 import android.content.AsyncTaskLoader;
-import android.content.ContentResolver;
 import android.content.Context;
-import android.database.Cursor;
-import android.net.Uri;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.util.Log;
 
-import java.util.ArrayList;
+import java.io.File;
 import java.util.List;
 
 /**
- * Loads and returns a list of songs by using an AsyncTask to retrieve from the user's device
- * storage.
+ * Loads the user's songs by using an AsyncTask to retrieve from the user's device storage. The
+ * first load scans the whole library in pages that are handed over to the UI as soon as each one
+ * is read, and every load after that only returns what changed in the meantime as a
+ * {@link LibraryDelta}. The library's sorted order and {@link SongSearchIndex} are brought up to
+ * date here as well, before the result reaches the main thread.
+ *
+ * Changes to the MediaStore (e.g. downloads, sync tools, or file managers adding songs) trigger
+ * another load while the loader is around. Notifications come in bursts (e.g. one per file of a
+ * sync), so they're coalesced until things go quiet for a moment, or until a long burst has held
+ * the load back long enough.
  */
-public class SongLoader extends AsyncTaskLoader<List<Song>> {
+public class SongLoader extends AsyncTaskLoader<LibraryDelta> {
 
     // Log tag constant.
     private static final String LOG_TAG = SongLoader.class.getSimpleName();
 
+    // Name of the library snapshot file within the cache directory.
+    private static final String SNAPSHOT_FILE_NAME = "library.snapshot";
+
+    // Quiet time after the last change notification before the library is loaded again, and the
+    // longest a burst of notifications may hold the load back.
+    private static final long CHANGE_QUIET_MILLIS = 1000;
+    private static final long CHANGE_MAX_DELAY_MILLIS = 5000;
+
+    // Field that remembers the previous load for delta syncing.
+    private final LibrarySync mLibrarySync;
+
+    // Load started at process start that the first load adopts, or null if there's none.
+    private StartupOrchestrator.EarlyLoad mEarlyLoad;
+
+    // Handler used for posting pages back to the main thread.
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Order the library gets sorted in on the loader thread.
+    private volatile SongSorter.SortOrder mSortOrder = SongSorter.SortOrder.TITLE;
+
+    // Listener that receives pages on the main thread - swapped out by the Activity whenever it's
+    // recreated, since the loader outlives it.
+    private volatile LibrarySync.OnPageLoadedListener mPageListener;
+
+    // Posts each page of a full scan to the listener on the main thread, ahead of the final result.
+    private final LibrarySync.OnPageLoadedListener mPagePoster =
+            new LibrarySync.OnPageLoadedListener() {
+        @Override
+        public void onPageLoaded(final List<Song> page) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    LibrarySync.OnPageLoadedListener listener = mPageListener;
+                    if (listener != null) listener.onPageLoaded(page);
+                }
+            });
+        }
+    };
+
     /**
      * Creates a new {@link SongLoader} object.
      *
      * @param context is the passed-in context from MainActivity.
+     * @param useSnapshot is whether or not the first load may start from the library snapshot.
      */
-    public SongLoader(Context context) {
+    public SongLoader(Context context, boolean useSnapshot) {
         super(context);
+
+        // Adopts the load started at process start, unless the snapshot it may have started from
+        // shouldn't be used, in which case it's released.
+        if (useSnapshot) {
+            StartupOrchestrator.EarlyLoad earlyLoad = StartupOrchestrator.takeEarlyLoad();
+            if (earlyLoad != null) {
+                mEarlyLoad = earlyLoad;
+                mLibrarySync = earlyLoad.getSync();
+                return;
+            }
+        } else {
+            StartupOrchestrator.releaseEarlyLoad();
+        }
+
+        // Note that the snapshot is still written when it isn't used, so that cold starts can be
+        // compared with and without it.
+        File snapshotFile = getSnapshotFile(getContext());
+        mLibrarySync = new LibrarySync(getContext().getContentResolver(), snapshotFile);
+        if (!useSnapshot) snapshotFile.delete();
+    }
+
+    /**
+     * Returns the file the library snapshot is kept in.
+     *
+     * @param context is any context.
+     */
+    static File getSnapshotFile(Context context) {
+        return new File(context.getCacheDir(), SNAPSHOT_FILE_NAME);
     }
 
+    /**
+     * Setter method for the listener that receives each page of a full scan on the main thread.
+     *
+     * @param listener is the listener, or null to stop receiving pages.
+     */
+    public void setOnPageLoadedListener(LibrarySync.OnPageLoadedListener listener) {
+        mPageListener = listener;
+    }
+
+    /**
+     * Setter method for the order the library gets sorted in by the next loads.
+     *
+     * @param sortOrder is the sort order.
+     */
+    public void setSortOrder(SongSorter.SortOrder sortOrder) {
+        mSortOrder = sortOrder;
+    }
+
+    // Observer of the MediaStore's songs, which is registered for as long as the loader is
+    // around.
+    private final ContentObserver mLibraryObserver = new ContentObserver(mMainHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onLibraryChanged();
+        }
+    };
+    private boolean mObserving;
+
+    // Time the first notification of the current burst came in at (or 0 if there's no burst),
+    // and the number of notifications in it. Only accessed on the main thread.
+    private long mBurstStartTime;
+    private int mBurstCount;
+
+    // Loads the library again once a burst of notifications is over.
+    private final Runnable mBurstEnd = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(LOG_TAG, "Library changed (" + mBurstCount + " notifications coalesced)");
+
+            mBurstStartTime = 0;
+            mBurstCount = 0;
+            onContentChanged();
+        }
+    };
+
     @Override
     protected void onStartLoading() {
         Log.d(LOG_TAG, "onStartLoading()");
 
+        if (!mObserving) {
+            getContext().getContentResolver().registerContentObserver(
+                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, mLibraryObserver);
+            mObserving = true;
+        }
+
         forceLoad();
     }
 
     @Override
-    public List<Song> loadInBackground() {
-        Log.d(LOG_TAG, "loadInBackground()");
-
-        // Initializes the following local list/arraylist to add elements to and then return later
-        // on.
-        List<Song> songList = new ArrayList<>();
+    protected void onReset() {
+        Log.d(LOG_TAG, "onReset()");
 
-        // The following allows access to the content model.
-        ContentResolver musicResolver = getContext().getContentResolver();
-
-        // Retrieves the URI for external music files.
-        Uri musicUri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+        if (mObserving) {
+            getContext().getContentResolver().unregisterContentObserver(mLibraryObserver);
+            mObserving = false;
+        }
+        mMainHandler.removeCallbacks(mBurstEnd);
+        mBurstStartTime = 0;
+        mBurstCount = 0;
+    }
 
-        // Queries the music files into a cursor, or database table, to permit read-write access.
-        Cursor musicCursor = musicResolver.query(musicUri, null, null, null, null);
+    /**
+     * Pushes the next load back until the burst of notifications this one belongs to is over,
+     * but no further than the longest delay after the burst's first one.
+     */
+    private void onLibraryChanged() {
+        long now = SystemClock.uptimeMillis();
+        if (mBurstStartTime == 0) mBurstStartTime = now;
+        mBurstCount++;
+
+        mMainHandler.removeCallbacks(mBurstEnd);
+        mMainHandler.postAtTime(mBurstEnd,
+                Math.min(now + CHANGE_QUIET_MILLIS, mBurstStartTime + CHANGE_MAX_DELAY_MILLIS));
+    }
 
-        // Initially checks to see if the data is valid.
-        if (musicCursor != null && musicCursor.moveToFirst()) {
+    /**
+     * Hands over the result of a load that got cancelled, e.g. because the library changed again
+     * while it ran. Each result only holds the changes since the previous one, so dropping it
+     * would leave its changes out of the list for good.
+     *
+     * @param delta is the cancelled load's result.
+     */
+    @Override
+    public void onCanceled(LibraryDelta delta) {
+        if (delta != null && !isReset()) deliverResult(delta);
+    }
 
-            // References each database column.
-            int idColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media._ID);
-            int titleColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.TITLE);
-            int artistColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.ARTIST);
-            int pathColumn = musicCursor.getColumnIndex(MediaStore.Audio.Media.DATA);
+    @Override
+    public LibraryDelta loadInBackground() {
+        Log.d(LOG_TAG, "loadInBackground()");
 
-            // Iterates and adds each database row into the song list.
-            do {
-                long songId = musicCursor.getLong(idColumn);
-                String songTitle = musicCursor.getString(titleColumn);
-                String songArtist = musicCursor.getString(artistColumn);
-                String songPath = musicCursor.getString(pathColumn);
-                songList.add(new Song(songId, songTitle, songArtist, songPath));
-            }
-            while (musicCursor.moveToNext());
+        // Finishes the load started at process start, whose pages so far are passed on right
+        // away. It's only synced again should it have failed, or should the sort order have
+        // changed in the meantime (which only re-sorts).
+        StartupOrchestrator.EarlyLoad earlyLoad = mEarlyLoad;
+        mEarlyLoad = null;
+        if (earlyLoad != null) {
+            LibraryDelta delta = earlyLoad.await(mPagePoster);
+            if (delta != null && delta.getSortOrder() == mSortOrder) return delta;
         }
 
-        return songList;
+        long startTime = SystemClock.elapsedRealtime();
+        LibraryDelta delta = mLibrarySync.sync(mPagePoster, mSortOrder);
+        PlaybackMetrics.recordSince(PlaybackMetrics.Timer.LOAD, startTime);
+
+        return delta;
     }
 }
@@ -13,7 +13,17 @@ public class SplashScreenActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        // Gets a head start on loading the library and creating the Service, now that the UI is
+        // what the process is for. The load would only be released again should the snapshot
+        // have to be skipped, so it isn't started then.
+        if (!getIntent().getBooleanExtra(MainActivity.EXTRA_SKIP_SNAPSHOT, false)) {
+            StartupOrchestrator.start(getApplicationContext(),
+                    getIntent().getBooleanExtra(MainActivity.EXTRA_CODEC_ENGINE, false));
+        }
+
+        // Forwards the launch extras (e.g. MainActivity.EXTRA_SKIP_SNAPSHOT) along.
         Intent mainActIntent = new Intent(this, MainActivity.class);
+        mainActIntent.putExtras(getIntent());
         startActivity(mainActIntent);
         finish();
     }
@@ -0,0 +1,322 @@
+package com.davenotdavid.musicplayerlite;
+
+import android.Manifest;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs the slow parts of a cold start in parallel rather than one after another, and keeps a
+ * timeline of the start so that regressions show up.
+ *
+ * Without it, the library load only starts once MainActivity's layout is inflated and the
+ * permission is checked, and the MusicService only gets bound once the Activity starts. Should
+ * the permission already be granted, both are started from the {@link SplashScreenActivity}
+ * instead, i.e. while MainActivity is still being set up. The {@link SongLoader} then adopts the
+ * load in progress rather than starting its own, and the Activity's own binding connects to the
+ * already-created Service, at which point the early binding is released again.
+ *
+ * Nothing is started for processes that are started for anything but the UI (e.g. for the
+ * MusicService alone, or for a broadcast), which only get their milestones marked. Should the
+ * load or the binding never be adopted (e.g. should MainActivity be left before it gets to
+ * them), they're released rather than being held on to for the rest of the process.
+ */
+public final class StartupOrchestrator {
+
+    // Log tag constant.
+    private static final String LOG_TAG = StartupOrchestrator.class.getSimpleName();
+
+    /**
+     * Points in a cold start, in the order they're expected in.
+     */
+    public enum Milestone {
+        PROCESS_START("Process start"), // Only known on Nougat and above
+        APPLICATION_CREATED("Application created"),
+        FIRST_FRAME("First frame"), // MainActivity's first frame being drawn
+        FIRST_ROWS("First rows"), // The first songs reaching the list
+        SERVICE_READY("Service ready"), // MainActivity being connected to the MusicService
+        LIBRARY_LOADED("Library loaded"); // The whole library reaching the list
+
+        private final String mLabel;
+
+        Milestone(String label) {
+            mLabel = label;
+        }
+    }
+
+    // Times each milestone was reached at, or 0 if it hasn't been yet.
+    private static final AtomicLongArray sTimes = new AtomicLongArray(Milestone.values().length);
+
+    // Load started at process start that the SongLoader hasn't adopted yet, or null if none.
+    private static EarlyLoad sEarlyLoad;
+
+    // Binding made at process start, or null once it's been released (or if none was made).
+    private static ServiceConnection sEarlyConnection;
+
+    // Whether or not start() has run in this process, and whether or not it started the load and
+    // the binding.
+    private static boolean sStarted;
+    private static boolean sStartedEarly;
+
+    private StartupOrchestrator() {}
+
+    /**
+     * Marks the start of the process. Invoked as the process starts, on the main thread.
+     */
+    public static void markProcessStart() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            sTimes.set(Milestone.PROCESS_START.ordinal(), Process.getStartElapsedRealtime());
+        }
+        mark(Milestone.APPLICATION_CREATED);
+    }
+
+    /**
+     * Starts the library load and the MusicService binding right away, should the permission
+     * already be granted. Invoked as the UI gets launched, on the main thread, and only does
+     * anything the first time it's invoked in a process.
+     *
+     * @param context is the application context.
+     * @param codecEngine is whether or not the Service should play songs through the
+     *                    decoder-driven engine, which it's told along with the binding.
+     */
+    public static void start(final Context context, boolean codecEngine) {
+        if (sStarted) return;
+        sStarted = true;
+
+        // Leaves everything to MainActivity should the user still have to grant the permission.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                && context.checkSelfPermission(Manifest.permission.READ_EXTERNAL_STORAGE)
+                != PackageManager.PERMISSION_GRANTED) {
+            Log.d(LOG_TAG, "Permission not granted yet, starting serially");
+            return;
+        }
+        sStartedEarly = true;
+
+        sEarlyLoad = new EarlyLoad(new LibrarySync(context.getContentResolver(),
+                SongLoader.getSnapshotFile(context)), MainActivity.mSortOrder);
+        new Thread(sEarlyLoad, LOG_TAG).start();
+
+        // Creates the Service (and its players) while the Activity is still being set up.
+        Intent intent = new Intent(context, MusicService.class);
+        intent.putExtra(MainActivity.EXTRA_CODEC_ENGINE, codecEngine);
+        sEarlyConnection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder service) {
+                Log.d(LOG_TAG, "Service created early");
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName name) {}
+        };
+        context.bindService(intent, sEarlyConnection, Context.BIND_AUTO_CREATE);
+        context.startService(intent);
+    }
+
+    /**
+     * Hands the load that was started at process start over to the caller, who becomes
+     * responsible for it. Must be called on the main thread.
+     *
+     * @return the load, or null should none have been started (or should it have been taken).
+     */
+    public static EarlyLoad takeEarlyLoad() {
+        EarlyLoad earlyLoad = sEarlyLoad;
+        sEarlyLoad = null;
+
+        return earlyLoad;
+    }
+
+    /**
+     * Releases the load that was started at process start should it not have been adopted, so
+     * that its pages and result aren't held on to. Must be called on the main thread.
+     */
+    public static void releaseEarlyLoad() {
+        EarlyLoad earlyLoad = takeEarlyLoad();
+        if (earlyLoad != null) earlyLoad.release();
+    }
+
+    /**
+     * Releases both the load and the binding that were started at process start, should they
+     * not have been adopted (e.g. should MainActivity be finishing before it got to them). Must
+     * be called on the main thread.
+     *
+     * @param context is the application context.
+     */
+    public static void release(Context context) {
+        releaseEarlyLoad();
+        releaseEarlyBinding(context);
+    }
+
+    /**
+     * Releases the binding made at process start once MainActivity has bound the Service itself,
+     * so that the Activity's binding alone decides how long the Service stays bound. Must be
+     * called on the main thread.
+     *
+     * @param context is the application context.
+     */
+    public static void releaseEarlyBinding(Context context) {
+        if (sEarlyConnection == null) return;
+
+        context.unbindService(sEarlyConnection);
+        sEarlyConnection = null;
+    }
+
+    /**
+     * Records the time the passed-in milestone was reached at, should it be the first time.
+     *
+     * @param milestone is the milestone.
+     */
+    public static void mark(Milestone milestone) {
+        if (!sTimes.compareAndSet(milestone.ordinal(), 0, SystemClock.elapsedRealtime())) return;
+
+        Log.d(LOG_TAG, milestone.mLabel + " at " + sinceStart(milestone) + " ms");
+        if (milestone == Milestone.LIBRARY_LOADED) Log.d(LOG_TAG, describeTimeline());
+    }
+
+    /**
+     * Returns the time from the start (the process start if known, and the application's
+     * creation otherwise) to the passed-in milestone, which must have been reached.
+     */
+    private static long sinceStart(Milestone milestone) {
+        long start = sTimes.get(Milestone.PROCESS_START.ordinal());
+        if (start == 0) start = sTimes.get(Milestone.APPLICATION_CREATED.ordinal());
+
+        return sTimes.get(milestone.ordinal()) - start;
+    }
+
+    /**
+     * Returns a human-readable timeline of the milestones reached so far.
+     */
+    public static String describeTimeline() {
+        StringBuilder builder = new StringBuilder("Startup (")
+                .append(sStartedEarly ? "parallel" : "serial").append("):\n");
+        for (Milestone milestone : Milestone.values()) {
+            builder.append(milestone.mLabel).append(": ");
+            if (sTimes.get(milestone.ordinal()) == 0) {
+                builder.append("-\n");
+            } else {
+                builder.append(sinceStart(milestone)).append(" ms\n");
+            }
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Library load that runs on its own thread from process start until the {@link SongLoader}
+     * adopts it. Pages read before then are held back, and handed over on adoption.
+     */
+    public static class EarlyLoad implements Runnable {
+
+        // Sync the load runs on, which the loader keeps using for later loads.
+        private final LibrarySync mSync;
+        private final SongSorter.SortOrder mSortOrder;
+
+        // Pages held back until there's a listener, and the listener. Guarded by this object.
+        private final List<List<Song>> mPages = new ArrayList<>();
+        private LibrarySync.OnPageLoadedListener mListener;
+
+        // Result of the load (null should it have failed), whether it's done, and whether it's
+        // been released. Guarded by this object.
+        private LibraryDelta mResult;
+        private boolean mDone;
+        private boolean mReleased;
+
+        /**
+         * Creates a {@link EarlyLoad} object.
+         *
+         * @param sync is the sync to run the load on.
+         * @param sortOrder is the order the library should be sorted in.
+         */
+        private EarlyLoad(LibrarySync sync, SongSorter.SortOrder sortOrder) {
+            mSync = sync;
+            mSortOrder = sortOrder;
+        }
+
+        @Override
+        public void run() {
+            long startTime = SystemClock.elapsedRealtime();
+            LibraryDelta result = null;
+            try {
+                result = mSync.sync(new LibrarySync.OnPageLoadedListener() {
+                    @Override
+                    public void onPageLoaded(List<Song> page) {
+                        synchronized (EarlyLoad.this) {
+                            if (mReleased) return;
+                            if (mListener != null) {
+                                mListener.onPageLoaded(page);
+                            } else {
+                                mPages.add(page);
+                            }
+                        }
+                    }
+                }, mSortOrder);
+                PlaybackMetrics.recordSince(PlaybackMetrics.Timer.LOAD, startTime);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Error loading library early.", e);
+            }
+
+            synchronized (this) {
+                if (!mReleased) mResult = result;
+                mDone = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Getter method for the sync the load runs on.
+         */
+        public LibrarySync getSync() {
+            return mSync;
+        }
+
+        /**
+         * Hands the pages read so far to the passed-in listener, along with every page after
+         * that, and then waits for the load to finish.
+         *
+         * @param listener is the listener, which is invoked on the loading thread.
+         * @return the load's result, or null should it have failed.
+         */
+        public LibraryDelta await(LibrarySync.OnPageLoadedListener listener) {
+            synchronized (this) {
+                for (List<Song> page : mPages) listener.onPageLoaded(page);
+                mPages.clear();
+                mListener = listener;
+
+                while (!mDone) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Log.e(LOG_TAG, "Interrupted waiting for the early load.", e);
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
+
+                return mResult;
+            }
+        }
+
+        /**
+         * Drops the pages held back so far, along with every page and the result after that,
+         * since nothing is going to adopt the load. The sync itself can't be stopped midway, so
+         * it runs to the end, but is left to be collected afterwards.
+         */
+        synchronized void release() {
+            mReleased = true;
+            mPages.clear();
+            mListener = null;
+            mResult = null;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.davenotdavid.musicplayerlite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures diffing the library between two sync passes and patching the sorted song list with the
+ * result, for a small change (a handful of songs added, edited, and deleted) such as the one a
+ * content change or a resume usually brings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DiffBenchmark {
+
+    // Number of songs added, changed, and removed by the change.
+    private static final int CHANGED_SONGS = 10;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    // IDs of the library before and after the change.
+    private long[] mKnownIds;
+    private long[] mCurrentIds;
+
+    // Sorted song list as of before the change, and the change itself.
+    private SongTable mSortedList;
+    private LibraryDelta mDelta;
+
+    /**
+     * Fresh copy of the sorted song list for each invocation, since patching changes it.
+     */
+    @State(Scope.Thread)
+    public static class PatchedList {
+        SongTable songs;
+
+        @Setup(Level.Invocation)
+        public void copyList(DiffBenchmark benchmark) {
+            songs = new SongTable(benchmark.mSortedList);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        SongTable before = SyntheticLibrary.table(size, 1);
+        LibraryDelta full = LibraryDelta.full(before);
+        full.setOrder(SongSorter.SortOrder.TITLE,
+                SongSorter.sort(before, SongSorter.SortOrder.TITLE));
+        mSortedList = new SongTable();
+        full.copyTo(mSortedList);
+
+        // Picks the songs that are removed and changed, and makes up the added ones past the
+        // highest ID.
+        Random random = new Random(2);
+        Set<Long> removed = new TreeSet<>();
+        while (removed.size() < CHANGED_SONGS) {
+            removed.add(before.getID(random.nextInt(before.size())));
+        }
+        long[] removedIds = new long[removed.size()];
+        int count = 0;
+        for (long id : removed) removedIds[count++] = id;
+
+        SongTable after = new SongTable(before);
+        after.removeIds(removedIds);
+        List<Song> changed = new ArrayList<>();
+        for (int i = 0; i < CHANGED_SONGS; i++) {
+            Song song = after.get(random.nextInt(after.size()));
+            changed.add(new Song(song.getID(), "Edited " + song.getTitle(), song.getArtist(),
+                    song.getPath()));
+        }
+        List<Song> added = new ArrayList<>();
+        long maxId = before.getID(before.size() - 1);
+        for (int i = 1; i <= CHANGED_SONGS; i++) {
+            Song song = new Song(maxId + i, "Added " + i, "New Artist",
+                    "/Music/added" + i + ".mp3");
+            added.add(song);
+            after.add(song);
+        }
+        for (Song song : changed) after.set(after.binarySearchId(song.getID()), song);
+
+        mKnownIds = before.copyIds();
+        mCurrentIds = after.copyIds();
+        mDelta = new LibraryDelta(after, added, changed, removedIds, false);
+        mDelta.setOrder(SongSorter.SortOrder.TITLE,
+                SongSorter.sort(after, SongSorter.SortOrder.TITLE));
+    }
+
+    /**
+     * Finds the removed IDs by walking the ID lists of both passes.
+     */
+    @Benchmark
+    public long[] removedIds() {
+        return LibraryDelta.removedIds(mKnownIds, mCurrentIds);
+    }
+
+    /**
+     * Patches the sorted song list in place, as in onLoadFinished().
+     */
+    @Benchmark
+    public SongTable applyDelta(PatchedList list) {
+        mDelta.applyTo(list.songs);
+
+        return list.songs;
+    }
+}
@@ -0,0 +1,87 @@
+package com.davenotdavid.musicplayerlite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures fingerprinting a file with a leading ID3v2 tag and a trailing ID3v1 tag. Since only a
+ * fixed number of chunks are hashed, the score should barely move with the file's size - and
+ * with the file in the page cache, it's the cost of the mapping and hashing alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FingerprintBenchmark {
+
+    // Size of the synthetic ID3v2 tag, e.g. one with embedded art.
+    private static final int TAG_BYTES = 256 * 1024;
+
+    @Param({"64", "4096", "32768"})
+    public int payloadKilobytes;
+
+    // File that's fingerprinted over and over, and the fingerprinter.
+    private File mFile;
+    private AudioFingerprinter mFingerprinter;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] tag = new byte[10 + TAG_BYTES];
+        tag[0] = 'I';
+        tag[1] = 'D';
+        tag[2] = '3';
+        tag[3] = 4;
+        for (int i = 0; i < 4; i++) tag[6 + i] = (byte) ((TAG_BYTES >> (7 * (3 - i))) & 0x7f);
+
+        byte[] payload = new byte[payloadKilobytes * 1024];
+        new Random(1).nextBytes(payload);
+
+        byte[] id3v1 = new byte[128];
+        id3v1[0] = 'T';
+        id3v1[1] = 'A';
+        id3v1[2] = 'G';
+
+        mFile = File.createTempFile("fingerprint", ".mp3");
+        FileOutputStream stream = new FileOutputStream(mFile);
+        try {
+            stream.write(tag);
+            stream.write(payload);
+            stream.write(id3v1);
+        } finally {
+            stream.close();
+        }
+
+        mFingerprinter = new AudioFingerprinter();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    /**
+     * Fingerprints the whole file, from opening it to the hash.
+     */
+    @Benchmark
+    public long fingerprint() throws IOException {
+        return mFingerprinter.fingerprint(mFile).getHash();
+    }
+}
@@ -0,0 +1,82 @@
+package com.davenotdavid.musicplayerlite;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the heap retained by a library held as a list of {@link Song} objects against the
+ * same library held as a {@link SongTable}, with and without its ID index. JMH measures time
+ * rather than footprint, so this is a plain program - e.g. "./gradlew :core:heapFootprint", or
+ * "-PheapArgs='100000 2000 4'" for the number of songs, artists, and albums per artist.
+ *
+ * Each library is built from freshly made strings, so that nothing is shared with the others,
+ * and is measured as the growth of the used heap after full garbage collections. The JVM's
+ * reference size (e.g. -XX:-UseCompressedOops) and string layout (e.g. -XX:-CompactStrings)
+ * change the results, and so do the JVM options passed to the task.
+ */
+public class HeapFootprint {
+
+    // Full garbage collections to run before reading the used heap.
+    private static final int GC_RUNS = 5;
+
+    private HeapFootprint() {}
+
+    public static void main(String[] args) throws InterruptedException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int artistCount = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int albumCount = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        System.out.println(String.format("%,d songs, %,d artists, %d albums per artist",
+                size, artistCount, albumCount));
+
+        long base = usedHeap();
+        List<Song> songs = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) songs.add(song(i, artistCount, albumCount));
+        print("ArrayList<Song>", usedHeap() - base, SongTable.estimateListHeapBytes(songs));
+        songs = null;
+
+        base = usedHeap();
+        SongTable table = new SongTable(size);
+        for (int i = 0; i < size; i++) table.add(song(i, artistCount, albumCount));
+        print("SongTable", usedHeap() - base, table.estimateHeapBytes());
+
+        table.indexOfId(0);
+        print("SongTable + ID index", usedHeap() - base, table.estimateHeapBytes());
+    }
+
+    /**
+     * Returns the song of the passed-in row, made of new strings, with its artist and album
+     * folder picked by the row so that every run builds the same library.
+     */
+    private static Song song(int row, int artistCount, int albumCount) {
+        Random random = new Random(row);
+        int artist = random.nextInt(artistCount);
+        String artistName = "Artist " + artist;
+        String title = "Track " + row + " " + Long.toString(random.nextLong() & 0xffffff, 36);
+        String path = "/storage/emulated/0/Music/" + artistName + "/Album "
+                + random.nextInt(albumCount) + "/" + title + ".mp3";
+
+        return new Song(row + 1, title, artistName, path, artist * albumCount);
+    }
+
+    /**
+     * Returns the used heap once the garbage collector has settled.
+     */
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < GC_RUNS; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Prints the measured and estimated footprint of a library.
+     */
+    private static void print(String name, long measured, long estimated) {
+        System.out.println(String.format("%-22s %6.1f MB measured, %6.1f MB estimated", name,
+                measured / 1e6, estimated / 1e6));
+    }
+}
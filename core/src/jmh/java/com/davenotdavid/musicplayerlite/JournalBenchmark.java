@@ -0,0 +1,97 @@
+package com.davenotdavid.musicplayerlite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures appending to the playback journal (including the compactions along the way), and
+ * reading a session back, which happens once per cold start.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JournalBenchmark {
+
+    @Param({"16", "256", "1024"})
+    public int queueLength;
+
+    // Journal that's appended to, and a journal file that's read back.
+    private File mAppendFile;
+    private File mReplayFile;
+    private PlaybackJournal mJournal;
+    private long[] mQueue;
+    private int mPosition;
+
+    @Setup
+    public void setUp() throws IOException {
+        mQueue = new long[queueLength];
+        for (int i = 0; i < queueLength; i++) mQueue[i] = i + 1;
+
+        mAppendFile = File.createTempFile("append", ".journal");
+        mAppendFile.delete();
+        mJournal = new PlaybackJournal(mAppendFile);
+        mJournal.replay();
+
+        // Fills a journal up to just below the compaction threshold, i.e. its largest size.
+        mReplayFile = File.createTempFile("replay", ".journal");
+        mReplayFile.delete();
+        PlaybackJournal journal = new PlaybackJournal(mReplayFile);
+        journal.replay();
+        journal.appendModes(true, false);
+        journal.appendQueue(mQueue, queueLength / 2);
+        while (journal.getSize() < 60 * 1024) journal.appendPosition(1, mPosition++);
+        journal.close();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mJournal.close();
+        mAppendFile.delete();
+        mReplayFile.delete();
+    }
+
+    /**
+     * Records the position, as every few seconds during playback.
+     */
+    @Benchmark
+    public long appendPosition() throws IOException {
+        mJournal.appendPosition(1, mPosition++);
+
+        return mJournal.getSize();
+    }
+
+    /**
+     * Records the queue, as on every change of song.
+     */
+    @Benchmark
+    public long appendQueue() throws IOException {
+        mJournal.appendQueue(mQueue, mPosition++ % queueLength);
+
+        return mJournal.getSize();
+    }
+
+    /**
+     * Reads a full journal back, as on a cold start.
+     */
+    @Benchmark
+    public PlaybackState replay() throws IOException {
+        return new PlaybackJournal(mReplayFile).replay();
+    }
+}
@@ -0,0 +1,60 @@
+package com.davenotdavid.musicplayerlite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what happens between the loader reading the library and the song list being ready to
+ * display - packing the rows into a table, sorting it, and copying it into the list in order.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoadBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    @Param({"TITLE", "ARTIST", "PATH"})
+    public SongSorter.SortOrder sortOrder;
+
+    // Songs as read from the library.
+    private List<Song> mRows;
+
+    @Setup
+    public void setUp() {
+        mRows = SyntheticLibrary.songs(size, 1);
+    }
+
+    /**
+     * Load to sorted list, as in a full sync pass followed by onLoadFinished().
+     */
+    @Benchmark
+    public SongTable loadToSortedList() {
+        SongTable library = new SongTable(mRows.size());
+        library.addAll(mRows);
+
+        LibraryDelta delta = LibraryDelta.full(library);
+        delta.setOrder(sortOrder, SongSorter.sort(library, sortOrder));
+
+        SongTable songList = new SongTable();
+        delta.copyTo(songList);
+
+        return songList;
+    }
+}
@@ -0,0 +1,73 @@
+package com.davenotdavid.musicplayerlite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures analyzing a track's loudness, fed in chunks the size a decoder hands out. Each
+ * operation analyzes a minute of audio, so the score divided into 60 seconds is how much faster
+ * than realtime the analyzer runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoudnessBenchmark {
+
+    // Sample rate of the synthetic track, and its length.
+    private static final int SAMPLE_RATE = 44100;
+    private static final int SECONDS = 60;
+
+    @Param({"1", "2", "6"})
+    public int channels;
+
+    @Param({"1024", "4096"})
+    public int chunkFrames;
+
+    // Chunk that's fed over and over, and the analyzer it's fed to.
+    private float[] mChunk;
+    private LoudnessAnalyzer mAnalyzer;
+
+    @Setup
+    public void setUp() {
+
+        // A tone with some noise on top, so that the filters see more than a single frequency.
+        Random random = new Random(1);
+        mChunk = new float[chunkFrames * channels];
+        for (int frame = 0; frame < chunkFrames; frame++) {
+            double tone = 0.3 * Math.sin(2 * Math.PI * 440 * frame / SAMPLE_RATE);
+            for (int c = 0; c < channels; c++) {
+                mChunk[frame * channels + c] = (float) (tone + 0.05 * random.nextGaussian());
+            }
+        }
+
+        mAnalyzer = new LoudnessAnalyzer();
+    }
+
+    /**
+     * Analyzes a whole track, from the reset to the integrated loudness.
+     */
+    @Benchmark
+    public double analyze() {
+        mAnalyzer.reset(SAMPLE_RATE, channels);
+        for (long frames = 0; frames < (long) SAMPLE_RATE * SECONDS; frames += chunkFrames) {
+            mAnalyzer.process(mChunk, 0, chunkFrames);
+        }
+
+        return mAnalyzer.getIntegratedLoudness();
+    }
+}
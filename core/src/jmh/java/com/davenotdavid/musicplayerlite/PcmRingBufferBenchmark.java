@@ -0,0 +1,66 @@
+package com.davenotdavid.musicplayerlite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures moving a decoder's output buffer through the {@link PcmRingBuffer} and out in
+ * output-sized chunks, the way the codec engine does for every buffer it decodes. Run with
+ * "-prof gc" to check that the path allocates nothing per buffer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PcmRingBufferBenchmark {
+
+    // Sizes of the ring and of the output's chunk, matching the codec engine's.
+    private static final int BUFFER_BYTES = 256 * 1024;
+    private static final int OUTPUT_CHUNK_BYTES = 8 * 1024;
+
+    @Param({"4096", "16384"})
+    public int decoderBufferBytes;
+
+    // Ring and scheduler under test, the decoder's buffer and the output's chunk.
+    private PcmRingBuffer mBuffer;
+    private PcmScheduler mScheduler;
+    private ByteBuffer mDecoded;
+    private byte[] mChunk;
+
+    @Setup
+    public void setUp() {
+        mBuffer = new PcmRingBuffer(BUFFER_BYTES);
+        mScheduler = new PcmScheduler(mBuffer);
+        mScheduler.configure(44100, 4, -1);
+        mDecoded = ByteBuffer.allocateDirect(decoderBufferBytes);
+        mChunk = new byte[OUTPUT_CHUNK_BYTES];
+    }
+
+    @Benchmark
+    public int writeAndDrain() {
+        mDecoded.clear();
+        mBuffer.write(mDecoded);
+
+        int total = 0;
+        int bytes;
+        while ((bytes = mScheduler.nextChunk(OUTPUT_CHUNK_BYTES)) > 0) {
+            total += mBuffer.read(mChunk, 0, bytes);
+            mScheduler.onOutputWritten(bytes);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,106 @@
+package com.davenotdavid.musicplayerlite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures editing the up-next queue at random positions - inserting, removing, moving and
+ * looking songs up, along with enqueuing an artist's worth of songs at once - which should cost
+ * about the same whatever the queue's size. Each edit is undone within the same invocation, so
+ * that the queue keeps its size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QueueBenchmark {
+
+    // Number of precomputed random positions, and the number of songs enqueued at once (about
+    // what a prolific artist has).
+    private static final int POSITION_COUNT = 1 << 16;
+    private static final int BULK_SIZE = 100;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    // Queue of the whole library, random positions within it, and the songs enqueued at once.
+    private PlayQueue mQueue;
+    private int[] mPositions;
+    private int mNext;
+    private long[] mBulkIds;
+
+    @Setup
+    public void setUp() {
+        SongTable library = SyntheticLibrary.table(size, 1);
+        mQueue = new PlayQueue();
+        mQueue.addAll(library.copyIds());
+
+        Random random = new Random(1);
+        mPositions = new int[POSITION_COUNT];
+        for (int i = 0; i < POSITION_COUNT; i++) mPositions[i] = random.nextInt(size);
+
+        mBulkIds = new long[BULK_SIZE];
+        for (int i = 0; i < BULK_SIZE; i++) mBulkIds[i] = library.getID(random.nextInt(size));
+    }
+
+    /**
+     * Looks up the song at a random position.
+     */
+    @Benchmark
+    public long get() {
+        return mQueue.get(nextPosition());
+    }
+
+    /**
+     * Inserts a song at a random position, and removes it again.
+     */
+    @Benchmark
+    public long insertThenRemove() {
+        int position = nextPosition();
+        mQueue.insert(position, 1);
+
+        return mQueue.remove(position);
+    }
+
+    /**
+     * Moves a song from a random position to another.
+     */
+    @Benchmark
+    public void move() {
+        mQueue.move(nextPosition(), nextPosition());
+    }
+
+    /**
+     * Enqueues a hundred songs at a random position, and removes them again.
+     */
+    @Benchmark
+    public void insertAllThenRemoveRange() {
+        int position = nextPosition();
+        mQueue.insertAll(position, mBulkIds);
+        mQueue.removeRange(position, BULK_SIZE);
+    }
+
+    /**
+     * Returns the next of the precomputed random positions.
+     */
+    private int nextPosition() {
+        int position = mPositions[mNext];
+        mNext = (mNext + 1) & (POSITION_COUNT - 1);
+
+        return position;
+    }
+}
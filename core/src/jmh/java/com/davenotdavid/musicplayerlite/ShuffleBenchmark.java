@@ -0,0 +1,74 @@
+package com.davenotdavid.musicplayerlite;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures moving through the shuffle order - drawing the next song, and stepping back and forth
+ * through the history - along with mirroring the library into the engine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ShuffleBenchmark {
+
+    // Number of songs drawn before measuring, so that there's a history to step through.
+    private static final int PLAYED_SONGS = 500;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    // Library and an engine that's already been synced with it.
+    private SongTable mLibrary;
+    private ShuffleEngine mEngine;
+
+    @Setup
+    public void setUp() {
+        mLibrary = SyntheticLibrary.table(size, 1);
+        mEngine = new ShuffleEngine(1);
+        mEngine.sync(mLibrary);
+        for (int i = 0; i < PLAYED_SONGS; i++) mEngine.next();
+    }
+
+    /**
+     * Draws the next song, starting a new cycle whenever every song has been drawn.
+     */
+    @Benchmark
+    public long next() {
+        return mEngine.next();
+    }
+
+    /**
+     * Steps back to the previous song and forward again, through the history.
+     */
+    @Benchmark
+    public long previousThenNext() {
+        mEngine.previous();
+        return mEngine.next();
+    }
+
+    /**
+     * Mirrors the whole library into a fresh engine, as on the first playSong().
+     */
+    @Benchmark
+    public ShuffleEngine sync() {
+        ShuffleEngine engine = new ShuffleEngine(1);
+        engine.sync(mLibrary);
+
+        return engine;
+    }
+}
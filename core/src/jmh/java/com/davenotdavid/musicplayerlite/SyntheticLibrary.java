@@ -0,0 +1,77 @@
+package com.davenotdavid.musicplayerlite;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates libraries of made-up songs for the benchmarks. Titles are a few words drawn from a
+ * fixed vocabulary (with some accented ones so that collation isn't trivially ASCII), artists are
+ * shared by about ten songs each, and paths are laid out as artist/album/title folders, like a
+ * typical music folder. The same size and seed always produce the same library.
+ */
+public class SyntheticLibrary {
+
+    // Vocabulary the titles and artist names are made of.
+    private static final String[] WORDS = {
+            "love", "night", "heart", "dance", "fire", "blue", "dream", "road", "light", "rain",
+            "summer", "gold", "river", "shadow", "wild", "home", "city", "ocean", "star", "time",
+            "\u00e9chec", "caf\u00e9", "\u00fcber", "ni\u00f1o", "se\u00f1or", "ma\u00f1ana",
+            "\u00e5ngstr\u00f6m", "d\u00e9j\u00e0", "vu", "no\u00ebl",
+            "the", "a", "of", "in", "my", "your", "all", "no", "one", "again"
+    };
+
+    private SyntheticLibrary() {}
+
+    /**
+     * Returns the songs of a library, in ID order like the library copy of a sync pass.
+     *
+     * @param size is the number of songs.
+     * @param seed is the seed of the random generator.
+     */
+    public static List<Song> songs(int size, long seed) {
+        Random random = new Random(seed);
+        int artistCount = Math.max(1, size / 10);
+        List<Song> songs = new ArrayList<>(size);
+
+        // Leaves gaps between the IDs, as deleted songs would.
+        long id = 0;
+        for (int i = 0; i < size; i++) {
+            id += 1 + random.nextInt(3);
+            String title = words(random, 1 + random.nextInt(4)) + " " + i;
+            int artist = random.nextInt(artistCount);
+            String artistName = words(new Random(artist), 2) + " " + artist;
+            String path = "/storage/emulated/0/Music/" + artistName + "/Album " + (i % 7) + "/"
+                    + title + ".mp3";
+            songs.add(new Song(id, title, artistName, path));
+        }
+
+        return songs;
+    }
+
+    /**
+     * Returns a table of the songs of a library, in ID order.
+     *
+     * @param size is the number of songs.
+     * @param seed is the seed of the random generator.
+     */
+    public static SongTable table(int size, long seed) {
+        SongTable table = new SongTable(size);
+        table.addAll(songs(size, seed));
+
+        return table;
+    }
+
+    /**
+     * Returns a number of random words, separated by spaces.
+     */
+    private static String words(Random random, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) builder.append(' ');
+            builder.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,362 @@
+package com.davenotdavid.musicplayerlite;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Fingerprints the audio payload of a file for finding duplicate tracks, i.e. the file minus a
+ * leading ID3v2 tag or FLAC metadata, and minus trailing ID3v1 and APEv2 tags - so that copies
+ * of the same audio match even when they were tagged differently.
+ *
+ * Rather than the whole payload, a fixed number of evenly spaced chunks of it are hashed (along
+ * with its length), so that a file costs the same few reads no matter how long it is. Chunks are
+ * read into a direct buffer that's reused for every chunk of every file, rather than being
+ * memory-mapped, which would leave a mapping per chunk around until it's garbage collected.
+ * Since a fingerprint only covers parts of the payload, samePayload() compares two files byte by
+ * byte before either is treated as a copy of the other. Not thread-safe, so each thread
+ * fingerprinting files needs its own instance.
+ */
+public class AudioFingerprinter {
+
+    // Chunks hashed per file, and their size. Payloads up to their total size are hashed whole.
+    private static final int CHUNKS = 8;
+    private static final int CHUNK_BYTES = 16 * 1024;
+
+    // Size of an ID3v2 header, and the flag that marks a footer of the same size.
+    private static final int ID3_HEADER_BYTES = 10;
+    private static final int ID3_FOOTER_FLAG = 0x10;
+
+    // Size of an ID3v1 tag, of a FLAC marker and metadata block header, and of an APEv2 footer
+    // (the same as its optional header, which a flag in the footer marks).
+    private static final int ID3V1_BYTES = 128;
+    private static final int FLAC_HEADER_BYTES = 4;
+    private static final int APE_FOOTER_BYTES = 32;
+    private static final int APE_HEADER_FLAG = 0x80000000;
+
+    // Primes of the 64-bit hash, which mixes eight bytes at a time much like xxHash64.
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME_3 = 0x165667B19E3779F9L;
+    private static final long PRIME_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME_5 = 0x27D4EB2F165667C5L;
+
+    // Buffer the tags' headers are read into.
+    private final ByteBuffer mHeader = ByteBuffer.allocate(APE_FOOTER_BYTES);
+
+    // Buffer each chunk is read into, and the one the second file's chunks are read into when
+    // comparing payloads (which is only allocated then).
+    private final ByteBuffer mChunk = ByteBuffer.allocateDirect(CHUNK_BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer mOtherChunk;
+
+    // Bytes hashed so far, for reporting the throughput.
+    private long mBytesHashed;
+
+    /**
+     * Fingerprints the passed-in file.
+     *
+     * @param file is the file.
+     * @return the file's fingerprint, whose payload length is 0 should the file be all tags.
+     * @throws IOException should the file not be readable.
+     */
+    public TrackFingerprint fingerprint(File file) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+            long start = payloadStart(channel, size);
+            long end = Math.max(start, payloadEnd(channel, start, size));
+
+            return new TrackFingerprint(file.getPath(), size, file.lastModified(), end - start,
+                    hash(channel, start, end));
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Returns whether or not the passed-in files hold the same audio payload, comparing the
+     * payloads byte by byte. Files whose fingerprints match should be checked with it before
+     * either is treated as a copy of the other.
+     *
+     * @param first is the first file.
+     * @param second is the second file.
+     * @throws IOException should either file not be readable.
+     */
+    public boolean samePayload(File first, File second) throws IOException {
+        if (mOtherChunk == null) mOtherChunk = ByteBuffer.allocateDirect(CHUNK_BYTES);
+
+        FileInputStream firstStream = new FileInputStream(first);
+        try {
+            FileInputStream secondStream = new FileInputStream(second);
+            try {
+                FileChannel firstChannel = firstStream.getChannel();
+                FileChannel secondChannel = secondStream.getChannel();
+                long firstSize = firstChannel.size();
+                long firstStart = payloadStart(firstChannel, firstSize);
+                long firstEnd = Math.max(firstStart,
+                        payloadEnd(firstChannel, firstStart, firstSize));
+                long secondSize = secondChannel.size();
+                long secondStart = payloadStart(secondChannel, secondSize);
+                long secondEnd = Math.max(secondStart,
+                        payloadEnd(secondChannel, secondStart, secondSize));
+
+                long length = firstEnd - firstStart;
+                if (length != secondEnd - secondStart) return false;
+                for (long offset = 0; offset < length; offset += CHUNK_BYTES) {
+                    int chunkLength = (int) Math.min(CHUNK_BYTES, length - offset);
+                    readChunk(firstChannel, mChunk, firstStart + offset, chunkLength);
+                    readChunk(secondChannel, mOtherChunk, secondStart + offset, chunkLength);
+                    if (!mChunk.equals(mOtherChunk)) return false;
+                }
+
+                return true;
+            } finally {
+                secondStream.close();
+            }
+        } finally {
+            firstStream.close();
+        }
+    }
+
+    /**
+     * Returns the number of payload bytes hashed by this instance so far.
+     */
+    public long getBytesHashed() {
+        return mBytesHashed;
+    }
+
+    /**
+     * Groups the songs whose fingerprints are of the same audio.
+     *
+     * @param ids is the IDs of the songs.
+     * @param prints is the songs' fingerprints, in the same order, or null for songs that
+     *               couldn't be fingerprinted.
+     * @return the IDs of each group of two or more duplicates, in the order the songs were
+     *         passed in. Groups are ordered by their first song.
+     */
+    public static List<long[]> findDuplicates(long[] ids, final TrackFingerprint[] prints) {
+
+        // Sorts the songs by payload length and then hash, so that duplicates end up next to each
+        // other, with ties kept in the order they were passed in.
+        Integer[] order = new Integer[ids.length];
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (prints[i] != null && prints[i].getPayloadLength() > 0) order[count++] = i;
+        }
+        Arrays.sort(order, 0, count, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                TrackFingerprint first = prints[a];
+                TrackFingerprint second = prints[b];
+                if (first.getPayloadLength() != second.getPayloadLength()) {
+                    return first.getPayloadLength() < second.getPayloadLength() ? -1 : 1;
+                }
+                if (first.getHash() != second.getHash()) {
+                    return first.getHash() < second.getHash() ? -1 : 1;
+                }
+                return a - b;
+            }
+        });
+
+        // Collects each run of two or more, keyed by the position of its first song.
+        List<int[]> runs = new ArrayList<>();
+        int runStart = 0;
+        for (int i = 1; i <= count; i++) {
+            if (i < count && prints[order[i]].sameAudio(prints[order[runStart]])) continue;
+
+            if (i - runStart > 1) {
+                int[] run = new int[i - runStart];
+                for (int j = 0; j < run.length; j++) run[j] = order[runStart + j];
+                runs.add(run);
+            }
+            runStart = i;
+        }
+        Collections.sort(runs, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return a[0] - b[0];
+            }
+        });
+
+        List<long[]> groups = new ArrayList<>(runs.size());
+        for (int[] run : runs) {
+            long[] group = new long[run.length];
+            for (int i = 0; i < run.length; i++) group[i] = ids[run[i]];
+            groups.add(group);
+        }
+
+        return groups;
+    }
+
+    /**
+     * Returns the offset the payload starts at, i.e. past any leading ID3v2 tags (some files
+     * have more than one), or past the metadata blocks of a FLAC file.
+     */
+    private long payloadStart(FileChannel channel, long size) throws IOException {
+        long start = 0;
+        while (read(channel, start, ID3_HEADER_BYTES) && mHeader.get(0) == 'I'
+                && mHeader.get(1) == 'D' && mHeader.get(2) == '3') {
+
+            // The tag's size is stored in four bytes of seven bits each.
+            long tagSize = 0;
+            for (int i = 6; i < ID3_HEADER_BYTES; i++) {
+                tagSize = (tagSize << 7) | (mHeader.get(i) & 0x7f);
+            }
+
+            start += ID3_HEADER_BYTES + tagSize;
+            if ((mHeader.get(5) & ID3_FOOTER_FLAG) != 0) start += ID3_HEADER_BYTES;
+        }
+
+        if (read(channel, start, FLAC_HEADER_BYTES) && mHeader.get(0) == 'f'
+                && mHeader.get(1) == 'L' && mHeader.get(2) == 'a' && mHeader.get(3) == 'C') {
+
+            // Each block's header holds a flag marking the last block, and a 24-bit length.
+            long position = start + FLAC_HEADER_BYTES;
+            while (position < size && read(channel, position, FLAC_HEADER_BYTES)) {
+                int header = mHeader.getInt(0);
+                position += FLAC_HEADER_BYTES + (header & 0xffffff);
+                if (header < 0) break;
+            }
+            start = position;
+        }
+
+        return Math.min(start, size);
+    }
+
+    /**
+     * Returns the offset the payload ends at, i.e. before a trailing ID3v1 tag and a trailing
+     * APEv2 tag, which may come in either order. An APEv2 footer whose size couldn't be right
+     * (smaller than the footer itself, or larger than what's left of the payload) is taken to be
+     * part of the payload, and the tags are only looked for again once the end has moved, so
+     * that a malformed tag can't keep the loop going.
+     */
+    private long payloadEnd(FileChannel channel, long start, long size) throws IOException {
+        long end = size;
+        long previousEnd;
+        do {
+            previousEnd = end;
+            if (end - start >= ID3V1_BYTES && read(channel, end - ID3V1_BYTES, 3)
+                    && mHeader.get(0) == 'T' && mHeader.get(1) == 'A' && mHeader.get(2) == 'G') {
+                end -= ID3V1_BYTES;
+            }
+
+            if (end - start >= APE_FOOTER_BYTES
+                    && read(channel, end - APE_FOOTER_BYTES, APE_FOOTER_BYTES) && isApeFooter()) {
+
+                // The tag's size counts its items and its footer, but not its header.
+                mHeader.order(ByteOrder.LITTLE_ENDIAN);
+                long tagSize = mHeader.getInt(12) & 0xffffffffL;
+                if ((mHeader.getInt(20) & APE_HEADER_FLAG) != 0) tagSize += APE_FOOTER_BYTES;
+                mHeader.order(ByteOrder.BIG_ENDIAN);
+                if (tagSize >= APE_FOOTER_BYTES && tagSize <= end - start) end -= tagSize;
+            }
+        } while (end < previousEnd);
+
+        return end;
+    }
+
+    /**
+     * Returns whether or not the buffer holds an APEv2 footer.
+     */
+    private boolean isApeFooter() {
+        byte[] preamble = {'A', 'P', 'E', 'T', 'A', 'G', 'E', 'X'};
+        for (int i = 0; i < preamble.length; i++) {
+            if (mHeader.get(i) != preamble[i]) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the passed-in number of bytes at the passed-in offset into the header buffer.
+     *
+     * @return whether or not every byte was there to read.
+     */
+    private boolean read(FileChannel channel, long position, int length) throws IOException {
+        mHeader.clear();
+        mHeader.limit(length);
+        while (mHeader.hasRemaining()) {
+            if (channel.read(mHeader, position + mHeader.position()) < 0) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the passed-in number of bytes at the passed-in offset into the passed-in buffer,
+     * which is left flipped for reading them.
+     *
+     * @throws IOException should the file end before then.
+     */
+    private static void readChunk(FileChannel channel, ByteBuffer chunk, long position,
+                                  int length) throws IOException {
+        chunk.clear();
+        chunk.limit(length);
+        while (chunk.hasRemaining()) {
+            if (channel.read(chunk, position + chunk.position()) < 0) {
+                throw new IOException("File ended at " + (position + chunk.position()));
+            }
+        }
+        chunk.flip();
+    }
+
+    /**
+     * Hashes the payload's chunks, which are evenly spaced so that the first starts at the start
+     * of the payload and the last ends at its end. A payload that's hashed whole is read a
+     * chunk's size at a time, which hashes the same as a single read since the chunk size is a
+     * multiple of eight bytes.
+     */
+    private long hash(FileChannel channel, long start, long end) throws IOException {
+        long length = end - start;
+        long hash = PRIME_5 + length;
+        if (length <= (long) CHUNKS * CHUNK_BYTES) {
+            for (long offset = start; offset < end; offset += CHUNK_BYTES) {
+                readChunk(channel, mChunk, offset, (int) Math.min(CHUNK_BYTES, end - offset));
+                hash = hashChunk(mChunk, hash);
+            }
+        } else {
+            for (int i = 0; i < CHUNKS; i++) {
+                long offset = start + (length - CHUNK_BYTES) * i / (CHUNKS - 1);
+                readChunk(channel, mChunk, offset, CHUNK_BYTES);
+                hash = hashChunk(mChunk, hash);
+            }
+        }
+
+        // Avalanches the bits, so that similar inputs don't end up with similar hashes.
+        hash ^= hash >>> 33;
+        hash *= PRIME_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    /**
+     * Mixes the passed-in chunk into the hash, eight bytes at a time and then byte by byte.
+     */
+    private long hashChunk(ByteBuffer chunk, long hash) {
+        mBytesHashed += chunk.remaining();
+        while (chunk.remaining() >= 8) {
+            long k = chunk.getLong() * PRIME_2;
+            k = Long.rotateLeft(k, 31) * PRIME_1;
+            hash ^= k;
+            hash = Long.rotateLeft(hash, 27) * PRIME_1 + PRIME_4;
+        }
+        while (chunk.hasRemaining()) {
+            hash ^= (chunk.get() & 0xff) * PRIME_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME_1;
+        }
+
+        return hash;
+    }
+}
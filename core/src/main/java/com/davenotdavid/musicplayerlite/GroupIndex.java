@@ -0,0 +1,394 @@
+package com.davenotdavid.musicplayerlite;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Groups of a sorted song list by artist, album and folder, for browsing the list group by group.
+ * Each group is only the ascending positions of its songs within the list, as an int array,
+ * rather than a list of its songs - so a group's songs are already in the list's order, and
+ * every grouping together costs about an int per song and grouping.
+ *
+ * All three groupings are built together in a single pass over the sorted list, and patched
+ * along with the list afterwards: removing rows is a pass that shifts the positions after them,
+ * and inserted rows are shifted in the same way and then added to their groups. Groups that end
+ * up empty are kept, so that a group's number never changes. Not thread-safe, though it can be
+ * handed over to another thread once it's no longer modified.
+ */
+public class GroupIndex {
+
+    /**
+     * Ways the songs can be grouped. Artists are grouped by name, albums by their MediaStore ID,
+     * and folders by the folder of the song's file.
+     */
+    public enum Grouping {
+        ARTIST, ALBUM, FOLDER
+    }
+
+    // Every grouping, in the order of their groups below.
+    private static final Grouping[] GROUPINGS = Grouping.values();
+
+    // Groups of each grouping.
+    private final Groups[] mGroups = new Groups[GROUPINGS.length];
+
+    /**
+     * Creates a {@link GroupIndex} object without any groups.
+     */
+    public GroupIndex() {
+        for (int i = 0; i < mGroups.length; i++) mGroups[i] = new Groups();
+    }
+
+    /**
+     * Creates a {@link GroupIndex} object that's a copy of the passed-in one, e.g. for the main
+     * thread to modify while the original stays with the loader.
+     *
+     * @param other is the index to copy.
+     */
+    public GroupIndex(GroupIndex other) {
+        copyFrom(other);
+    }
+
+    /**
+     * Builds every grouping of the passed-in library in the passed-in order, in a single pass
+     * over the already sorted rows.
+     *
+     * @param library is the library.
+     * @param order is the library's rows in sorted order.
+     */
+    public static GroupIndex build(SongTable library, int[] order) {
+        GroupIndex index = new GroupIndex();
+        for (int position = 0; position < order.length; position++) {
+            int row = order[position];
+            for (int i = 0; i < GROUPINGS.length; i++) {
+                index.mGroups[i].append(keyOf(library, row, GROUPINGS[i]), position);
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Replaces every group with a copy of the passed-in index's.
+     *
+     * @param other is the index to copy.
+     */
+    public void copyFrom(GroupIndex other) {
+        for (int i = 0; i < mGroups.length; i++) mGroups[i] = new Groups(other.mGroups[i]);
+    }
+
+    /**
+     * Returns the number of groups of the passed-in grouping, empty ones included.
+     */
+    public int getGroupCount(Grouping grouping) {
+        return mGroups[grouping.ordinal()].mGroupCount;
+    }
+
+    /**
+     * Returns the key of a group, i.e. the artist name, the album ID as a Long, or the folder
+     * (with its trailing separator). Null for songs without an artist or folder.
+     *
+     * @param grouping is the grouping.
+     * @param group is the number of the group.
+     */
+    public Object getKey(Grouping grouping, int group) {
+        return mGroups[grouping.ordinal()].mKeys[group];
+    }
+
+    /**
+     * Returns the number of songs in a group.
+     *
+     * @param grouping is the grouping.
+     * @param group is the number of the group.
+     */
+    public int getSize(Grouping grouping, int group) {
+        return mGroups[grouping.ordinal()].mCounts[group];
+    }
+
+    /**
+     * Returns the position of one of a group's songs within the list.
+     *
+     * @param grouping is the grouping.
+     * @param group is the number of the group.
+     * @param index is the index of the song within the group.
+     */
+    public int getRow(Grouping grouping, int group, int index) {
+        Groups groups = mGroups[grouping.ordinal()];
+        if (index < 0 || index >= groups.mCounts[group]) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+                    + groups.mCounts[group]);
+        }
+
+        return groups.mRows[group][index];
+    }
+
+    /**
+     * Returns a copy of the ascending positions of a group's songs within the list.
+     *
+     * @param grouping is the grouping.
+     * @param group is the number of the group.
+     */
+    public int[] getRows(Grouping grouping, int group) {
+        Groups groups = mGroups[grouping.ordinal()];
+
+        return Arrays.copyOf(groups.mRows[group], groups.mCounts[group]);
+    }
+
+    /**
+     * Returns the number of the group with the passed-in key, or -1 if there's no such group.
+     *
+     * @param grouping is the grouping.
+     * @param key is the key, as returned by {@link #getKey(Grouping, int)}.
+     */
+    public int indexOfKey(Grouping grouping, Object key) {
+        Integer group = mGroups[grouping.ordinal()].mGroupIds.get(key);
+
+        return group != null ? group : -1;
+    }
+
+    /**
+     * Drops the passed-in songs from their groups, and shifts the positions after them. Must be
+     * invoked before the rows are removed from the list, while they're still there.
+     *
+     * @param songs is the list, as it is before the removal.
+     * @param ids is the IDs of the songs being removed, sorted ascending.
+     */
+    public void removeRows(SongTable songs, long[] ids) {
+        if (ids.length == 0) return;
+
+        // Maps each position to the one it ends up at, or -1 should its row be removed.
+        int[] positions = new int[songs.size()];
+        int next = 0;
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = Arrays.binarySearch(ids, songs.getID(i)) >= 0 ? -1 : next++;
+        }
+        if (next == positions.length) return;
+
+        for (Groups groups : mGroups) groups.remap(positions);
+    }
+
+    /**
+     * Shifts the positions after the passed-in songs, and adds the songs to their groups. Must be
+     * invoked after the rows were inserted into the list.
+     *
+     * @param songs is the list, as it is after the insertion.
+     * @param ids is the IDs of the songs that were inserted, sorted ascending.
+     */
+    public void insertRows(SongTable songs, long[] ids) {
+        if (ids.length == 0) return;
+
+        // Maps each position from before the insertion to the one it's at now, while collecting
+        // the positions of the inserted rows.
+        int[] inserted = new int[ids.length];
+        int insertedCount = 0;
+        int[] positions = new int[Math.max(0, songs.size() - ids.length)];
+        int previous = 0;
+        for (int i = 0; i < songs.size(); i++) {
+            if (Arrays.binarySearch(ids, songs.getID(i)) >= 0 && insertedCount < inserted.length) {
+                inserted[insertedCount++] = i;
+            } else if (previous < positions.length) {
+                positions[previous++] = i;
+            }
+        }
+
+        for (int i = 0; i < mGroups.length; i++) {
+            mGroups[i].remap(positions);
+            for (int j = 0; j < insertedCount; j++) {
+                int position = inserted[j];
+                mGroups[i].insert(keyOf(songs, position, GROUPINGS[i]), position);
+            }
+        }
+    }
+
+    /**
+     * Moves every position to the one it maps to, dropping the ones that map to -1, and then adds
+     * the passed-in positions of the library's order to their groups - e.g. once the loader has
+     * patched the order itself, rather than a list.
+     *
+     * @param positions is the position each previous position ends up at, or -1 should its row
+     *                  be gone. It has to keep the order of the positions.
+     * @param library is the library.
+     * @param order is the library's rows in sorted order, as patched.
+     * @param inserted is the positions of the rows inserted into the order, ascending.
+     */
+    void patch(int[] positions, SongTable library, int[] order, int[] inserted) {
+        for (int i = 0; i < mGroups.length; i++) {
+            mGroups[i].remap(positions);
+            for (int position : inserted) {
+                mGroups[i].insert(keyOf(library, order[position], GROUPINGS[i]), position);
+            }
+        }
+    }
+
+    /**
+     * Returns a rough estimate of the heap retained by the index, assuming 4-byte references,
+     * 8-byte object headers and 2-byte characters. The keys are shared with the song list, so
+     * only the references to them are counted.
+     */
+    public long estimateHeapBytes() {
+        long bytes = 0;
+        for (Groups groups : mGroups) bytes += groups.estimateHeapBytes();
+
+        return bytes;
+    }
+
+    /**
+     * Returns a rough estimate of the heap that the same groupings would retain as an
+     * ArrayList of {@link Song} objects per group, using the same assumptions as
+     * {@link #estimateHeapBytes()} - without even counting the songs' strings.
+     */
+    public long estimateListHeapBytes() {
+        long bytes = 0;
+        for (Groups groups : mGroups) {
+            bytes += 40L * groups.mGroupCount;
+            for (int i = 0; i < groups.mGroupCount; i++) bytes += (4 + 32) * groups.mCounts[i];
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Returns the key of the passed-in row for the passed-in grouping. Artists and folders are
+     * interned by the table, so rows of the same group share the same key instance.
+     */
+    private static Object keyOf(SongTable songs, int row, Grouping grouping) {
+        switch (grouping) {
+            case ARTIST:
+                return songs.getArtist(row);
+            case ALBUM:
+                return songs.getAlbumID(row);
+            default:
+                return songs.getFolder(row);
+        }
+    }
+
+    /**
+     * Groups of a single grouping.
+     */
+    private static class Groups {
+
+        // Number of each key's group, along with each group's key, its positions (ascending,
+        // with room to spare at the end) and the number of them that are in use.
+        private final Map<Object, Integer> mGroupIds;
+        private Object[] mKeys;
+        private int[][] mRows;
+        private int[] mCounts;
+        private int mGroupCount;
+
+        // Key and group of the last lookup, since consecutive rows tend to share their group.
+        private Object mLastKey;
+        private int mLastGroup = -1;
+
+        /**
+         * Creates a {@link Groups} object without any groups.
+         */
+        Groups() {
+            mGroupIds = new HashMap<>();
+            mKeys = new Object[16];
+            mRows = new int[16][];
+            mCounts = new int[16];
+        }
+
+        /**
+         * Creates a {@link Groups} object that's a copy of the passed-in one, trimming the
+         * spare room off each group.
+         */
+        Groups(Groups other) {
+            mGroupIds = new HashMap<>(other.mGroupIds);
+            mKeys = Arrays.copyOf(other.mKeys, other.mKeys.length);
+            mRows = new int[other.mRows.length][];
+            for (int i = 0; i < other.mGroupCount; i++) {
+                mRows[i] = Arrays.copyOf(other.mRows[i], Math.max(other.mCounts[i], 1));
+            }
+            mCounts = Arrays.copyOf(other.mCounts, other.mCounts.length);
+            mGroupCount = other.mGroupCount;
+        }
+
+        /**
+         * Appends a position to the group of the passed-in key, which must be past every position
+         * of that group.
+         */
+        void append(Object key, int position) {
+            int group = groupOf(key);
+            int count = mCounts[group];
+            if (count == mRows[group].length) {
+                mRows[group] = Arrays.copyOf(mRows[group], count * 2);
+            }
+            mRows[group][count] = position;
+            mCounts[group] = count + 1;
+        }
+
+        /**
+         * Inserts a position into the group of the passed-in key, keeping the group ascending.
+         */
+        void insert(Object key, int position) {
+            int group = groupOf(key);
+            int count = mCounts[group];
+            int index = Arrays.binarySearch(mRows[group], 0, count, position);
+            if (index >= 0) return;
+            index = -index - 1;
+
+            if (count == mRows[group].length) {
+                mRows[group] = Arrays.copyOf(mRows[group], count * 2);
+            }
+            System.arraycopy(mRows[group], index, mRows[group], index + 1, count - index);
+            mRows[group][index] = position;
+            mCounts[group] = count + 1;
+        }
+
+        /**
+         * Replaces every position with the one it maps to, dropping the ones that map to -1.
+         * Since the mapping keeps the order, each group stays ascending.
+         */
+        void remap(int[] positions) {
+            for (int group = 0; group < mGroupCount; group++) {
+                int[] rows = mRows[group];
+                int count = mCounts[group];
+                int write = 0;
+                for (int i = 0; i < count; i++) {
+                    int position = positions[rows[i]];
+                    if (position >= 0) rows[write++] = position;
+                }
+                mCounts[group] = write;
+            }
+        }
+
+        /**
+         * Returns the group of the passed-in key, adding an empty one should there be none yet.
+         */
+        private int groupOf(Object key) {
+            if (mLastGroup >= 0 && (key == null ? mLastKey == null : key.equals(mLastKey))) {
+                return mLastGroup;
+            }
+
+            Integer group = mGroupIds.get(key);
+            if (group == null) {
+                if (mGroupCount == mKeys.length) {
+                    int capacity = mGroupCount * 2;
+                    mKeys = Arrays.copyOf(mKeys, capacity);
+                    mRows = Arrays.copyOf(mRows, capacity);
+                    mCounts = Arrays.copyOf(mCounts, capacity);
+                }
+                group = mGroupCount++;
+                mKeys[group] = key;
+                mRows[group] = new int[4];
+                mGroupIds.put(key, group);
+            }
+
+            mLastKey = key;
+            mLastGroup = group;
+            return group;
+        }
+
+        /**
+         * Returns a rough estimate of the heap retained by the groups, including the hash map.
+         */
+        long estimateHeapBytes() {
+            long bytes = 4L * mKeys.length + 4L * mRows.length + 4L * mCounts.length
+                    + 48L * mGroupCount;
+            for (int i = 0; i < mGroupCount; i++) bytes += 16 + 4L * mRows[i].length;
+
+            return bytes;
+        }
+    }
+}
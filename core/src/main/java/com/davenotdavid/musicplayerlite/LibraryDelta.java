@@ -0,0 +1,466 @@
+package com.davenotdavid.musicplayerlite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Result of a single LibrarySync pass - the rows that were added, changed, or removed since the
+ * previous pass, along with the whole known library as of the pass for consumers that don't have
+ * a list to patch yet (e.g. an Activity recreated after an orientation change). The library is
+ * the sync's own table for the pass, which is never modified once the pass is done, so it's
+ * shared rather than copied.
+ */
+public class LibraryDelta {
+
+    /**
+     * Rows a patch removed from and inserted into a list, so that whoever displays the list can
+     * update only those rows.
+     */
+    public static class Patch {
+
+        // Boolean flag that's used to indicate that the list was rebuilt rather than patched, in
+        // which case no rows are listed.
+        private final boolean mRebuilt;
+
+        // Positions the removed rows were at before the patch, and the positions the inserted
+        // rows are at after it, both in ascending order.
+        private final int[] mRemovedPositions;
+        private final int[] mInsertedPositions;
+
+        /**
+         * Creates a {@link Patch} object.
+         *
+         * @param rebuilt is whether or not the list was rebuilt.
+         * @param removedPositions is the positions of the removed rows, in ascending order.
+         * @param insertedPositions is the positions of the inserted rows, in ascending order.
+         */
+        Patch(boolean rebuilt, int[] removedPositions, int[] insertedPositions) {
+            mRebuilt = rebuilt;
+            mRemovedPositions = removedPositions;
+            mInsertedPositions = insertedPositions;
+        }
+
+        /**
+         * Returns whether or not the list was rebuilt rather than patched.
+         */
+        public boolean isRebuilt() {
+            return mRebuilt;
+        }
+
+        /**
+         * Getter method for the positions the removed rows were at before the patch, in
+         * ascending order. Changed rows are removed and then inserted again.
+         */
+        public int[] getRemovedPositions() {
+            return mRemovedPositions;
+        }
+
+        /**
+         * Getter method for the positions the inserted rows are at after the patch, in
+         * ascending order.
+         */
+        public int[] getInsertedPositions() {
+            return mInsertedPositions;
+        }
+    }
+
+    // Above this many incoming rows per existing row, appending and re-sorting is cheaper than
+    // inserting each row at its binary-searched position.
+    private static final int BULK_INSERT_RATIO = 16;
+
+    // Fields used for describing the patch.
+    private final SongTable mLibrary;
+    private final List<Song> mAdded;
+    private final List<Song> mChanged;
+    private final long[] mRemovedIds;
+
+    // Boolean flag that's used to indicate that there was no earlier baseline to diff against.
+    private final boolean mFull;
+
+    // Order the library was sorted in on the loader thread, as rows of the library (which is
+    // always in ID order).
+    private SongSorter.SortOrder mSortOrder;
+    private int[] mOrder;
+
+    // Search index over the library as of this pass, which is shared by every pass.
+    private SongSearchIndex mSearchIndex;
+
+    // Fast-scroll sections of the library in the sorted order, which only the loader holds on to.
+    private SectionIndex mSectionIndex;
+
+    // Artist, album and folder groups of the library in the sorted order, which only the loader
+    // holds on to as well.
+    private GroupIndex mGroupIndex;
+
+    /**
+     * Creates a {@link LibraryDelta} object.
+     *
+     * @param library is every song currently known to the library.
+     * @param added is the songs that weren't known before this pass.
+     * @param changed is the songs that were known, but whose metadata has since been modified.
+     * @param removedIds is the IDs of the songs that are no longer in the library.
+     * @param full is whether or not this pass was a full scan rather than a patch.
+     */
+    LibraryDelta(SongTable library, List<Song> added, List<Song> changed, long[] removedIds,
+                 boolean full) {
+        mLibrary = library;
+        mAdded = added;
+        mChanged = changed;
+        mRemovedIds = removedIds;
+        mFull = full;
+    }
+
+    /**
+     * Creates a {@link LibraryDelta} object for a full scan where every song is new.
+     *
+     * @param library is every song found in the library.
+     */
+    static LibraryDelta full(SongTable library) {
+        return new LibraryDelta(library, library, Collections.<Song>emptyList(), new long[0],
+                true);
+    }
+
+    /**
+     * Getter method for the whole library as of this pass, in ID order. It's shared with the
+     * sync that made it, so it must not be modified.
+     */
+    public SongTable getLibrary() {
+        return mLibrary;
+    }
+
+    /**
+     * Getter method for the songs that were added during this pass.
+     */
+    public List<Song> getAdded() {
+        return mAdded;
+    }
+
+    /**
+     * Getter method for the songs that were modified during this pass.
+     */
+    public List<Song> getChanged() {
+        return mChanged;
+    }
+
+    /**
+     * Getter method for the IDs of the songs that were removed during this pass.
+     */
+    public long[] getRemovedIds() {
+        return mRemovedIds;
+    }
+
+    /**
+     * Getter method for the order the library was sorted in.
+     */
+    public SongSorter.SortOrder getSortOrder() {
+        return mSortOrder;
+    }
+
+    /**
+     * Getter method for the library's rows in sorted order.
+     */
+    public int[] getOrder() {
+        return mOrder;
+    }
+
+    /**
+     * Setter method for the library's sorted order.
+     *
+     * @param sortOrder is the order the library was sorted in.
+     * @param order is the library's rows in that order.
+     */
+    void setOrder(SongSorter.SortOrder sortOrder, int[] order) {
+        mSortOrder = sortOrder;
+        mOrder = order;
+    }
+
+    /**
+     * Getter method for the search index, which is kept up to date with the library.
+     */
+    public SongSearchIndex getSearchIndex() {
+        return mSearchIndex;
+    }
+
+    /**
+     * Setter method for the search index.
+     *
+     * @param searchIndex is the search index, already brought up to date with this pass.
+     */
+    void setSearchIndex(SongSearchIndex searchIndex) {
+        mSearchIndex = searchIndex;
+    }
+
+    /**
+     * Getter method for the fast-scroll sections of the library in the sorted order. They must
+     * not be modified, so consumers that patch them along with their list keep a copy.
+     */
+    public SectionIndex getSectionIndex() {
+        return mSectionIndex;
+    }
+
+    /**
+     * Setter method for the fast-scroll sections.
+     *
+     * @param sectionIndex is the sections, built along with the sorted order.
+     */
+    void setSectionIndex(SectionIndex sectionIndex) {
+        mSectionIndex = sectionIndex;
+    }
+
+    /**
+     * Getter method for the artist, album and folder groups of the library in the sorted order.
+     * They must not be modified, so consumers that patch them along with their list keep a copy.
+     */
+    public GroupIndex getGroupIndex() {
+        return mGroupIndex;
+    }
+
+    /**
+     * Setter method for the groups.
+     *
+     * @param groupIndex is the groups, built along with the sorted order.
+     */
+    void setGroupIndex(GroupIndex groupIndex) {
+        mGroupIndex = groupIndex;
+    }
+
+    /**
+     * Returns whether or not this pass was a full scan, in which case there's nothing to patch.
+     */
+    public boolean isFull() {
+        return mFull;
+    }
+
+    /**
+     * Returns whether or not this pass found no differences at all.
+     */
+    public boolean isEmpty() {
+        return !mFull && mAdded.isEmpty() && mChanged.isEmpty() && mRemovedIds.length == 0;
+    }
+
+    /**
+     * Replaces the contents of the passed-in table with the whole library in sorted order.
+     *
+     * @param songs is the table to fill.
+     */
+    public void copyTo(SongTable songs) {
+        songs.clear();
+        songs.addRows(mLibrary, mOrder);
+    }
+
+    /**
+     * Patches the passed-in sorted table in place so that it matches the library as of this pass.
+     * Should most of the table change, it's rebuilt from the sorted order instead, so that the
+     * main thread never has to sort.
+     *
+     * @param songs is the table of songs to patch, sorted in this pass's sort order.
+     * @return the rows that were removed and inserted.
+     */
+    public Patch applyTo(SongTable songs) {
+        return applyTo(songs, null);
+    }
+
+    /**
+     * Patches the passed-in sorted table in place, along with its fast-scroll sections, so that
+     * both match the library as of this pass. Only the sections of the rows that changed are
+     * updated, unless the table is rebuilt anyway.
+     *
+     * @param songs is the table of songs to patch, sorted in this pass's sort order.
+     * @param sectionIndex is the table's sections, or null if it has none.
+     * @return the rows that were removed and inserted.
+     */
+    public Patch applyTo(SongTable songs, SectionIndex sectionIndex) {
+        return applyTo(songs, sectionIndex, null);
+    }
+
+    /**
+     * Patches the passed-in sorted table in place, along with its fast-scroll sections and its
+     * groups, so that all of them match the library as of this pass. The rows that leave the
+     * table are removed in one pass, and the incoming ones are merged in with another, so that
+     * the patch costs a pass over the table however many rows come in.
+     *
+     * @param songs is the table of songs to patch, sorted in this pass's sort order.
+     * @param sectionIndex is the table's sections, or null if it has none.
+     * @param groupIndex is the table's groups, or null if it has none.
+     * @return the rows that were removed and inserted.
+     */
+    public Patch applyTo(SongTable songs, SectionIndex sectionIndex, GroupIndex groupIndex) {
+        List<Song> incoming = new ArrayList<>(mAdded.size() + mChanged.size());
+        incoming.addAll(mAdded);
+        incoming.addAll(mChanged);
+        if (mFull || incoming.size() * BULK_INSERT_RATIO > songs.size()) {
+            copyTo(songs);
+            if (sectionIndex != null && mSectionIndex != null) sectionIndex.copyFrom(mSectionIndex);
+            if (groupIndex != null && mGroupIndex != null) groupIndex.copyFrom(mGroupIndex);
+            return new Patch(true, new int[0], new int[0]);
+        }
+
+        // Collects the IDs of every row that should leave the table. Incoming rows are removed as
+        // well, and then re-inserted at their (possibly new) sorted position afterwards, which also
+        // keeps the patch harmless should it be applied to the same table twice.
+        long[] outgoing = new long[mRemovedIds.length + incoming.size()];
+        System.arraycopy(mRemovedIds, 0, outgoing, 0, mRemovedIds.length);
+        for (int i = 0; i < incoming.size(); i++) {
+            outgoing[mRemovedIds.length + i] = incoming.get(i).getID();
+        }
+        Arrays.sort(outgoing);
+
+        // Compacts the table column by column in a single pass, rather than removing the rows one
+        // at a time or rewriting each one through a Song. The sections are uncounted first, while
+        // the rows' old fields are still there.
+        if (sectionIndex != null) sectionIndex.removeRows(songs, outgoing);
+        if (groupIndex != null) groupIndex.removeRows(songs, outgoing);
+        int[] removedPositions = songs.removeIds(outgoing);
+
+        // Merges the rows in at their sorted positions in a single pass.
+        Comparator<Song> order = SongSorter.comparator(mSortOrder);
+        Collections.sort(incoming, order);
+        int[] insertedPositions = songs.insertSorted(incoming, order);
+        if (sectionIndex != null) {
+            for (Song song : incoming) sectionIndex.add(song);
+        }
+
+        // Adds the rows to their groups once they're all in place, so that the positions after
+        // them are shifted in a single pass.
+        if (groupIndex != null) {
+            long[] incomingIds = new long[incoming.size()];
+            for (int i = 0; i < incomingIds.length; i++) incomingIds[i] = incoming.get(i).getID();
+            Arrays.sort(incomingIds);
+            groupIndex.insertRows(songs, incomingIds);
+        }
+
+        return new Patch(false, removedPositions, insertedPositions);
+    }
+
+    /**
+     * Patches a sorted order of the previous pass's library into the same order of this pass's
+     * library, along with its sections and groups, the way {@link #applyTo(SongTable,
+     * SectionIndex, GroupIndex)} patches a list - the rows that stay keep their relative order,
+     * and only the incoming ones are compared to find their positions. Should most of the library
+     * change, nothing is patched, since sorting from scratch is cheaper.
+     *
+     * @param previousLibrary is the library of the previous pass, which has to be sorted by ID.
+     * @param sortOrder is the order.
+     * @param previousOrder is the previous library's rows in that order.
+     * @param sectionIndex is a copy of the previous order's sections, to be patched.
+     * @param groupIndex is a copy of the previous order's groups, to be patched.
+     * @return this library's rows in the order, or null should nothing have been patched.
+     */
+    int[] patchOrder(SongTable previousLibrary, SongSorter.SortOrder sortOrder,
+                     int[] previousOrder, SectionIndex sectionIndex, GroupIndex groupIndex) {
+        List<Song> incoming = new ArrayList<>(mAdded.size() + mChanged.size());
+        incoming.addAll(mAdded);
+        incoming.addAll(mChanged);
+        if (mFull || incoming.size() * BULK_INSERT_RATIO > previousOrder.length) return null;
+
+        // Collects the IDs of every row that leaves the order - changed rows leave it as well, and
+        // come back in at their (possibly new) position.
+        long[] outgoing = new long[mRemovedIds.length + mChanged.size()];
+        System.arraycopy(mRemovedIds, 0, outgoing, 0, mRemovedIds.length);
+        for (int i = 0; i < mChanged.size(); i++) {
+            outgoing[mRemovedIds.length + i] = mChanged.get(i).getID();
+        }
+        Arrays.sort(outgoing);
+        sectionIndex.removeRows(previousLibrary, outgoing);
+        for (Song song : incoming) sectionIndex.add(song);
+
+        // Maps each previous row to its row in this library by walking both in ID order, and then
+        // keeps the order of the rows that stay.
+        int[] rows = new int[previousLibrary.size()];
+        int row = 0;
+        for (int i = 0; i < rows.length; i++) {
+            long id = previousLibrary.getID(i);
+            while (row < mLibrary.size() && mLibrary.getID(row) < id) row++;
+            rows[i] = row < mLibrary.size() && mLibrary.getID(row) == id
+                    && Arrays.binarySearch(outgoing, id) < 0 ? row : -1;
+        }
+        int[] kept = new int[previousOrder.length];
+        int keptCount = 0;
+        int[] positions = new int[previousOrder.length];
+        for (int position = 0; position < previousOrder.length; position++) {
+            int keptRow = rows[previousOrder[position]];
+            positions[position] = keptRow >= 0 ? keptCount : -1;
+            if (keptRow >= 0) kept[keptCount++] = keptRow;
+        }
+
+        // Merges the incoming rows in, in sorted order, binary searching each one's position
+        // among the rows that stay.
+        Comparator<Song> order = SongSorter.comparator(sortOrder);
+        Collections.sort(incoming, order);
+        int[] patched = new int[keptCount + incoming.size()];
+        int[] inserted = new int[incoming.size()];
+        int[] keptPositions = new int[keptCount];
+        int read = 0;
+        int write = 0;
+        for (int i = 0; i < incoming.size(); i++) {
+            Song song = incoming.get(i);
+            int low = read;
+            int high = keptCount;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (order.compare(mLibrary.get(kept[middle]), song) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            for (; read < low; read++) {
+                keptPositions[read] = write;
+                patched[write++] = kept[read];
+            }
+            inserted[i] = write;
+            patched[write++] = mLibrary.binarySearchId(song.getID());
+        }
+        for (; read < keptCount; read++) {
+            keptPositions[read] = write;
+            patched[write++] = kept[read];
+        }
+
+        // Moves the groups' positions along with their rows, and adds the incoming rows.
+        for (int position = 0; position < positions.length; position++) {
+            if (positions[position] >= 0) positions[position] = keptPositions[positions[position]];
+        }
+        groupIndex.patch(positions, mLibrary, patched, inserted);
+
+        return patched;
+    }
+
+    /**
+     * Returns the IDs that are in the known set, but no longer in the current set.
+     *
+     * @param knownIds is the IDs from the previous pass, sorted ascending.
+     * @param currentIds is the IDs from this pass, sorted ascending.
+     */
+    static long[] removedIds(long[] knownIds, long[] currentIds) {
+        long[] removed = new long[knownIds.length];
+        int count = 0;
+
+        // Walks both sorted arrays in lockstep - a known ID that's skipped over was removed.
+        int j = 0;
+        for (long id : knownIds) {
+            while (j < currentIds.length && currentIds[j] < id) j++;
+            if (j >= currentIds.length || currentIds[j] != id) removed[count++] = id;
+        }
+
+        long[] result = new long[count];
+        System.arraycopy(removed, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Converts a {@link LibraryDelta} object to a string.
+     */
+    @Override
+    public String toString() {
+        return "LibraryDelta{" +
+                "mFull=" + mFull +
+                ", library=" + mLibrary.size() +
+                ", added=" + mAdded.size() +
+                ", changed=" + mChanged.size() +
+                ", removed=" + mRemovedIds.length +
+                '}';
+    }
+}
@@ -0,0 +1,255 @@
+package com.davenotdavid.musicplayerlite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Compact on-disk copy of the sorted song list, used for rendering the list right away on a cold
+ * start while the MediaStore is checked in the background.
+ *
+ * The file consists of a fixed-size header, one fixed-width record per song, and a heap of UTF-8
+ * strings the records point into (identical strings, such as an artist's name, are stored once).
+ * Everything after the header is covered by a CRC32 checksum that's stored in the header.
+ */
+public class LibrarySnapshot {
+
+    // File format constants - the version is bumped whenever the layout changes.
+    private static final int MAGIC = 0x4d504c53; // "MPLS"
+    static final int VERSION = 2;
+    private static final int HEADER_SIZE = 40;
+    private static final int RECORD_SIZE = 40;
+
+    // Charset constant used for the string heap.
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Fields read back from the file.
+    private final SongTable mSongs;
+    private final long mMaxDateModified;
+    private final long mMaxId;
+
+    /**
+     * Creates a {@link LibrarySnapshot} object.
+     *
+     * @param songs is the sorted list of songs.
+     * @param maxDateModified is the DATE_MODIFIED high-water mark the list was synced up to.
+     * @param maxId is the ID high-water mark the list was synced up to.
+     */
+    private LibrarySnapshot(SongTable songs, long maxDateModified, long maxId) {
+        mSongs = songs;
+        mMaxDateModified = maxDateModified;
+        mMaxId = maxId;
+    }
+
+    /**
+     * Getter method for the sorted list of songs.
+     */
+    public SongTable getSongs() {
+        return mSongs;
+    }
+
+    /**
+     * Getter method for the DATE_MODIFIED high-water mark.
+     */
+    public long getMaxDateModified() {
+        return mMaxDateModified;
+    }
+
+    /**
+     * Getter method for the ID high-water mark.
+     */
+    public long getMaxId() {
+        return mMaxId;
+    }
+
+    /**
+     * Writes the passed-in songs to a temporary file first, and then renames it over the snapshot
+     * file so that a crash mid-write never leaves a half-written snapshot behind.
+     *
+     * @param file is the snapshot file.
+     * @param songs is the sorted list of songs.
+     * @param maxDateModified is the DATE_MODIFIED high-water mark the list was synced up to.
+     * @param maxId is the ID high-water mark the list was synced up to.
+     */
+    public static void write(File file, List<Song> songs, long maxDateModified, long maxId)
+            throws IOException {
+        int count = songs.size();
+
+        // Lays out the string heap, with each distinct string stored once and keyed by its packed
+        // offset and length.
+        ByteArrayOutputStream heap = new ByteArrayOutputStream();
+        Map<String, Long> heapEntries = new HashMap<>();
+        long[] entries = new long[count * 3];
+        for (int i = 0; i < count; i++) {
+            Song song = songs.get(i);
+            entries[i * 3] = heapEntry(song.getTitle(), heap, heapEntries);
+            entries[i * 3 + 1] = heapEntry(song.getArtist(), heap, heapEntries);
+            entries[i * 3 + 2] = heapEntry(song.getPath(), heap, heapEntries);
+        }
+
+        // Writes the fixed-width records followed by the string heap.
+        ByteBuffer body = ByteBuffer.allocate(count * RECORD_SIZE + heap.size())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < count; i++) {
+            Song song = songs.get(i);
+            body.putLong(song.getID());
+            body.putLong(song.getAlbumID());
+            for (int j = 0; j < 3; j++) {
+                long entry = entries[i * 3 + j];
+                body.putInt((int) (entry >>> 32));
+                body.putInt((int) entry);
+            }
+        }
+        body.put(heap.toByteArray());
+
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, body.capacity());
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(count);
+        header.putInt(heap.size());
+        header.putLong(maxDateModified);
+        header.putLong(maxId);
+        header.putLong(crc.getValue());
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(header.array());
+            out.write(body.array());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * Memory-maps and reads back a snapshot file, verifying its header and checksum first.
+     *
+     * @param file is the snapshot file.
+     * @throws IOException should the file be unreadable, of another version, or corrupt.
+     */
+    public static LibrarySnapshot read(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE) throw new IOException("Snapshot truncated");
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            // Validates the header before trusting any of the sizes in it.
+            if (buffer.getInt() != MAGIC) throw new IOException("Not a snapshot");
+            int version = buffer.getInt();
+            if (version != VERSION) throw new IOException("Snapshot version " + version);
+            int count = buffer.getInt();
+            int heapSize = buffer.getInt();
+            long maxDateModified = buffer.getLong();
+            long maxId = buffer.getLong();
+            long checksum = buffer.getLong();
+            if (count < 0 || heapSize < 0
+                    || HEADER_SIZE + (long) count * RECORD_SIZE + heapSize != size) {
+                throw new IOException("Snapshot size mismatch");
+            }
+
+            // Verifies the checksum over everything after the header.
+            byte[] chunk = new byte[64 * 1024];
+            CRC32 crc = new CRC32();
+            buffer.position(HEADER_SIZE);
+            while (buffer.hasRemaining()) {
+                int length = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, length);
+                crc.update(chunk, 0, length);
+            }
+            if (crc.getValue() != checksum) throw new IOException("Snapshot checksum mismatch");
+
+            // Decodes the records straight into a compact song table - strings at the same heap
+            // offset and of the same length are only decoded once.
+            int heapStart = HEADER_SIZE + count * RECORD_SIZE;
+            Map<Long, String> strings = new HashMap<>();
+            SongTable songs = new SongTable(count);
+            buffer.position(HEADER_SIZE);
+            for (int i = 0; i < count; i++) {
+                long id = buffer.getLong();
+                long albumId = buffer.getLong();
+                String title = readString(buffer, heapStart, heapSize, chunk, strings);
+                String artist = readString(buffer, heapStart, heapSize, chunk, strings);
+                String path = readString(buffer, heapStart, heapSize, chunk, strings);
+                songs.add(new Song(id, title, artist, path, albumId));
+            }
+
+            return new LibrarySnapshot(songs, maxDateModified, maxId);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Returns the packed heap offset and length of the passed-in string, adding it to the heap
+     * should it not be there yet. A null string is stored as a length of -1.
+     */
+    private static long heapEntry(String value, ByteArrayOutputStream heap,
+                                  Map<String, Long> heapEntries) {
+        if (value == null) return 0xffffffffL;
+
+        Long entry = heapEntries.get(value);
+        if (entry == null) {
+            byte[] bytes = value.getBytes(UTF_8);
+            entry = ((long) heap.size() << 32) | bytes.length;
+            heap.write(bytes, 0, bytes.length);
+            heapEntries.put(value, entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Reads the next offset/length pair from the passed-in buffer and decodes the string it
+     * points to. Decoded strings are cached by both their offset and their length, since an
+     * empty string takes no room in the heap and so shares its offset with the next string.
+     */
+    private static String readString(MappedByteBuffer buffer, int heapStart, int heapSize,
+                                     byte[] scratch, Map<Long, String> strings)
+            throws IOException {
+        int offset = buffer.getInt();
+        int length = buffer.getInt();
+        if (length == -1) return null;
+        if (offset < 0 || length < 0 || (long) offset + length > heapSize) {
+            throw new IOException("Snapshot string out of bounds");
+        }
+
+        if (length == 0) return "";
+
+        long entry = ((long) offset << 32) | length;
+        String value = strings.get(entry);
+        if (value == null) {
+            byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+            int position = buffer.position();
+            buffer.position(heapStart + offset);
+            buffer.get(bytes, 0, length);
+            buffer.position(position);
+            value = new String(bytes, 0, length, UTF_8);
+            strings.put(entry, value);
+        }
+
+        return value;
+    }
+}
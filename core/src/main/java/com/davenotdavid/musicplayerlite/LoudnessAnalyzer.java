@@ -0,0 +1,286 @@
+package com.davenotdavid.musicplayerlite;
+
+/**
+ * Streaming analyzer of a track's integrated loudness (as per ITU-R BS.1770, in LUFS) and sample
+ * peak, which the track's decoded PCM is fed to chunk by chunk.
+ *
+ * Samples are K-weighted by two biquads per channel, and their power is summed over 100 ms steps.
+ * Every step completes a 400 ms block (i.e. blocks overlap by 75%), whose loudness goes into a
+ * histogram of 0.01 LU bins rather than a growing list, so that the absolute (-70 LUFS) and
+ * relative (-10 LU) gates can be applied at the end no matter how long the track is. Everything is
+ * allocated up front, so analyzing a track never allocates, and an analyzer can be reset and
+ * reused for the next one.
+ */
+public class LoudnessAnalyzer {
+
+    // Most channels a track may have.
+    public static final int MAX_CHANNELS = 8;
+
+    // Loudness of tracks that are too short or too quiet to be measured.
+    public static final double UNMEASURED = Double.NEGATIVE_INFINITY;
+
+    // Offset of the loudness formula, which makes a 1 kHz sine read its RMS level.
+    private static final double LOUDNESS_OFFSET = -0.691;
+
+    // Blocks quieter than this never count, and blocks this far below the loudness of the
+    // absolutely-gated blocks don't count either.
+    private static final double ABSOLUTE_GATE = -70.0;
+    private static final double RELATIVE_GATE = -10.0;
+
+    // Steps per block, and steps per second.
+    private static final int STEPS_PER_BLOCK = 4;
+    private static final int STEPS_PER_SECOND = 10;
+
+    // Range and resolution of the block histogram - louder blocks go into the top bin.
+    private static final double HISTOGRAM_MAX = 5.0;
+    private static final int BINS_PER_LU = 100;
+    private static final int BIN_COUNT = (int) ((HISTOGRAM_MAX - ABSOLUTE_GATE) * BINS_PER_LU);
+
+    // Weight of the surround channels of 5.1 audio.
+    private static final double SURROUND_WEIGHT = 1.41;
+
+    // Format of the track being analyzed.
+    private int mChannels;
+    private int mStepFrames;
+
+    // Coefficients of the high-shelf and the high-pass filter, normalized so that a0 is 1.
+    private double mShelfB0, mShelfB1, mShelfB2, mShelfA1, mShelfA2;
+    private double mPassB0, mPassB1, mPassB2, mPassA1, mPassA2;
+
+    // Filter states per channel (two per biquad), and channel weights.
+    private final double[] mShelfState = new double[MAX_CHANNELS * 2];
+    private final double[] mPassState = new double[MAX_CHANNELS * 2];
+    private final double[] mWeights = new double[MAX_CHANNELS];
+
+    // Weighted power of the step in progress, and the frames it still needs.
+    private double mStepPower;
+    private int mStepRemaining;
+
+    // Weighted power of the most recent steps, as a ring, and the number of steps so far.
+    private final double[] mRecentSteps = new double[STEPS_PER_BLOCK];
+    private long mStepCount;
+
+    // Histogram of the blocks above the absolute gate - their counts and summed powers per bin.
+    private final long[] mBinCounts = new long[BIN_COUNT];
+    private final double[] mBinPowers = new double[BIN_COUNT];
+
+    // Largest absolute sample value so far.
+    private float mPeak;
+
+    /**
+     * Creates a {@link LoudnessAnalyzer} object, which has to be reset to a track's format
+     * before any samples are processed.
+     */
+    public LoudnessAnalyzer() {}
+
+    /**
+     * Discards everything analyzed so far, and prepares for a track of the passed-in format.
+     *
+     * @param sampleRate is the track's sample rate in Hz.
+     * @param channels is the track's number of channels.
+     */
+    public void reset(int sampleRate, int channels) {
+        if (sampleRate <= 0) throw new IllegalArgumentException("Sample rate: " + sampleRate);
+        if (channels <= 0 || channels > MAX_CHANNELS) {
+            throw new IllegalArgumentException("Channels: " + channels);
+        }
+
+        mChannels = channels;
+        mStepFrames = Math.max(1, sampleRate / STEPS_PER_SECOND);
+
+        // High-shelf stage, modelling the acoustic effect of the head.
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double q = 0.7071752369554196;
+        double vh = Math.pow(10.0, 3.999843853973347 / 20.0);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1.0 + k / q + k * k;
+        mShelfB0 = (vh + vb * k / q + k * k) / a0;
+        mShelfB1 = 2.0 * (k * k - vh) / a0;
+        mShelfB2 = (vh - vb * k / q + k * k) / a0;
+        mShelfA1 = 2.0 * (k * k - 1.0) / a0;
+        mShelfA2 = (1.0 - k / q + k * k) / a0;
+
+        // High-pass stage (the revised low-frequency B-curve).
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        q = 0.5003270373238773;
+        a0 = 1.0 + k / q + k * k;
+        mPassB0 = 1.0;
+        mPassB1 = -2.0;
+        mPassB2 = 1.0;
+        mPassA1 = 2.0 * (k * k - 1.0) / a0;
+        mPassA2 = (1.0 - k / q + k * k) / a0;
+
+        // Weighs the surround channels of 5.1 audio up, and leaves out its LFE channel.
+        for (int c = 0; c < channels; c++) {
+            mWeights[c] = channels != 6 || c < 3 ? 1.0 : (c == 3 ? 0.0 : SURROUND_WEIGHT);
+        }
+
+        for (int i = 0; i < mShelfState.length; i++) {
+            mShelfState[i] = 0;
+            mPassState[i] = 0;
+        }
+        for (int i = 0; i < BIN_COUNT; i++) {
+            mBinCounts[i] = 0;
+            mBinPowers[i] = 0;
+        }
+        for (int i = 0; i < STEPS_PER_BLOCK; i++) mRecentSteps[i] = 0;
+        mStepPower = 0;
+        mStepRemaining = mStepFrames;
+        mStepCount = 0;
+        mPeak = 0;
+    }
+
+    /**
+     * Analyzes the next chunk of the track.
+     *
+     * @param samples is the chunk's samples, interleaved by channel and nominally within [-1, 1].
+     * @param offset is the index of the chunk's first sample.
+     * @param frames is the number of frames (i.e. samples per channel) in the chunk.
+     */
+    public void process(float[] samples, int offset, int frames) {
+        if (mChannels == 0) throw new IllegalStateException("Not reset to a format");
+
+        // Splits the chunk at step boundaries, so that each segment belongs to a single step.
+        while (frames > 0) {
+            int segment = Math.min(frames, mStepRemaining);
+            for (int c = 0; c < mChannels; c++) {
+                if (mWeights[c] != 0) {
+                    mStepPower += mWeights[c] * filterChannel(samples, offset + c, segment, c);
+                }
+            }
+
+            offset += segment * mChannels;
+            frames -= segment;
+            mStepRemaining -= segment;
+            if (mStepRemaining == 0) completeStep();
+        }
+    }
+
+    /**
+     * K-weights a segment of one channel, carrying the filter state over from the previous one.
+     *
+     * @return the segment's summed squares after weighting.
+     */
+    private double filterChannel(float[] samples, int start, int frames, int channel) {
+        final int stride = mChannels;
+        final double sb0 = mShelfB0, sb1 = mShelfB1, sb2 = mShelfB2, sa1 = mShelfA1;
+        final double sa2 = mShelfA2;
+        final double pb0 = mPassB0, pb1 = mPassB1, pb2 = mPassB2, pa1 = mPassA1;
+        final double pa2 = mPassA2;
+
+        // Transposed direct form II, with the states held in locals for the duration.
+        double s1 = mShelfState[channel * 2], s2 = mShelfState[channel * 2 + 1];
+        double p1 = mPassState[channel * 2], p2 = mPassState[channel * 2 + 1];
+        double sum = 0;
+        float peak = mPeak;
+
+        int end = start + frames * stride;
+        for (int i = start; i < end; i += stride) {
+            float sample = samples[i];
+            float magnitude = sample < 0 ? -sample : sample;
+            if (magnitude > peak) peak = magnitude;
+
+            double shelved = sb0 * sample + s1;
+            s1 = sb1 * sample - sa1 * shelved + s2;
+            s2 = sb2 * sample - sa2 * shelved;
+
+            double weighted = pb0 * shelved + p1;
+            p1 = pb1 * shelved - pa1 * weighted + p2;
+            p2 = pb2 * shelved - pa2 * weighted;
+
+            sum += weighted * weighted;
+        }
+
+        mShelfState[channel * 2] = s1;
+        mShelfState[channel * 2 + 1] = s2;
+        mPassState[channel * 2] = p1;
+        mPassState[channel * 2 + 1] = p2;
+        mPeak = peak;
+
+        return sum;
+    }
+
+    /**
+     * Completes the step in progress, along with the block that ends with it.
+     */
+    private void completeStep() {
+        mRecentSteps[(int) (mStepCount % STEPS_PER_BLOCK)] = mStepPower;
+        mStepCount++;
+        mStepPower = 0;
+        mStepRemaining = mStepFrames;
+        if (mStepCount < STEPS_PER_BLOCK) return;
+
+        double blockPower = 0;
+        for (int i = 0; i < STEPS_PER_BLOCK; i++) blockPower += mRecentSteps[i];
+        blockPower /= (double) STEPS_PER_BLOCK * mStepFrames;
+
+        double loudness = loudnessOf(blockPower);
+        if (loudness <= ABSOLUTE_GATE) return;
+
+        int bin = Math.min(BIN_COUNT - 1, (int) ((loudness - ABSOLUTE_GATE) * BINS_PER_LU));
+        mBinCounts[bin]++;
+        mBinPowers[bin] += blockPower;
+    }
+
+    /**
+     * Returns the integrated loudness of what's been analyzed so far in LUFS, or
+     * {@link #UNMEASURED} should there be no block above the absolute gate (e.g. for tracks
+     * shorter than a block, or silent ones).
+     */
+    public double getIntegratedLoudness() {
+
+        // Averages every block above the absolute gate for the relative gate.
+        long count = 0;
+        double power = 0;
+        for (int i = 0; i < BIN_COUNT; i++) {
+            count += mBinCounts[i];
+            power += mBinPowers[i];
+        }
+        if (count == 0) return UNMEASURED;
+
+        // Averages the blocks that are above the relative gate as well. Blocks whose bin starts
+        // at the gate or above count, so the gate is accurate to the bin size.
+        double relativeGate = loudnessOf(power / count) + RELATIVE_GATE;
+        int firstBin = Math.max(0, (int) Math.ceil((relativeGate - ABSOLUTE_GATE) * BINS_PER_LU));
+        count = 0;
+        power = 0;
+        for (int i = firstBin; i < BIN_COUNT; i++) {
+            count += mBinCounts[i];
+            power += mBinPowers[i];
+        }
+
+        return count == 0 ? UNMEASURED : loudnessOf(power / count);
+    }
+
+    /**
+     * Returns the largest absolute sample value analyzed so far.
+     */
+    public float getPeak() {
+        return mPeak;
+    }
+
+    /**
+     * Returns the loudness of the passed-in mean weighted power.
+     */
+    private static double loudnessOf(double power) {
+        return LOUDNESS_OFFSET + 10.0 * Math.log10(power);
+    }
+
+    /**
+     * Returns the gain that brings a track to the passed-in target loudness, lowered as far as
+     * needed for its peak not to clip.
+     *
+     * @param loudness is the track's integrated loudness in LUFS.
+     * @param peak is the track's sample peak.
+     * @param target is the target loudness in LUFS.
+     * @return the gain in dB, or 0 for tracks that couldn't be measured.
+     */
+    public static double gainFor(double loudness, float peak, double target) {
+        if (loudness == UNMEASURED) return 0;
+
+        double gain = target - loudness;
+        if (peak > 0) gain = Math.min(gain, -20.0 * Math.log10(peak));
+
+        return gain;
+    }
+}
@@ -0,0 +1,40 @@
+package com.davenotdavid.musicplayerlite;
+
+/**
+ * Gate that background work passes through before each unit of work, so that it can be held back
+ * while something more important runs (e.g. while a song is being prepared for playback). Work
+ * that's already past the gate isn't interrupted.
+ */
+public class PauseGate {
+
+    // Boolean flag that's used to indicate whether the gate is closed.
+    private boolean mPaused;
+
+    /**
+     * Opens or closes the gate.
+     *
+     * @param paused is true for holding back work, or false for letting it through.
+     */
+    public synchronized void setPaused(boolean paused) {
+        if (paused == mPaused) return;
+
+        mPaused = paused;
+        if (!paused) notifyAll();
+    }
+
+    /**
+     * Returns whether or not the gate is closed.
+     */
+    public synchronized boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * Blocks until the gate is open.
+     *
+     * @throws InterruptedException should the waiting thread be interrupted.
+     */
+    public synchronized void await() throws InterruptedException {
+        while (mPaused) wait();
+    }
+}
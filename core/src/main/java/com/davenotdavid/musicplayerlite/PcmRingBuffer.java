@@ -0,0 +1,302 @@
+package com.davenotdavid.musicplayerlite;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-size ring of PCM bytes between a decoding thread and an output thread. Its array is
+ * allocated once up front, and writing or reading only copies bytes and moves a counter, so the
+ * steady-state audio path allocates nothing and takes no locks - the monitor is only entered by
+ * a side that's about to wait, and by the other side to wake it.
+ *
+ * Exactly one thread writes and exactly one thread reads. The writer can also flush the ring
+ * (e.g. after a seek), which the reader applies on its next read so that it's never copying out
+ * of bytes being overwritten. Times the reader found the ring empty before the end of the stream
+ * are counted as underruns, once per starvation rather than once per read.
+ */
+public class PcmRingBuffer {
+
+    // Backing array, which is never reallocated.
+    private final byte[] mData;
+
+    // Total bytes written and read, which only ever grow - their difference is the fill level,
+    // and each modulo the capacity is the position within the array. Each is only advanced by
+    // its own side, and only after the bytes were copied.
+    private volatile long mWritten;
+    private volatile long mRead;
+
+    // Point the reader skips ahead to on its next read, and the number of flushes so far.
+    private volatile long mFlushTo;
+    private volatile int mFlushCount;
+
+    // Boolean flag that's used to indicate that the writer won't write anything more.
+    private volatile boolean mEndOfStream;
+
+    // Boolean flags that are used to indicate that the writer or the reader is waiting to be
+    // woken.
+    private volatile boolean mWriterWaiting, mReaderWaiting;
+
+    // Fields used for counting underruns, only written by the reader.
+    private volatile long mUnderruns;
+    private boolean mStarved = true;
+
+    /**
+     * Creates a {@link PcmRingBuffer} object.
+     *
+     * @param capacity is the size of the ring in bytes.
+     */
+    public PcmRingBuffer(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity: " + capacity);
+
+        mData = new byte[capacity];
+    }
+
+    /**
+     * Returns the size of the ring in bytes.
+     */
+    public int capacity() {
+        return mData.length;
+    }
+
+    /**
+     * Returns the number of bytes waiting to be read, not counting flushed ones.
+     */
+    public int available() {
+        return (int) (mWritten - Math.max(mRead, mFlushTo));
+    }
+
+    /**
+     * Returns the number of bytes that can be written without waiting. Flushed bytes only free
+     * up their room once the reader has skipped them.
+     */
+    public int free() {
+        return mData.length - (int) (mWritten - mRead);
+    }
+
+    /**
+     * Returns the fraction of the ring that's waiting to be read, within [0, 1].
+     */
+    public float getFillLevel() {
+        return (float) available() / mData.length;
+    }
+
+    /**
+     * Returns the number of times the reader found the ring empty before the end of the stream.
+     */
+    public long getUnderrunCount() {
+        return mUnderruns;
+    }
+
+    /**
+     * Returns the number of flushes so far, so that the reader can tell one happened (e.g. to
+     * flush its own output as well).
+     */
+    public int getFlushCount() {
+        return mFlushCount;
+    }
+
+    /**
+     * Returns whether or not the writer won't write anything more.
+     */
+    public boolean isEndOfStream() {
+        return mEndOfStream;
+    }
+
+    /**
+     * Returns whether or not the stream ended and every byte of it was read.
+     */
+    public boolean isDrained() {
+        return mEndOfStream && available() == 0;
+    }
+
+    /**
+     * Writes as many of the passed-in buffer's remaining bytes as there's room for, advancing the
+     * buffer's position by as many. Only called by the writer.
+     *
+     * @param src is the buffer, e.g. a decoder's output buffer.
+     * @return the number of bytes written.
+     */
+    public int write(ByteBuffer src) {
+        int count = Math.min(src.remaining(), free());
+        if (count == 0) return 0;
+
+        int offset = (int) (mWritten % mData.length);
+        int first = Math.min(count, mData.length - offset);
+        src.get(mData, offset, first);
+        if (count > first) src.get(mData, 0, count - first);
+
+        return advanceWritten(count);
+    }
+
+    /**
+     * Writes as many of the passed-in bytes as there's room for. Only called by the writer.
+     *
+     * @param src is the array holding the bytes.
+     * @param offset is the offset of the first byte.
+     * @param length is the number of bytes.
+     * @return the number of bytes written.
+     */
+    public int write(byte[] src, int offset, int length) {
+        int count = Math.min(length, free());
+        if (count == 0) return 0;
+
+        int position = (int) (mWritten % mData.length);
+        int first = Math.min(count, mData.length - position);
+        System.arraycopy(src, offset, mData, position, first);
+        if (count > first) System.arraycopy(src, offset + first, mData, 0, count - first);
+
+        return advanceWritten(count);
+    }
+
+    /**
+     * Reads up to the passed-in number of bytes, without waiting for more. Only called by the
+     * reader.
+     *
+     * @param dst is the array the bytes are copied into.
+     * @param offset is the offset the first byte is copied to.
+     * @param length is the most bytes to read.
+     * @return the number of bytes read, which is 0 should the ring be empty.
+     */
+    public int read(byte[] dst, int offset, int length) {
+        long flushTo = mFlushTo;
+        if (flushTo > mRead) {
+            advanceRead(flushTo - mRead);
+
+            // Refilling after a flush isn't the writer falling behind.
+            mStarved = true;
+        }
+
+        int count = Math.min(length, available());
+        if (count == 0) {
+            if (!mStarved && !mEndOfStream) {
+                mStarved = true;
+                mUnderruns++;
+            }
+            return 0;
+        }
+        mStarved = false;
+
+        int position = (int) (mRead % mData.length);
+        int first = Math.min(count, mData.length - position);
+        System.arraycopy(mData, position, dst, offset, first);
+        if (count > first) System.arraycopy(mData, 0, dst, offset + first, count - first);
+
+        advanceRead(count);
+        return count;
+    }
+
+    /**
+     * Discards every byte written so far, e.g. after the writer seeked elsewhere. Only called by
+     * the writer - the reader skips them on its next read.
+     */
+    public void flush() {
+        mEndOfStream = false;
+        mFlushTo = mWritten;
+        mFlushCount++;
+        signal();
+    }
+
+    /**
+     * Marks the end of the stream, after which an empty ring is drained rather than starved.
+     * Only called by the writer.
+     */
+    public void markEndOfStream() {
+        mEndOfStream = true;
+        signal();
+    }
+
+    /**
+     * Empties the ring and resets its counters, e.g. before it's reused for another stream. Must
+     * only be called while neither side is using the ring.
+     */
+    public void clear() {
+        mWritten = 0;
+        mRead = 0;
+        mFlushTo = 0;
+        mEndOfStream = false;
+        mUnderruns = 0;
+        mStarved = true;
+    }
+
+    /**
+     * Blocks the writer until there's room for the passed-in number of bytes, or until the
+     * timeout passes.
+     *
+     * @param bytes is the number of bytes, which is capped at the capacity.
+     * @param timeoutMillis is the most time to wait.
+     * @return whether or not there's room now.
+     * @throws InterruptedException should the thread be interrupted while waiting.
+     */
+    public boolean awaitFree(int bytes, long timeoutMillis) throws InterruptedException {
+        int needed = Math.min(bytes, mData.length);
+        if (free() >= needed) return true;
+
+        synchronized (this) {
+            mWriterWaiting = true;
+            if (free() < needed) wait(timeoutMillis);
+            mWriterWaiting = false;
+        }
+        return free() >= needed;
+    }
+
+    /**
+     * Blocks the reader until there's something to read, the stream ended or was flushed, or the
+     * timeout passes.
+     *
+     * @param timeoutMillis is the most time to wait.
+     * @return whether or not there's something to read now.
+     * @throws InterruptedException should the thread be interrupted while waiting.
+     */
+    public boolean awaitAvailable(long timeoutMillis) throws InterruptedException {
+        if (available() > 0 || mEndOfStream) return available() > 0;
+
+        synchronized (this) {
+            mReaderWaiting = true;
+            if (available() == 0 && !mEndOfStream && mFlushTo <= mRead) wait(timeoutMillis);
+            mReaderWaiting = false;
+        }
+        return available() > 0;
+    }
+
+    /**
+     * Wakes whichever side is waiting, e.g. after a pause or a seek that it should notice. The
+     * flag is set before the waiting side checks its condition, and the counters are advanced
+     * before it's read here, so a wake-up can't fall in between.
+     */
+    public void signal() {
+        if (!mWriterWaiting && !mReaderWaiting) return;
+
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Publishes written bytes to the reader.
+     */
+    private int advanceWritten(int count) {
+        mWritten += count;
+        signal();
+        return count;
+    }
+
+    /**
+     * Frees read bytes up for the writer.
+     */
+    private void advanceRead(long count) {
+        mRead += count;
+        signal();
+    }
+
+    /**
+     * Converts a {@link PcmRingBuffer} object to a string.
+     */
+    @Override
+    public String toString() {
+        return "PcmRingBuffer{" +
+                "capacity=" + mData.length +
+                ", available=" + available() +
+                ", mUnderruns=" + mUnderruns +
+                ", mEndOfStream=" + mEndOfStream +
+                '}';
+    }
+}
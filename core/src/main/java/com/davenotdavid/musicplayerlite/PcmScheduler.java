@@ -0,0 +1,228 @@
+package com.davenotdavid.musicplayerlite;
+
+/**
+ * Decides when a decoding engine's PCM moves on - when the decoder should write into the
+ * {@link PcmRingBuffer} and how much, when enough is buffered for playback to start, how much
+ * the output thread hands to the audio output at a time, where playback is, and when the track
+ * has played out completely. It holds no platform types, so the engine's timing can be driven
+ * (and checked) without a decoder or an audio output.
+ *
+ * The decoder's side calls {@link #configure(int, int, long)}, {@link #seekTo(long)} and the
+ * ring's write methods; the output's side calls {@link #nextChunk(int)},
+ * {@link #onOutputWritten(int)} and {@link #onOutputFlushed()}. Positions are derived from the
+ * output's playback head (in frames since it was last flushed) rather than from what was
+ * written, so that the output's own buffering doesn't make the position run ahead.
+ */
+public class PcmScheduler {
+
+    // Share of the ring that must be filled before playback starts, so that the decoder has a
+    // head start on the output.
+    private static final float PREBUFFER_LEVEL = 0.5f;
+
+    // Ring the PCM goes through.
+    private final PcmRingBuffer mBuffer;
+
+    // Format of the PCM, along with the track's length (or -1 if unknown).
+    private volatile int mSampleRate;
+    private volatile int mFrameBytes;
+    private volatile long mDurationMillis = -1;
+
+    // Position the output's playback head started at, and the one it'll start at once the output
+    // is flushed after a seek.
+    private volatile long mBaseMillis;
+    private volatile long mPendingBaseMillis = -1;
+
+    // Bytes handed to the output since it was last flushed, only written by the output's side.
+    private volatile long mOutputBytes;
+
+    /**
+     * Creates a {@link PcmScheduler} object.
+     *
+     * @param buffer is the ring the PCM goes through.
+     */
+    public PcmScheduler(PcmRingBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * Getter method for the ring the PCM goes through.
+     */
+    public PcmRingBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Sets the format of the PCM, e.g. once the decoder reports its output format.
+     *
+     * @param sampleRate is the number of frames per second.
+     * @param frameBytes is the size of a frame, i.e. of a sample of every channel.
+     * @param durationMillis is the track's length, or -1 if unknown.
+     */
+    public void configure(int sampleRate, int frameBytes, long durationMillis) {
+        if (sampleRate <= 0 || frameBytes <= 0) {
+            throw new IllegalArgumentException("Sample rate: " + sampleRate + ", frame bytes: "
+                    + frameBytes);
+        }
+
+        mSampleRate = sampleRate;
+        mFrameBytes = frameBytes;
+        mDurationMillis = durationMillis;
+    }
+
+    /**
+     * Forgets the format and position, e.g. before another track. Must only be called while
+     * neither side is running.
+     */
+    public void reset() {
+        mBuffer.clear();
+        mSampleRate = 0;
+        mFrameBytes = 0;
+        mDurationMillis = -1;
+        mBaseMillis = 0;
+        mPendingBaseMillis = -1;
+        mOutputBytes = 0;
+    }
+
+    /**
+     * Getter method for the track's length in milliseconds, or -1 if unknown.
+     */
+    public long getDurationMillis() {
+        return mDurationMillis;
+    }
+
+    /**
+     * Getter method for the size of a frame in bytes, or 0 until configured.
+     */
+    public int getFrameBytes() {
+        return mFrameBytes;
+    }
+
+    /**
+     * Getter method for the number of frames per second, or 0 until configured.
+     */
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * Returns the most bytes the decoder should wait for room for before writing a buffer of the
+     * passed-in size, i.e. the whole buffer unless it's larger than the ring.
+     *
+     * @param bytes is the size of the decoder's buffer.
+     */
+    public int writeThreshold(int bytes) {
+        return Math.min(bytes, mBuffer.capacity());
+    }
+
+    /**
+     * Returns whether or not enough is buffered for playback to start, which is also the case
+     * once the whole (short) track is buffered.
+     */
+    public boolean isPrebuffered() {
+        return mFrameBytes > 0 && (mBuffer.isEndOfStream()
+                || mBuffer.available() >= (int) (mBuffer.capacity() * PREBUFFER_LEVEL));
+    }
+
+    /**
+     * Returns the number of bytes the output should read next, i.e. as many whole frames as are
+     * waiting, but no more than the passed-in number of bytes.
+     *
+     * @param maxBytes is the size of the output's chunk.
+     */
+    public int nextChunk(int maxBytes) {
+        int frameBytes = mFrameBytes;
+        if (frameBytes == 0) return 0;
+
+        int bytes = Math.min(maxBytes, mBuffer.available());
+        return bytes - bytes % frameBytes;
+    }
+
+    /**
+     * Records bytes handed to the output, which may be part of a frame should the output have
+     * taken part of a chunk. Only called by the output's side.
+     *
+     * @param bytes is the number of bytes.
+     */
+    public void onOutputWritten(int bytes) {
+        mOutputBytes += bytes;
+    }
+
+    /**
+     * Discards everything buffered and moves the position, e.g. once the decoder seeked. The
+     * position only moves once the output was flushed as well, so that it doesn't jump back and
+     * forth in the meantime. Only called by the decoder's side.
+     *
+     * @param positionMillis is the position the decoder seeked to.
+     */
+    public void seekTo(long positionMillis) {
+        mPendingBaseMillis = positionMillis;
+        mBuffer.flush();
+    }
+
+    /**
+     * Returns whether or not the ring was flushed since the passed-in flush count, i.e. whether
+     * the output should be flushed as well.
+     *
+     * @param flushCount is the flush count the output's side last saw.
+     */
+    public boolean isFlushPending(int flushCount) {
+        return mBuffer.getFlushCount() != flushCount;
+    }
+
+    /**
+     * Moves the position to where the decoder seeked to, once the output was flushed and its
+     * playback head is back at 0. Only called by the output's side.
+     */
+    public void onOutputFlushed() {
+        long pending = mPendingBaseMillis;
+        if (pending >= 0) {
+            mBaseMillis = pending;
+            mPendingBaseMillis = -1;
+        }
+        mOutputBytes = 0;
+    }
+
+    /**
+     * Returns the playback position in milliseconds.
+     *
+     * @param headFrames is the output's playback head, in frames since it was last flushed.
+     */
+    public long getPositionMillis(long headFrames) {
+        int sampleRate = mSampleRate;
+        if (sampleRate == 0) return mBaseMillis;
+
+        long frames = Math.max(0, Math.min(headFrames, getOutputFrames()));
+        long position = mBaseMillis + frames * 1000 / sampleRate;
+        long duration = mDurationMillis;
+        return duration >= 0 ? Math.min(position, duration) : position;
+    }
+
+    /**
+     * Returns whether or not the track has played out completely, i.e. the stream ended, the ring
+     * is drained, and the output's playback head has caught up with everything handed to it.
+     *
+     * @param headFrames is the output's playback head, in frames since it was last flushed.
+     */
+    public boolean isComplete(long headFrames) {
+        return mBuffer.isDrained() && headFrames >= getOutputFrames();
+    }
+
+    /**
+     * Returns the number of whole frames handed to the output since it was last flushed.
+     */
+    private long getOutputFrames() {
+        int frameBytes = mFrameBytes;
+        return frameBytes > 0 ? mOutputBytes / frameBytes : 0;
+    }
+
+    /**
+     * Returns the number of milliseconds of audio that's buffered in the ring.
+     */
+    public long getBufferedMillis() {
+        int sampleRate = mSampleRate;
+        int frameBytes = mFrameBytes;
+        if (sampleRate == 0 || frameBytes == 0) return 0;
+
+        return (long) mBuffer.available() / frameBytes * 1000 / sampleRate;
+    }
+}
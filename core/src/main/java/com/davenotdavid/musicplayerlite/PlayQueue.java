@@ -0,0 +1,420 @@
+package com.davenotdavid.musicplayerlite;
+
+import java.util.Arrays;
+
+/**
+ * Up-next queue of song IDs, kept as an implicit treap - a binary tree ordered by queue position
+ * that's balanced by random node priorities, where each node knows the size of its subtree. A
+ * position is then found by walking down from the root, and inserting, removing or moving an
+ * entry costs a couple of splits and merges, so every operation is O(log n) however long the
+ * queue gets. Enqueuing k songs at once builds their subtree in O(k) and merges it in with a
+ * single split.
+ *
+ * The nodes live in parallel primitive arrays rather than as objects, with node 0 standing for
+ * "no node", and removed nodes are reused. The same song may be queued more than once. Not
+ * thread-safe.
+ */
+public class PlayQueue {
+
+    // Song ID, children, subtree size and priority of each node.
+    private long[] mIds = new long[16];
+    private int[] mLeft = new int[16];
+    private int[] mRight = new int[16];
+    private int[] mSizes = new int[16];
+    private int[] mPriorities = new int[16];
+
+    // Root node, the number of nodes handed out so far (node 0 included), and the head of the
+    // list of removed nodes to reuse, which is chained through mRight.
+    private int mRoot;
+    private int mNodeCount = 1;
+    private int mFreeNode;
+
+    // State of the xorshift generator the priorities are drawn from.
+    private int mRandom = 0x2545F491;
+
+    // Results of the last split(), i.e. the first part and the rest.
+    private int mSplitLeft, mSplitRight;
+
+    // Scratch stack of the rightmost path while building a subtree in buildTree().
+    private int[] mStack = new int[16];
+
+    /**
+     * Returns the number of songs in the queue.
+     */
+    public int size() {
+        return mSizes[mRoot];
+    }
+
+    /**
+     * Returns whether or not the queue is empty.
+     */
+    public boolean isEmpty() {
+        return mRoot == 0;
+    }
+
+    /**
+     * Returns the ID of the song at the passed-in position.
+     *
+     * @param index is the position within the queue.
+     */
+    public long get(int index) {
+        checkIndex(index, size());
+
+        int node = mRoot;
+        while (true) {
+            int leftSize = mSizes[mLeft[node]];
+            if (index < leftSize) {
+                node = mLeft[node];
+            } else if (index == leftSize) {
+                return mIds[node];
+            } else {
+                index -= leftSize + 1;
+                node = mRight[node];
+            }
+        }
+    }
+
+    /**
+     * Inserts a song at the passed-in position, e.g. 0 to play it next or size() to play it last.
+     *
+     * @param index is the position the song ends up at.
+     * @param id is the ID of the song.
+     */
+    public void insert(int index, long id) {
+        checkIndex(index, size() + 1);
+
+        int node = newNode(id);
+        split(mRoot, index);
+        int right = mSplitRight;
+        mRoot = merge(merge(mSplitLeft, node), right);
+    }
+
+    /**
+     * Appends a song to the end of the queue.
+     *
+     * @param id is the ID of the song.
+     */
+    public void add(long id) {
+        insert(size(), id);
+    }
+
+    /**
+     * Inserts several songs at the passed-in position, keeping their order, in O(k + log n).
+     *
+     * @param index is the position the first of the songs ends up at.
+     * @param ids is the IDs of the songs.
+     */
+    public void insertAll(int index, long[] ids) {
+        checkIndex(index, size() + 1);
+        if (ids.length == 0) return;
+
+        int tree = buildTree(ids, 0, ids.length);
+        split(mRoot, index);
+        int right = mSplitRight;
+        mRoot = merge(merge(mSplitLeft, tree), right);
+    }
+
+    /**
+     * Appends several songs to the end of the queue, keeping their order.
+     *
+     * @param ids is the IDs of the songs.
+     */
+    public void addAll(long[] ids) {
+        insertAll(size(), ids);
+    }
+
+    /**
+     * Removes the song at the passed-in position.
+     *
+     * @param index is the position within the queue.
+     * @return the ID of the song.
+     */
+    public long remove(int index) {
+        checkIndex(index, size());
+
+        split(mRoot, index);
+        int left = mSplitLeft;
+        split(mSplitRight, 1);
+        int node = mSplitLeft;
+        mRoot = merge(left, mSplitRight);
+
+        long id = mIds[node];
+        freeNode(node);
+        return id;
+    }
+
+    /**
+     * Removes a run of songs, e.g. everything after a certain position. Only the split costs
+     * O(log n) - the removed nodes are then freed one by one.
+     *
+     * @param from is the position of the first song to remove.
+     * @param count is the number of songs to remove.
+     */
+    public void removeRange(int from, int count) {
+        checkIndex(from, size() + 1);
+        checkIndex(from + count, size() + 1);
+        if (count <= 0) return;
+
+        split(mRoot, from);
+        int left = mSplitLeft;
+        split(mSplitRight, count);
+        int removed = mSplitLeft;
+        mRoot = merge(left, mSplitRight);
+        freeTree(removed);
+    }
+
+    /**
+     * Moves the song at one position to another, e.g. dragging it up or down the queue.
+     *
+     * @param from is the position of the song.
+     * @param to is the position the song ends up at, once it's moved.
+     */
+    public void move(int from, int to) {
+        checkIndex(from, size());
+        checkIndex(to, size());
+        if (from == to) return;
+
+        // Detaches the node, and then merges it back in at the other position as is.
+        split(mRoot, from);
+        int left = mSplitLeft;
+        split(mSplitRight, 1);
+        int node = mSplitLeft;
+        int rest = merge(left, mSplitRight);
+
+        split(rest, to);
+        int right = mSplitRight;
+        mRoot = merge(merge(mSplitLeft, node), right);
+    }
+
+    /**
+     * Removes every song whose ID isn't in the passed-in array, e.g. the ones deleted from the
+     * library, keeping the order of the rest. Costs a pass over the queue.
+     *
+     * @param ids is the IDs of the songs to keep, sorted ascending.
+     * @return the number of songs removed.
+     */
+    public int retainIds(long[] ids) {
+        return filter(ids, true);
+    }
+
+    /**
+     * Removes every song whose ID is in the passed-in array, e.g. the ones deleted from the
+     * library, keeping the order of the rest. Costs a pass over the queue.
+     *
+     * @param ids is the IDs of the songs to remove, sorted ascending.
+     * @return the number of songs removed.
+     */
+    public int removeIds(long[] ids) {
+        return ids.length > 0 ? filter(ids, false) : 0;
+    }
+
+    /**
+     * Keeps only the songs whose IDs are (or aren't) in the passed-in sorted array.
+     */
+    private int filter(long[] ids, boolean keepListed) {
+        long[] queue = toArray();
+        int write = 0;
+        for (long id : queue) {
+            if ((Arrays.binarySearch(ids, id) >= 0) == keepListed) queue[write++] = id;
+        }
+        if (write == queue.length) return 0;
+
+        clear();
+        if (write > 0) mRoot = buildTree(queue, 0, write);
+        return queue.length - write;
+    }
+
+    /**
+     * Removes every song from the queue.
+     */
+    public void clear() {
+        freeTree(mRoot);
+        mRoot = 0;
+    }
+
+    /**
+     * Returns the IDs of the songs in queue order.
+     */
+    public long[] toArray() {
+        long[] ids = new long[size()];
+        if (mRoot == 0) return ids;
+
+        // Walks the tree in order with an explicit stack of the nodes still to visit.
+        int[] stack = new int[32];
+        int depth = 0;
+        int count = 0;
+        int node = mRoot;
+        while (node != 0 || depth > 0) {
+            while (node != 0) {
+                if (depth == stack.length) stack = Arrays.copyOf(stack, depth * 2);
+                stack[depth++] = node;
+                node = mLeft[node];
+            }
+            node = stack[--depth];
+            ids[count++] = mIds[node];
+            node = mRight[node];
+        }
+
+        return ids;
+    }
+
+    /**
+     * Splits a tree into the first passed-in number of nodes and the rest, which end up in
+     * mSplitLeft and mSplitRight.
+     */
+    private void split(int node, int count) {
+        if (node == 0) {
+            mSplitLeft = 0;
+            mSplitRight = 0;
+            return;
+        }
+
+        int leftSize = mSizes[mLeft[node]];
+        if (count <= leftSize) {
+            split(mLeft[node], count);
+            mLeft[node] = mSplitRight;
+            update(node);
+            mSplitRight = node;
+        } else {
+            split(mRight[node], count - leftSize - 1);
+            mRight[node] = mSplitLeft;
+            update(node);
+            mSplitLeft = node;
+        }
+    }
+
+    /**
+     * Merges two trees, where every node of the first one comes before every node of the second
+     * one, and returns the root of the merged tree.
+     */
+    private int merge(int left, int right) {
+        if (left == 0) return right;
+        if (right == 0) return left;
+
+        if (mPriorities[left] > mPriorities[right]) {
+            mRight[left] = merge(mRight[left], right);
+            update(left);
+            return left;
+        }
+
+        mLeft[right] = merge(left, mLeft[right]);
+        update(right);
+        return right;
+    }
+
+    /**
+     * Builds a tree of the passed-in range of IDs in order, in linear time - the nodes are pushed
+     * onto the rightmost path one by one, and each new node adopts the nodes it pops off it as
+     * its left subtree. Returns the root.
+     */
+    private int buildTree(long[] ids, int from, int to) {
+        int depth = 0;
+        for (int i = from; i < to; i++) {
+            int node = newNode(ids[i]);
+            int last = 0;
+            while (depth > 0 && mPriorities[mStack[depth - 1]] < mPriorities[node]) {
+                last = mStack[--depth];
+            }
+            mLeft[node] = last;
+            if (depth > 0) mRight[mStack[depth - 1]] = node;
+
+            if (depth == mStack.length) mStack = Arrays.copyOf(mStack, depth * 2);
+            mStack[depth++] = node;
+        }
+
+        int root = mStack[0];
+        updateTree(root);
+        return root;
+    }
+
+    /**
+     * Recomputes the subtree sizes of a whole tree, bottom-up.
+     */
+    private int updateTree(int node) {
+        if (node == 0) return 0;
+
+        mSizes[node] = updateTree(mLeft[node]) + updateTree(mRight[node]) + 1;
+        return mSizes[node];
+    }
+
+    /**
+     * Recomputes the subtree size of a node from its children's.
+     */
+    private void update(int node) {
+        mSizes[node] = mSizes[mLeft[node]] + mSizes[mRight[node]] + 1;
+    }
+
+    /**
+     * Hands out a node for the passed-in song, reusing a removed one should there be any.
+     */
+    private int newNode(long id) {
+        int node;
+        if (mFreeNode != 0) {
+            node = mFreeNode;
+            mFreeNode = mRight[node];
+        } else {
+            if (mNodeCount == mIds.length) grow();
+            node = mNodeCount++;
+        }
+
+        mIds[node] = id;
+        mLeft[node] = 0;
+        mRight[node] = 0;
+        mSizes[node] = 1;
+        mPriorities[node] = nextPriority();
+        return node;
+    }
+
+    /**
+     * Adds a node to the list of removed ones.
+     */
+    private void freeNode(int node) {
+        mLeft[node] = 0;
+        mRight[node] = mFreeNode;
+        mSizes[node] = 0;
+        mFreeNode = node;
+    }
+
+    /**
+     * Adds every node of a tree to the list of removed ones.
+     */
+    private void freeTree(int node) {
+        if (node == 0) return;
+
+        freeTree(mLeft[node]);
+        int right = mRight[node];
+        freeNode(node);
+        freeTree(right);
+    }
+
+    /**
+     * Doubles the capacity of the node arrays.
+     */
+    private void grow() {
+        int capacity = mIds.length * 2;
+        mIds = Arrays.copyOf(mIds, capacity);
+        mLeft = Arrays.copyOf(mLeft, capacity);
+        mRight = Arrays.copyOf(mRight, capacity);
+        mSizes = Arrays.copyOf(mSizes, capacity);
+        mPriorities = Arrays.copyOf(mPriorities, capacity);
+    }
+
+    /**
+     * Returns the next random priority of the xorshift generator.
+     */
+    private int nextPriority() {
+        mRandom ^= mRandom << 13;
+        mRandom ^= mRandom >>> 17;
+        mRandom ^= mRandom << 5;
+        return mRandom;
+    }
+
+    /**
+     * Throws should the passed-in index not be below the passed-in bound.
+     */
+    private void checkIndex(int index, int bound) {
+        if (index < 0 || index >= bound) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package com.davenotdavid.musicplayerlite;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only on-disk journal of the {@link PlaybackState}, which survives the process being
+ * killed at any point.
+ *
+ * Every change is appended as a small record of its own (a type, a four-byte payload length, the
+ * payload, and a CRC32 checksum of all three), so that recording the position every few seconds
+ * costs a single write of a few bytes rather than rewriting the whole state. The records are left
+ * to the page cache rather than synced, which a killed process doesn't lose. Reading the journal
+ * back is a single sequential read that applies the records in order - a record that's cut short
+ * or fails its checksum (e.g. after a power loss mid-write) ends the journal, and is cut off so
+ * that later records don't end up behind it.
+ *
+ * Queues are recorded whole, however long they are, since the payload length leaves them
+ * unbounded. The songs queued up to play next are edited far more often, so each edit (songs
+ * inserted at a position, a run of them removed, one moved, or some removed by ID) is a record
+ * of its own that only holds what the edit touched, and the journal's state applies it to a
+ * {@link PlayQueue} in O(log n) or so. Once the journal grows past a threshold (or past a
+ * multiple of its compacted size, should long queues make that larger), it's compacted into a
+ * fresh file that holds one record per kind of change, which is written to a temporary file
+ * first, synced, and then renamed over the journal, the same way as the {@link LibrarySnapshot}.
+ * Not thread-safe, so all of the calls should come from the same thread.
+ */
+public class PlaybackJournal {
+
+    // File format constants - the version is bumped whenever the layout changes.
+    private static final int MAGIC = 0x4d504c4a; // "MPLJ"
+    static final int VERSION = 3;
+    private static final int HEADER_SIZE = 8;
+
+    // Bytes of a record other than its payload - the type, the payload length, and the checksum.
+    private static final int RECORD_PREFIX_SIZE = 5;
+    private static final int RECORD_OVERHEAD = RECORD_PREFIX_SIZE + 4;
+
+    // Record types.
+    private static final byte TYPE_POSITION = 1;
+    private static final byte TYPE_MODES = 2;
+    private static final byte TYPE_QUEUE = 3;
+    private static final byte TYPE_UP_NEXT = 4;
+    private static final byte TYPE_UP_NEXT_INSERT = 5;
+    private static final byte TYPE_UP_NEXT_REMOVE = 6;
+    private static final byte TYPE_UP_NEXT_MOVE = 7;
+    private static final byte TYPE_UP_NEXT_REMOVE_IDS = 8;
+
+    // Size past which the journal is compacted - several hours' worth of position records - and
+    // the multiple of its compacted size it may grow to should that be larger.
+    private static final long COMPACT_THRESHOLD = 64 * 1024;
+    private static final int COMPACT_GROWTH = 4;
+
+    // Journal file, and the state as of its last record.
+    private final File mFile;
+    private final PlaybackState mState = new PlaybackState();
+
+    // Stream records are appended through (null until the first append), and the journal's size.
+    private FileOutputStream mOut;
+    private long mSize;
+    private long mCompactedSize;
+    private boolean mReplayed;
+
+    // Buffer each record is laid out in before it's written, and the checksum of the records.
+    private ByteBuffer mRecord = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * Creates a {@link PlaybackJournal} object.
+     *
+     * @param file is the journal file, which is created on the first append should it not exist.
+     */
+    public PlaybackJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Reads the journal back in a single read and applies its records in order, cutting off a
+     * torn or corrupt tail should there be one. A journal that isn't valid at all is started over.
+     *
+     * @return the state as of the last valid record, which is empty should there be none.
+     * @throws IOException should the journal be unreadable.
+     */
+    public PlaybackState replay() throws IOException {
+        mReplayed = true;
+        if (!mFile.exists()) return mState;
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(mFile, "rw");
+        try {
+            long length = randomAccessFile.length();
+            if (length > Integer.MAX_VALUE) throw new IOException("Journal too large");
+            byte[] bytes = new byte[(int) length];
+            randomAccessFile.readFully(bytes);
+
+            // Starts over rather than appending to a file that isn't a journal of this version.
+            ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            if (bytes.length < HEADER_SIZE || buffer.getInt() != MAGIC
+                    || buffer.getInt() != VERSION) {
+                randomAccessFile.setLength(0);
+                mSize = 0;
+                return mState;
+            }
+
+            // Applies each record that's complete and intact, stopping at the first one that isn't.
+            int end = HEADER_SIZE;
+            while (end + RECORD_OVERHEAD <= bytes.length) {
+                byte type = buffer.get(end);
+                int payloadLength = buffer.getInt(end + 1);
+                if (payloadLength < 0
+                        || payloadLength > bytes.length - end - RECORD_OVERHEAD) break;
+                int checksumOffset = end + RECORD_PREFIX_SIZE + payloadLength;
+
+                mCrc.reset();
+                mCrc.update(bytes, end, RECORD_PREFIX_SIZE + payloadLength);
+                if ((int) mCrc.getValue() != buffer.getInt(checksumOffset)) break;
+
+                buffer.position(end + RECORD_PREFIX_SIZE);
+                apply(type, payloadLength, buffer);
+                end = checksumOffset + 4;
+            }
+
+            if (end < bytes.length) randomAccessFile.setLength(end);
+            mSize = end;
+            mCompactedSize = end;
+        } finally {
+            randomAccessFile.close();
+        }
+
+        return mState;
+    }
+
+    /**
+     * Applies a single record's payload, which the passed-in buffer is positioned at. Records of
+     * unknown types are skipped.
+     */
+    private void apply(byte type, int payloadLength, ByteBuffer buffer) {
+        switch (type) {
+            case TYPE_POSITION:
+                if (payloadLength < 12) return;
+                mState.setPosition(buffer.getLong(), buffer.getInt());
+                break;
+            case TYPE_MODES:
+                if (payloadLength < 1) return;
+                byte flags = buffer.get();
+                mState.setModes((flags & 1) != 0, (flags & 2) != 0);
+                break;
+            case TYPE_QUEUE:
+                if (payloadLength < 8) return;
+                int cursor = buffer.getInt();
+                int count = buffer.getInt();
+                if (count < 0 || 8 + count * 8L > payloadLength) return;
+
+                long[] queue = new long[count];
+                for (int i = 0; i < count; i++) queue[i] = buffer.getLong();
+                mState.setQueue(queue, cursor);
+                break;
+            case TYPE_UP_NEXT:
+                if (payloadLength < 4) return;
+                int upNextCount = buffer.getInt();
+                if (upNextCount < 0 || 4 + upNextCount * 8L > payloadLength) return;
+
+                long[] upNext = new long[upNextCount];
+                for (int i = 0; i < upNextCount; i++) upNext[i] = buffer.getLong();
+                mState.setUpNext(upNext);
+                break;
+            case TYPE_UP_NEXT_INSERT:
+                if (payloadLength < 8) return;
+                int insertIndex = buffer.getInt();
+                int insertCount = buffer.getInt();
+                if (insertCount < 0 || 8 + insertCount * 8L > payloadLength
+                        || insertIndex < 0 || insertIndex > mState.getUpNextQueue().size()) {
+                    return;
+                }
+
+                long[] inserted = new long[insertCount];
+                for (int i = 0; i < insertCount; i++) inserted[i] = buffer.getLong();
+                mState.getUpNextQueue().insertAll(insertIndex, inserted);
+                break;
+            case TYPE_UP_NEXT_REMOVE:
+                if (payloadLength < 8) return;
+                int removeIndex = buffer.getInt();
+                int removeCount = buffer.getInt();
+                if (removeIndex < 0 || removeCount < 0
+                        || removeCount > mState.getUpNextQueue().size() - removeIndex) {
+                    return;
+                }
+                mState.getUpNextQueue().removeRange(removeIndex, removeCount);
+                break;
+            case TYPE_UP_NEXT_MOVE:
+                if (payloadLength < 8) return;
+                int from = buffer.getInt();
+                int to = buffer.getInt();
+                int size = mState.getUpNextQueue().size();
+                if (from < 0 || from >= size || to < 0 || to >= size) return;
+                mState.getUpNextQueue().move(from, to);
+                break;
+            case TYPE_UP_NEXT_REMOVE_IDS:
+                if (payloadLength < 4) return;
+                int idCount = buffer.getInt();
+                if (idCount < 0 || 4 + idCount * 8L > payloadLength) return;
+
+                long[] ids = new long[idCount];
+                for (int i = 0; i < idCount; i++) ids[i] = buffer.getLong();
+                mState.getUpNextQueue().removeIds(ids);
+                break;
+        }
+    }
+
+    /**
+     * Getter method for the state as of the last record.
+     */
+    public PlaybackState getState() {
+        return mState;
+    }
+
+    /**
+     * Getter method for the size of the journal in bytes.
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Appends the song that's playing and the position within it.
+     *
+     * @param songId is the ID of the song, or -1 if none.
+     * @param position is the position in milliseconds.
+     */
+    public void appendPosition(long songId, int position) throws IOException {
+        if (!mReplayed) replay();
+        mState.setPosition(songId, position);
+
+        startRecord(TYPE_POSITION, 12);
+        mRecord.putLong(songId);
+        mRecord.putInt(position);
+        finishRecord();
+    }
+
+    /**
+     * Appends the playback modes.
+     *
+     * @param shuffle is whether or not shuffle is on.
+     * @param autoRepeat is whether or not auto-repeat is on.
+     */
+    public void appendModes(boolean shuffle, boolean autoRepeat) throws IOException {
+        if (!mReplayed) replay();
+        mState.setModes(shuffle, autoRepeat);
+
+        startRecord(TYPE_MODES, 1);
+        mRecord.put((byte) ((shuffle ? 1 : 0) | (autoRepeat ? 2 : 0)));
+        finishRecord();
+    }
+
+    /**
+     * Appends the queue.
+     *
+     * @param queue is the song IDs.
+     * @param cursor is the index of the current song within the queue, or -1 if none.
+     */
+    public void appendQueue(long[] queue, int cursor) throws IOException {
+        if (!mReplayed) replay();
+        mState.setQueue(queue, cursor);
+
+        startRecord(TYPE_QUEUE, 8 + queue.length * 8);
+        mRecord.putInt(cursor);
+        mRecord.putInt(queue.length);
+        for (long id : queue) mRecord.putLong(id);
+        finishRecord();
+    }
+
+    /**
+     * Appends the songs the user queued up to play next.
+     *
+     * @param upNext is the song IDs, in the order they'll be played.
+     */
+    public void appendUpNext(long[] upNext) throws IOException {
+        if (!mReplayed) replay();
+        mState.setUpNext(upNext);
+
+        startRecord(TYPE_UP_NEXT, 4 + upNext.length * 8);
+        mRecord.putInt(upNext.length);
+        for (long id : upNext) mRecord.putLong(id);
+        finishRecord();
+    }
+
+    /**
+     * Appends songs inserted into the ones queued up to play next.
+     *
+     * @param index is the position the first of the songs ended up at.
+     * @param ids is the IDs of the songs, in order.
+     */
+    public void appendUpNextInsert(int index, long[] ids) throws IOException {
+        if (!mReplayed) replay();
+        mState.getUpNextQueue().insertAll(index, ids);
+
+        startRecord(TYPE_UP_NEXT_INSERT, 8 + ids.length * 8);
+        mRecord.putInt(index);
+        mRecord.putInt(ids.length);
+        for (long id : ids) mRecord.putLong(id);
+        finishRecord();
+    }
+
+    /**
+     * Appends a run of songs removed from the ones queued up to play next.
+     *
+     * @param from is the position of the first song removed.
+     * @param count is the number of songs removed.
+     */
+    public void appendUpNextRemove(int from, int count) throws IOException {
+        if (!mReplayed) replay();
+        mState.getUpNextQueue().removeRange(from, count);
+
+        startRecord(TYPE_UP_NEXT_REMOVE, 8);
+        mRecord.putInt(from);
+        mRecord.putInt(count);
+        finishRecord();
+    }
+
+    /**
+     * Appends a song moved within the ones queued up to play next.
+     *
+     * @param from is the position the song was at.
+     * @param to is the position the song ended up at.
+     */
+    public void appendUpNextMove(int from, int to) throws IOException {
+        if (!mReplayed) replay();
+        mState.getUpNextQueue().move(from, to);
+
+        startRecord(TYPE_UP_NEXT_MOVE, 8);
+        mRecord.putInt(from);
+        mRecord.putInt(to);
+        finishRecord();
+    }
+
+    /**
+     * Appends songs removed by ID from the ones queued up to play next, e.g. once they're gone
+     * from the library.
+     *
+     * @param ids is the IDs of the songs, sorted ascending.
+     */
+    public void appendUpNextRemoveIds(long[] ids) throws IOException {
+        if (!mReplayed) replay();
+        mState.getUpNextQueue().removeIds(ids);
+
+        startRecord(TYPE_UP_NEXT_REMOVE_IDS, 4 + ids.length * 8);
+        mRecord.putInt(ids.length);
+        for (long id : ids) mRecord.putLong(id);
+        finishRecord();
+    }
+
+    /**
+     * Rewrites the journal as one record per kind of change, so that it starts small again. The
+     * new journal replaces the old one in a single rename once it's synced to disk.
+     */
+    public void compact() throws IOException {
+        closeStream();
+
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        long size = HEADER_SIZE;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            out.write(header.array());
+            size += writeState(out);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(mFile)) {
+            tempFile.delete();
+            throw new IOException("Could not replace " + mFile);
+        }
+
+        mSize = size;
+        mCompactedSize = size;
+        mOut = new FileOutputStream(mFile, true);
+    }
+
+    /**
+     * Writes a record of each part of the state to the passed-in stream.
+     *
+     * @return the number of bytes written.
+     */
+    private int writeState(FileOutputStream out) throws IOException {
+        startRecord(TYPE_MODES, 1);
+        mRecord.put((byte) ((mState.isShuffle() ? 1 : 0) | (mState.isAutoRepeat() ? 2 : 0)));
+        int size = writeRecord(out);
+
+        long[] queue = mState.getQueue();
+        startRecord(TYPE_QUEUE, 8 + queue.length * 8);
+        mRecord.putInt(mState.getQueueCursor());
+        mRecord.putInt(queue.length);
+        for (long id : queue) mRecord.putLong(id);
+        size += writeRecord(out);
+
+        long[] upNext = mState.getUpNext();
+        startRecord(TYPE_UP_NEXT, 4 + upNext.length * 8);
+        mRecord.putInt(upNext.length);
+        for (long id : upNext) mRecord.putLong(id);
+        size += writeRecord(out);
+
+        startRecord(TYPE_POSITION, 12);
+        mRecord.putLong(mState.getSongId());
+        mRecord.putInt(mState.getPosition());
+        return size + writeRecord(out);
+    }
+
+    /**
+     * Closes the journal. The next append reopens it.
+     */
+    public void close() throws IOException {
+        closeStream();
+    }
+
+    /**
+     * Closes the stream records are appended through, should it be open.
+     */
+    private void closeStream() throws IOException {
+        if (mOut == null) return;
+
+        FileOutputStream out = mOut;
+        mOut = null;
+        out.close();
+    }
+
+    /**
+     * Lays out the start of a record of the passed-in type and payload length.
+     */
+    private void startRecord(byte type, int payloadLength) {
+        int recordSize = RECORD_OVERHEAD + payloadLength;
+        if (mRecord.capacity() < recordSize) {
+            mRecord = ByteBuffer.allocate(Math.max(recordSize, mRecord.capacity() * 2))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        mRecord.clear();
+        mRecord.put(type);
+        mRecord.putInt(payloadLength);
+    }
+
+    /**
+     * Appends the record that's laid out to the journal, opening it first should it not be open
+     * yet, and compacts the journal should it have grown past the threshold.
+     */
+    private void finishRecord() throws IOException {
+
+        // A journal without a header yet is started off with the whole state instead, which
+        // includes the record.
+        if (mOut == null) {
+            if (mSize < HEADER_SIZE) {
+                compact();
+                return;
+            }
+            mOut = new FileOutputStream(mFile, true);
+        }
+
+        mSize += writeRecord(mOut);
+        if (mSize > Math.max(COMPACT_THRESHOLD, mCompactedSize * COMPACT_GROWTH)) compact();
+    }
+
+    /**
+     * Adds the checksum to the record that's laid out, and writes it to the passed-in stream.
+     *
+     * @return the number of bytes written.
+     */
+    private int writeRecord(FileOutputStream out) throws IOException {
+        mCrc.reset();
+        mCrc.update(mRecord.array(), 0, mRecord.position());
+        mRecord.putInt((int) mCrc.getValue());
+
+        out.write(mRecord.array(), 0, mRecord.position());
+        return mRecord.position();
+    }
+}
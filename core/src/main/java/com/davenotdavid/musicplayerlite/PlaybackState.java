@@ -0,0 +1,142 @@
+package com.davenotdavid.musicplayerlite;
+
+import java.util.Arrays;
+
+/**
+ * Playback state of a session as kept by the {@link PlaybackJournal} - the song that was playing
+ * and how far, the playback modes, the queue of songs around it, and the songs the user queued up
+ * to play next.
+ */
+public class PlaybackState {
+
+    // Song that was playing (or -1 if none), and the position within it in milliseconds.
+    private long mSongId = -1;
+    private int mPosition;
+
+    // Playback modes.
+    private boolean mShuffle, mAutoRepeat;
+
+    // Songs in the order they were (or will be) played by their IDs, with the cursor on the
+    // current one (or -1 should the queue be empty).
+    private long[] mQueue = new long[0];
+    private int mQueueCursor = -1;
+
+    // Songs the user queued up to play next by their IDs, in the order they'll be played, which
+    // the journal edits in place as it replays its records.
+    private final PlayQueue mUpNext = new PlayQueue();
+
+    /**
+     * Getter method for the ID of the song that was playing, or -1 if none.
+     */
+    public long getSongId() {
+        return mSongId;
+    }
+
+    /**
+     * Getter method for the position within the song in milliseconds.
+     */
+    public int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Getter method for whether or not shuffle was on.
+     */
+    public boolean isShuffle() {
+        return mShuffle;
+    }
+
+    /**
+     * Getter method for whether or not auto-repeat was on.
+     */
+    public boolean isAutoRepeat() {
+        return mAutoRepeat;
+    }
+
+    /**
+     * Getter method for the queue's song IDs.
+     */
+    public long[] getQueue() {
+        return mQueue;
+    }
+
+    /**
+     * Getter method for the index of the current song within the queue, or -1 if none.
+     */
+    public int getQueueCursor() {
+        return mQueueCursor;
+    }
+
+    /**
+     * Getter method for the IDs of the songs queued up to play next.
+     */
+    public long[] getUpNext() {
+        return mUpNext.toArray();
+    }
+
+    /**
+     * Getter method for the songs queued up to play next, for editing them in place.
+     */
+    PlayQueue getUpNextQueue() {
+        return mUpNext;
+    }
+
+    /**
+     * Setter method for the song that's playing and the position within it.
+     *
+     * @param songId is the ID of the song.
+     * @param position is the position in milliseconds.
+     */
+    void setPosition(long songId, int position) {
+        mSongId = songId;
+        mPosition = position;
+    }
+
+    /**
+     * Setter method for the playback modes.
+     *
+     * @param shuffle is whether or not shuffle is on.
+     * @param autoRepeat is whether or not auto-repeat is on.
+     */
+    void setModes(boolean shuffle, boolean autoRepeat) {
+        mShuffle = shuffle;
+        mAutoRepeat = autoRepeat;
+    }
+
+    /**
+     * Setter method for the queue.
+     *
+     * @param queue is the song IDs, which are copied.
+     * @param cursor is the index of the current song within the queue, or -1 if none.
+     */
+    void setQueue(long[] queue, int cursor) {
+        mQueue = Arrays.copyOf(queue, queue.length);
+        mQueueCursor = cursor;
+    }
+
+    /**
+     * Setter method for the songs queued up to play next.
+     *
+     * @param upNext is the song IDs, which are copied.
+     */
+    void setUpNext(long[] upNext) {
+        mUpNext.clear();
+        mUpNext.addAll(upNext);
+    }
+
+    /**
+     * Converts a {@link PlaybackState} object to a string.
+     */
+    @Override
+    public String toString() {
+        return "PlaybackState{" +
+                "mSongId=" + mSongId +
+                ", mPosition=" + mPosition +
+                ", mShuffle=" + mShuffle +
+                ", mAutoRepeat=" + mAutoRepeat +
+                ", queue=" + mQueue.length +
+                ", mQueueCursor=" + mQueueCursor +
+                ", upNext=" + mUpNext.size() +
+                '}';
+    }
+}
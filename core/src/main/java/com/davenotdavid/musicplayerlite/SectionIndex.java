@@ -0,0 +1,311 @@
+package com.davenotdavid.musicplayerlite;
+
+import java.text.Collator;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fast-scroll sections of a sorted song list, i.e. the first letters of the field the list is
+ * sorted by, along with the position each of them starts at.
+ *
+ * Rather than a section per row, only the number of songs in each section is kept, so that adding
+ * or removing a song only changes a single count, and the start positions are the running totals
+ * of the counts. Jumping to a section is then an array read, and finding the section of a
+ * position a binary search over the (few dozen at most) sections.
+ *
+ * Letters are grouped the way the sort collates them, i.e. ignoring case and accents, and songs
+ * that don't start with a letter share the "#" section. Lists sorted by path have no sections,
+ * since nearly every path starts the same way. Not thread-safe, though it can be handed over to
+ * another thread once it's no longer modified.
+ */
+public class SectionIndex {
+
+    // Label of the section of songs that don't start with a letter, which always comes first.
+    public static final String OTHER_LABEL = "#";
+
+    // Labels of the ASCII letters, so that the common case allocates nothing.
+    private static final String[] ASCII_LABELS = new String[26];
+
+    static {
+        for (int i = 0; i < ASCII_LABELS.length; i++) {
+            ASCII_LABELS[i] = String.valueOf((char) ('A' + i));
+        }
+    }
+
+    // Order of the list this index describes.
+    private final SongSorter.SortOrder mSortOrder;
+
+    // Collator that orders the labels, and considers letters that only differ in accents equal.
+    private final Collator mCollator;
+
+    // Labels of the sections in order, and the number of songs in each of them.
+    private final List<String> mLabels = new ArrayList<>();
+    private int[] mCounts = new int[32];
+
+    // Start positions of the sections and the labels as an array, which are rebuilt lazily after
+    // a change.
+    private int[] mStarts;
+    private String[] mSections;
+
+    /**
+     * Creates a {@link SectionIndex} object without any sections.
+     *
+     * @param sortOrder is the order of the list.
+     */
+    public SectionIndex(SongSorter.SortOrder sortOrder) {
+        mSortOrder = sortOrder;
+        mCollator = SongSorter.newCollator();
+        mCollator.setStrength(Collator.PRIMARY);
+    }
+
+    /**
+     * Creates a {@link SectionIndex} object that's a copy of the passed-in one, e.g. for the main
+     * thread to modify while the original stays with the loader.
+     *
+     * @param other is the index to copy.
+     */
+    public SectionIndex(SectionIndex other) {
+        this(other.mSortOrder);
+        copyFrom(other);
+    }
+
+    /**
+     * Builds the sections of the passed-in library in the passed-in order, in a single pass over
+     * the already sorted rows.
+     *
+     * @param library is the library.
+     * @param order is the library's rows in sorted order.
+     * @param sortOrder is the order the rows were sorted in.
+     */
+    public static SectionIndex build(SongTable library, int[] order,
+                                     SongSorter.SortOrder sortOrder) {
+        SectionIndex index = new SectionIndex(sortOrder);
+        if (sortOrder == SongSorter.SortOrder.PATH) return index;
+
+        // Since the rows are sorted, a section's songs follow each other, so each section is only
+        // looked up once rather than once per song.
+        String runLabel = null;
+        int runCount = 0;
+        for (int row : order) {
+            String label = labelOf(SongSorter.primaryField(sortOrder, library.getTitle(row),
+                    library.getArtist(row), null));
+            if (label.equals(runLabel)) {
+                runCount++;
+                continue;
+            }
+
+            if (runLabel != null) index.addToSection(runLabel, runCount);
+            runLabel = label;
+            runCount = 1;
+        }
+        if (runLabel != null) index.addToSection(runLabel, runCount);
+
+        return index;
+    }
+
+    /**
+     * Replaces the sections with those of the passed-in index, which must be of the same order.
+     *
+     * @param other is the index to copy.
+     */
+    public void copyFrom(SectionIndex other) {
+        mLabels.clear();
+        mLabels.addAll(other.mLabels);
+        mCounts = Arrays.copyOf(other.mCounts, other.mCounts.length);
+        invalidate();
+    }
+
+    /**
+     * Counts the passed-in song into its section, which is created should it be the first.
+     *
+     * @param song is the song that was added to the list.
+     */
+    public void add(Song song) {
+        if (mSortOrder == SongSorter.SortOrder.PATH) return;
+
+        addToSection(labelOf(SongSorter.primaryField(mSortOrder, song.getTitle(),
+                song.getArtist(), null)), 1);
+    }
+
+    /**
+     * Uncounts the songs with the passed-in IDs from their sections, which are dropped once they
+     * become empty. Must be called before the rows are removed from the table.
+     *
+     * @param songs is the list the songs are about to be removed from.
+     * @param ids is the IDs of the songs, sorted ascending.
+     */
+    public void removeRows(SongTable songs, long[] ids) {
+        if (mSortOrder == SongSorter.SortOrder.PATH || ids.length == 0) return;
+
+        for (int i = 0; i < songs.size(); i++) {
+            if (Arrays.binarySearch(ids, songs.getID(i)) < 0) continue;
+
+            addToSection(labelOf(SongSorter.primaryField(mSortOrder, songs.getTitle(i),
+                    songs.getArtist(i), null)), -1);
+        }
+    }
+
+    /**
+     * Returns the labels of the sections in order.
+     */
+    public String[] getSections() {
+        if (mSections == null) mSections = mLabels.toArray(new String[mLabels.size()]);
+
+        return mSections;
+    }
+
+    /**
+     * Returns the position the passed-in section starts at, clamping sections out of range.
+     *
+     * @param section is the index of the section.
+     */
+    public int getPositionForSection(int section) {
+        if (mLabels.isEmpty()) return 0;
+
+        int[] starts = starts();
+        return starts[Math.max(0, Math.min(section, mLabels.size() - 1))];
+    }
+
+    /**
+     * Returns the index of the section that the passed-in position belongs to.
+     *
+     * @param position is the position in the list.
+     */
+    public int getSectionForPosition(int position) {
+        if (mLabels.isEmpty()) return 0;
+
+        // Looks for the last section that starts at or before the position.
+        int[] starts = starts();
+        int low = 0;
+        int high = mLabels.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (starts[middle] <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Returns the start positions of the sections, rebuilding them should they be out of date.
+     */
+    private int[] starts() {
+        if (mStarts == null) {
+            mStarts = new int[mLabels.size()];
+            int position = 0;
+            for (int i = 0; i < mStarts.length; i++) {
+                mStarts[i] = position;
+                position += mCounts[i];
+            }
+        }
+
+        return mStarts;
+    }
+
+    /**
+     * Adds the passed-in number of songs (which may be negative) to the passed-in label's
+     * section, creating it or dropping it as needed.
+     */
+    private void addToSection(String label, int count) {
+        int section = search(label);
+        if (section >= 0) {
+            mCounts[section] += count;
+            if (mCounts[section] <= 0) {
+                mLabels.remove(section);
+                System.arraycopy(mCounts, section + 1, mCounts, section,
+                        mLabels.size() - section);
+            }
+        } else if (count > 0) {
+            section = -section - 1;
+            if (mLabels.size() == mCounts.length) {
+                mCounts = Arrays.copyOf(mCounts, mCounts.length * 2);
+            }
+            System.arraycopy(mCounts, section, mCounts, section + 1, mLabels.size() - section);
+            mLabels.add(section, label);
+            mCounts[section] = count;
+        }
+
+        invalidate();
+    }
+
+    /**
+     * Binary searches for the section of the passed-in label.
+     *
+     * @return the section, or (-(insertion point) - 1) should there be no such section.
+     */
+    private int search(String label) {
+        int low = 0;
+        int high = mLabels.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int result = compareLabels(mLabels.get(middle), label);
+            if (result < 0) {
+                low = middle + 1;
+            } else if (result > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+
+        return -(low + 1);
+    }
+
+    /**
+     * Compares two labels in collation order, with the "#" section before every letter.
+     */
+    private int compareLabels(String a, String b) {
+        if (a.equals(b)) return 0;
+        if (a.equals(OTHER_LABEL)) return -1;
+        if (b.equals(OTHER_LABEL)) return 1;
+
+        return mCollator.compare(a, b);
+    }
+
+    /**
+     * Drops the start positions and the labels array, which are rebuilt on next use.
+     */
+    private void invalidate() {
+        mStarts = null;
+        mSections = null;
+    }
+
+    /**
+     * Returns the label of the section that the passed-in field belongs to, i.e. its first
+     * letter in upper case and without accents, or "#" should it not start with a letter.
+     *
+     * @param field is the field the list is sorted by.
+     */
+    static String labelOf(String field) {
+        if (field.isEmpty()) return OTHER_LABEL;
+
+        int codePoint = field.codePointAt(0);
+        if (codePoint < 0x80) {
+            char letter = Character.toUpperCase((char) codePoint);
+            return letter >= 'A' && letter <= 'Z' ? ASCII_LABELS[letter - 'A'] : OTHER_LABEL;
+        }
+        if (!Character.isLetter(codePoint)) return OTHER_LABEL;
+
+        // Decomposing the letter splits off its accents, leaving the base letter first.
+        String decomposed = Normalizer.normalize(new String(Character.toChars(codePoint)),
+                Normalizer.Form.NFD);
+        return new String(Character.toChars(Character.toUpperCase(decomposed.codePointAt(0))));
+    }
+
+    /**
+     * Converts a {@link SectionIndex} object to a string.
+     */
+    @Override
+    public String toString() {
+        return "SectionIndex{" +
+                "mSortOrder=" + mSortOrder +
+                ", sections=" + mLabels.size() +
+                '}';
+    }
+}
@@ -0,0 +1,343 @@
+package com.davenotdavid.musicplayerlite;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Shuffles songs by their IDs with a Fisher-Yates permutation that's generated one step at a time
+ * - the pool of IDs is split into the songs drawn during the current cycle and the ones that are
+ * left, and each draw swaps a random leftover into the drawn part. No song is repeated until every
+ * song has been drawn, and the same seed and song list always produce the same order.
+ *
+ * Songs can be added or removed mid-cycle in constant time (added ones join the leftovers, and
+ * removed ones are swapped out of the pool), and the songs that were played are kept as a history
+ * that previous() and next() walk back and forth through.
+ */
+public class ShuffleEngine {
+
+    // Upper bound of songs remembered for previous().
+    private static final int MAX_HISTORY = 1000;
+
+    // Random generator the permutation is drawn from, along with its seed.
+    private final Random mRandom;
+    private final long mSeed;
+
+    // Pool of song IDs - the first mDrawnCount were drawn during the current cycle - and each ID's
+    // index within the pool.
+    private long[] mPool = new long[16];
+    private int mPoolSize;
+    private int mDrawnCount;
+    private final Map<Long, Integer> mPoolIndexes = new HashMap<>();
+
+    // Songs in the order they were (or will be) played, with the cursor on the current one.
+    // Entries past the cursor were either drawn ahead of time by peekNext() or stepped back over
+    // by previous().
+    private long[] mHistory = new long[16];
+    private int mHistorySize;
+    private int mCursor = -1;
+
+    // Fields used for noticing changes to the song list that the pool mirrors, and a scratch
+    // generation stamp per pool index for finding the IDs that are gone.
+    private SongTable mSyncedSongs;
+    private int mSyncedModCount;
+    private int[] mStamps = new int[16];
+    private int mGeneration;
+
+    /**
+     * Creates a {@link ShuffleEngine} object.
+     *
+     * @param seed is the seed of the random generator, which makes the order reproducible.
+     */
+    public ShuffleEngine(long seed) {
+        mSeed = seed;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Getter method for the seed the order is generated from.
+     */
+    public long getSeed() {
+        return mSeed;
+    }
+
+    /**
+     * Mirrors the passed-in song list in the pool, adding the songs that are new and removing the
+     * ones that are gone. Costs a single pass over the list should it have changed since the last
+     * call, and nothing otherwise.
+     *
+     * @param songs is the song list.
+     */
+    public void sync(SongTable songs) {
+        if (songs == mSyncedSongs && songs.getModCount() == mSyncedModCount) return;
+        mSyncedSongs = songs;
+        mSyncedModCount = songs.getModCount();
+
+        // Stamps every ID that's still in the list, adding the ones that aren't in the pool yet.
+        mGeneration++;
+        for (int i = 0; i < songs.size(); i++) {
+            long id = songs.getID(i);
+            Integer index = mPoolIndexes.get(id);
+            if (index == null) {
+                add(id);
+                index = mPoolSize - 1;
+            }
+            mStamps[index] = mGeneration;
+        }
+
+        // Removes the unstamped ones, from the end so that the swaps only move stamped IDs.
+        for (int i = mPoolSize - 1; i >= 0; i--) {
+            if (mStamps[i] != mGeneration) remove(mPool[i]);
+        }
+    }
+
+    /**
+     * Applies the passed-in changes of the song list to the pool, in time proportional to their
+     * number rather than to the size of the list. They have to cover every change since the list
+     * was last synced - the list is synced in a single pass instead should it be another list, or
+     * should the changes be unknown.
+     *
+     * @param songs is the song list, already changed.
+     * @param addedIds is the IDs of the songs added to the list, or null if unknown.
+     * @param removedIds is the IDs of the songs removed from the list.
+     */
+    public void update(SongTable songs, long[] addedIds, long[] removedIds) {
+        if (songs != mSyncedSongs || addedIds == null) {
+            sync(songs);
+            return;
+        }
+
+        for (long id : removedIds) remove(id);
+        for (long id : addedIds) add(id);
+        mSyncedModCount = songs.getModCount();
+    }
+
+    /**
+     * Adds a song to the songs left to draw during the current cycle.
+     *
+     * @param id is the ID of the song.
+     */
+    public void add(long id) {
+        if (mPoolIndexes.containsKey(id)) return;
+
+        if (mPoolSize == mPool.length) {
+            mPool = Arrays.copyOf(mPool, mPoolSize * 2);
+            mStamps = Arrays.copyOf(mStamps, mPoolSize * 2);
+        }
+        mPool[mPoolSize] = id;
+        mStamps[mPoolSize] = 0;
+        mPoolIndexes.put(id, mPoolSize);
+        mPoolSize++;
+    }
+
+    /**
+     * Removes a song from the pool. It's skipped over should it still be in the history.
+     *
+     * @param id is the ID of the song.
+     */
+    public void remove(long id) {
+        Integer index = mPoolIndexes.get(id);
+        if (index == null) return;
+
+        // Moves the song to the end of the drawn part first should it have been drawn, so that
+        // the drawn and leftover parts both stay contiguous, and then to the end of the pool.
+        int position = index;
+        if (position < mDrawnCount) {
+            swap(position, mDrawnCount - 1);
+            position = --mDrawnCount;
+        }
+        swap(position, mPoolSize - 1);
+        mPoolSize--;
+        mPoolIndexes.remove(id);
+    }
+
+    /**
+     * Returns the ID of the current song, or -1 if there's none.
+     */
+    public long current() {
+        return mCursor >= 0 ? mHistory[mCursor] : -1;
+    }
+
+    /**
+     * Makes the passed-in song the current one, e.g. when the user picks it. Should it not be the
+     * song that's up next, the songs that were up next are put back in the pool.
+     *
+     * @param id is the ID of the song.
+     */
+    public void start(long id) {
+        if (current() == id) return;
+        if (mCursor + 1 < mHistorySize && mHistory[mCursor + 1] == id) {
+            mCursor++;
+            return;
+        }
+
+        // Puts back the songs that were drawn ahead, so that they get another chance this cycle.
+        for (int i = mHistorySize - 1; i > mCursor; i--) undraw(mHistory[i]);
+        mHistorySize = mCursor + 1;
+
+        markDrawn(id);
+        append(id);
+        mCursor = mHistorySize - 1;
+    }
+
+    /**
+     * Returns a copy of the history, i.e. the songs in the order they were (or will be) played.
+     */
+    public long[] getHistory() {
+        return Arrays.copyOf(mHistory, mHistorySize);
+    }
+
+    /**
+     * Returns the index of the current song within the history, or -1 if there's none.
+     */
+    public int getCursor() {
+        return mCursor;
+    }
+
+    /**
+     * Restores the history of an earlier session, so that previous() and next() pick up where it
+     * left off. Only has an effect while the history is still empty. The songs that were played
+     * aren't counted as drawn, so the current cycle starts over.
+     *
+     * @param history is the songs in the order they were (or will be) played.
+     * @param cursor is the index of the current song within the history, or -1 if none.
+     */
+    public void restore(long[] history, int cursor) {
+        if (mHistorySize > 0 || history.length == 0) return;
+
+        mHistory = Arrays.copyOf(history, Math.max(mHistory.length, history.length));
+        mHistorySize = history.length;
+        mCursor = Math.max(-1, Math.min(cursor, mHistorySize - 1));
+    }
+
+    /**
+     * Returns the ID of the song after the current one without moving to it, drawing it should
+     * there be none yet - it stays up next until it's played or start() picks another song.
+     *
+     * @return the ID of the song, or -1 should the pool be empty.
+     */
+    public long peekNext() {
+        int next = nextValidEntry(mCursor + 1);
+        if (next >= 0) return mHistory[next];
+        if (mPoolSize == 0) return -1;
+
+        // Drops the removed songs past the cursor before drawing one after them.
+        mHistorySize = mCursor + 1;
+        long id = draw();
+        append(id);
+
+        return id;
+    }
+
+    /**
+     * Moves on to the song after the current one.
+     *
+     * @return the ID of the song, or -1 should the pool be empty.
+     */
+    public long next() {
+        long id = peekNext();
+        if (id >= 0) mCursor = nextValidEntry(mCursor + 1);
+
+        return id;
+    }
+
+    /**
+     * Moves back to the song that was played before the current one.
+     *
+     * @return the ID of the song, or -1 should there be no earlier song in the history.
+     */
+    public long previous() {
+        for (int i = mCursor - 1; i >= 0; i--) {
+            if (mPoolIndexes.containsKey(mHistory[i])) {
+                mCursor = i;
+                return mHistory[i];
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Draws the next song of the permutation, starting a new cycle should every song have been
+     * drawn. The current song counts as drawn in a new cycle so that it never plays twice in a
+     * row.
+     */
+    private long draw() {
+        if (mDrawnCount >= mPoolSize) {
+            mDrawnCount = 0;
+            long current = current();
+            if (mPoolSize > 1) markDrawn(current); // Unless it's the only song left
+        }
+
+        int index = mDrawnCount + mRandom.nextInt(mPoolSize - mDrawnCount);
+        swap(mDrawnCount, index);
+
+        return mPool[mDrawnCount++];
+    }
+
+    /**
+     * Moves a song into the drawn part of the pool, should it still be left to draw.
+     */
+    private void markDrawn(long id) {
+        Integer index = mPoolIndexes.get(id);
+        if (index == null || index < mDrawnCount) return;
+
+        swap(mDrawnCount++, index);
+    }
+
+    /**
+     * Moves a song back into the part of the pool that's left to draw, should it be drawn.
+     */
+    private void undraw(long id) {
+        Integer index = mPoolIndexes.get(id);
+        if (index == null || index >= mDrawnCount) return;
+
+        swap(--mDrawnCount, index);
+    }
+
+    /**
+     * Returns the first history entry at or after the passed-in one whose song is still in the
+     * pool, or -1 if there's none.
+     */
+    private int nextValidEntry(int from) {
+        for (int i = from; i < mHistorySize; i++) {
+            if (mPoolIndexes.containsKey(mHistory[i])) return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Appends a song to the history, dropping the oldest half once it's full.
+     */
+    private void append(long id) {
+        if (mHistorySize == mHistory.length) {
+            if (mHistorySize >= MAX_HISTORY && mCursor >= MAX_HISTORY / 2) {
+                int dropped = MAX_HISTORY / 2;
+                System.arraycopy(mHistory, dropped, mHistory, 0, mHistorySize - dropped);
+                mHistorySize -= dropped;
+                mCursor -= dropped;
+            } else {
+                mHistory = Arrays.copyOf(mHistory, mHistorySize * 2);
+            }
+        }
+        mHistory[mHistorySize++] = id;
+    }
+
+    /**
+     * Swaps two entries of the pool, along with their stamps and indexes.
+     */
+    private void swap(int i, int j) {
+        if (i == j) return;
+
+        long id = mPool[i];
+        mPool[i] = mPool[j];
+        mPool[j] = id;
+        int stamp = mStamps[i];
+        mStamps[i] = mStamps[j];
+        mStamps[j] = stamp;
+        mPoolIndexes.put(mPool[i], i);
+        mPoolIndexes.put(mPool[j], j);
+    }
+}
@@ -9,8 +9,11 @@ public class Song {
     private long mId;
     private String mTitle, mArtist, mPath;
 
+    // ID of the album the song belongs to, or -1 if unknown.
+    private long mAlbumId;
+
     /**
-     * Creates a {@link Song} object.
+     * Creates a {@link Song} object without a known album.
      *
      * @param songID is the ID of the song.
      * @param songTitle is the title of the song.
@@ -18,10 +21,24 @@ public class Song {
      * @param songPath is the file path of the song.
      */
     public Song(long songID, String songTitle, String songArtist, String songPath) {
+        this(songID, songTitle, songArtist, songPath, -1);
+    }
+
+    /**
+     * Creates a {@link Song} object.
+     *
+     * @param songID is the ID of the song.
+     * @param songTitle is the title of the song.
+     * @param songArtist is the artist of the song.
+     * @param songPath is the file path of the song.
+     * @param albumID is the ID of the song's album, or -1 if unknown.
+     */
+    public Song(long songID, String songTitle, String songArtist, String songPath, long albumID) {
         mId = songID;
         mTitle = songTitle;
         mArtist = songArtist;
         mPath = songPath;
+        mAlbumId = albumID;
     }
 
     /**
@@ -52,6 +69,13 @@ public class Song {
         return mPath;
     }
 
+    /**
+     * Getter method for the ID of the song's album, or -1 if unknown.
+     */
+    public long getAlbumID() {
+        return mAlbumId;
+    }
+
     /**
      * Converts a {@link Song} object to a string.
      */
@@ -62,6 +86,7 @@ public class Song {
                 ", mTitle='" + mTitle + '\'' +
                 ", mArtist='" + mArtist + '\'' +
                 ", mPath='" + mPath + '\'' +
+                ", mAlbumId=" + mAlbumId +
                 '}';
     }
 
@@ -78,6 +103,7 @@ public class Song {
         Song song = (Song) o;
 
         if (mId != song.mId) return false;
+        if (mAlbumId != song.mAlbumId) return false;
         if (mTitle != null ? !mTitle.equals(song.mTitle) : song.mTitle != null) return false;
         if (mArtist != null ? !mArtist.equals(song.mArtist) : song.mArtist != null) return false;
         return mPath != null ? mPath.equals(song.mPath) : song.mPath == null;
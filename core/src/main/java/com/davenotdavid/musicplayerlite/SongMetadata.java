@@ -0,0 +1,148 @@
+package com.davenotdavid.musicplayerlite;
+
+/**
+ * Details of a song beyond what the song list itself needs, which are filled in by the
+ * enrichment pipeline after the library is loaded. Values that couldn't be read are 0 (or null
+ * for the album).
+ */
+public class SongMetadata {
+
+    // Fields used for identifying the version of the file the details were read from.
+    private final long mId;
+    private final long mDateModified;
+
+    // Details read from the MediaStore.
+    private final long mDuration;
+    private final String mAlbum;
+    private final int mTrackNumber;
+
+    // Details read from the file itself.
+    private final int mBitrate;
+    private final int mSampleRate;
+
+    /**
+     * Creates a {@link SongMetadata} object.
+     *
+     * @param id is the ID of the song.
+     * @param dateModified is the song's DATE_MODIFIED when the details were read.
+     * @param duration is the length of the song in milliseconds.
+     * @param album is the name of the song's album.
+     * @param trackNumber is the song's number within its album.
+     * @param bitrate is the song's bitrate in bits per second.
+     * @param sampleRate is the song's sample rate in Hz.
+     */
+    public SongMetadata(long id, long dateModified, long duration, String album, int trackNumber,
+                        int bitrate, int sampleRate) {
+        mId = id;
+        mDateModified = dateModified;
+        mDuration = duration;
+        mAlbum = album;
+        mTrackNumber = trackNumber;
+        mBitrate = bitrate;
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * Returns a copy of these details with the passed-in details read from the file.
+     *
+     * @param bitrate is the song's bitrate in bits per second.
+     * @param sampleRate is the song's sample rate in Hz.
+     */
+    public SongMetadata withFileDetails(int bitrate, int sampleRate) {
+        return new SongMetadata(mId, mDateModified, mDuration, mAlbum, mTrackNumber, bitrate,
+                sampleRate);
+    }
+
+    /**
+     * Getter method for the song's ID.
+     */
+    public long getID() {
+        return mId;
+    }
+
+    /**
+     * Getter method for the song's DATE_MODIFIED when the details were read.
+     */
+    public long getDateModified() {
+        return mDateModified;
+    }
+
+    /**
+     * Getter method for the length of the song in milliseconds.
+     */
+    public long getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * Getter method for the name of the song's album.
+     */
+    public String getAlbum() {
+        return mAlbum;
+    }
+
+    /**
+     * Getter method for the song's number within its album.
+     */
+    public int getTrackNumber() {
+        return mTrackNumber;
+    }
+
+    /**
+     * Getter method for the song's bitrate in bits per second.
+     */
+    public int getBitrate() {
+        return mBitrate;
+    }
+
+    /**
+     * Getter method for the song's sample rate in Hz.
+     */
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * Compares two objects - one of them being a {@link SongMetadata} object.
+     *
+     * @param o is the other object being compared with.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        SongMetadata metadata = (SongMetadata) o;
+
+        if (mId != metadata.mId) return false;
+        if (mDateModified != metadata.mDateModified) return false;
+        if (mDuration != metadata.mDuration) return false;
+        if (mTrackNumber != metadata.mTrackNumber) return false;
+        if (mBitrate != metadata.mBitrate) return false;
+        if (mSampleRate != metadata.mSampleRate) return false;
+        return mAlbum != null ? mAlbum.equals(metadata.mAlbum) : metadata.mAlbum == null;
+    }
+
+    /**
+     * Returns a hash code that's consistent with equals().
+     */
+    @Override
+    public int hashCode() {
+        return (int) (mId ^ (mId >>> 32));
+    }
+
+    /**
+     * Converts a {@link SongMetadata} object to a string.
+     */
+    @Override
+    public String toString() {
+        return "SongMetadata{" +
+                "mId=" + mId +
+                ", mDuration=" + mDuration +
+                ", mAlbum='" + mAlbum + '\'' +
+                ", mTrackNumber=" + mTrackNumber +
+                ", mBitrate=" + mBitrate +
+                ", mSampleRate=" + mSampleRate +
+                '}';
+    }
+}
@@ -0,0 +1,550 @@
+package com.davenotdavid.musicplayerlite;
+
+import java.text.Normalizer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * In-memory search index over the titles, artists, and paths of the library. Every field is
+ * normalized (case and accents folded, punctuation dropped) and split into tokens. Each distinct
+ * token is kept once in a vocabulary, which is indexed by the one- and two-character prefixes of
+ * its tokens and by every trigram within them, and each token in turn lists the songs it appears
+ * in. A query token is looked up in the vocabulary first - which is far smaller than the library,
+ * so that checking the matching tokens is cheap - and the songs of all the matching tokens are
+ * then combined as bitsets.
+ *
+ * Songs are numbered in ID order as they're added. The index is built once per session and then
+ * patched with each {@link LibraryDelta}, touching only the postings of the songs that changed.
+ * It's shared between the loader thread that patches it and the main thread that queries it,
+ * hence the synchronized methods.
+ */
+public class SongSearchIndex {
+
+    // Length of the n-grams - shorter query tokens are looked up by token prefix instead.
+    private static final int GRAM_LENGTH = 3;
+
+    // Vocabulary of distinct tokens, each with the ascending numbers of the songs it appears in.
+    private final Map<String, Integer> mTokenNumbers = new HashMap<>();
+    private final List<String> mTokens = new ArrayList<>();
+    private final List<IntList> mTokenSongs = new ArrayList<>();
+
+    // Token numbers keyed by a packed token prefix or trigram (see prefixKey() and gramKey()).
+    private final Map<Long, IntList> mGramTokens = new HashMap<>();
+
+    // Song number to ID mapping in ascending ID order, including removed songs (which are no
+    // longer in any postings) until there are enough of them to rebuild the index.
+    private long[] mSongIds = new long[16];
+    private int mSongCount;
+    private int mRemovedCount;
+
+    // Library the postings currently describe (in ID order), the sorted song list's rows, and
+    // each song number's position in that list (or -1 for removed songs).
+    private SongTable mLibrary;
+    private int[] mOrder = new int[0];
+    private int[] mSongRanks = new int[0];
+
+    /**
+     * Brings the index up to date with the passed-in pass of the library sync. The index is built
+     * from scratch on the first pass (or after a full scan), and patched in place after that.
+     *
+     * @param delta is the pass, including its sorted order.
+     * @return whether or not the index was built from scratch rather than patched.
+     */
+    public synchronized boolean apply(LibraryDelta delta) {
+        SongTable library = delta.getLibrary();
+        boolean rebuilt = mLibrary == null || delta.isFull() || !patch(library, delta);
+        if (rebuilt) build(library);
+        mLibrary = library;
+
+        // Remembers the sorted position of each song by walking the library and the song numbers,
+        // which are both in ID order, in lockstep.
+        int[] order = delta.getOrder();
+        int[] rowRanks = new int[order.length];
+        for (int i = 0; i < order.length; i++) rowRanks[order[i]] = i;
+        int[] songRanks = new int[mSongCount];
+        int row = 0;
+        for (int song = 0; song < mSongCount; song++) {
+            while (row < library.size() && library.getID(row) < mSongIds[song]) row++;
+            songRanks[song] = row < library.size() && library.getID(row) == mSongIds[song]
+                    ? rowRanks[row] : -1;
+        }
+        mOrder = order;
+        mSongRanks = songRanks;
+
+        return rebuilt;
+    }
+
+    /**
+     * Returns the songs that match every token of the passed-in query, in the order of the song
+     * list. A query token matches a song should it be the start of one of the song's tokens, or
+     * (from three characters on) appear anywhere within one of them.
+     *
+     * @param query is the text typed in by the user.
+     */
+    public synchronized List<Song> search(String query) {
+        String[] queryTokens = tokenize(normalize(query));
+        if (queryTokens.length == 0 || mLibrary == null) return Collections.emptyList();
+
+        // Intersects the songs of each query token, as a bitset over the song numbers.
+        long[] matches = null;
+        for (String queryToken : queryTokens) {
+            long[] songs = new long[(mSongCount + 63) >>> 6];
+            IntList tokens = matchingTokens(queryToken);
+            for (int i = 0; i < tokens.mSize; i++) {
+                IntList tokenSongs = mTokenSongs.get(tokens.mValues[i]);
+                for (int j = 0; j < tokenSongs.mSize; j++) {
+                    int song = tokenSongs.mValues[j];
+                    songs[song >>> 6] |= 1L << song;
+                }
+            }
+
+            if (matches == null) {
+                matches = songs;
+            } else {
+                for (int i = 0; i < matches.length; i++) matches[i] &= songs[i];
+            }
+        }
+
+        // Re-marks the matches by their sorted positions, which then read back in list order.
+        long[] ranks = new long[(mOrder.length + 63) >>> 6];
+        int count = 0;
+        for (int i = 0; i < matches.length; i++) {
+            for (long word = matches[i]; word != 0; word &= word - 1) {
+                int rank = mSongRanks[(i << 6) + Long.numberOfTrailingZeros(word)];
+                if (rank < 0) continue;
+                ranks[rank >>> 6] |= 1L << rank;
+                count++;
+            }
+        }
+        int[] rows = new int[count];
+        int index = 0;
+        for (int i = 0; i < ranks.length; i++) {
+            for (long word = ranks[i]; word != 0; word &= word - 1) {
+                rows[index++] = mOrder[(i << 6) + Long.numberOfTrailingZeros(word)];
+            }
+        }
+
+        return new Results(mLibrary, rows);
+    }
+
+    /**
+     * Leaves the passed-in songs out of the search results from now on, e.g. once they were
+     * deleted, until the library sync's next pass takes them out of the postings.
+     *
+     * @param ids is the IDs of the songs.
+     */
+    public synchronized void removeIds(long[] ids) {
+        for (long id : ids) {
+            int song = Arrays.binarySearch(mSongIds, 0, mSongCount, id);
+            if (song >= 0 && song < mSongRanks.length) mSongRanks[song] = -1;
+        }
+    }
+
+    /**
+     * Returns the number of distinct tokens in the vocabulary.
+     */
+    public synchronized int getTokenCount() {
+        return mTokens.size();
+    }
+
+    /**
+     * Returns an estimate of the heap retained by the index, in bytes.
+     */
+    public synchronized long estimateHeapBytes() {
+
+        // Counts each vocabulary entry (map entry, boxed number, string, and postings), and then
+        // each gram entry and its postings.
+        long bytes = mSongIds.length * 8L + mSongRanks.length * 4L;
+        for (int i = 0; i < mTokens.size(); i++) {
+            bytes += 120 + mTokens.get(i).length() * 2 + mTokenSongs.get(i).mValues.length * 4L;
+        }
+        for (IntList tokens : mGramTokens.values()) bytes += 80 + tokens.mValues.length * 4L;
+
+        return bytes;
+    }
+
+    /**
+     * Normalizes the passed-in text for indexing and querying - lowercases it, strips accents,
+     * and collapses everything other than letters and digits into single spaces.
+     *
+     * @param value is the text to normalize, or null.
+     */
+    static String normalize(String value) {
+        if (value == null) return "";
+
+        // Only decomposes text that has non-ASCII characters, which is the slow part.
+        boolean ascii = true;
+        for (int i = 0; i < value.length() && ascii; i++) ascii = value.charAt(i) < 0x80;
+        if (!ascii) value = Normalizer.normalize(value, Normalizer.Form.NFD);
+
+        StringBuilder builder = new StringBuilder(value.length());
+        boolean separated = true;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                builder.append(Character.toLowerCase(c));
+                separated = false;
+            } else if (Character.getType(c) != Character.NON_SPACING_MARK && !separated) {
+                builder.append(' ');
+                separated = true;
+            }
+        }
+        if (separated && builder.length() > 0) builder.setLength(builder.length() - 1);
+
+        return builder.toString();
+    }
+
+    /**
+     * Builds the index from scratch. The library is in ID order, so each song is simply numbered
+     * and appended to the postings of its tokens.
+     */
+    private void build(SongTable library) {
+        mTokenNumbers.clear();
+        mTokens.clear();
+        mTokenSongs.clear();
+        mGramTokens.clear();
+        mSongIds = new long[Math.max(16, library.size())];
+        mSongCount = 0;
+        mRemovedCount = 0;
+
+        for (int row = 0; row < library.size(); row++) {
+            int song = mSongCount++;
+            mSongIds[song] = library.getID(row);
+            for (String token : songTokens(library, row)) {
+                mTokenSongs.get(tokenNumber(token)).add(song);
+            }
+        }
+
+        // Gives back the spare capacity of the postings, most of which never grow again.
+        for (IntList songs : mTokenSongs) songs.trim();
+        for (IntList tokens : mGramTokens.values()) tokens.trim();
+    }
+
+    /**
+     * Patches the index with a delta. The tokens of each removed or changed song are looked up in
+     * the previous library in order to take the song out of their postings, and each changed or
+     * added song is then posted under its current tokens.
+     *
+     * @return whether or not the delta could be patched in, rather than the index having to be
+     * rebuilt (e.g. should a song have been added with a lower ID than the ones already known).
+     */
+    private boolean patch(SongTable library, LibraryDelta delta) {
+        for (Song song : delta.getAdded()) {
+            int index = Arrays.binarySearch(mSongIds, 0, mSongCount, song.getID());
+            if (index < 0 && -index - 1 < mSongCount) return false;
+        }
+        if ((mRemovedCount + delta.getRemovedIds().length) * 2 > mSongCount) return false;
+
+        for (long id : delta.getRemovedIds()) {
+            if (unpost(id)) mRemovedCount++;
+        }
+        for (Song song : delta.getChanged()) unpost(song.getID());
+
+        for (Song song : delta.getChanged()) post(library, song.getID());
+        for (Song song : delta.getAdded()) post(library, song.getID());
+
+        return true;
+    }
+
+    /**
+     * Takes a song out of the postings of the tokens it had in the previous library.
+     *
+     * @return whether or not the song was in the index.
+     */
+    private boolean unpost(long id) {
+        int song = Arrays.binarySearch(mSongIds, 0, mSongCount, id);
+        int row = mLibrary.binarySearchId(id);
+        if (song < 0 || row < 0) return false;
+
+        for (String token : songTokens(mLibrary, row)) {
+            Integer number = mTokenNumbers.get(token);
+            if (number != null) mTokenSongs.get(number).removeSorted(song);
+        }
+
+        return true;
+    }
+
+    /**
+     * Posts a song under the tokens it has in the passed-in library, numbering it first should it
+     * be new (its ID is known to be the highest so far).
+     */
+    private void post(SongTable library, long id) {
+        int row = library.binarySearchId(id);
+        if (row < 0) return;
+
+        int song = Arrays.binarySearch(mSongIds, 0, mSongCount, id);
+        if (song < 0) {
+            if (mSongCount == mSongIds.length) {
+                mSongIds = Arrays.copyOf(mSongIds, mSongCount * 2);
+            }
+            song = mSongCount++;
+            mSongIds[song] = id;
+        }
+
+        for (String token : songTokens(library, row)) {
+            mTokenSongs.get(tokenNumber(token)).insertSorted(song);
+        }
+    }
+
+    /**
+     * Returns the number of the passed-in token, adding it to the vocabulary (and to the postings
+     * of its prefixes and trigrams) should it be new.
+     */
+    private int tokenNumber(String token) {
+        Integer number = mTokenNumbers.get(token);
+        if (number != null) return number;
+
+        number = mTokens.size();
+        mTokenNumbers.put(token, number);
+        mTokens.add(token);
+        mTokenSongs.add(new IntList());
+
+        for (long key : tokenKeys(token)) {
+            IntList tokens = mGramTokens.get(key);
+            if (tokens == null) {
+                tokens = new IntList();
+                mGramTokens.put(key, tokens);
+            }
+            tokens.add(number);
+        }
+
+        return number;
+    }
+
+    /**
+     * Returns the numbers of the vocabulary tokens that the passed-in query token matches.
+     */
+    private IntList matchingTokens(String queryToken) {
+        IntList empty = new IntList();
+        if (queryToken.length() < GRAM_LENGTH) {
+            IntList tokens = mGramTokens.get(prefixKey(queryToken, queryToken.length()));
+            return tokens != null ? tokens : empty;
+        }
+
+        // Intersects the tokens of each trigram, starting from the rarest one.
+        List<IntList> required = new ArrayList<>();
+        for (int i = 0; i + GRAM_LENGTH <= queryToken.length(); i++) {
+            IntList tokens = mGramTokens.get(gramKey(queryToken, i));
+            if (tokens == null) return empty;
+            required.add(tokens);
+        }
+        Collections.sort(required, new Comparator<IntList>() {
+            public int compare(IntList a, IntList b) {
+                return a.mSize - b.mSize;
+            }
+        });
+        IntList candidates = required.get(0).copy();
+        for (int i = 1; i < required.size(); i++) candidates.retainAll(required.get(i));
+
+        // Drops the tokens that have all the trigrams, but not in a row.
+        if (queryToken.length() > GRAM_LENGTH) {
+            int kept = 0;
+            for (int i = 0; i < candidates.mSize; i++) {
+                int number = candidates.mValues[i];
+                if (mTokens.get(number).contains(queryToken)) candidates.mValues[kept++] = number;
+            }
+            candidates.mSize = kept;
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Returns the distinct tokens of the passed-in row.
+     */
+    private static String[] songTokens(SongTable library, int row) {
+        String[] tokens = tokenize(indexedText(library, row));
+        Arrays.sort(tokens);
+        int distinct = 0;
+        for (int i = 0; i < tokens.length; i++) {
+            if (distinct == 0 || !tokens[i].equals(tokens[distinct - 1])) {
+                tokens[distinct++] = tokens[i];
+            }
+        }
+
+        return Arrays.copyOf(tokens, distinct);
+    }
+
+    /**
+     * Returns the keys a vocabulary token is posted under - its one- and two-character prefixes,
+     * and each of its distinct trigrams.
+     */
+    private static long[] tokenKeys(String token) {
+        long[] keys = new long[2 + Math.max(0, token.length() - 2)];
+        int count = 0;
+        keys[count++] = prefixKey(token, 1);
+        if (token.length() >= 2) keys[count++] = prefixKey(token, 2);
+        for (int i = 0; i + GRAM_LENGTH <= token.length(); i++) keys[count++] = gramKey(token, i);
+
+        // Drops repeated trigrams (e.g. "lalala"), so that no postings lists a token twice.
+        Arrays.sort(keys, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || keys[i] != keys[distinct - 1]) keys[distinct++] = keys[i];
+        }
+
+        return Arrays.copyOf(keys, distinct);
+    }
+
+    /**
+     * Returns the normalized text of the fields that are searchable - the title, the artist, and
+     * the last folder and file name (without its extension) of the path. The rest of the path is
+     * left out, since it's shared by nearly every song.
+     */
+    private static String indexedText(SongTable library, int row) {
+        String path = library.getPath(row);
+        String folder = "";
+        String fileName = "";
+        if (path != null) {
+            int slash = path.lastIndexOf('/');
+            int folderSlash = slash > 0 ? path.lastIndexOf('/', slash - 1) : -1;
+            if (slash > 0) folder = path.substring(folderSlash + 1, slash);
+            int dot = path.lastIndexOf('.');
+            fileName = path.substring(slash + 1, dot > slash ? dot : path.length());
+        }
+
+        return normalize(library.getTitle(row)) + ' ' + normalize(library.getArtist(row)) + ' '
+                + normalize(folder) + ' ' + normalize(fileName);
+    }
+
+    /**
+     * Splits normalized text into its tokens.
+     */
+    private static String[] tokenize(String normalized) {
+        if (normalized.isEmpty()) return new String[0];
+
+        List<String> tokens = new ArrayList<>();
+        for (String token : normalized.split(" ")) {
+            if (!token.isEmpty()) tokens.add(token);
+        }
+
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    /**
+     * Packs the first one or two characters of a token into a key.
+     */
+    private static long prefixKey(String token, int length) {
+        long key = (long) length << 48 | (long) token.charAt(0) << 16;
+        if (length == 2) key |= token.charAt(1);
+
+        return key;
+    }
+
+    /**
+     * Packs the trigram at the passed-in offset of a token into a key.
+     */
+    private static long gramKey(String token, int offset) {
+        return (long) GRAM_LENGTH << 48 | (long) token.charAt(offset) << 32
+                | (long) token.charAt(offset + 1) << 16 | token.charAt(offset + 2);
+    }
+
+    /**
+     * Growable list of ints, used for postings that are kept in ascending order.
+     */
+    private static class IntList {
+        int[] mValues = new int[2];
+        int mSize;
+
+        /**
+         * Appends a value to the end of the list.
+         */
+        void add(int value) {
+            if (mSize == mValues.length) mValues = Arrays.copyOf(mValues, mSize * 2 + 1);
+            mValues[mSize++] = value;
+        }
+
+        /**
+         * Inserts a value at its sorted position, unless it's in the list already.
+         */
+        void insertSorted(int value) {
+            int index = Arrays.binarySearch(mValues, 0, mSize, value);
+            if (index >= 0) return;
+
+            index = -index - 1;
+            if (mSize == mValues.length) mValues = Arrays.copyOf(mValues, mSize * 2 + 1);
+            System.arraycopy(mValues, index, mValues, index + 1, mSize - index);
+            mValues[index] = value;
+            mSize++;
+        }
+
+        /**
+         * Removes a value from the sorted list, should it be there.
+         */
+        void removeSorted(int value) {
+            int index = Arrays.binarySearch(mValues, 0, mSize, value);
+            if (index < 0) return;
+
+            System.arraycopy(mValues, index + 1, mValues, index, mSize - index - 1);
+            mSize--;
+        }
+
+        /**
+         * Keeps only the values that are also in the passed-in sorted list.
+         */
+        void retainAll(IntList other) {
+            int kept = 0;
+            int j = 0;
+            for (int i = 0; i < mSize; i++) {
+                int value = mValues[i];
+                while (j < other.mSize && other.mValues[j] < value) j++;
+                if (j < other.mSize && other.mValues[j] == value) mValues[kept++] = value;
+            }
+            mSize = kept;
+        }
+
+        /**
+         * Shrinks the backing array down to the size of the list.
+         */
+        void trim() {
+            if (mValues.length > mSize) mValues = Arrays.copyOf(mValues, Math.max(1, mSize));
+        }
+
+        /**
+         * Returns a copy of the list.
+         */
+        IntList copy() {
+            IntList copy = new IntList();
+            copy.mValues = Arrays.copyOf(mValues, Math.max(2, mSize));
+            copy.mSize = mSize;
+            return copy;
+        }
+    }
+
+    /**
+     * Read-only list of search results, which looks songs up in the library they were found in
+     * as they're displayed rather than copying them up front.
+     */
+    private static class Results extends AbstractList<Song> implements RandomAccess {
+        private final SongTable mLibrary;
+        private final int[] mRows;
+
+        /**
+         * Creates a {@link Results} object.
+         *
+         * @param library is the library the results were found in, which is never modified.
+         * @param rows is the matching rows of the library, in display order.
+         */
+        Results(SongTable library, int[] rows) {
+            mLibrary = library;
+            mRows = rows;
+        }
+
+        @Override
+        public Song get(int index) {
+            return mLibrary.get(mRows[index]);
+        }
+
+        @Override
+        public int size() {
+            return mRows.length;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.davenotdavid.musicplayerlite;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorts songs in a locale-aware order without touching the main thread. A collation key is
+ * computed once per song up front, so that the sort itself only compares bytes, and large inputs
+ * are split across the available cores and merged back together.
+ */
+public class SongSorter {
+
+    // Input size from which the keys are computed and sorted on several threads.
+    private static final int PARALLEL_THRESHOLD = 8192;
+
+    // Upper bound of threads used for a single sort.
+    private static final int MAX_THREADS = 4;
+
+    // Seconds an idle sort thread is kept around for, waiting for the next sort.
+    private static final int IDLE_SECONDS = 30;
+
+    // Threads shared by every parallel sort, created on the first one.
+    private static ExecutorService sExecutor;
+
+    /**
+     * Orders the song list can be presented in.
+     */
+    public enum SortOrder {
+        TITLE, ARTIST, PATH
+    }
+
+    /**
+     * Creates the collator used for every sort order, which ignores case differences but not
+     * accents.
+     */
+    public static Collator newCollator() {
+        Collator collator = Collator.getInstance();
+        collator.setStrength(Collator.SECONDARY);
+
+        return collator;
+    }
+
+    /**
+     * Returns a comparator that's consistent with {@link #sort(SongTable, SortOrder)}, for
+     * inserting single songs into an already sorted list.
+     *
+     * @param order is the sort order.
+     */
+    public static Comparator<Song> comparator(final SortOrder order) {
+        final Collator collator = newCollator();
+
+        return new Comparator<Song>() {
+            public int compare(Song a, Song b) {
+                int result = collator.compare(primaryField(order, a.getTitle(), a.getArtist(),
+                        a.getPath()), primaryField(order, b.getTitle(), b.getArtist(),
+                        b.getPath()));
+                if (result == 0 && order == SortOrder.ARTIST) {
+                    result = collator.compare(nonNull(a.getTitle()), nonNull(b.getTitle()));
+                }
+                if (result == 0) {
+                    result = a.getID() < b.getID() ? -1 : (a.getID() == b.getID() ? 0 : 1);
+                }
+
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Returns the rows of the passed-in table in the passed-in order. Ties are broken by title
+     * (when sorting by artist) and then by ID, so the order is always the same.
+     *
+     * @param songs is the table to sort, which is left untouched.
+     * @param order is the sort order.
+     */
+    public static int[] sort(final SongTable songs, final SortOrder order) {
+        final int size = songs.size();
+        final byte[][] keys = new byte[size][];
+        final byte[][] tieKeys = order == SortOrder.ARTIST ? new byte[size][] : null;
+        final int[] rows = new int[size];
+        for (int i = 0; i < size; i++) rows[i] = i;
+
+        int threads = size < PARALLEL_THRESHOLD ? 1
+                : Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors());
+        if (threads <= 1) {
+            computeKeys(songs, order, newCollator(), keys, tieKeys, 0, size);
+            mergeSort(rows, new int[size], 0, size, songs, keys, tieKeys);
+            return rows;
+        }
+
+        // Splits the rows into one run per thread, each of which computes its own keys (with its
+        // own collator, since they aren't thread-safe) and sorts itself.
+        final int[] bounds = new int[threads + 1];
+        for (int i = 0; i <= threads; i++) bounds[i] = (int) ((long) size * i / threads);
+
+        ExecutorService executor = executor();
+        final int[] scratch = new int[size];
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final int from = bounds[i];
+            final int to = bounds[i + 1];
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    computeKeys(songs, order, newCollator(), keys, tieKeys, from, to);
+                    mergeSort(rows, scratch, from, to, songs, keys, tieKeys);
+                }
+            }));
+        }
+        await(futures);
+
+        // Merges neighboring runs in parallel until a single run is left.
+        int[] source = rows;
+        int[] target = scratch;
+        for (int width = 1; width < threads; width *= 2) {
+            futures.clear();
+            for (int i = 0; i < threads; i += 2 * width) {
+                final int from = bounds[i];
+                final int middle = bounds[Math.min(i + width, threads)];
+                final int to = bounds[Math.min(i + 2 * width, threads)];
+                final int[] mergeSource = source;
+                final int[] mergeTarget = target;
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        merge(mergeSource, mergeTarget, from, middle, to, songs, keys,
+                                tieKeys);
+                    }
+                }));
+            }
+            await(futures);
+
+            int[] swap = source;
+            source = target;
+            target = swap;
+        }
+
+        return source;
+    }
+
+    /**
+     * Returns the threads shared by every parallel sort, which exit once they've been idle for a
+     * while. Sorts running at the same time queue up for them, so there are never more than
+     * MAX_THREADS sort threads.
+     */
+    private static synchronized ExecutorService executor() {
+        if (sExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                    IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "SongSorter");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sExecutor = executor;
+        }
+
+        return sExecutor;
+    }
+
+    /**
+     * Computes the collation keys of the passed-in range of rows.
+     */
+    private static void computeKeys(SongTable songs, SortOrder order, Collator collator,
+                                    byte[][] keys, byte[][] tieKeys, int from, int to) {
+        for (int i = from; i < to; i++) {
+            String field = primaryField(order, songs.getTitle(i), songs.getArtist(i),
+                    order == SortOrder.PATH ? songs.getPath(i) : null);
+            keys[i] = collator.getCollationKey(field).toByteArray();
+            if (tieKeys != null) {
+                tieKeys[i] = collator.getCollationKey(nonNull(songs.getTitle(i))).toByteArray();
+            }
+        }
+    }
+
+    /**
+     * Stable top-down merge sort of the passed-in range of rows by their keys.
+     */
+    private static void mergeSort(int[] rows, int[] scratch, int from, int to, SongTable songs,
+                                  byte[][] keys, byte[][] tieKeys) {
+        if (to - from < 2) return;
+
+        int middle = (from + to) >>> 1;
+        mergeSort(rows, scratch, from, middle, songs, keys, tieKeys);
+        mergeSort(rows, scratch, middle, to, songs, keys, tieKeys);
+
+        // Skips the merge should both halves already be in order.
+        if (compareRows(rows[middle - 1], rows[middle], songs, keys, tieKeys) <= 0) return;
+
+        merge(rows, scratch, from, middle, to, songs, keys, tieKeys);
+        System.arraycopy(scratch, from, rows, from, to - from);
+    }
+
+    /**
+     * Merges two neighboring sorted runs of the source array into the target array.
+     */
+    private static void merge(int[] source, int[] target, int from, int middle, int to,
+                              SongTable songs, byte[][] keys, byte[][] tieKeys) {
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle
+                    && compareRows(source[left], source[right], songs, keys, tieKeys) <= 0)) {
+                target[i] = source[left++];
+            } else {
+                target[i] = source[right++];
+            }
+        }
+    }
+
+    /**
+     * Compares two rows by their keys, then by their tie-breaking keys, and then by their IDs.
+     */
+    private static int compareRows(int a, int b, SongTable songs, byte[][] keys,
+                                   byte[][] tieKeys) {
+        int result = compareKeys(keys[a], keys[b]);
+        if (result == 0 && tieKeys != null) result = compareKeys(tieKeys[a], tieKeys[b]);
+        if (result == 0) {
+            long idA = songs.getID(a);
+            long idB = songs.getID(b);
+            result = idA < idB ? -1 : (idA == idB ? 0 : 1);
+        }
+
+        return result;
+    }
+
+    /**
+     * Compares two collation keys as unsigned bytes.
+     */
+    private static int compareKeys(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int result = (a[i] & 0xff) - (b[i] & 0xff);
+            if (result != 0) return result;
+        }
+
+        return a.length - b.length;
+    }
+
+    /**
+     * Returns the field that the passed-in order sorts by primarily.
+     */
+    static String primaryField(SortOrder order, String title, String artist, String path) {
+        switch (order) {
+            case ARTIST:
+                return nonNull(artist);
+            case PATH:
+                return nonNull(path);
+            default:
+                return nonNull(title);
+        }
+    }
+
+    /**
+     * Returns the passed-in string, or an empty string in place of null.
+     */
+    private static String nonNull(String value) {
+        return value == null ? "" : value;
+    }
+
+    /**
+     * Waits for every passed-in task to finish, rethrowing whatever any of them threw.
+     */
+    private static void await(List<Future<?>> futures) {
+        try {
+            for (Future<?> future : futures) future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Sort interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Sort failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,770 @@
+package com.davenotdavid.musicplayerlite;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Compact, column-oriented list of songs. Rather than keeping a {@link Song} object per row, the
+ * IDs are kept in a primitive array, artist names are interned into a dictionary, and file paths
+ * are split into a shared folder prefix and a file name suffix.
+ *
+ * The table can still be used as a plain list of songs (e.g. by the app's SongAdapter and
+ * MusicService) - each {@link #get(int)} call returns a short-lived {@link Song} view of
+ * the row, while the per-column getters read the row without creating one.
+ *
+ * Rows are found by ID through a hash index, which is kept up to date as rows are appended, and
+ * rebuilt on the first lookup after rows were inserted, moved or removed - so looking a song up
+ * costs O(1) however often it happens, and a single pass after each change of the table.
+ */
+public class SongTable extends AbstractList<Song> implements RandomAccess {
+
+    // Initial number of rows allocated for an empty table.
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // Column fields - the artist and folder columns hold dictionary IDs, or -1 for null.
+    private long[] mIds;
+    private String[] mTitles;
+    private int[] mArtistIds;
+    private int[] mFolderIds;
+    private String[] mFileNames;
+    private long[] mAlbumIds;
+
+    // Number of rows in use.
+    private int mSize;
+
+    // Dictionaries of the distinct artist names and folder prefixes.
+    private final StringPool mArtists;
+    private final StringPool mFolders;
+
+    // Index of each ID's row, or null should it be out of date.
+    private RowIndex mRowIndex;
+
+    /**
+     * Creates an empty {@link SongTable} object.
+     */
+    public SongTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty {@link SongTable} object with room for the passed-in number of rows.
+     *
+     * @param capacity is the number of rows to allocate up front.
+     */
+    public SongTable(int capacity) {
+        allocate(Math.max(capacity, 1));
+        mArtists = new StringPool();
+        mFolders = new StringPool();
+    }
+
+    /**
+     * Creates a {@link SongTable} object that's a copy of the passed-in table, which can then be
+     * handed over to another thread.
+     *
+     * @param other is the table to copy.
+     */
+    public SongTable(SongTable other) {
+        mIds = Arrays.copyOf(other.mIds, Math.max(other.mSize, 1));
+        mTitles = Arrays.copyOf(other.mTitles, mIds.length);
+        mArtistIds = Arrays.copyOf(other.mArtistIds, mIds.length);
+        mFolderIds = Arrays.copyOf(other.mFolderIds, mIds.length);
+        mFileNames = Arrays.copyOf(other.mFileNames, mIds.length);
+        mAlbumIds = Arrays.copyOf(other.mAlbumIds, mIds.length);
+        mSize = other.mSize;
+        mArtists = new StringPool(other.mArtists);
+        mFolders = new StringPool(other.mFolders);
+    }
+
+    /**
+     * Creates an empty {@link SongTable} object with room for the passed-in number of rows, whose
+     * dictionaries start out as copies of the passed-in table's, so that its rows can be copied
+     * over column by column.
+     */
+    private SongTable(SongTable other, int capacity) {
+        allocate(Math.max(capacity, 1));
+        mArtists = new StringPool(other.mArtists);
+        mFolders = new StringPool(other.mFolders);
+    }
+
+    /**
+     * Returns a {@link Song} view of the passed-in row.
+     *
+     * @param index is the row.
+     */
+    @Override
+    public Song get(int index) {
+        checkIndex(index);
+
+        return new Song(mIds[index], mTitles[index], getArtist(index), getPath(index),
+                mAlbumIds[index]);
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public Song set(int index, Song song) {
+        Song previous = get(index);
+        store(index, song);
+        if (previous.getID() != song.getID()) mRowIndex = null;
+
+        return previous;
+    }
+
+    @Override
+    public void add(int index, Song song) {
+        if (index < 0 || index > mSize) throw new IndexOutOfBoundsException("Index: " + index);
+
+        if (mSize == mIds.length) allocate(mSize + (mSize >> 1) + 1);
+        shift(index, index + 1, mSize - index);
+        mSize++;
+        store(index, song);
+        modCount++;
+
+        // An appended row doesn't move any other, so the index only needs the new one.
+        if (index == mSize - 1) {
+            indexRow(index);
+        } else {
+            mRowIndex = null;
+        }
+    }
+
+    @Override
+    public Song remove(int index) {
+        Song previous = get(index);
+        removeRange(index, index + 1);
+
+        return previous;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        shift(toIndex, fromIndex, mSize - toIndex);
+
+        // Releases the string references of the rows that are no longer in use.
+        int newSize = mSize - (toIndex - fromIndex);
+        Arrays.fill(mTitles, newSize, mSize, null);
+        Arrays.fill(mFileNames, newSize, mSize, null);
+        mSize = newSize;
+        modCount++;
+        mRowIndex = null;
+    }
+
+    @Override
+    public void clear() {
+        removeRange(0, mSize);
+        mArtists.clear();
+        mFolders.clear();
+    }
+
+    /**
+     * Appends the passed-in rows of another table, in the order they're listed in, without
+     * creating a {@link Song} per row.
+     *
+     * @param source is the table to copy rows from.
+     * @param rows is the rows to copy, e.g. the result of a {@link SongSorter} sort.
+     */
+    public void addRows(SongTable source, int[] rows) {
+        if (mSize + rows.length > mIds.length) allocate(mSize + rows.length);
+
+        for (int row : rows) {
+            source.checkIndex(row);
+            mIds[mSize] = source.mIds[row];
+            mTitles[mSize] = source.mTitles[row];
+            mArtistIds[mSize] = mArtists.intern(source.mArtists.get(source.mArtistIds[row]));
+            mFolderIds[mSize] = mFolders.intern(source.mFolders.get(source.mFolderIds[row]));
+            mFileNames[mSize] = source.mFileNames[row];
+            mAlbumIds[mSize] = source.mAlbumIds[row];
+            indexRow(mSize);
+            mSize++;
+        }
+        modCount++;
+    }
+
+    /**
+     * Getter method for the ID of the passed-in row.
+     */
+    public long getID(int index) {
+        checkIndex(index);
+
+        return mIds[index];
+    }
+
+    /**
+     * Getter method for the title of the passed-in row.
+     */
+    public String getTitle(int index) {
+        checkIndex(index);
+
+        return mTitles[index];
+    }
+
+    /**
+     * Getter method for the artist of the passed-in row.
+     */
+    public String getArtist(int index) {
+        checkIndex(index);
+
+        return mArtists.get(mArtistIds[index]);
+    }
+
+    /**
+     * Getter method for the file path of the passed-in row.
+     */
+    public String getPath(int index) {
+        checkIndex(index);
+
+        String folder = mFolders.get(mFolderIds[index]);
+        if (folder == null) return mFileNames[index];
+
+        return folder + mFileNames[index];
+    }
+
+    /**
+     * Getter method for the folder of the passed-in row's file, including the trailing separator,
+     * or null should the path have none. Rows within the same folder share the same instance.
+     */
+    public String getFolder(int index) {
+        checkIndex(index);
+
+        return mFolders.get(mFolderIds[index]);
+    }
+
+    /**
+     * Getter method for the album ID of the passed-in row, or -1 if unknown.
+     */
+    public long getAlbumID(int index) {
+        checkIndex(index);
+
+        return mAlbumIds[index];
+    }
+
+    /**
+     * Returns the row of the song with the passed-in ID, or -1 if there's no such song. Should
+     * the ID be in the table more than once, the first of its rows is returned.
+     *
+     * @param id is the ID of the song to look for.
+     */
+    public int indexOfId(long id) {
+        if (mRowIndex == null) {
+            RowIndex rowIndex = new RowIndex(mSize);
+            for (int i = 0; i < mSize; i++) rowIndex.putIfAbsent(mIds[i], i);
+            mRowIndex = rowIndex;
+        }
+
+        return mRowIndex.get(id);
+    }
+
+    /**
+     * Binary searches for the row of the song with the passed-in ID, which requires the table to
+     * be sorted by ID.
+     *
+     * @param id is the ID of the song to look for.
+     * @return the row, or (-(insertion point) - 1) should there be no such song.
+     */
+    public int binarySearchId(long id) {
+        return Arrays.binarySearch(mIds, 0, mSize, id);
+    }
+
+    /**
+     * Returns a counter that changes whenever rows are added or removed, so that a consumer can
+     * tell cheaply whether the table changed since it last looked.
+     */
+    public int getModCount() {
+        return modCount;
+    }
+
+    /**
+     * Returns a copy of the ID column.
+     */
+    public long[] copyIds() {
+        return Arrays.copyOf(mIds, mSize);
+    }
+
+    /**
+     * Removes every row whose ID is in the passed-in array in a single pass.
+     *
+     * @param ids is the IDs of the songs to remove, sorted ascending.
+     * @return the positions the removed rows were at, in ascending order.
+     */
+    public int[] removeIds(long[] ids) {
+        if (ids.length == 0) return new int[0];
+
+        int[] removed = new int[Math.min(ids.length, mSize)];
+        int removedCount = 0;
+        int write = 0;
+        for (int read = 0; read < mSize; read++) {
+            if (Arrays.binarySearch(ids, mIds[read]) >= 0) {
+                if (removedCount == removed.length) {
+                    removed = Arrays.copyOf(removed, removedCount * 2 + 1);
+                }
+                removed[removedCount++] = read;
+                continue;
+            }
+            if (write != read) {
+                mIds[write] = mIds[read];
+                mTitles[write] = mTitles[read];
+                mArtistIds[write] = mArtistIds[read];
+                mFolderIds[write] = mFolderIds[read];
+                mFileNames[write] = mFileNames[read];
+                mAlbumIds[write] = mAlbumIds[read];
+            }
+            write++;
+        }
+        Arrays.fill(mTitles, write, mSize, null);
+        Arrays.fill(mFileNames, write, mSize, null);
+        mSize = write;
+        modCount++;
+        mRowIndex = null;
+
+        return Arrays.copyOf(removed, removedCount);
+    }
+
+    /**
+     * Inserts the passed-in songs at their positions within the table, which has to be sorted in
+     * the passed-in order, in a single pass from the back that moves each row once rather than
+     * once per song inserted ahead of it. Songs that compare equal to rows already there go
+     * after them.
+     *
+     * @param songs is the songs to insert, sorted in the same order.
+     * @param order is the order the table and the songs are sorted in.
+     * @return the position each song ended up at, in the order the songs were passed in.
+     */
+    public int[] insertSorted(List<Song> songs, Comparator<? super Song> order) {
+        int count = songs.size();
+        int[] positions = new int[count];
+        if (count == 0) return positions;
+
+        // Finds each song's position among the rows already there, each search starting where
+        // the previous one ended.
+        int low = 0;
+        for (int i = 0; i < count; i++) {
+            Song song = songs.get(i);
+            int high = mSize;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (order.compare(get(middle), song) <= 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            positions[i] = low;
+        }
+
+        // Moves each run of rows back by the number of songs inserted ahead of it, starting with
+        // the last run, and fills in the gaps.
+        if (mSize + count > mIds.length) allocate(Math.max(mSize + count, mSize + (mSize >> 1)));
+        int end = mSize;
+        for (int i = count - 1; i >= 0; i--) {
+            int position = positions[i];
+            shift(position, position + i + 1, end - position);
+            end = position;
+            positions[i] = position + i;
+            store(positions[i], songs.get(i));
+        }
+        mSize += count;
+        modCount++;
+        mRowIndex = null;
+
+        return positions;
+    }
+
+    /**
+     * Sorts the rows by ID in place, e.g. once they were read in another order, without creating
+     * a {@link Song} per row. Rows of the same ID keep their order.
+     */
+    public void sortById() {
+        int[] rows = new int[mSize];
+        for (int i = 0; i < mSize; i++) rows[i] = i;
+        sortRowsById(rows, new int[mSize], 0, mSize);
+
+        // Permutes one column at a time, so that only a single column is ever copied at once.
+        long[] ids = new long[mIds.length];
+        for (int i = 0; i < mSize; i++) ids[i] = mIds[rows[i]];
+        mIds = ids;
+        long[] albumIds = new long[mAlbumIds.length];
+        for (int i = 0; i < mSize; i++) albumIds[i] = mAlbumIds[rows[i]];
+        mAlbumIds = albumIds;
+        int[] artistIds = new int[mArtistIds.length];
+        for (int i = 0; i < mSize; i++) artistIds[i] = mArtistIds[rows[i]];
+        mArtistIds = artistIds;
+        int[] folderIds = new int[mFolderIds.length];
+        for (int i = 0; i < mSize; i++) folderIds[i] = mFolderIds[rows[i]];
+        mFolderIds = folderIds;
+        String[] titles = new String[mTitles.length];
+        for (int i = 0; i < mSize; i++) titles[i] = mTitles[rows[i]];
+        mTitles = titles;
+        String[] fileNames = new String[mFileNames.length];
+        for (int i = 0; i < mSize; i++) fileNames[i] = mFileNames[rows[i]];
+        mFileNames = fileNames;
+
+        modCount++;
+        mRowIndex = null;
+    }
+
+    /**
+     * Returns a new table of this table's rows with the passed-in changes applied, in a single
+     * pass that copies the unchanged runs of rows column by column. Requires the table to be
+     * sorted by ID, and keeps the new one sorted. This table is left as it is, so that it can
+     * still be read by other threads.
+     *
+     * @param removedIds is the IDs of the rows to leave out, sorted ascending.
+     * @param upserts is the songs to add, or to replace the rows of the same ID with, sorted by
+     *                ID. They win over a removed ID of their own.
+     */
+    public SongTable merge(long[] removedIds, List<Song> upserts) {
+        SongTable merged = new SongTable(this, mSize + upserts.size());
+        int read = 0;
+        int removed = 0;
+        int upsert = 0;
+        while (true) {
+            long upsertId = upsert < upserts.size() ? upserts.get(upsert).getID() : Long.MAX_VALUE;
+            long removedId = removed < removedIds.length ? removedIds[removed] : Long.MAX_VALUE;
+
+            // Copies every row up to the next change in one go.
+            long nextId = Math.min(upsertId, removedId);
+            int end = nextId == Long.MAX_VALUE ? mSize
+                    : Arrays.binarySearch(mIds, read, mSize, nextId);
+            if (end < 0) end = -end - 1;
+            merged.copyRows(this, read, end - read);
+            read = end;
+            if (nextId == Long.MAX_VALUE) break;
+
+            // Replaces (or skips) the row of the changed ID, should there be one.
+            boolean matches = read < mSize && mIds[read] == nextId;
+            if (upsertId == nextId) {
+                merged.store(merged.mSize++, upserts.get(upsert++));
+                if (removedId == nextId) removed++;
+            } else {
+                removed++;
+            }
+            if (matches) read++;
+        }
+
+        return merged;
+    }
+
+    /**
+     * Returns a rough estimate of the heap retained by the table, assuming 4-byte references,
+     * 8-byte object headers and 2-byte characters.
+     */
+    public long estimateHeapBytes() {
+        long bytes = 8 * mIds.length + 8 * mAlbumIds.length + 4 * mArtistIds.length
+                + 4 * mFolderIds.length + 4 * mTitles.length + 4 * mFileNames.length;
+        for (int i = 0; i < mSize; i++) {
+            bytes += estimateStringBytes(mTitles[i]) + estimateStringBytes(mFileNames[i]);
+        }
+        if (mRowIndex != null) bytes += mRowIndex.estimateHeapBytes();
+
+        return bytes + mArtists.estimateHeapBytes() + mFolders.estimateHeapBytes();
+    }
+
+    /**
+     * Returns a rough estimate of the heap that the passed-in songs would retain as a list of
+     * {@link Song} objects, using the same assumptions as {@link #estimateHeapBytes()}.
+     *
+     * @param songs is the list of songs.
+     */
+    public static long estimateListHeapBytes(List<Song> songs) {
+        long bytes = 4 * songs.size();
+        for (Song song : songs) {
+            bytes += 32 + estimateStringBytes(song.getTitle())
+                    + estimateStringBytes(song.getArtist()) + estimateStringBytes(song.getPath());
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Returns a rough estimate of the heap retained by the passed-in string.
+     */
+    private static long estimateStringBytes(String value) {
+        return value == null ? 0 : 24 + 16 + 2 * value.length();
+    }
+
+    /**
+     * Writes the passed-in song's fields into the passed-in row.
+     */
+    private void store(int index, Song song) {
+        mIds[index] = song.getID();
+        mAlbumIds[index] = song.getAlbumID();
+        mTitles[index] = song.getTitle();
+        mArtistIds[index] = mArtists.intern(song.getArtist());
+
+        // Splits the path right after its last separator, so that every song within the same
+        // folder shares the folder prefix.
+        String path = song.getPath();
+        int separator = path == null ? -1 : path.lastIndexOf('/');
+        if (separator < 0) {
+            mFolderIds[index] = -1;
+            mFileNames[index] = path;
+        } else {
+            mFolderIds[index] = mFolders.intern(path.substring(0, separator + 1));
+            mFileNames[index] = path.substring(separator + 1);
+        }
+    }
+
+    /**
+     * Stable merge sort of the passed-in range of rows by their IDs.
+     */
+    private void sortRowsById(int[] rows, int[] scratch, int from, int to) {
+        if (to - from < 2) return;
+
+        int middle = (from + to) >>> 1;
+        sortRowsById(rows, scratch, from, middle);
+        sortRowsById(rows, scratch, middle, to);
+        if (mIds[rows[middle - 1]] <= mIds[rows[middle]]) return; // Already in order
+
+        System.arraycopy(rows, from, scratch, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && mIds[scratch[left]] <= mIds[scratch[right]])) {
+                rows[i] = scratch[left++];
+            } else {
+                rows[i] = scratch[right++];
+            }
+        }
+    }
+
+    /**
+     * Appends the passed-in run of another table's rows, whose dictionary IDs have to be valid in
+     * this table's dictionaries.
+     */
+    private void copyRows(SongTable source, int from, int count) {
+        if (count <= 0) return;
+
+        System.arraycopy(source.mIds, from, mIds, mSize, count);
+        System.arraycopy(source.mTitles, from, mTitles, mSize, count);
+        System.arraycopy(source.mArtistIds, from, mArtistIds, mSize, count);
+        System.arraycopy(source.mFolderIds, from, mFolderIds, mSize, count);
+        System.arraycopy(source.mFileNames, from, mFileNames, mSize, count);
+        System.arraycopy(source.mAlbumIds, from, mAlbumIds, mSize, count);
+        mSize += count;
+    }
+
+    /**
+     * Adds the passed-in row to the index, should the index be up to date.
+     */
+    private void indexRow(int index) {
+        if (mRowIndex != null) mRowIndex.putIfAbsent(mIds[index], index);
+    }
+
+    /**
+     * Moves the passed-in number of rows within every column.
+     */
+    private void shift(int fromIndex, int toIndex, int count) {
+        if (count <= 0 || fromIndex == toIndex) return;
+
+        System.arraycopy(mIds, fromIndex, mIds, toIndex, count);
+        System.arraycopy(mTitles, fromIndex, mTitles, toIndex, count);
+        System.arraycopy(mArtistIds, fromIndex, mArtistIds, toIndex, count);
+        System.arraycopy(mFolderIds, fromIndex, mFolderIds, toIndex, count);
+        System.arraycopy(mFileNames, fromIndex, mFileNames, toIndex, count);
+        System.arraycopy(mAlbumIds, fromIndex, mAlbumIds, toIndex, count);
+    }
+
+    /**
+     * Grows (or initially allocates) every column to the passed-in capacity.
+     */
+    private void allocate(int capacity) {
+        if (mIds == null) {
+            mIds = new long[capacity];
+            mTitles = new String[capacity];
+            mArtistIds = new int[capacity];
+            mFolderIds = new int[capacity];
+            mFileNames = new String[capacity];
+            mAlbumIds = new long[capacity];
+        } else {
+            mIds = Arrays.copyOf(mIds, capacity);
+            mTitles = Arrays.copyOf(mTitles, capacity);
+            mArtistIds = Arrays.copyOf(mArtistIds, capacity);
+            mFolderIds = Arrays.copyOf(mFolderIds, capacity);
+            mFileNames = Arrays.copyOf(mFileNames, capacity);
+            mAlbumIds = Arrays.copyOf(mAlbumIds, capacity);
+        }
+    }
+
+    /**
+     * Throws should the passed-in row be out of bounds.
+     */
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+        }
+    }
+
+    /**
+     * Dictionary that maps each distinct string to a dense ID, so that a column only needs to
+     * keep an int per row.
+     */
+    static class StringPool {
+
+        // Fields used for looking strings up in both directions.
+        private final List<String> mValues;
+        private final Map<String, Integer> mIds;
+
+        /**
+         * Creates an empty {@link StringPool} object.
+         */
+        StringPool() {
+            mValues = new ArrayList<>();
+            mIds = new HashMap<>();
+        }
+
+        /**
+         * Creates a {@link StringPool} object that's a copy of the passed-in pool.
+         *
+         * @param other is the pool to copy.
+         */
+        StringPool(StringPool other) {
+            mValues = new ArrayList<>(other.mValues);
+            mIds = new HashMap<>(other.mIds);
+        }
+
+        /**
+         * Returns the ID of the passed-in string, adding it to the pool should it be new.
+         *
+         * @param value is the string, or null.
+         * @return the ID, or -1 for null.
+         */
+        int intern(String value) {
+            if (value == null) return -1;
+
+            Integer id = mIds.get(value);
+            if (id == null) {
+                id = mValues.size();
+                mValues.add(value);
+                mIds.put(value, id);
+            }
+
+            return id;
+        }
+
+        /**
+         * Returns the string with the passed-in ID, or null for -1.
+         */
+        String get(int id) {
+            return id < 0 ? null : mValues.get(id);
+        }
+
+        /**
+         * Returns the number of distinct strings in the pool.
+         */
+        int size() {
+            return mValues.size();
+        }
+
+        /**
+         * Removes every string from the pool.
+         */
+        void clear() {
+            mValues.clear();
+            mIds.clear();
+        }
+
+        /**
+         * Returns a rough estimate of the heap retained by the pool, including its hash map.
+         */
+        long estimateHeapBytes() {
+            long bytes = 4 * mValues.size();
+            for (String value : mValues) bytes += estimateStringBytes(value) + 48;
+
+            return bytes;
+        }
+    }
+
+    /**
+     * Open-addressing hash index of each ID's row, kept in two primitive arrays so that it costs
+     * no object per row. Only ever added to - it's rebuilt rather than patched once rows move.
+     */
+    static class RowIndex {
+
+        // Most slots in use per slot, beyond which the index grows.
+        private static final float LOAD_FACTOR = 0.75f;
+
+        // ID of each slot, and the row in it plus one (0 for an empty slot).
+        private long[] mKeys;
+        private int[] mRows;
+        private int mSize;
+
+        /**
+         * Creates an empty {@link RowIndex} object with room for the passed-in number of IDs.
+         *
+         * @param capacity is the number of IDs to allocate up front.
+         */
+        RowIndex(int capacity) {
+            int slots = 16;
+            while (slots * LOAD_FACTOR < capacity) slots <<= 1;
+            mKeys = new long[slots];
+            mRows = new int[slots];
+        }
+
+        /**
+         * Returns the row of the passed-in ID, or -1 if it isn't in the index.
+         */
+        int get(long id) {
+            int mask = mKeys.length - 1;
+            for (int slot = slot(id, mask); mRows[slot] != 0; slot = (slot + 1) & mask) {
+                if (mKeys[slot] == id) return mRows[slot] - 1;
+            }
+
+            return -1;
+        }
+
+        /**
+         * Adds the passed-in ID's row, unless the ID is already in the index.
+         */
+        void putIfAbsent(long id, int row) {
+            if (mSize + 1 > mKeys.length * LOAD_FACTOR) grow();
+
+            int mask = mKeys.length - 1;
+            int slot = slot(id, mask);
+            while (mRows[slot] != 0) {
+                if (mKeys[slot] == id) return;
+                slot = (slot + 1) & mask;
+            }
+            mKeys[slot] = id;
+            mRows[slot] = row + 1;
+            mSize++;
+        }
+
+        /**
+         * Doubles the number of slots, re-adding every ID.
+         */
+        private void grow() {
+            long[] keys = mKeys;
+            int[] rows = mRows;
+            mKeys = new long[keys.length * 2];
+            mRows = new int[keys.length * 2];
+            mSize = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (rows[i] != 0) putIfAbsent(keys[i], rows[i] - 1);
+            }
+        }
+
+        /**
+         * Returns the slot the passed-in ID hashes to, mixing its bits first since IDs tend to be
+         * consecutive.
+         */
+        private static int slot(long id, int mask) {
+            return (int) ((id * 0x9e3779b97f4a7c15L) >>> 32) & mask;
+        }
+
+        /**
+         * Returns the heap retained by the index.
+         */
+        long estimateHeapBytes() {
+            return 12L * mKeys.length;
+        }
+    }
+}
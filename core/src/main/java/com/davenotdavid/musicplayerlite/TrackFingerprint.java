@@ -0,0 +1,103 @@
+package com.davenotdavid.musicplayerlite;
+
+/**
+ * Fingerprint of the audio payload of a song's file, i.e. of the file minus its tags, so that
+ * copies of the same audio match even when their tags or paths differ.
+ */
+public class TrackFingerprint {
+
+    // Fields used for identifying the version of the file that was fingerprinted.
+    private final String mPath;
+    private final long mSize;
+    private final long mLastModified;
+
+    // Length of the audio payload, and the hash of its sampled chunks.
+    private final long mPayloadLength;
+    private final long mHash;
+
+    /**
+     * Creates a {@link TrackFingerprint} object.
+     *
+     * @param path is the path of the file.
+     * @param size is the file's size when it was fingerprinted.
+     * @param lastModified is the file's modification time when it was fingerprinted.
+     * @param payloadLength is the length of the audio payload.
+     * @param hash is the hash of the payload's sampled chunks.
+     */
+    public TrackFingerprint(String path, long size, long lastModified, long payloadLength,
+                            long hash) {
+        mPath = path;
+        mSize = size;
+        mLastModified = lastModified;
+        mPayloadLength = payloadLength;
+        mHash = hash;
+    }
+
+    /**
+     * Getter method for the path of the file.
+     */
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * Getter method for the file's size when it was fingerprinted.
+     */
+    public long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Getter method for the file's modification time when it was fingerprinted.
+     */
+    public long getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * Getter method for the length of the audio payload.
+     */
+    public long getPayloadLength() {
+        return mPayloadLength;
+    }
+
+    /**
+     * Getter method for the hash of the payload's sampled chunks.
+     */
+    public long getHash() {
+        return mHash;
+    }
+
+    /**
+     * Returns whether or not this fingerprint is still valid for the file as it is now.
+     *
+     * @param size is the file's current size.
+     * @param lastModified is the file's current modification time.
+     */
+    public boolean matches(long size, long lastModified) {
+        return size == mSize && lastModified == mLastModified;
+    }
+
+    /**
+     * Returns whether or not the passed-in fingerprint is of the same audio as this one.
+     *
+     * @param other is the other fingerprint.
+     */
+    public boolean sameAudio(TrackFingerprint other) {
+        return mPayloadLength > 0 && mPayloadLength == other.mPayloadLength
+                && mHash == other.mHash;
+    }
+
+    /**
+     * Converts a {@link TrackFingerprint} object to a string.
+     */
+    @Override
+    public String toString() {
+        return "TrackFingerprint{" +
+                "mPath='" + mPath + '\'' +
+                ", mSize=" + mSize +
+                ", mPayloadLength=" + mPayloadLength +
+                ", mHash=" + Long.toHexString(mHash) +
+                '}';
+    }
+}
@@ -0,0 +1,92 @@
+package com.davenotdavid.musicplayerlite;
+
+/**
+ * Result of a song's loudness analysis, which the playback volume of the song is derived from.
+ */
+public class TrackLoudness {
+
+    // Fields used for identifying the version of the file that was analyzed.
+    private final long mId;
+    private final long mDateModified;
+
+    // Integrated loudness in LUFS (or LoudnessAnalyzer.UNMEASURED), and the sample peak.
+    private final double mLoudness;
+    private final float mPeak;
+
+    /**
+     * Creates a {@link TrackLoudness} object.
+     *
+     * @param id is the ID of the song.
+     * @param dateModified is the song's DATE_MODIFIED when it was analyzed.
+     * @param loudness is the song's integrated loudness in LUFS.
+     * @param peak is the song's sample peak.
+     */
+    public TrackLoudness(long id, long dateModified, double loudness, float peak) {
+        mId = id;
+        mDateModified = dateModified;
+        mLoudness = loudness;
+        mPeak = peak;
+    }
+
+    /**
+     * Getter method for the song's ID.
+     */
+    public long getID() {
+        return mId;
+    }
+
+    /**
+     * Getter method for the song's DATE_MODIFIED when it was analyzed.
+     */
+    public long getDateModified() {
+        return mDateModified;
+    }
+
+    /**
+     * Getter method for the song's integrated loudness in LUFS, which is
+     * {@link LoudnessAnalyzer#UNMEASURED} should it have been too short or quiet to measure.
+     */
+    public double getLoudness() {
+        return mLoudness;
+    }
+
+    /**
+     * Getter method for the song's sample peak.
+     */
+    public float getPeak() {
+        return mPeak;
+    }
+
+    /**
+     * Returns whether or not the song could be measured.
+     */
+    public boolean isMeasured() {
+        return mLoudness != LoudnessAnalyzer.UNMEASURED;
+    }
+
+    /**
+     * Returns the linear volume that brings the song to the passed-in target loudness. Since a
+     * player's volume can only attenuate, songs quieter than the target are left at full volume.
+     *
+     * @param target is the target loudness in LUFS.
+     * @return the volume within (0, 1].
+     */
+    public float getVolume(double target) {
+        double gain = LoudnessAnalyzer.gainFor(mLoudness, mPeak, target);
+        if (gain >= 0) return 1f;
+
+        return (float) Math.pow(10.0, gain / 20.0);
+    }
+
+    /**
+     * Converts a {@link TrackLoudness} object to a string.
+     */
+    @Override
+    public String toString() {
+        return "TrackLoudness{" +
+                "mId=" + mId +
+                ", mLoudness=" + mLoudness +
+                ", mPeak=" + mPeak +
+                '}';
+    }
+}
@@ -0,0 +1,149 @@
+package com.davenotdavid.musicplayerlite;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AudioFingerprinterTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void tagsAreLeftOut() throws IOException {
+        byte[] payload = payload(300 * 1024);
+        File plain = write(new byte[0], payload, new byte[0]);
+        File tagged = write(id3v2Tag(500), payload, id3v1Tag());
+
+        AudioFingerprinter fingerprinter = new AudioFingerprinter();
+        TrackFingerprint first = fingerprinter.fingerprint(plain);
+        TrackFingerprint second = fingerprinter.fingerprint(tagged);
+        assertEquals(payload.length, second.getPayloadLength());
+        assertTrue(first.sameAudio(second));
+        assertTrue(fingerprinter.samePayload(plain, tagged));
+    }
+
+    @Test
+    public void shortPayloadIsHashedWhole() throws IOException {
+        byte[] payload = payload(40 * 1024 + 3);
+        File first = write(new byte[0], payload, new byte[0]);
+        payload[payload.length / 2] ^= 1;
+        File second = write(new byte[0], payload, new byte[0]);
+
+        AudioFingerprinter fingerprinter = new AudioFingerprinter();
+        assertNotEquals(fingerprinter.fingerprint(first).getHash(),
+                fingerprinter.fingerprint(second).getHash());
+    }
+
+    @Test
+    public void differenceBetweenChunksIsOnlyFoundByComparing() throws IOException {
+        byte[] payload = payload(1024 * 1024);
+        File first = write(new byte[0], payload, new byte[0]);
+
+        // Between the first two of the evenly spaced chunks that get hashed.
+        payload[100 * 1024] ^= 1;
+        File second = write(new byte[0], payload, new byte[0]);
+
+        AudioFingerprinter fingerprinter = new AudioFingerprinter();
+        assertTrue(fingerprinter.fingerprint(first).sameAudio(fingerprinter.fingerprint(second)));
+        assertFalse(fingerprinter.samePayload(first, second));
+    }
+
+    @Test(timeout = 10000)
+    public void malformedApeFooterIsPartOfThePayload() throws IOException {
+        byte[] payload = payload(4096 - 32);
+        File zeroSize = write(payload, apeFooter(0));
+        File tooLarge = write(payload, apeFooter(1 << 20));
+
+        AudioFingerprinter fingerprinter = new AudioFingerprinter();
+        assertEquals(4096, fingerprinter.fingerprint(zeroSize).getPayloadLength());
+        assertEquals(4096, fingerprinter.fingerprint(tooLarge).getPayloadLength());
+    }
+
+    @Test
+    public void apeTagIsLeftOut() throws IOException {
+        byte[] payload = payload(4096);
+        byte[] items = new byte[100];
+        File tagged = write(payload, items, apeFooter(items.length + 32), id3v1Tag());
+
+        assertEquals(payload.length,
+                new AudioFingerprinter().fingerprint(tagged).getPayloadLength());
+    }
+
+    /**
+     * Returns an APEv2 footer whose tag (items and footer, without a header) is of the passed-in
+     * size.
+     */
+    private static byte[] apeFooter(int tagSize) {
+        ByteBuffer footer = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+        footer.put(new byte[]{'A', 'P', 'E', 'T', 'A', 'G', 'E', 'X'});
+        footer.putInt(2000);
+        footer.putInt(tagSize);
+
+        return footer.array();
+    }
+
+    /**
+     * Returns the passed-in number of random bytes, which are the same on every call.
+     */
+    private static byte[] payload(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+
+        return bytes;
+    }
+
+    /**
+     * Returns an ID3v2 tag with the passed-in number of bytes after its header.
+     */
+    private static byte[] id3v2Tag(int size) {
+        byte[] tag = new byte[10 + size];
+        tag[0] = 'I';
+        tag[1] = 'D';
+        tag[2] = '3';
+        tag[3] = 4;
+        tag[8] = (byte) ((size >> 7) & 0x7f);
+        tag[9] = (byte) (size & 0x7f);
+
+        return tag;
+    }
+
+    /**
+     * Returns an ID3v1 tag.
+     */
+    private static byte[] id3v1Tag() {
+        byte[] tag = new byte[128];
+        tag[0] = 'T';
+        tag[1] = 'A';
+        tag[2] = 'G';
+
+        return tag;
+    }
+
+    /**
+     * Writes the passed-in parts to a new file, one after another.
+     */
+    private File write(byte[]... parts) throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (byte[] part : parts) out.write(part);
+        } finally {
+            out.close();
+        }
+
+        return file;
+    }
+}
@@ -0,0 +1,244 @@
+package com.davenotdavid.musicplayerlite;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LibraryDeltaTest {
+
+    @Test
+    public void removedIdsAreTheOnesNoLongerThere() {
+        assertArrayEquals(new long[]{2, 5},
+                LibraryDelta.removedIds(new long[]{1, 2, 3, 5}, new long[]{1, 3, 4}));
+        assertArrayEquals(new long[0], LibraryDelta.removedIds(new long[0], new long[]{1}));
+    }
+
+    @Test
+    public void patchedListMatchesAFreshSort() {
+        for (SongSorter.SortOrder sortOrder : SongSorter.SortOrder.values()) {
+            for (long seed = 0; seed < 5; seed++) checkPatch(sortOrder, seed, 2000, 40);
+        }
+    }
+
+    @Test
+    public void patchedOrderMatchesAFreshSort() {
+        for (SongSorter.SortOrder sortOrder : SongSorter.SortOrder.values()) {
+            for (long seed = 0; seed < 5; seed++) {
+                Random random = new Random(seed);
+                SongTable before = table(SongTableTest.songs(2000, seed));
+                Pass first = new Pass(before, sortOrder);
+                SectionIndex sections = new SectionIndex(first.delta.getSectionIndex());
+                GroupIndex groups = new GroupIndex(first.delta.getGroupIndex());
+
+                LibraryDelta delta = change(before, random, 40, sortOrder);
+                int[] order = delta.patchOrder(before, sortOrder, first.delta.getOrder(),
+                        sections, groups);
+
+                assertArrayEquals(delta.getOrder(), order);
+                assertSameSections(delta.getSectionIndex(), sections, order.length);
+                assertSameGroups(delta.getGroupIndex(), groups);
+            }
+        }
+    }
+
+    @Test
+    public void mostlyChangedOrderIsNotPatched() {
+        SongSorter.SortOrder sortOrder = SongSorter.SortOrder.TITLE;
+        SongTable before = table(SongTableTest.songs(200, 1));
+        Pass first = new Pass(before, sortOrder);
+
+        LibraryDelta delta = change(before, new Random(1), 150, sortOrder);
+        assertNull(delta.patchOrder(before, sortOrder, first.delta.getOrder(),
+                new SectionIndex(first.delta.getSectionIndex()),
+                new GroupIndex(first.delta.getGroupIndex())));
+    }
+
+    @Test
+    public void mostlyChangedListIsRebuilt() {
+        assertTrue(checkPatch(SongSorter.SortOrder.TITLE, 1, 200, 150).isRebuilt());
+    }
+
+    @Test
+    public void patchingTwiceIsHarmless() {
+        SongSorter.SortOrder sortOrder = SongSorter.SortOrder.ARTIST;
+        Random random = new Random(3);
+        SongTable before = table(SongTableTest.songs(1000, 3));
+        Pass pass = new Pass(before, sortOrder);
+        SongTable list = new SongTable();
+        pass.delta.copyTo(list);
+
+        LibraryDelta delta = change(before, random, 20, sortOrder);
+        delta.applyTo(list);
+        delta.applyTo(list);
+
+        assertEquals(sorted(delta), list);
+    }
+
+    /**
+     * Patches a list built from a random library with random changes, and checks the list, its
+     * sections and its groups against those built from scratch. Unless the list was rebuilt,
+     * also checks that replaying the patch's positions on the old list gives the new one.
+     */
+    private static LibraryDelta.Patch checkPatch(SongSorter.SortOrder sortOrder, long seed,
+                                                 int size, int changes) {
+        Random random = new Random(seed);
+        SongTable before = table(SongTableTest.songs(size, seed));
+        Pass first = new Pass(before, sortOrder);
+
+        SongTable list = new SongTable();
+        first.delta.copyTo(list);
+        SectionIndex sections = new SectionIndex(first.delta.getSectionIndex());
+        GroupIndex groups = new GroupIndex(first.delta.getGroupIndex());
+
+        LibraryDelta delta = change(before, random, changes, sortOrder);
+        List<Song> old = new ArrayList<>(list);
+        LibraryDelta.Patch patch = delta.applyTo(list, sections, groups);
+
+        assertEquals(sorted(delta), list);
+        assertSameSections(delta.getSectionIndex(), sections, list.size());
+        assertSameGroups(delta.getGroupIndex(), groups);
+        if (!patch.isRebuilt()) {
+            int[] removed = patch.getRemovedPositions();
+            for (int i = removed.length - 1; i >= 0; i--) old.remove(removed[i]);
+            for (int position : patch.getInsertedPositions()) old.add(position, list.get(position));
+            assertEquals(list, old);
+        }
+
+        return patch;
+    }
+
+    /**
+     * Returns the pass of a library that has a random number of the passed-in library's songs
+     * removed, changed and added, with its order, sections and groups built from scratch.
+     */
+    private static LibraryDelta change(SongTable before, Random random, int changes,
+                                       SongSorter.SortOrder sortOrder) {
+        List<Song> songs = new ArrayList<>(before);
+        List<Song> added = new ArrayList<>();
+        List<Song> changed = new ArrayList<>();
+        long[] removed = new long[changes];
+        int removedCount = 0;
+
+        for (int i = 0; i < changes; i++) {
+            int index = random.nextInt(songs.size());
+            Song song = songs.get(index);
+            if (contains(added, song) || contains(changed, song)) continue;
+
+            if (random.nextBoolean()) {
+                songs.remove(index);
+                removed[removedCount++] = song.getID();
+            } else {
+                Song update = SongTableTest.song(song.getID(), random);
+                songs.set(index, update);
+                changed.add(update);
+            }
+        }
+        long maxId = songs.get(songs.size() - 1).getID();
+        for (int i = 0; i < changes / 2; i++) {
+            Song song = SongTableTest.song(maxId + 1 + i, random);
+            songs.add(song);
+            added.add(song);
+        }
+
+        long[] removedIds = Arrays.copyOf(removed, removedCount);
+        Arrays.sort(removedIds);
+        LibraryDelta delta = new LibraryDelta(table(songs), added, changed, removedIds, false);
+        new Pass(delta, sortOrder);
+        return delta;
+    }
+
+    /**
+     * Returns whether or not the passed-in list has a song with the same ID.
+     */
+    private static boolean contains(List<Song> songs, Song song) {
+        for (Song other : songs) {
+            if (other.getID() == song.getID()) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the pass's library in its sorted order.
+     */
+    private static SongTable sorted(LibraryDelta delta) {
+        SongTable songs = new SongTable();
+        songs.addRows(delta.getLibrary(), delta.getOrder());
+
+        return songs;
+    }
+
+    /**
+     * Returns a table of the passed-in songs.
+     */
+    private static SongTable table(List<Song> songs) {
+        SongTable table = new SongTable();
+        table.addAll(songs);
+
+        return table;
+    }
+
+    /**
+     * Checks that the passed-in sections describe the same positions.
+     */
+    private static void assertSameSections(SectionIndex expected, SectionIndex actual, int size) {
+        assertArrayEquals(expected.getSections(), actual.getSections());
+        for (int i = 0; i < expected.getSections().length; i++) {
+            assertEquals(expected.getPositionForSection(i), actual.getPositionForSection(i));
+        }
+        for (int position = 0; position < size; position++) {
+            assertEquals(expected.getSectionForPosition(position),
+                    actual.getSectionForPosition(position));
+        }
+    }
+
+    /**
+     * Checks that every non-empty group of the passed-in groupings holds the same positions,
+     * whatever its number.
+     */
+    private static void assertSameGroups(GroupIndex expected, GroupIndex actual) {
+        for (GroupIndex.Grouping grouping : GroupIndex.Grouping.values()) {
+            int nonEmpty = 0;
+            for (int group = 0; group < actual.getGroupCount(grouping); group++) {
+                if (actual.getSize(grouping, group) > 0) nonEmpty++;
+            }
+            assertEquals(expected.getGroupCount(grouping), nonEmpty);
+
+            for (int group = 0; group < expected.getGroupCount(grouping); group++) {
+                Object key = expected.getKey(grouping, group);
+                int actualGroup = actual.indexOfKey(grouping, key);
+                assertTrue("Missing group " + key, actualGroup >= 0);
+                assertArrayEquals(expected.getRows(grouping, group),
+                        actual.getRows(grouping, actualGroup));
+            }
+        }
+    }
+
+    /**
+     * Sorts a pass, and builds its sections and groups, the way the loader does.
+     */
+    private static class Pass {
+        final LibraryDelta delta;
+
+        Pass(SongTable library, SongSorter.SortOrder sortOrder) {
+            this(LibraryDelta.full(library), sortOrder);
+        }
+
+        Pass(LibraryDelta delta, SongSorter.SortOrder sortOrder) {
+            this.delta = delta;
+            SongTable library = delta.getLibrary();
+            int[] order = SongSorter.sort(library, sortOrder);
+            delta.setOrder(sortOrder, order);
+            delta.setSectionIndex(SectionIndex.build(library, order, sortOrder));
+            delta.setGroupIndex(GroupIndex.build(library, order));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.davenotdavid.musicplayerlite;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class LibrarySnapshotTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void snapshotReadsBackAsWritten() throws IOException {
+        File file = mFolder.newFile();
+        List<Song> songs = SongTableTest.songs(500, 1);
+        songs.add(new Song(100000, null, null, null, -1));
+        LibrarySnapshot.write(file, songs, 1234, 100000);
+
+        LibrarySnapshot snapshot = LibrarySnapshot.read(file);
+        assertEquals(songs, snapshot.getSongs());
+        assertEquals(1234, snapshot.getMaxDateModified());
+        assertEquals(100000, snapshot.getMaxId());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void emptyStringsDoNotShadowTheNextString() throws IOException {
+        File file = mFolder.newFile();
+        List<Song> songs = Arrays.asList(
+                new Song(1, "", "Bob", "/x/a.mp3", 0),
+                new Song(2, "Title", "", "/x/b.mp3", 0),
+                new Song(3, "", "", "", 0),
+                new Song(4, "Bob", "Title", "/x/a.mp3", 0));
+        LibrarySnapshot.write(file, songs, 0, 4);
+
+        assertEquals(songs, LibrarySnapshot.read(file).getSongs());
+    }
+
+    @Test
+    public void emptyLibraryReadsBack() throws IOException {
+        File file = mFolder.newFile();
+        LibrarySnapshot.write(file, SongTableTest.songs(0, 1), 0, 0);
+
+        assertEquals(0, LibrarySnapshot.read(file).getSongs().size());
+    }
+
+    @Test
+    public void truncatedSnapshotIsRejected() throws IOException {
+        File file = write();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(randomAccessFile.length() - 1);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        assertRejected(file);
+    }
+
+    @Test
+    public void flippedByteIsRejected() throws IOException {
+        File file = write();
+        long length = file.length();
+        for (long offset : new long[]{45, length / 2, length - 1}) {
+            flip(file, offset);
+            assertRejected(file);
+            flip(file, offset);
+        }
+
+        LibrarySnapshot.read(file);
+    }
+
+    @Test
+    public void otherVersionIsRejected() throws IOException {
+        File file = write();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(4);
+            randomAccessFile.write(LibrarySnapshot.VERSION + 1);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        assertRejected(file);
+    }
+
+    @Test
+    public void otherFileIsRejected() throws IOException {
+        File file = mFolder.newFile();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            byte[] bytes = new byte[100];
+            Arrays.fill(bytes, (byte) 7);
+            randomAccessFile.write(bytes);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        assertRejected(file);
+        assertRejected(mFolder.newFile());
+    }
+
+    /**
+     * Writes a snapshot of a few songs, and returns its file.
+     */
+    private File write() throws IOException {
+        File file = mFolder.newFile();
+        LibrarySnapshot.write(file, SongTableTest.songs(100, 2), 1, 1);
+
+        return file;
+    }
+
+    /**
+     * Inverts the bits of the byte at the passed-in offset.
+     */
+    private static void flip(File file, long offset) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(offset);
+            int value = randomAccessFile.read();
+            randomAccessFile.seek(offset);
+            randomAccessFile.write(~value);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Checks that reading the passed-in file fails with an IOException.
+     */
+    private static void assertRejected(File file) {
+        try {
+            LibrarySnapshot.read(file);
+            fail("Read a corrupt snapshot");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
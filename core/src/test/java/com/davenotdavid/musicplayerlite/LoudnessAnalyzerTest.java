@@ -0,0 +1,114 @@
+package com.davenotdavid.musicplayerlite;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LoudnessAnalyzerTest {
+
+    private static final int SAMPLE_RATE = 48000;
+
+    @Test
+    public void fullScaleSineReadsItsRmsLevel() {
+        LoudnessAnalyzer analyzer = new LoudnessAnalyzer();
+        analyzer.reset(SAMPLE_RATE, 1);
+        feed(analyzer, sine(997, 1.0, 20, 1), 1);
+
+        // As per the BS.1770 reference, a 0 dBFS 997 Hz sine on one channel reads -3.01 LUFS.
+        assertEquals(-3.01, analyzer.getIntegratedLoudness(), 0.02);
+        assertEquals(1.0, analyzer.getPeak(), 1e-3);
+    }
+
+    @Test
+    public void channelsAreSummed() {
+        LoudnessAnalyzer analyzer = new LoudnessAnalyzer();
+        analyzer.reset(SAMPLE_RATE, 2);
+        feed(analyzer, sine(997, 1.0, 20, 2), 2);
+
+        assertEquals(0.0, analyzer.getIntegratedLoudness(), 0.02);
+    }
+
+    @Test
+    public void silenceIsGatedOut() {
+        LoudnessAnalyzer analyzer = new LoudnessAnalyzer();
+        analyzer.reset(SAMPLE_RATE, 1);
+        feed(analyzer, sine(997, 1.0, 10, 1), 1);
+        feed(analyzer, new float[20 * SAMPLE_RATE], 1);
+
+        // Only the few blocks that straddle the sine and the silence pull the result down.
+        assertEquals(-3.01, analyzer.getIntegratedLoudness(), 0.1);
+    }
+
+    @Test
+    public void quietPassageBelowTheRelativeGateIsLeftOut() {
+        LoudnessAnalyzer analyzer = new LoudnessAnalyzer();
+        analyzer.reset(SAMPLE_RATE, 1);
+        feed(analyzer, sine(997, 1.0, 20, 1), 1);
+
+        // 30 dB down, which is above the absolute gate but 20 LU below the relative one.
+        feed(analyzer, sine(997, Math.pow(10, -30 / 20.0), 20, 1), 1);
+
+        assertEquals(-3.01, analyzer.getIntegratedLoudness(), 0.1);
+    }
+
+    @Test
+    public void passageWithinTheRelativeGateCounts() {
+        LoudnessAnalyzer analyzer = new LoudnessAnalyzer();
+        analyzer.reset(SAMPLE_RATE, 1);
+        feed(analyzer, sine(997, 1.0, 20, 1), 1);
+        feed(analyzer, sine(997, Math.pow(10, -6 / 20.0), 20, 1), 1);
+
+        // The mean power of -3.01 and -9.01 LUFS halves.
+        double expected = -3.01 + 10 * Math.log10((1 + 0.25) / 2);
+        assertEquals(expected, analyzer.getIntegratedLoudness(), 0.05);
+    }
+
+    @Test
+    public void tracksShorterThanABlockAreUnmeasured() {
+        LoudnessAnalyzer analyzer = new LoudnessAnalyzer();
+        analyzer.reset(SAMPLE_RATE, 1);
+        feed(analyzer, sine(997, 1.0, 0.3, 1), 1);
+
+        assertEquals(LoudnessAnalyzer.UNMEASURED, analyzer.getIntegratedLoudness(), 0);
+    }
+
+    @Test
+    public void gainIsLoweredToKeepThePeakFromClipping() {
+        assertEquals(-11.0, LoudnessAnalyzer.gainFor(-3.0, 1f, -14.0), 1e-9);
+        assertEquals(6.0, LoudnessAnalyzer.gainFor(-20.0, 0.25f, -14.0), 0.03);
+        assertEquals(0.0, LoudnessAnalyzer.gainFor(LoudnessAnalyzer.UNMEASURED, 1f, -14.0), 0);
+    }
+
+    /**
+     * Returns a sine of the passed-in frequency and amplitude, with the same sample on each of
+     * the passed-in number of channels.
+     */
+    private static float[] sine(double frequency, double amplitude, double seconds,
+                                int channels) {
+        int frames = (int) (seconds * SAMPLE_RATE);
+        float[] samples = new float[frames * channels];
+        for (int i = 0; i < frames; i++) {
+            float sample = (float) (amplitude
+                    * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+            for (int c = 0; c < channels; c++) samples[i * channels + c] = sample;
+        }
+
+        return samples;
+    }
+
+    /**
+     * Feeds the passed-in samples to the analyzer in uneven chunks, the way a decoder hands them
+     * over.
+     */
+    private static void feed(LoudnessAnalyzer analyzer, float[] samples, int channels) {
+        int frames = samples.length / channels;
+        int offset = 0;
+        int chunk = 1000;
+        while (offset < frames) {
+            int count = Math.min(chunk, frames - offset);
+            analyzer.process(samples, offset * channels, count);
+            offset += count;
+            chunk = chunk == 1000 ? 4096 : 1000;
+        }
+    }
+}
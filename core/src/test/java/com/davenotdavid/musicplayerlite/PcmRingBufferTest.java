@@ -0,0 +1,166 @@
+package com.davenotdavid.musicplayerlite;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PcmRingBufferTest {
+
+    @Test
+    public void bytesComeOutInOrderAcrossTheWrap() {
+        PcmRingBuffer buffer = new PcmRingBuffer(8);
+        assertEquals(6, buffer.write(bytes(1, 6), 0, 6));
+        assertEquals(4, buffer.read(new byte[4], 0, 4));
+
+        // Wraps around the end of the array, both on the way in and on the way out.
+        assertEquals(6, buffer.write(ByteBuffer.wrap(bytes(7, 6))));
+        byte[] out = new byte[8];
+        assertEquals(8, buffer.read(out, 0, 8));
+        assertArrayEquals(bytes(5, 8), out);
+        assertEquals(0, buffer.available());
+    }
+
+    @Test
+    public void writesStopWhenFull() {
+        PcmRingBuffer buffer = new PcmRingBuffer(8);
+        ByteBuffer src = ByteBuffer.wrap(bytes(1, 10));
+
+        assertEquals(8, buffer.write(src));
+        assertEquals(2, src.remaining());
+        assertEquals(0, buffer.free());
+        assertEquals(0, buffer.write(src));
+        assertEquals(1f, buffer.getFillLevel(), 0);
+    }
+
+    @Test
+    public void flushedBytesAreSkipped() {
+        PcmRingBuffer buffer = new PcmRingBuffer(8);
+        buffer.write(bytes(1, 5), 0, 5);
+        buffer.flush();
+
+        // The flushed bytes only free up their room once the reader has skipped them.
+        assertEquals(1, buffer.getFlushCount());
+        assertEquals(0, buffer.available());
+        assertEquals(3, buffer.free());
+
+        buffer.write(bytes(20, 2), 0, 2);
+        byte[] out = new byte[8];
+        assertEquals(2, buffer.read(out, 0, 8));
+        assertEquals(20, out[0]);
+        assertEquals(21, out[1]);
+        assertEquals(8, buffer.free());
+    }
+
+    @Test
+    public void refillingAfterAFlushIsNoUnderrun() {
+        PcmRingBuffer buffer = new PcmRingBuffer(8);
+        buffer.write(bytes(1, 4), 0, 4);
+        buffer.read(new byte[2], 0, 2);
+        buffer.flush();
+
+        assertEquals(0, buffer.read(new byte[8], 0, 8));
+        assertEquals(0, buffer.getUnderrunCount());
+    }
+
+    @Test
+    public void underrunsAreCountedOncePerStarvation() {
+        PcmRingBuffer buffer = new PcmRingBuffer(8);
+        byte[] out = new byte[8];
+
+        // Nothing was read yet, so the ring hasn't started playing.
+        assertEquals(0, buffer.read(out, 0, 8));
+        assertEquals(0, buffer.getUnderrunCount());
+
+        buffer.write(bytes(1, 2), 0, 2);
+        buffer.read(out, 0, 8);
+        buffer.read(out, 0, 8);
+        buffer.read(out, 0, 8);
+        assertEquals(1, buffer.getUnderrunCount());
+
+        buffer.write(bytes(1, 2), 0, 2);
+        buffer.read(out, 0, 8);
+        buffer.read(out, 0, 8);
+        assertEquals(2, buffer.getUnderrunCount());
+    }
+
+    @Test
+    public void endOfStreamDrainsRatherThanStarves() {
+        PcmRingBuffer buffer = new PcmRingBuffer(8);
+        buffer.write(bytes(1, 3), 0, 3);
+        buffer.markEndOfStream();
+
+        assertTrue(buffer.isEndOfStream());
+        assertFalse(buffer.isDrained());
+        buffer.read(new byte[8], 0, 8);
+        assertEquals(0, buffer.read(new byte[8], 0, 8));
+        assertTrue(buffer.isDrained());
+        assertEquals(0, buffer.getUnderrunCount());
+
+        // A flush (e.g. a seek back from the end) starts the stream again.
+        buffer.flush();
+        assertFalse(buffer.isEndOfStream());
+    }
+
+    @Test
+    public void clearStartsOver() {
+        PcmRingBuffer buffer = new PcmRingBuffer(8);
+        buffer.write(bytes(1, 2), 0, 2);
+        buffer.read(new byte[8], 0, 8);
+        buffer.read(new byte[8], 0, 8);
+        buffer.write(bytes(1, 3), 0, 3);
+        buffer.markEndOfStream();
+        buffer.clear();
+
+        assertEquals(0, buffer.available());
+        assertEquals(8, buffer.free());
+        assertEquals(0, buffer.getUnderrunCount());
+        assertFalse(buffer.isEndOfStream());
+    }
+
+    @Test
+    public void waitsTimeOut() throws InterruptedException {
+        PcmRingBuffer buffer = new PcmRingBuffer(8);
+        assertFalse(buffer.awaitAvailable(10));
+        assertTrue(buffer.awaitFree(8, 10));
+
+        buffer.write(bytes(1, 8), 0, 8);
+        assertTrue(buffer.awaitAvailable(10));
+        assertFalse(buffer.awaitFree(1, 10));
+    }
+
+    @Test
+    public void writerWakesTheWaitingReader() throws InterruptedException {
+        final PcmRingBuffer buffer = new PcmRingBuffer(8);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                buffer.write(bytes(1, 4), 0, 4);
+            }
+        });
+        writer.start();
+
+        assertTrue(buffer.awaitAvailable(10000));
+        assertEquals(4, buffer.available());
+        writer.join();
+    }
+
+    /**
+     * Returns the passed-in number of consecutive byte values, starting at the passed-in one.
+     */
+    private static byte[] bytes(int first, int count) {
+        byte[] bytes = new byte[count];
+        for (int i = 0; i < count; i++) bytes[i] = (byte) (first + i);
+
+        return bytes;
+    }
+}
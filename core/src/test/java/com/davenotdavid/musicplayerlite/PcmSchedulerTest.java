@@ -0,0 +1,123 @@
+package com.davenotdavid.musicplayerlite;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PcmSchedulerTest {
+
+    // 1000 frames per second of 16-bit stereo, so that a frame is 4 bytes and a millisecond.
+    private static final int SAMPLE_RATE = 1000;
+    private static final int FRAME_BYTES = 4;
+
+    @Test
+    public void chunksAreWholeFrames() {
+        PcmScheduler scheduler = new PcmScheduler(new PcmRingBuffer(100));
+        scheduler.getBuffer().write(new byte[10], 0, 10);
+
+        // Nothing is read before the format is known.
+        assertEquals(0, scheduler.nextChunk(100));
+
+        scheduler.configure(SAMPLE_RATE, FRAME_BYTES, -1);
+        assertEquals(8, scheduler.nextChunk(100));
+        assertEquals(4, scheduler.nextChunk(7));
+    }
+
+    @Test
+    public void playbackStartsOnceHalfTheRingIsFilled() {
+        PcmScheduler scheduler = new PcmScheduler(new PcmRingBuffer(100));
+        scheduler.configure(SAMPLE_RATE, FRAME_BYTES, -1);
+        scheduler.getBuffer().write(new byte[49], 0, 49);
+        assertFalse(scheduler.isPrebuffered());
+
+        scheduler.getBuffer().write(new byte[1], 0, 1);
+        assertTrue(scheduler.isPrebuffered());
+        assertEquals(12, scheduler.getBufferedMillis());
+    }
+
+    @Test
+    public void shortTrackStartsOnceFullyBuffered() {
+        PcmScheduler scheduler = new PcmScheduler(new PcmRingBuffer(100));
+        scheduler.configure(SAMPLE_RATE, FRAME_BYTES, 2);
+        scheduler.getBuffer().write(new byte[8], 0, 8);
+        assertFalse(scheduler.isPrebuffered());
+
+        scheduler.getBuffer().markEndOfStream();
+        assertTrue(scheduler.isPrebuffered());
+    }
+
+    @Test
+    public void positionFollowsTheHeadUpToWhatWasWritten() {
+        PcmScheduler scheduler = new PcmScheduler(new PcmRingBuffer(1000));
+        scheduler.configure(SAMPLE_RATE, FRAME_BYTES, 150);
+        scheduler.onOutputWritten(100 * FRAME_BYTES);
+
+        assertEquals(50, scheduler.getPositionMillis(50));
+
+        // The head can't be past what the output was handed.
+        assertEquals(100, scheduler.getPositionMillis(200));
+
+        // Nor can the position be past the end of the track.
+        scheduler.onOutputWritten(100 * FRAME_BYTES);
+        assertEquals(150, scheduler.getPositionMillis(200));
+    }
+
+    @Test
+    public void seekMovesThePositionOnceTheOutputIsFlushed() {
+        PcmScheduler scheduler = new PcmScheduler(new PcmRingBuffer(1000));
+        scheduler.configure(SAMPLE_RATE, FRAME_BYTES, -1);
+        scheduler.getBuffer().write(new byte[400], 0, 400);
+        scheduler.onOutputWritten(100 * FRAME_BYTES);
+        int flushCount = scheduler.getBuffer().getFlushCount();
+
+        scheduler.seekTo(5000);
+        assertTrue(scheduler.isFlushPending(flushCount));
+        assertEquals(0, scheduler.getBuffer().available());
+        assertEquals(80, scheduler.getPositionMillis(80));
+
+        scheduler.onOutputFlushed();
+        assertEquals(5000, scheduler.getPositionMillis(0));
+        scheduler.onOutputWritten(10 * FRAME_BYTES);
+        assertEquals(5010, scheduler.getPositionMillis(10));
+        assertFalse(scheduler.isFlushPending(scheduler.getBuffer().getFlushCount()));
+    }
+
+    @Test
+    public void completesOnceTheHeadCatchesUp() {
+        PcmScheduler scheduler = new PcmScheduler(new PcmRingBuffer(1000));
+        scheduler.configure(SAMPLE_RATE, FRAME_BYTES, -1);
+        PcmRingBuffer buffer = scheduler.getBuffer();
+        buffer.write(new byte[40], 0, 40);
+        buffer.markEndOfStream();
+        assertFalse(scheduler.isComplete(0));
+
+        int chunk = scheduler.nextChunk(1000);
+        buffer.read(new byte[chunk], 0, chunk);
+        scheduler.onOutputWritten(chunk);
+        assertFalse(scheduler.isComplete(9));
+        assertTrue(scheduler.isComplete(10));
+    }
+
+    @Test
+    public void resetForgetsTheTrack() {
+        PcmScheduler scheduler = new PcmScheduler(new PcmRingBuffer(1000));
+        scheduler.configure(SAMPLE_RATE, FRAME_BYTES, 1000);
+        scheduler.getBuffer().write(new byte[40], 0, 40);
+        scheduler.seekTo(300);
+        scheduler.onOutputFlushed();
+        scheduler.reset();
+
+        assertEquals(0, scheduler.getSampleRate());
+        assertEquals(0, scheduler.getFrameBytes());
+        assertEquals(-1, scheduler.getDurationMillis());
+        assertEquals(0, scheduler.getPositionMillis(0));
+        assertEquals(0, scheduler.getBuffer().available());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void formatMustBeValid() {
+        new PcmScheduler(new PcmRingBuffer(100)).configure(0, FRAME_BYTES, -1);
+    }
+}
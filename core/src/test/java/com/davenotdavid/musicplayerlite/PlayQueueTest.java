@@ -0,0 +1,152 @@
+package com.davenotdavid.musicplayerlite;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PlayQueueTest {
+
+    @Test
+    public void emptyQueue() {
+        PlayQueue queue = new PlayQueue();
+
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.size());
+        assertArrayEquals(new long[0], queue.toArray());
+    }
+
+    @Test
+    public void insertsKeepTheirPositions() {
+        PlayQueue queue = new PlayQueue();
+        queue.add(1);
+        queue.add(3);
+        queue.insert(1, 2);
+        queue.insert(0, 0);
+        queue.insertAll(2, new long[]{10, 11});
+        queue.addAll(new long[]{20, 21});
+
+        assertArrayEquals(new long[]{0, 1, 10, 11, 2, 3, 20, 21}, queue.toArray());
+        assertEquals(10, queue.get(2));
+    }
+
+    @Test
+    public void sameSongMayBeQueuedTwice() {
+        PlayQueue queue = new PlayQueue();
+        queue.add(5);
+        queue.add(5);
+
+        assertEquals(5, queue.remove(0));
+        assertArrayEquals(new long[]{5}, queue.toArray());
+    }
+
+    @Test
+    public void retainIdsKeepsTheOrderOfTheRest() {
+        PlayQueue queue = new PlayQueue();
+        queue.addAll(new long[]{4, 1, 3, 2, 1});
+
+        assertEquals(2, queue.retainIds(new long[]{1, 2}));
+        assertArrayEquals(new long[]{1, 2, 1}, queue.toArray());
+    }
+
+    @Test
+    public void removeIdsKeepsTheOrderOfTheRest() {
+        PlayQueue queue = new PlayQueue();
+        queue.addAll(new long[]{4, 1, 3, 2, 1});
+
+        assertEquals(3, queue.removeIds(new long[]{1, 4}));
+        assertArrayEquals(new long[]{3, 2}, queue.toArray());
+        assertEquals(0, queue.removeIds(new long[0]));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getOutOfRangeThrows() {
+        PlayQueue queue = new PlayQueue();
+        queue.add(1);
+        queue.get(1);
+    }
+
+    @Test
+    public void editsMatchAnArrayList() {
+        Random random = new Random(1);
+        PlayQueue queue = new PlayQueue();
+        List<Long> expected = new ArrayList<>();
+
+        for (int step = 0; step < 20000; step++) {
+            int size = expected.size();
+            switch (random.nextInt(8)) {
+                case 0:
+                case 1: {
+                    int index = random.nextInt(size + 1);
+                    long id = random.nextInt(1000);
+                    queue.insert(index, id);
+                    expected.add(index, id);
+                    break;
+                }
+                case 2: {
+                    int index = random.nextInt(size + 1);
+                    long[] ids = new long[random.nextInt(20)];
+                    for (int i = 0; i < ids.length; i++) ids[i] = random.nextInt(1000);
+                    queue.insertAll(index, ids);
+                    for (int i = 0; i < ids.length; i++) expected.add(index + i, ids[i]);
+                    break;
+                }
+                case 3: {
+                    if (size == 0) break;
+                    int index = random.nextInt(size);
+                    assertEquals((long) expected.remove(index), queue.remove(index));
+                    break;
+                }
+                case 4: {
+                    if (size == 0) break;
+                    int from = random.nextInt(size);
+                    int count = random.nextInt(Math.min(10, size - from) + 1);
+                    queue.removeRange(from, count);
+                    expected.subList(from, from + count).clear();
+                    break;
+                }
+                case 5: {
+                    if (size == 0) break;
+                    int from = random.nextInt(size);
+                    int to = random.nextInt(size);
+                    queue.move(from, to);
+                    expected.add(to, expected.remove(from));
+                    break;
+                }
+                case 6: {
+                    if (size == 0) break;
+                    int index = random.nextInt(size);
+                    assertEquals((long) expected.get(index), queue.get(index));
+                    break;
+                }
+                default: {
+                    if (random.nextInt(50) != 0) break;
+                    long[] keep = new long[500];
+                    for (int i = 0; i < keep.length; i++) keep[i] = random.nextInt(1000);
+                    Arrays.sort(keep);
+                    int removed = queue.retainIds(keep);
+                    int before = expected.size();
+                    List<Long> kept = new ArrayList<>();
+                    for (long id : expected) {
+                        if (Arrays.binarySearch(keep, id) >= 0) kept.add(id);
+                    }
+                    expected = kept;
+                    assertEquals(before - kept.size(), removed);
+                    break;
+                }
+            }
+
+            assertEquals(expected.size(), queue.size());
+        }
+
+        long[] array = queue.toArray();
+        assertEquals(expected.size(), array.length);
+        for (int i = 0; i < array.length; i++) assertEquals((long) expected.get(i), array[i]);
+    }
+}
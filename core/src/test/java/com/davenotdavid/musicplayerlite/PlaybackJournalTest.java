@@ -0,0 +1,249 @@
+package com.davenotdavid.musicplayerlite;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PlaybackJournalTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void missingJournalReplaysAsEmpty() throws IOException {
+        PlaybackState state = new PlaybackJournal(new File(mFolder.getRoot(), "journal"))
+                .replay();
+
+        assertEquals(-1, state.getSongId());
+        assertEquals(0, state.getQueue().length);
+        assertEquals(0, state.getUpNext().length);
+    }
+
+    @Test
+    public void lastRecordOfEachKindWins() throws IOException {
+        File file = new File(mFolder.getRoot(), "journal");
+        PlaybackJournal journal = new PlaybackJournal(file);
+        journal.appendModes(true, false);
+        journal.appendQueue(new long[]{1, 2, 3}, 1);
+        journal.appendPosition(2, 1000);
+        journal.appendPosition(2, 6000);
+        journal.appendModes(false, true);
+        journal.close();
+
+        PlaybackState state = new PlaybackJournal(file).replay();
+        assertEquals(2, state.getSongId());
+        assertEquals(6000, state.getPosition());
+        assertFalse(state.isShuffle());
+        assertTrue(state.isAutoRepeat());
+        assertArrayEquals(new long[]{1, 2, 3}, state.getQueue());
+        assertEquals(1, state.getQueueCursor());
+    }
+
+    @Test
+    public void tornTailIsCutOff() throws IOException {
+        File file = new File(mFolder.getRoot(), "journal");
+        PlaybackJournal journal = new PlaybackJournal(file);
+        journal.appendPosition(1, 1000);
+        journal.appendPosition(1, 2000);
+        journal.close();
+        long intact = file.length();
+
+        // Cuts the last record short, as a write interrupted by a power loss would.
+        journal = new PlaybackJournal(file);
+        journal.appendPosition(1, 3000);
+        journal.close();
+        truncate(file, file.length() - 2);
+
+        journal = new PlaybackJournal(file);
+        assertEquals(2000, journal.replay().getPosition());
+        assertEquals(intact, file.length());
+
+        // Records appended afterwards follow the last intact one.
+        journal.appendPosition(1, 4000);
+        journal.close();
+        assertEquals(4000, new PlaybackJournal(file).replay().getPosition());
+    }
+
+    @Test
+    public void corruptRecordEndsTheJournal() throws IOException {
+        File file = new File(mFolder.getRoot(), "journal");
+        PlaybackJournal journal = new PlaybackJournal(file);
+        journal.appendPosition(1, 1000);
+        journal.close();
+        long intact = file.length();
+        journal = new PlaybackJournal(file);
+        journal.appendPosition(1, 2000);
+        journal.appendPosition(1, 3000);
+        journal.close();
+
+        // Flips a byte of the second position's payload.
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(intact + 5);
+            randomAccessFile.write(0xff);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        assertEquals(1000, new PlaybackJournal(file).replay().getPosition());
+        assertEquals(intact, file.length());
+    }
+
+    @Test
+    public void otherFileIsStartedOver() throws IOException {
+        File file = mFolder.newFile();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+        } finally {
+            randomAccessFile.close();
+        }
+
+        PlaybackJournal journal = new PlaybackJournal(file);
+        assertEquals(-1, journal.replay().getSongId());
+        journal.appendPosition(7, 700);
+        journal.close();
+        assertEquals(7, new PlaybackJournal(file).replay().getSongId());
+    }
+
+    @Test
+    public void journalIsCompactedOnceLarge() throws IOException {
+        File file = new File(mFolder.getRoot(), "journal");
+        PlaybackJournal journal = new PlaybackJournal(file);
+        journal.appendQueue(new long[]{5, 6}, 0);
+        for (int i = 0; i < 20000; i++) journal.appendPosition(5, i);
+        journal.close();
+
+        assertTrue(file.length() < 128 * 1024);
+        PlaybackState state = new PlaybackJournal(file).replay();
+        assertEquals(19999, state.getPosition());
+        assertArrayEquals(new long[]{5, 6}, state.getQueue());
+    }
+
+    @Test
+    public void upNextIsKeptApartFromTheQueue() throws IOException {
+        File file = new File(mFolder.getRoot(), "journal");
+        PlaybackJournal journal = new PlaybackJournal(file);
+        journal.appendQueue(new long[]{1, 2}, 1);
+        journal.appendUpNext(new long[]{9, 8, 7});
+        journal.appendUpNext(new long[]{8, 7});
+        journal.close();
+
+        PlaybackState state = new PlaybackJournal(file).replay();
+        assertArrayEquals(new long[]{1, 2}, state.getQueue());
+        assertArrayEquals(new long[]{8, 7}, state.getUpNext());
+
+        // Survives compaction as well.
+        journal = new PlaybackJournal(file);
+        journal.replay();
+        journal.compact();
+        journal.close();
+        assertArrayEquals(new long[]{8, 7}, new PlaybackJournal(file).replay().getUpNext());
+    }
+
+    @Test
+    public void upNextEditsReplayInOrder() throws IOException {
+        Random random = new Random(5);
+        List<Long> expected = new ArrayList<>();
+        File file = new File(mFolder.getRoot(), "journal");
+        PlaybackJournal journal = new PlaybackJournal(file);
+        long nextId = 1;
+        for (int step = 0; step < 2000; step++) {
+            int operation = random.nextInt(5);
+            if (operation <= 1 || expected.isEmpty()) {
+                long[] ids = new long[1 + random.nextInt(4)];
+                int index = random.nextInt(expected.size() + 1);
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = nextId++;
+                    expected.add(index + i, ids[i]);
+                }
+                journal.appendUpNextInsert(index, ids);
+            } else if (operation == 2) {
+                int from = random.nextInt(expected.size());
+                int count = random.nextInt(Math.min(3, expected.size() - from) + 1);
+                expected.subList(from, from + count).clear();
+                journal.appendUpNextRemove(from, count);
+            } else if (operation == 3) {
+                int from = random.nextInt(expected.size());
+                int to = random.nextInt(expected.size());
+                expected.add(to, expected.remove(from));
+                journal.appendUpNextMove(from, to);
+            } else {
+                long id = expected.get(random.nextInt(expected.size()));
+                expected.remove(id);
+                journal.appendUpNextRemoveIds(new long[]{id});
+            }
+
+            // Compacts now and then, so that edits land both before and after a whole record.
+            if (step == 1000) journal.compact();
+        }
+        journal.close();
+
+        long[] upNext = new long[expected.size()];
+        for (int i = 0; i < upNext.length; i++) upNext[i] = expected.get(i);
+        assertArrayEquals(upNext, new PlaybackJournal(file).replay().getUpNext());
+    }
+
+    @Test
+    public void upNextEditsOnlyRecordWhatChanged() throws IOException {
+        long[] ids = new long[1000];
+        for (int i = 0; i < ids.length; i++) ids[i] = i + 1;
+
+        File file = new File(mFolder.getRoot(), "journal");
+        PlaybackJournal journal = new PlaybackJournal(file);
+        journal.appendUpNextInsert(0, ids);
+        long size = journal.getSize();
+        journal.appendUpNextRemove(0, 1);
+        journal.appendUpNextMove(0, 500);
+        assertTrue(journal.getSize() - size < 64);
+        journal.close();
+
+        long[] upNext = new PlaybackJournal(file).replay().getUpNext();
+        assertEquals(999, upNext.length);
+        assertEquals(3, upNext[0]);
+        assertEquals(2, upNext[500]);
+    }
+
+    @Test
+    public void longQueuesAreRecordedWhole() throws IOException {
+        long[] ids = new long[20000];
+        for (int i = 0; i < ids.length; i++) ids[i] = i + 1;
+
+        File file = new File(mFolder.getRoot(), "journal");
+        PlaybackJournal journal = new PlaybackJournal(file);
+        journal.appendQueue(ids, 10000);
+        journal.appendUpNext(ids);
+        for (int i = 0; i < 100; i++) journal.appendPosition(1, i);
+        journal.close();
+
+        PlaybackState state = new PlaybackJournal(file).replay();
+        assertArrayEquals(ids, state.getQueue());
+        assertEquals(10000, state.getQueueCursor());
+        assertArrayEquals(ids, state.getUpNext());
+        assertEquals(99, state.getPosition());
+    }
+
+    /**
+     * Cuts the passed-in file short.
+     */
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
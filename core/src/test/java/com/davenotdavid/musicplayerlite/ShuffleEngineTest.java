@@ -0,0 +1,177 @@
+package com.davenotdavid.musicplayerlite;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShuffleEngineTest {
+
+    @Test
+    public void everySongPlaysOncePerCycle() {
+        ShuffleEngine engine = engine(1, 100);
+        Set<Long> played = new HashSet<>();
+        for (int i = 0; i < 100; i++) assertTrue(played.add(engine.next()));
+
+        // The song that ended the cycle counts as drawn in the next one.
+        for (int cycle = 0; cycle < 3; cycle++) {
+            played.clear();
+            played.add(engine.current());
+            for (int i = 0; i < 99; i++) assertTrue(played.add(engine.next()));
+        }
+    }
+
+    @Test
+    public void noSongRepeatsAcrossCycles() {
+        ShuffleEngine engine = engine(2, 5);
+
+        long previous = engine.next();
+        for (int i = 0; i < 500; i++) {
+            long next = engine.next();
+            assertNotEquals(previous, next);
+            previous = next;
+        }
+    }
+
+    @Test
+    public void sameSeedGivesSameOrder() {
+        ShuffleEngine a = engine(3, 50);
+        ShuffleEngine b = engine(3, 50);
+
+        for (int i = 0; i < 200; i++) assertEquals(a.next(), b.next());
+    }
+
+    @Test
+    public void previousAndNextWalkTheHistory() {
+        ShuffleEngine engine = engine(4, 20);
+        long first = engine.next();
+        long second = engine.next();
+        long third = engine.next();
+
+        assertEquals(second, engine.previous());
+        assertEquals(first, engine.previous());
+        assertEquals(-1, engine.previous());
+        assertEquals(second, engine.next());
+        assertEquals(third, engine.next());
+    }
+
+    @Test
+    public void peekedSongIsTheNextOne() {
+        ShuffleEngine engine = engine(5, 20);
+        engine.next();
+
+        long peeked = engine.peekNext();
+        assertEquals(peeked, engine.peekNext());
+        assertEquals(peeked, engine.next());
+    }
+
+    @Test
+    public void pickingAnotherSongPutsThePeekedOneBack() {
+        ShuffleEngine engine = engine(6, 10);
+        engine.next();
+        long peeked = engine.peekNext();
+
+        // Picks a song that isn't up next, and then plays out the rest of the cycle.
+        long picked = peeked == 1 ? 2 : 1;
+        engine.start(picked);
+        Set<Long> played = new HashSet<>();
+        while (played.size() < 10 && engine.next() >= 0) {
+            if (!played.add(engine.current())) break;
+        }
+
+        assertTrue(played.contains(peeked));
+    }
+
+    @Test
+    public void removedSongsAreSkipped() {
+        ShuffleEngine engine = engine(7, 10);
+        long first = engine.next();
+        long second = engine.next();
+        engine.remove(first);
+
+        assertEquals(second, engine.current());
+        assertEquals(-1, engine.previous());
+        for (int i = 0; i < 50; i++) assertNotEquals(first, engine.next());
+    }
+
+    @Test
+    public void syncMirrorsTheSongList() {
+        SongTable songs = new SongTable();
+        songs.addAll(SongTableTest.songs(30, 8));
+        ShuffleEngine engine = new ShuffleEngine(8);
+        engine.sync(songs);
+
+        long removed = songs.getID(5);
+        songs.remove(5);
+        Song added = new Song(10000, "added", "Artist", "/music/added.mp3", -1);
+        songs.add(added);
+        engine.sync(songs);
+
+        Set<Long> played = new HashSet<>();
+        for (int i = 0; i < 30; i++) played.add(engine.next());
+        assertEquals(30, played.size());
+        assertTrue(played.contains(added.getID()));
+        assertFalse(played.contains(removed));
+    }
+
+    @Test
+    public void updateAppliesTheChanges() {
+        SongTable songs = new SongTable();
+        songs.addAll(SongTableTest.songs(30, 10));
+        ShuffleEngine engine = new ShuffleEngine(10);
+        engine.sync(songs);
+
+        long removed = songs.getID(5);
+        songs.remove(5);
+        Song added = new Song(10000, "added", "Artist", "/music/added.mp3", -1);
+        songs.add(added);
+        engine.update(songs, new long[]{added.getID()}, new long[]{removed});
+
+        Set<Long> played = new HashSet<>();
+        for (int i = 0; i < 30; i++) played.add(engine.next());
+        assertEquals(30, played.size());
+        assertTrue(played.contains(added.getID()));
+        assertFalse(played.contains(removed));
+    }
+
+    @Test
+    public void updateOfAnotherListSyncsIt() {
+        ShuffleEngine engine = engine(11, 10);
+        SongTable songs = new SongTable();
+        songs.addAll(SongTableTest.songs(20, 11));
+        engine.update(songs, new long[0], new long[0]);
+
+        Set<Long> played = new HashSet<>();
+        for (int i = 0; i < 20; i++) played.add(engine.next());
+        Set<Long> ids = new HashSet<>();
+        for (long id : songs.copyIds()) ids.add(id);
+        assertEquals(ids, played);
+    }
+
+    @Test
+    public void restoredHistoryIsWalkedBack() {
+        ShuffleEngine engine = engine(9, 10);
+        engine.restore(new long[]{3, 7, 5}, 2);
+
+        assertEquals(5, engine.current());
+        assertEquals(7, engine.previous());
+        assertEquals(3, engine.previous());
+        assertArrayEquals(new long[]{3, 7, 5}, engine.getHistory());
+    }
+
+    /**
+     * Returns an engine of the passed-in seed over songs with the IDs 1 to count.
+     */
+    private static ShuffleEngine engine(long seed, int count) {
+        ShuffleEngine engine = new ShuffleEngine(seed);
+        for (long id = 1; id <= count; id++) engine.add(id);
+
+        return engine;
+    }
+}
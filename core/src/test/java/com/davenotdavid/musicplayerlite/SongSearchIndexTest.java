@@ -0,0 +1,63 @@
+package com.davenotdavid.musicplayerlite;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SongSearchIndexTest {
+
+    @Test
+    public void removedSongsAreLeftOutOfTheResults() {
+        List<Song> songs = SongTableTest.songs(200, 7);
+        SongSearchIndex index = new SongSearchIndex();
+        index.apply(pass(LibraryDelta.full(table(songs))));
+
+        List<Song> before = new ArrayList<>(index.search("love"));
+        assertTrue(before.size() > 2);
+
+        // The results are in title order rather than ID order.
+        long[] removedIds = {before.get(0).getID(), before.get(1).getID()};
+        if (removedIds[0] > removedIds[1]) {
+            removedIds = new long[]{removedIds[1], removedIds[0]};
+        }
+        index.removeIds(removedIds);
+        List<Song> expected = new ArrayList<>(before.subList(2, before.size()));
+        assertEquals(expected, new ArrayList<>(index.search("love")));
+
+        // The sync's next pass then takes them out for good.
+        List<Song> remaining = new ArrayList<>(songs);
+        for (int i = remaining.size() - 1; i >= 0; i--) {
+            long id = remaining.get(i).getID();
+            if (id == removedIds[0] || id == removedIds[1]) remaining.remove(i);
+        }
+        index.apply(pass(new LibraryDelta(table(remaining), Collections.<Song>emptyList(),
+                Collections.<Song>emptyList(), removedIds, false)));
+        assertEquals(expected, new ArrayList<>(index.search("love")));
+    }
+
+    /**
+     * Sorts the passed-in pass's library by title, as the loader would.
+     */
+    private static LibraryDelta pass(LibraryDelta delta) {
+        SongTable library = delta.getLibrary();
+        delta.setOrder(SongSorter.SortOrder.TITLE,
+                SongSorter.sort(library, SongSorter.SortOrder.TITLE));
+
+        return delta;
+    }
+
+    /**
+     * Returns a table of the passed-in songs.
+     */
+    private static SongTable table(List<Song> songs) {
+        SongTable table = new SongTable();
+        table.addAll(songs);
+
+        return table;
+    }
+}
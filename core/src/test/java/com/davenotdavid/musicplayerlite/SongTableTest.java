@@ -0,0 +1,326 @@
+package com.davenotdavid.musicplayerlite;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SongTableTest {
+
+    @Test
+    public void rowsReadBackAsTheSongsStored() {
+        List<Song> songs = songs(200, 1);
+        SongTable table = new SongTable();
+        table.addAll(songs);
+
+        assertEquals(songs, table);
+        for (int i = 0; i < songs.size(); i++) {
+            Song song = songs.get(i);
+            assertEquals(song.getID(), table.getID(i));
+            assertEquals(song.getTitle(), table.getTitle(i));
+            assertEquals(song.getArtist(), table.getArtist(i));
+            assertEquals(song.getPath(), table.getPath(i));
+            assertEquals(song.getAlbumID(), table.getAlbumID(i));
+        }
+    }
+
+    @Test
+    public void sharedFoldersAndArtistsAreStoredOnce() {
+        SongTable table = new SongTable();
+        table.add(new Song(1, "a", "Artist", "/music/album/a.mp3", 7));
+        table.add(new Song(2, "b", "Artist", "/music/album/b.mp3", 7));
+
+        assertSame(table.getFolder(0), table.getFolder(1));
+        assertSame(table.getArtist(0), table.getArtist(1));
+        assertEquals("/music/album/", table.getFolder(0));
+    }
+
+    @Test
+    public void nullFieldsAndPathsWithoutFolderRoundTrip() {
+        SongTable table = new SongTable();
+        table.add(new Song(1, null, null, null, -1));
+        table.add(new Song(2, "b", null, "b.mp3", -1));
+
+        assertNull(table.getTitle(0));
+        assertNull(table.getArtist(0));
+        assertNull(table.getPath(0));
+        assertNull(table.getFolder(1));
+        assertEquals("b.mp3", table.getPath(1));
+    }
+
+    @Test
+    public void editsMatchAnArrayList() {
+        Random random = new Random(2);
+        List<Song> expected = new ArrayList<>();
+        SongTable table = new SongTable(1);
+        long nextId = 1;
+        for (int step = 0; step < 5000; step++) {
+            int operation = random.nextInt(4);
+            if (operation <= 1 || expected.isEmpty()) {
+                int index = random.nextInt(expected.size() + 1);
+                Song song = song(nextId++, random);
+                expected.add(index, song);
+                table.add(index, song);
+            } else if (operation == 2) {
+                int index = random.nextInt(expected.size());
+                assertEquals(expected.remove(index), table.remove(index));
+            } else {
+                int index = random.nextInt(expected.size());
+                Song song = song(nextId++, random);
+                assertEquals(expected.set(index, song), table.set(index, song));
+            }
+        }
+
+        assertEquals(expected, table);
+    }
+
+    @Test
+    public void removeIdsDropsOnlyThoseRows() {
+        List<Song> songs = songs(100, 3);
+        SongTable table = new SongTable();
+        table.addAll(songs);
+        int modCount = table.getModCount();
+
+        long[] ids = {songs.get(0).getID(), songs.get(50).getID(), songs.get(99).getID()};
+        Arrays.sort(ids);
+        assertArrayEquals(new int[]{0, 50, 99}, table.removeIds(ids));
+
+        List<Song> expected = new ArrayList<>(songs);
+        expected.remove(99);
+        expected.remove(50);
+        expected.remove(0);
+        assertEquals(expected, table);
+        assertNotEquals(modCount, table.getModCount());
+    }
+
+    @Test
+    public void insertSortedMatchesInsertingOneAtATime() {
+        Comparator<Song> order = SongSorter.comparator(SongSorter.SortOrder.TITLE);
+        List<Song> songs = songs(300, 5);
+        List<Song> existing = new ArrayList<>(songs.subList(0, 200));
+        List<Song> incoming = new ArrayList<>(songs.subList(200, 300));
+        Collections.sort(existing, order);
+        Collections.sort(incoming, order);
+
+        // Including songs that compare equal to rows already there, which go after them.
+        incoming.add(0, existing.get(0));
+        incoming.add(existing.get(existing.size() - 1));
+        Collections.sort(incoming, order);
+
+        SongTable table = new SongTable(1);
+        table.addAll(existing);
+        List<Song> expected = new ArrayList<>(existing);
+        for (Song song : incoming) {
+            int index = Collections.binarySearch(expected, song, order);
+            if (index < 0) index = -index - 1;
+            while (index < expected.size() && order.compare(expected.get(index), song) == 0) {
+                index++;
+            }
+            expected.add(index, song);
+        }
+
+        int[] positions = table.insertSorted(incoming, order);
+        assertEquals(expected, table);
+        for (int i = 0; i < positions.length; i++) {
+            assertEquals(incoming.get(i).getID(), table.get(positions[i]).getID());
+        }
+    }
+
+    @Test
+    public void addRowsCopiesRowsInTheGivenOrder() {
+        List<Song> songs = songs(50, 4);
+        SongTable source = new SongTable();
+        source.addAll(songs);
+
+        int[] rows = {49, 0, 25, 3};
+        SongTable target = new SongTable();
+        target.addRows(source, rows);
+
+        assertEquals(rows.length, target.size());
+        for (int i = 0; i < rows.length; i++) assertEquals(songs.get(rows[i]), target.get(i));
+    }
+
+    @Test
+    public void copyIsIndependentOfTheOriginal() {
+        SongTable table = new SongTable();
+        table.addAll(songs(20, 5));
+        SongTable copy = new SongTable(table);
+
+        table.remove(0);
+        table.add(new Song(1000, "new", "New Artist", "/new/new.mp3", 1));
+
+        assertEquals(20, copy.size());
+        assertEquals(songs(20, 5), copy);
+    }
+
+    @Test
+    public void idLookupsFindEveryRow() {
+        List<Song> songs = songs(300, 6);
+        SongTable table = new SongTable();
+        table.addAll(songs);
+
+        for (int i = 0; i < songs.size(); i++) {
+            assertEquals(i, table.indexOfId(songs.get(i).getID()));
+            assertEquals(i, table.binarySearchId(songs.get(i).getID()));
+        }
+        assertEquals(-1, table.indexOfId(0));
+        assertEquals(-1, table.binarySearchId(0));
+        assertArrayEquals(ids(songs), table.copyIds());
+    }
+
+    @Test
+    public void sortByIdMatchesASortedList() {
+        List<Song> songs = songs(1000, 9);
+        List<Song> shuffled = new ArrayList<>(songs);
+        Collections.shuffle(shuffled, new Random(9));
+        SongTable table = new SongTable();
+        table.addAll(shuffled);
+
+        table.sortById();
+        assertEquals(songs, table);
+        assertEquals(500, table.indexOfId(songs.get(500).getID()));
+    }
+
+    @Test
+    public void mergeMatchesEditingACopy() {
+        for (long seed = 0; seed < 20; seed++) {
+            Random random = new Random(seed);
+            List<Song> songs = songs(random.nextInt(300), seed);
+            SongTable table = new SongTable();
+            table.addAll(songs);
+            long maxId = songs.isEmpty() ? 0 : songs.get(songs.size() - 1).getID();
+
+            // Removes, replaces and adds random IDs, some of which aren't in the table.
+            List<Long> removed = new ArrayList<>();
+            List<Song> upserts = new ArrayList<>();
+            for (long id = 0; id <= maxId + 20; id++) {
+                int action = random.nextInt(10);
+                if (action == 0) removed.add(id);
+                if (action <= 1 && random.nextBoolean()) upserts.add(song(id, random));
+            }
+            long[] removedIds = new long[removed.size()];
+            for (int i = 0; i < removedIds.length; i++) removedIds[i] = removed.get(i);
+
+            List<Song> expected = new ArrayList<>();
+            int upsert = 0;
+            for (Song song : songs) {
+                while (upsert < upserts.size() && upserts.get(upsert).getID() < song.getID()) {
+                    expected.add(upserts.get(upsert++));
+                }
+                if (upsert < upserts.size() && upserts.get(upsert).getID() == song.getID()) {
+                    expected.add(upserts.get(upsert++));
+                } else if (!removed.contains(song.getID())) {
+                    expected.add(song);
+                }
+            }
+            expected.addAll(upserts.subList(upsert, upserts.size()));
+
+            assertEquals(expected, table.merge(removedIds, upserts));
+            assertEquals(songs, table);
+        }
+    }
+
+    @Test
+    public void idIndexFollowsEdits() {
+        Random random = new Random(7);
+        SongTable table = new SongTable();
+        List<Song> expected = new ArrayList<>();
+        long nextId = 1;
+
+        for (int step = 0; step < 3000; step++) {
+            int size = expected.size();
+            int action = random.nextInt(6);
+            if (action <= 1 || size == 0) {
+                // Mostly appends, with a repeated ID now and then.
+                long id = size > 0 && random.nextInt(10) == 0
+                        ? expected.get(random.nextInt(size)).getID() : nextId++;
+                int index = action == 0 ? size : random.nextInt(size + 1);
+                Song song = song(id, random);
+                table.add(index, song);
+                expected.add(index, song);
+            } else if (action == 2) {
+                int index = random.nextInt(size);
+                Song song = song(random.nextBoolean() ? nextId++
+                        : expected.get(index).getID(), random);
+                table.set(index, song);
+                expected.set(index, song);
+            } else if (action == 3) {
+                int index = random.nextInt(size);
+                table.remove(index);
+                expected.remove(index);
+            } else if (action == 4) {
+                int[] rows = new int[random.nextInt(5)];
+                for (int i = 0; i < rows.length; i++) rows[i] = random.nextInt(size);
+                SongTable source = new SongTable();
+                source.addAll(expected);
+                table.addRows(source, rows);
+                for (int row : rows) expected.add(expected.get(row));
+            }
+
+            long id = random.nextInt((int) nextId + 1);
+            assertEquals(indexOfId(expected, id), table.indexOfId(id));
+        }
+
+        for (Song song : expected) {
+            assertEquals(indexOfId(expected, song.getID()), table.indexOfId(song.getID()));
+        }
+    }
+
+    /**
+     * Returns the first position of the passed-in ID in the list, or -1 if it isn't there.
+     */
+    private static int indexOfId(List<Song> songs, long id) {
+        for (int i = 0; i < songs.size(); i++) {
+            if (songs.get(i).getID() == id) return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns songs with ascending IDs, spread over a few artists and folders.
+     */
+    static List<Song> songs(int count, long seed) {
+        Random random = new Random(seed);
+        List<Song> songs = new ArrayList<>(count);
+        long id = 0;
+        for (int i = 0; i < count; i++) {
+            id += 1 + random.nextInt(3);
+            songs.add(song(id, random));
+        }
+
+        return songs;
+    }
+
+    /**
+     * Returns a song with the passed-in ID and random fields.
+     */
+    static Song song(long id, Random random) {
+        String[] words = {"love", "Night", "\u00e9t\u00e9", "blue", "9 lives", "rain", "ocean"};
+        String title = words[random.nextInt(words.length)] + " " + id;
+        String artist = "Artist " + random.nextInt(8);
+        String path = "/music/" + artist + "/Album " + random.nextInt(3) + "/" + title + ".mp3";
+
+        return new Song(id, title, artist, path, random.nextInt(20));
+    }
+
+    /**
+     * Returns the IDs of the passed-in songs.
+     */
+    static long[] ids(List<Song> songs) {
+        long[] ids = new long[songs.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = songs.get(i).getID();
+
+        return ids;
+    }
+}